@@ -2,13 +2,20 @@ package com.github.kassak.indexer;
 
 import com.github.kassak.indexer.storage.FileEntry;
 import com.github.kassak.indexer.storage.FileStatistics;
+import com.github.kassak.indexer.storage.IndexLog;
+import com.github.kassak.indexer.storage.IndexSnapshot;
 import com.github.kassak.indexer.storage.IndexStatistics;
+import com.github.kassak.indexer.storage.Query;
 import com.github.kassak.indexer.utils.IService;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Collection;
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
     Interface for index manager
@@ -17,6 +24,14 @@ public interface IIndexManagerService extends IService {
     @NotNull
     public Collection<FileEntry> search(@NotNull String word);
     @NotNull
+    public Collection<FileEntry> search(@NotNull Query query);
+    @NotNull
+    public Collection<FileEntry> searchPrefix(@NotNull String prefix);
+    @NotNull
+    public Collection<FileEntry> searchSubstring(@NotNull String s);
+    @NotNull
+    public Collection<FileEntry> searchRegex(@NotNull Pattern regex);
+    @NotNull
     public List<FileStatistics> getFiles() ;
     @TestOnly
     public boolean isIdle();
@@ -24,4 +39,45 @@ public interface IIndexManagerService extends IService {
     public IndexStatistics getStats();
     @NotNull
     public List<String> getWords();
+    @NotNull
+    public List<String> getWords(@NotNull String from, @Nullable String to, int limit);
+
+    /**
+        Signal that registration of directory is finished, so that all its files were reported.
+        If index was restored from snapshot, restored files of directory which no longer exist are removed.
+
+        @param root registered directory
+    */
+    public void finishRegistration(@NotNull Path root) throws InterruptedException;
+
+    /**
+        Write index to snapshot. Must be called when service is stopped.
+
+        @param out snapshot with registered paths already written
+    */
+    public void saveSnapshot(@NotNull IndexSnapshot.Writer out) throws IOException;
+
+    /**
+        Restore index from snapshot. Must be called before service is started.
+
+        @param in snapshot with registered paths already read
+    */
+    public void loadSnapshot(@NotNull IndexSnapshot.Reader in) throws IOException;
+
+    /**
+        Replay log of changes over restored index. Must be called before service is started.
+        Restored files which no longer exist are removed like after loading snapshot.
+
+        @param in log with header read
+    */
+    public void replayLog(@NotNull IndexLog.Reader in) throws IOException;
+
+    /**
+        Log changes of index. Records are committed when there are no more tasks to apply
+        and at least every 100 ms while tasks keep coming.
+        Must be called before service is started.
+
+        @param out log or null to disable logging
+    */
+    public void setLog(@Nullable IndexLog.Writer out);
 }
@@ -4,14 +4,26 @@ import com.github.kassak.indexer.fs.IFSEventsProcessor;
 import com.github.kassak.indexer.storage.FileEntry;
 import com.github.kassak.indexer.storage.IIndexProcessor;
 import com.github.kassak.indexer.storage.FileStatistics;
+import com.github.kassak.indexer.storage.IndexLog;
+import com.github.kassak.indexer.storage.IndexSnapshot;
 import com.github.kassak.indexer.storage.IndexStatistics;
+import com.github.kassak.indexer.storage.Query;
 import com.github.kassak.indexer.storage.factories.IIndexProcessorFactory;
+import com.github.kassak.indexer.tokenizing.AdaptiveFilesProcessorService;
 import com.github.kassak.indexer.tokenizing.IFileProcessingResults;
 import com.github.kassak.indexer.tokenizing.IFilesProcessor;
 import com.github.kassak.indexer.tokenizing.IFilesProcessorService;
 import com.github.kassak.indexer.tokenizing.ITokenizer;
+import com.github.kassak.indexer.tokenizing.PipelineFilesProcessorService;
+import com.github.kassak.indexer.tokenizing.PipelineStatistics;
+import com.github.kassak.indexer.tokenizing.factories.IBufferTokenizerFactory;
+import com.github.kassak.indexer.tokenizing.factories.IChunkedTokenizerFactory;
 import com.github.kassak.indexer.tokenizing.factories.IFilesProcessorServiceFactory;
 import com.github.kassak.indexer.tokenizing.factories.ITokenizerFactory;
+import com.github.kassak.indexer.utils.CoalescingQueue;
+import com.github.kassak.indexer.utils.ContentHash;
+import com.github.kassak.indexer.utils.IService;
+import com.github.kassak.indexer.utils.MpscRingBuffer;
 import com.github.kassak.indexer.utils.Services;
 import com.github.kassak.indexer.utils.ThreadService;
 import org.jetbrains.annotations.NotNull;
@@ -19,10 +31,14 @@ import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 public class IndexManagerService implements Runnable, IIndexManagerService
         , IFileProcessingResults, IFilesProcessor, IFSEventsProcessor {
@@ -30,38 +46,44 @@ public class IndexManagerService implements Runnable, IIndexManagerService
     public IndexManagerService(@NotNull ITokenizerFactory tf, @NotNull IFilesProcessorServiceFactory fpf
             , @NotNull IIndexProcessorFactory ipf, int queueSize) {
         currentService = new ThreadService(this);
-        tasks = new PriorityBlockingQueue<>();
         this.queueSize = queueSize;
-        tasksSemaphore = new Semaphore(queueSize);
-        wordsSemaphore = new Semaphore(queueSize);
-        filesQueue = new ConcurrentLinkedDeque<>();
+        finishedTasks = new MpscRingBuffer<>(queueSize);
+        wordsTasks = new MpscRingBuffer<>(queueSize);
+        eventsTasks = new MpscRingBuffer<>(queueSize);
+        filesQueue = new CoalescingQueue<>();
         filesProcessor = fpf.create(this);
         indexProcessor = ipf.create(this);
         tokenizerFactory = tf;
+        if(indexProcessor instanceof IService) //index writers are started before and stopped after index manager
+            services = new IService[] {(IService)indexProcessor, filesProcessor, currentService};
+        else
+            services = new IService[] {filesProcessor, currentService};
     }
 
     @Override
     public void startService() throws FailureException {
-        Services.startServices(filesProcessor, currentService);
+        Services.startServices(services);
     }
 
     @Override
     public void stopService() {
-        Services.stopServices(currentService, filesProcessor);
-        tasks.clear();
-        //wake up threads, putting to queue
-        wordsSemaphore.release((int)queueSize);
-        tasksSemaphore.release((int)queueSize);
+        IService[] reversed = new IService[services.length];
+        for(int i = 0; i < services.length; ++i)
+            reversed[i] = services[services.length - 1 - i];
+        Services.stopServices(reversed);
+        filesQueue.clear();
+        //task queues are cleared by index manager thread as their only consumer,
+        //threads waiting for free space in queues give up as they see service stopped
     }
 
     @Override
     public boolean isRunning() {
-        return Services.isServicesRunning(filesProcessor, currentService);
+        return Services.isServicesRunning(services);
     }
 
     @Override
     public boolean waitFinished(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
-        return Services.waitServicesFinished(timeout, unit, filesProcessor, currentService);
+        return Services.waitServicesFinished(timeout, unit, services);
     }
 
     @NotNull
@@ -70,41 +92,84 @@ public class IndexManagerService implements Runnable, IIndexManagerService
         return indexProcessor.search(word);
     }
 
-    private boolean acquireSemaphoreAndRunning(@NotNull Semaphore sem) throws InterruptedException {
-        if(!isRunning()) {
-            return false;
-        }
-        sem.acquire();
-        if(!isRunning()) {
-            sem.release();
+    @NotNull
+    @Override
+    public Collection<FileEntry> search(@NotNull Query query) {
+        return indexProcessor.search(query);
+    }
+
+    @NotNull
+    @Override
+    public Collection<FileEntry> searchPrefix(@NotNull String prefix) {
+        return indexProcessor.searchPrefix(prefix);
+    }
+
+    @NotNull
+    @Override
+    public Collection<FileEntry> searchSubstring(@NotNull String s) {
+        return indexProcessor.searchSubstring(s);
+    }
+
+    @NotNull
+    @Override
+    public Collection<FileEntry> searchRegex(@NotNull Pattern regex) {
+        return indexProcessor.searchRegex(regex);
+    }
+
+    /**
+        Puts task to queue of its priority class waiting for free space while service is running
+
+        @return false if service is not running
+    */
+    private boolean putTaskIfRunning(@NotNull IndexManagerTask task) throws InterruptedException {
+        if(!isRunning())
             return false;
+        MpscRingBuffer<IndexManagerTask> queue = queueOf(task.task);
+        for(int attempt = 0; !queue.offer(task); ++attempt) {
+            if(Thread.interrupted())
+                throw new InterruptedException();
+            if(!isRunning())
+                return false;
+            if(attempt < SPINS_BEFORE_PARK)
+                Thread.yield();
+            else
+                LockSupport.parkNanos(PRODUCER_PARK_NANOS);
         }
+        if(consumerWaiting)
+            LockSupport.unpark(consumer);
         return true;
     }
 
+    @NotNull
+    private MpscRingBuffer<IndexManagerTask> queueOf(int taskId) {
+        if(IndexManagerTask.isFinishTask(taskId))
+            return finishedTasks;
+        if(IndexManagerTask.isWordsTask(taskId))
+            return wordsTasks;
+        return eventsTasks;
+    }
+
     @Override
     public void addWordToIndex(@NotNull Path file, @NotNull String word) throws InterruptedException {
-        if(!acquireSemaphoreAndRunning(wordsSemaphore)) {
+        if(!putTaskIfRunning(new IndexManagerTask(IndexManagerTask.ADD_WORD, file, word)))
             log.fine("Word received while not running. Annihilating");
-            return;
-        }
-        tasks.put(new IndexManagerTask(IndexManagerTask.ADD_WORD, file, word));
-        notifyTasks();
     }
 
     @Override
     public void removeFromIndex(@NotNull Path file) throws InterruptedException {
-        if(!acquireSemaphoreAndRunning(wordsSemaphore)) {
+        if(!putTaskIfRunning(new IndexManagerTask(IndexManagerTask.REMOVE_WORDS, file, null)))
             log.fine("Remove file while not running. Annihilating");
-            return;
-        }
-        tasks.put(new IndexManagerTask(IndexManagerTask.REMOVE_WORDS, file, null));
-        notifyTasks();
+    }
+
+    @Override
+    public void replaceWordsInIndex(@NotNull Path file, @NotNull Collection<String> words) throws InterruptedException {
+        if(!putTaskIfRunning(new IndexManagerTask(file, words)))
+            log.fine("Words received while not running. Annihilating");
     }
 
     private void tryProcessFiles() {
         while(!filesQueue.isEmpty()) {
-            Path next = filesQueue.pollFirst();
+            Path next = filesQueue.poll();
             if(next != null)
                 if(!filesProcessor.processFile(next)) {
                     filesQueue.addFirst(next);
@@ -113,21 +178,28 @@ public class IndexManagerService implements Runnable, IIndexManagerService
         }
     }
 
-    private void notifyTasks() {
-        synchronized (tasks){
-            tasks.notifyAll();
+    @Override
+    public void submitFinishedProcessing(@NotNull Path file, long stamp, boolean valid, long hash) throws InterruptedException {
+        if(!putTaskIfRunning(new IndexManagerTask(valid ? IndexManagerTask.FILE_FINISHED_OK : IndexManagerTask.FILE_FINISHED_FAIL
+                , file, stamp, hash))) {
+            log.fine("Received result while not running. Sending it to black hole");
+            return;
         }
+        tryProcessFiles();
     }
 
     @Override
-    public void submitFinishedProcessing(@NotNull Path file, long stamp, boolean valid) throws InterruptedException {
-        if(!isRunning()) {
+    public void submitUnchanged(@NotNull Path file, long stamp) throws InterruptedException {
+        if(!putTaskIfRunning(new IndexManagerTask(IndexManagerTask.FILE_UNCHANGED, file, stamp, ContentHash.NO_HASH))) {
             log.fine("Received result while not running. Sending it to black hole");
             return;
         }
-        tasks.put(new IndexManagerTask(valid ? IndexManagerTask.FILE_FINISHED_OK : IndexManagerTask.FILE_FINISHED_FAIL, file, stamp, null));
         tryProcessFiles();
-        notifyTasks();
+    }
+
+    @Override
+    public @Nullable Long indexedHash(@NotNull Path file) {
+        return indexProcessor.indexedHash(file);
     }
 
     @Override
@@ -135,40 +207,94 @@ public class IndexManagerService implements Runnable, IIndexManagerService
         return tokenizerFactory.create(file);
     }
 
+    @Override
+    public @Nullable long[] splitFile(@NotNull Path file, long chunkSize) throws IOException {
+        if(!(tokenizerFactory instanceof IChunkedTokenizerFactory))
+            return null;
+        return ((IChunkedTokenizerFactory)tokenizerFactory).split(file, chunkSize);
+    }
+
+    @Override
+    public @Nullable ITokenizer newTokenizer(@NotNull Path file, long from, long to) throws IOException {
+        return ((IChunkedTokenizerFactory)tokenizerFactory).create(file, from, to);
+    }
+
+    @Override
+    public @Nullable ITokenizer newTokenizer(@NotNull Path file, @NotNull ByteBuffer contents) throws IOException {
+        if(!(tokenizerFactory instanceof IBufferTokenizerFactory))
+            return null;
+        return ((IBufferTokenizerFactory)tokenizerFactory).create(contents);
+    }
+
+    @Override
+    public void finishRegistration(@NotNull Path root) throws InterruptedException {
+        if(!putTaskIfRunning(new IndexManagerTask(IndexManagerTask.REGISTERED, root, null)))
+            log.fine("Registration finished while not running. Annihilating");
+    }
+
+    @Override
+    public void saveSnapshot(@NotNull IndexSnapshot.Writer out) throws IOException {
+        if(isRunning())
+            throw new IllegalStateException("Snapshot can't be saved while running");
+        indexProcessor.writeSnapshot(out);
+    }
+
+    @Override
+    public void loadSnapshot(@NotNull IndexSnapshot.Reader in) throws IOException {
+        if(isRunning())
+            throw new IllegalStateException("Snapshot can't be loaded while running");
+        indexProcessor.readSnapshot(in);
+        restored = true;
+    }
+
+    @Override
+    public void replayLog(@NotNull IndexLog.Reader in) throws IOException {
+        if(isRunning())
+            throw new IllegalStateException("Log can't be replayed while running");
+        indexProcessor.replayLog(in);
+        restored = true;
+    }
+
+    @Override
+    public void setLog(@Nullable IndexLog.Writer out) {
+        if(isRunning())
+            throw new IllegalStateException("Log can't be set while running");
+        indexProcessor.setLog(out);
+        indexLog = out;
+    }
+
+    /**
+        Group commit of log records, called by index manager thread
+    */
+    private void commitLog() {
+        if(indexLog == null)
+            return;
+        indexLog.commit();
+        lastLogCommit = System.nanoTime();
+    }
+
     @Override
     public void onFileChanged(@NotNull Path file) throws InterruptedException {
-        if(!acquireSemaphoreAndRunning(tasksSemaphore)) {
+        if(!putTaskIfRunning(new IndexManagerTask(IndexManagerTask.SYNC_FILE, file, null)))
             log.fine("Change received while not running. Annihilating");
-            return;
-        }
-        tasks.put(new IndexManagerTask(IndexManagerTask.SYNC_FILE, file, null));
     }
 
     @Override
     public void onDirectoryChanged(@NotNull Path file) throws InterruptedException {
-        if(!acquireSemaphoreAndRunning(tasksSemaphore)) {
+        if(!putTaskIfRunning(new IndexManagerTask(IndexManagerTask.SYNC_DIR, file, null)))
             log.fine("Change received while not running. Annihilating");
-            return;
-        }
-        tasks.put(new IndexManagerTask(IndexManagerTask.SYNC_DIR, file, null));
     }
 
     @Override
     public void onFileRemoved(@NotNull Path file) throws InterruptedException {
-        if(!acquireSemaphoreAndRunning(tasksSemaphore)) {
+        if(!putTaskIfRunning(new IndexManagerTask(IndexManagerTask.DEL_FILE, file, null)))
             log.fine("Remove received while not running. Annihilating");
-            return;
-        }
-        tasks.put(new IndexManagerTask(IndexManagerTask.DEL_FILE, file, null));
     }
 
     @Override
     public void onDirectoryRemoved(@NotNull Path file) throws InterruptedException {
-        if(!acquireSemaphoreAndRunning(tasksSemaphore)) {
+        if(!putTaskIfRunning(new IndexManagerTask(IndexManagerTask.DEL_DIR, file, null)))
             log.fine("Remove received while not running. Annihilating");
-            return;
-        }
-        tasks.put(new IndexManagerTask(IndexManagerTask.DEL_DIR, file, null));
     }
 
     @NotNull
@@ -180,7 +306,17 @@ public class IndexManagerService implements Runnable, IIndexManagerService
     @NotNull
     @Override
     public IndexStatistics getStats() {
-        return indexProcessor.getStats();
+        IndexStatistics res = indexProcessor.getStats();
+        res.numCoalescedFiles = filesQueue.getCoalesced();
+        if(filesProcessor instanceof AdaptiveFilesProcessorService)
+            res.numCoalescedFiles += ((AdaptiveFilesProcessorService)filesProcessor).getCoalesced();
+        if(filesProcessor instanceof PipelineFilesProcessorService) {
+            PipelineStatistics s = ((PipelineFilesProcessorService)filesProcessor).getStatistics();
+            res.numWaitingForTokenizer = s.numWaitingForTokenizer;
+            res.readUtilization = s.readUtilization;
+            res.tokenizeUtilization = s.tokenizeUtilization;
+        }
+        return res;
     }
 
     @NotNull
@@ -189,43 +325,131 @@ public class IndexManagerService implements Runnable, IIndexManagerService
         return indexProcessor.getWords();
     }
 
+    @NotNull
+    @Override
+    public List<String> getWords(@NotNull String from, @Nullable String to, int limit) {
+        return indexProcessor.getWords(from, to, limit);
+    }
+
     @Override
     public boolean processFile(@NotNull Path file){
         if(!isRunning()) {
             log.fine("Received message while not running. Sending it to black hole");
             return false;
         }
-        filesQueue.add(file);
+        if(!filesQueue.add(file) && log.isLoggable(Level.FINER))
+            log.finer("File is already waiting for processing " + file);
         tryProcessFiles();
         return true;
     }
 
+    @Override
+    public boolean cancelProcessing(@NotNull Path file) {
+        return filesProcessor.isRunning() && filesProcessor.cancelProcessing(file);
+    }
+
+    /**
+        Takes task of highest priority class: finished files, then words, then file system events.
+        File system events wait while too many files are waiting for processing.
+    */
+    @Nullable
+    private IndexManagerTask pollRightPriorityTask() {
+        IndexManagerTask task = finishedTasks.poll();
+        if(task == null)
+            task = wordsTasks.poll();
+        if(task == null && filesQueue.size() < queueSize)
+            task = eventsTasks.poll();
+        return task;
+    }
+
+    @NotNull
     private IndexManagerTask extractRightPriorityTask() throws InterruptedException {
-        if (filesQueue.size() < queueSize)
-            return tasks.take();
         while(true) {
-            IndexManagerTask task = tasks.take();
-            synchronized(tasks) {
-                if(IndexManagerTask.isProcessingTask(task.task) || filesQueue.size() < queueSize) {
+            IndexManagerTask task = pollRightPriorityTask();
+            if(task != null)
+                return task;
+            commitLog(); //out of tasks, records of applied ones are written as one group
+            consumerWaiting = true;
+            try {
+                task = pollRightPriorityTask(); //producer could miss the flag
+                if(task != null)
                     return task;
-                }
-                tasks.add(task);
-                if(IndexManagerTask.isProcessingTask(tasks.peek().task) || filesQueue.size() < queueSize) {
-                    return tasks.remove();
-                }
-                tasks.wait();
+                LockSupport.parkNanos(this, CONSUMER_PARK_NANOS);
+            } finally {
+                consumerWaiting = false;
             }
+            if(Thread.interrupted())
+                throw new InterruptedException();
         }
     }
 
     @Override
     @TestOnly
     public boolean isIdle() {
-        return tasks.isEmpty();
+        return finishedTasks.isEmpty() && wordsTasks.isEmpty() && eventsTasks.isEmpty() && indexProcessor.isIdle();
+    }
+
+    /**
+        Applies words submitted before file was finished, so that file is logged with all its words.
+        Finished files are taken before words, while their words are submitted earlier,
+        so these are among first queue size words tasks.
+    */
+    private void applyPendingWords() {
+        for(long i = 0; i < queueSize; ++i) {
+            IndexManagerTask task = wordsTasks.poll();
+            if(task == null)
+                break;
+            apply(task);
+        }
+    }
+
+    private void apply(@NotNull IndexManagerTask task) {
+        switch (task.task) {
+            case IndexManagerTask.DEL_DIR:
+                indexProcessor.removeDirectory(task.path);
+                break;
+            case IndexManagerTask.DEL_FILE:
+                indexProcessor.removeFile(task.path);
+                break;
+            case IndexManagerTask.SYNC_DIR:
+                indexProcessor.syncDirectory(task.stamp, task.path);
+                break;
+            case IndexManagerTask.SYNC_FILE:
+                indexProcessor.syncFile(task.stamp, task.path);
+                break;
+            case IndexManagerTask.ADD_WORD:
+                assert task.word != null;
+                indexProcessor.addWord(task.path, task.word);
+                break;
+            case IndexManagerTask.REMOVE_WORDS:
+                indexProcessor.removeWords(task.path);
+                break;
+            case IndexManagerTask.REPLACE_WORDS:
+                assert task.words != null;
+                indexProcessor.replaceWords(task.path, task.words);
+                break;
+            case IndexManagerTask.FILE_FINISHED_OK:
+            case IndexManagerTask.FILE_FINISHED_FAIL:
+                if(indexLog != null)
+                    applyPendingWords();
+                indexProcessor.fileFinished(task.stamp, task.path, task.task == IndexManagerTask.FILE_FINISHED_OK, task.hash);
+                break;
+            case IndexManagerTask.FILE_UNCHANGED:
+                indexProcessor.fileUnchanged(task.stamp, task.path);
+                break;
+            case IndexManagerTask.REGISTERED:
+                if(restored) { //registration reports existing files only
+                    if(log.isLoggable(Level.FINE))
+                        log.fine("Removing restored files which no longer exist " + task.path);
+                    indexProcessor.syncDirectory(task.stamp, task.path);
+                }
+                break;
+        }
     }
 
     @Override
     public void run() {
+        consumer = Thread.currentThread();
         while(!Thread.currentThread().isInterrupted()) {
             IndexManagerTask task;
             try {
@@ -233,51 +457,33 @@ public class IndexManagerService implements Runnable, IIndexManagerService
             } catch (InterruptedException e) {
                 break;
             }
-            try {
-                switch (task.task) {
-                    case IndexManagerTask.DEL_DIR:
-                        indexProcessor.removeDirectory(task.path);
-                        break;
-                    case IndexManagerTask.DEL_FILE:
-                        indexProcessor.removeFile(task.path);
-                        break;
-                    case IndexManagerTask.SYNC_DIR:
-                        indexProcessor.syncDirectory(task.stamp, task.path);
-                        break;
-                    case IndexManagerTask.SYNC_FILE:
-                        indexProcessor.syncFile(task.stamp, task.path);
-                        break;
-                    case IndexManagerTask.ADD_WORD:
-                        assert task.word != null;
-                        indexProcessor.addWord(task.path, task.word);
-                        break;
-                    case IndexManagerTask.REMOVE_WORDS:
-                        indexProcessor.removeWords(task.path);
-                        break;
-                    case IndexManagerTask.FILE_FINISHED_OK:
-                    case IndexManagerTask.FILE_FINISHED_FAIL:
-                        indexProcessor.fileFinished(task.stamp, task.path, task.task == IndexManagerTask.FILE_FINISHED_OK);
-                        break;
-                }
-            } finally {
-                if(task.task != IndexManagerTask.FILE_FINISHED_FAIL && task.task != IndexManagerTask.FILE_FINISHED_OK) {
-                    if(task.task == IndexManagerTask.ADD_WORD || task.task == IndexManagerTask.REMOVE_WORDS)
-                        wordsSemaphore.release();
-                    else
-                        tasksSemaphore.release();
-                }
-            }
+            apply(task);
+            if(indexLog != null && System.nanoTime() - lastLogCommit >= TimeUnit.MILLISECONDS.toNanos(LOG_COMMIT_MILLIS))
+                commitLog();
         }
+        commitLog();
+        finishedTasks.clear();
+        wordsTasks.clear();
+        eventsTasks.clear();
     }
 
+    private static final int SPINS_BEFORE_PARK = 100;
+    private static final long PRODUCER_PARK_NANOS = 100000;
+    private static final long CONSUMER_PARK_NANOS = 100000000;
+    static final long LOG_COMMIT_MILLIS = 100;
+
     private final long queueSize;
     private final IIndexProcessor indexProcessor;
-    private final BlockingQueue<IndexManagerTask> tasks;
-    private final Semaphore tasksSemaphore;
-    private final Semaphore wordsSemaphore;
-    private final Deque<Path> filesQueue;
+    private final MpscRingBuffer<IndexManagerTask> finishedTasks, wordsTasks, eventsTasks;
+    private volatile Thread consumer;
+    private volatile boolean consumerWaiting;
+    private final CoalescingQueue<Path> filesQueue; //each file waits at most once
     private final ITokenizerFactory tokenizerFactory;
     private final IFilesProcessorService filesProcessor;
     private final ThreadService currentService;
+    private final IService[] services;
+    private boolean restored; //index was loaded from snapshot or log before start
+    private IndexLog.Writer indexLog;
+    private long lastLogCommit;
     private static final Logger log = Logger.getLogger(IndexManagerService.class.getName());
 }
@@ -1,12 +1,13 @@
 package com.github.kassak.indexer;
 
+import com.github.kassak.indexer.utils.ContentHash;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.nio.file.Path;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Collection;
 
-class IndexManagerTask implements Comparable<IndexManagerTask> {
+class IndexManagerTask {
     static public final int SYNC_FILE = 0;
     static public final int SYNC_DIR = 1;
     static public final int DEL_FILE = 2;
@@ -15,50 +16,58 @@ class IndexManagerTask implements Comparable<IndexManagerTask> {
     static public final int REMOVE_WORDS = 5;
     static public final int FILE_FINISHED_OK = 6;
     static public final int FILE_FINISHED_FAIL = 7;
+    static public final int REPLACE_WORDS = 8;
+    static public final int REGISTERED = 9;
+    static public final int FILE_UNCHANGED = 10;
 
     public IndexManagerTask(int task, @NotNull Path path, @Nullable String word) {
         this.task = task;
         this.path = path;
         this.word = word;
+        this.words = null;
         stamp = System.currentTimeMillis();
-        seqNum = seq.incrementAndGet();
+        hash = ContentHash.NO_HASH;
     }
 
     public IndexManagerTask(int task, @NotNull Path path, long stamp, @Nullable String word) {
         this.task = task;
         this.path = path;
         this.word = word;
+        this.words = null;
         this.stamp = stamp;
-        seqNum = seq.incrementAndGet();
+        hash = ContentHash.NO_HASH;
     }
 
-    @Override
-    public int compareTo(@NotNull IndexManagerTask o) {
-        if(seqNum == o.seqNum)
-            return 0;
-        int tg1 = taskGroup(task);
-        int tg2 = taskGroup(o.task);
-        if(tg1 == tg2)
-            return seqNum < o.seqNum ? -1 : 1;
-        return tg1 > tg2 ? -1 : 1;
+    public IndexManagerTask(int task, @NotNull Path path, long stamp, long hash) {
+        this.task = task;
+        this.path = path;
+        this.word = null;
+        this.words = null;
+        this.stamp = stamp;
+        this.hash = hash;
+    }
+
+    public IndexManagerTask(@NotNull Path path, @NotNull Collection<String> words) {
+        this.task = REPLACE_WORDS;
+        this.path = path;
+        this.word = null;
+        this.words = words;
+        stamp = System.currentTimeMillis();
+        hash = ContentHash.NO_HASH;
     }
 
-    private static int taskGroup(int taskId) {
-        if(taskId == FILE_FINISHED_FAIL || taskId == FILE_FINISHED_OK)
-            return 2;
-        if(taskId == ADD_WORD || taskId == REMOVE_WORDS)
-            return 1;
-        return 0;
+    public static boolean isFinishTask(int taskId) {
+        return taskId == FILE_FINISHED_FAIL || taskId == FILE_FINISHED_OK || taskId == FILE_UNCHANGED;
     }
 
-    public static boolean isProcessingTask(int taskId) {
-        return taskGroup(taskId) != 0;
+    public static boolean isWordsTask(int taskId) {
+        return taskId == ADD_WORD || taskId == REMOVE_WORDS || taskId == REPLACE_WORDS;
     }
 
     public final int task;
     public final Path path;
     public final String word;
+    public final Collection<String> words;
     public final long stamp;
-    private final long seqNum;
-    private static final AtomicLong seq = new AtomicLong(0);
+    public final long hash; //content hash of finished file
 }
@@ -3,31 +3,190 @@ package com.github.kassak.indexer;
 import com.github.kassak.indexer.fs.FSWatcherService;
 import com.github.kassak.indexer.storage.FileEntry;
 import com.github.kassak.indexer.storage.FileStatistics;
+import com.github.kassak.indexer.storage.IndexLog;
+import com.github.kassak.indexer.storage.IndexSnapshot;
 import com.github.kassak.indexer.storage.IndexStatistics;
+import com.github.kassak.indexer.storage.Query;
+import com.github.kassak.indexer.storage.factories.IIndexProcessorFactory;
 import com.github.kassak.indexer.storage.factories.IndexProcessorFactory;
 import com.github.kassak.indexer.tokenizing.factories.FilesProcessorServiceFactory;
+import com.github.kassak.indexer.tokenizing.factories.IFilesProcessorServiceFactory;
 import com.github.kassak.indexer.tokenizing.factories.ITokenizerFactory;
 import com.github.kassak.indexer.utils.IService;
+import com.github.kassak.indexer.utils.InterruptibleCallable;
+import com.github.kassak.indexer.utils.Uninterruptible;
 import com.github.kassak.indexer.utils.Services;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 public class Indexer implements IService {
     public Indexer(ITokenizerFactory tf, int regQueueSize, int queueSize, int fileThreads, int fileQueueSize) {
-        IndexManagerService im = new IndexManagerService(tf, new FilesProcessorServiceFactory(fileThreads, fileQueueSize)
-                , new IndexProcessorFactory(), queueSize);
+        this(tf, new FilesProcessorServiceFactory(fileThreads, fileQueueSize), new IndexProcessorFactory()
+                , regQueueSize, queueSize);
+    }
+
+    public Indexer(ITokenizerFactory tf, IFilesProcessorServiceFactory fpf, IIndexProcessorFactory ipf
+            , int regQueueSize, int queueSize) {
+        this(tf, fpf, ipf, regQueueSize, queueSize, 0);
+    }
+
+    /**
+        @param debounceMillis interval of merging file system events of the same path, 0 disables merging
+    */
+    public Indexer(ITokenizerFactory tf, IFilesProcessorServiceFactory fpf, IIndexProcessorFactory ipf
+            , int regQueueSize, int queueSize, long debounceMillis) {
+        this(tf, fpf, ipf, regQueueSize, queueSize, debounceMillis, 1);
+    }
+
+    /**
+        @param debounceMillis interval of merging file system events of the same path, 0 disables merging
+        @param crawlThreadsNum number of threads walking registered directories
+    */
+    public Indexer(ITokenizerFactory tf, IFilesProcessorServiceFactory fpf, IIndexProcessorFactory ipf
+            , int regQueueSize, int queueSize, long debounceMillis, int crawlThreadsNum) {
+        IndexManagerService im = new IndexManagerService(tf, fpf, ipf, queueSize);
         indexManager = im;
-        fsWatcher = new FSWatcherService(im, regQueueSize);
+        fsWatcher = new FSWatcherService(im, regQueueSize, debounceMillis, crawlThreadsNum);
+        registrations = new LinkedHashMap<>();
     }
 
+    /**
+        Registrations restored from snapshot are repeated after start: removals first, so that
+        removed paths are skipped by registration of their parents
+    */
     @Override
     public void startService() throws FailureException {
         Services.startServices(indexManager, fsWatcher);
+        if(restored == null)
+            return;
+        try {
+            for(Map.Entry<Path, Boolean> e : restored.entrySet())
+                if(!e.getValue())
+                    remove(e.getKey().toString());
+            for(Map.Entry<Path, Boolean> e : restored.entrySet())
+                if(e.getValue())
+                    add(e.getKey().toString());
+        } catch (InterruptedException e) {
+            log.fine("Interrupted while restoring registrations");
+            Services.stopServices(fsWatcher, indexManager);
+            Thread.currentThread().interrupt();
+            throw new FailureException();
+        } finally {
+            restored = null;
+        }
+    }
+
+    /**
+        Saves index with registered paths. Must be called after service is stopped.
+        Files which were not processed completely are not saved.
+
+        @param file snapshot file, replaced only when snapshot is written completely
+    */
+    public void saveSnapshot(@NotNull Path file) throws IOException {
+        try (IndexSnapshot.Writer out = new IndexSnapshot.Writer(file)) {
+            synchronized(registrations) {
+                out.writeRegistrations(registrations);
+            }
+            indexManager.saveSnapshot(out);
+            out.commit();
+            if(log.isLoggable(Level.FINE))
+                log.fine("Saved " + out.getFilesNum() + " files to snapshot " + file);
+            snapshotStamp = out.getStamp();
+        }
+        if(indexLog != null) { //changes are in snapshot, log starts again from it
+            indexLog.close();
+            indexLog = new IndexLog.Writer(logFile, snapshotStamp, logSyncMode);
+        }
+    }
+
+    /**
+        Restores index saved by {@link #saveSnapshot}. Must be called before service is started.
+        Saved registrations are repeated on start, restored files are processed again only if
+        their size or modification time changed, and files which no longer exist are removed.
+
+        @param file snapshot file
+        @throws IOException if snapshot can't be read or is corrupted
+    */
+    public void loadSnapshot(@NotNull Path file) throws IOException {
+        try (IndexSnapshot.Reader in = new IndexSnapshot.Reader(file)) {
+            Map<Path, Boolean> paths = in.readRegistrations();
+            indexManager.loadSnapshot(in);
+            restored = paths;
+            synchronized(registrations) {
+                registrations.putAll(paths);
+            }
+            snapshotStamp = in.getStamp();
+        }
+    }
+
+    /**
+        Replays log of changes made after restored snapshot, or after start from empty index
+        if snapshot was not loaded, and continues it. Log which continues other snapshot is replaced.
+        Must be called before service is started, after {@link #loadSnapshot}.
+        Registrations from log are repeated on start like restored ones.
+
+        @param file log file
+        @param syncMode one of {@link com.github.kassak.indexer.storage.LogSyncModes}
+        @throws IOException if log can't be read or created
+    */
+    public void openLog(@NotNull Path file, int syncMode) throws IOException {
+        IndexLog.Writer out = null;
+        if(Files.exists(file)) {
+            try (IndexLog.Reader in = new IndexLog.Reader(file)) {
+                if(in.getBase() == snapshotStamp) {
+                    indexManager.replayLog(in);
+                    replayed(in.getRegistrations());
+                    if(in.isDamaged())
+                        log.warning("Dropping incomplete record at the end of log " + file);
+                    if(log.isLoggable(Level.FINE))
+                        log.fine("Replayed " + in.getRecordsNum() + " records of log " + file);
+                    out = new IndexLog.Writer(in, syncMode);
+                } else if(log.isLoggable(Level.FINE)) {
+                    log.fine("Replacing log of other snapshot " + file);
+                }
+            }
+        }
+        if(out == null)
+            out = new IndexLog.Writer(file, snapshotStamp, syncMode);
+        indexManager.setLog(out);
+        indexLog = out;
+        logFile = file;
+        logSyncMode = syncMode;
+    }
+
+    private void replayed(@NotNull Map<Path, Boolean> paths) {
+        if(restored == null)
+            restored = new LinkedHashMap<>();
+        for(Map.Entry<Path, Boolean> e : paths.entrySet()) {
+            restored.remove(e.getKey());
+            restored.put(e.getKey(), e.getValue());
+            registered(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+        Writes remaining records of log and closes it. Must be called after service is stopped
+        and after {@link #saveSnapshot}, if snapshot is saved.
+    */
+    public void closeLog() throws IOException {
+        if(indexLog == null)
+            return;
+        indexLog.close();
+        indexLog = null;
     }
 
     @Override
@@ -45,24 +204,91 @@ public class Indexer implements IService {
         return Services.waitServicesFinished(timeout, unit, fsWatcher, indexManager);
     }
 
+    /**
+        Registers file or directory. Index manager is told when registration of directory is finished.
+    */
     public Future<Void> add(@NotNull String path) throws InterruptedException {
-        return fsWatcher.registerRoot(FileSystems.getDefault().getPath(path));
+        final Path p = FileSystems.getDefault().getPath(path).toAbsolutePath();
+        registered(p, true);
+        if(!Files.isDirectory(p))
+            return fsWatcher.registerRoot(p);
+        return fsWatcher.registerRoot(p, new Runnable() {
+            @Override
+            public void run() {
+                Uninterruptible.performUninterruptibly(new InterruptibleCallable() {
+                    @Override
+                    public void call() throws InterruptedException {
+                        indexManager.finishRegistration(p);
+                    }
+                }, 10);
+            }
+        });
     }
 
     public Future<Void> remove(@NotNull String path) throws InterruptedException {
-        return fsWatcher.unregisterRoot(FileSystems.getDefault().getPath(path));
+        Path p = FileSystems.getDefault().getPath(path).toAbsolutePath();
+        registered(p, false);
+        return fsWatcher.unregisterRoot(p);
+    }
+
+    /**
+        Remembers last registration of path, moving it to the end
+    */
+    private void registered(@NotNull Path path, boolean added) {
+        synchronized(registrations) {
+            registrations.remove(path);
+            registrations.put(path, added);
+        }
+        IndexLog.Writer out = indexLog;
+        if(out != null)
+            out.logRegistration(path, added);
     }
 
     public @NotNull Collection<FileEntry> search(@NotNull String word) {
         return indexManager.search(word);
     }
 
+    /**
+        Searches files matching all words of query at once, intersecting postings inside index
+
+        @param query bounded query, e.g. {@link Query#parse parsed} from `foo bar -baz`
+        @throws IllegalArgumentException if query is not {@link Query#isBounded() bounded}
+    */
+    public @NotNull Collection<FileEntry> search(@NotNull Query query) {
+        return indexManager.search(query);
+    }
+
+    /**
+        Searches files with any word starting with prefix, each file is listed once
+    */
+    public @NotNull Collection<FileEntry> searchPrefix(@NotNull String prefix) {
+        return indexManager.searchPrefix(prefix);
+    }
+
+    /**
+        Searches files with any word containing substring, each file is listed once.
+        Uses trigram index of words if it is {@link IndexProcessorFactory enabled}, otherwise scans all words.
+    */
+    public @NotNull Collection<FileEntry> searchSubstring(@NotNull String s) {
+        return indexManager.searchSubstring(s);
+    }
+
+    /**
+        Searches files with any word in which regex finds match, each file is listed once.
+        Pattern is matched against words, not text of files, so match never spans several words.
+    */
+    public @NotNull Collection<FileEntry> searchRegex(@NotNull Pattern regex) {
+        return indexManager.searchRegex(regex);
+    }
+
     public @NotNull List<FileStatistics> getFiles() {
         return indexManager.getFiles();
     }
     @NotNull
     public IndexStatistics getStats() {
-        return indexManager.getStats();
+        IndexStatistics res = indexManager.getStats();
+        res.numCoalescedEvents = fsWatcher.getCoalescedEvents();
+        return res;
     }
 
     @NotNull
@@ -70,6 +296,26 @@ public class Indexer implements IService {
         return indexManager.getWords();
     }
 
+    /**
+        Words in range in order of code points without copying whole vocabulary.
+        Range is read by pages: next page starts after the last word of previous one.
+
+        @param from first word of range, inclusive
+        @param to end of range, exclusive, or null if range is unbounded
+        @param limit maximal number of words to return
+    */
+    @NotNull
+    public List<String> getWords(@NotNull String from, @Nullable String to, int limit) {
+        return indexManager.getWords(from, to, limit);
+    }
+
     private final FSWatcherService fsWatcher;
     private final IIndexManagerService indexManager;
+    private final Map<Path, Boolean> registrations; //true if path was added, false if removed
+    private Map<Path, Boolean> restored; //registrations to repeat on start
+    private long snapshotStamp; //stamp of loaded or saved snapshot, 0 if none
+    private volatile IndexLog.Writer indexLog;
+    private Path logFile;
+    private int logSyncMode;
+    private static final Logger log = Logger.getLogger(Indexer.class.getName());
 }
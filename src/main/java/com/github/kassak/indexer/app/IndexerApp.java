@@ -4,18 +4,30 @@ import com.github.kassak.indexer.Indexer;
 import com.github.kassak.indexer.storage.FileEntry;
 import com.github.kassak.indexer.storage.FileStatistics;
 import com.github.kassak.indexer.storage.IndexStatistics;
+import com.github.kassak.indexer.storage.LogSyncModes;
+import com.github.kassak.indexer.storage.Query;
 import com.github.kassak.indexer.storage.States;
+import com.github.kassak.indexer.storage.StorageTypes;
+import com.github.kassak.indexer.storage.factories.IndexProcessorFactory;
+import com.github.kassak.indexer.tokenizing.ProcessorModes;
+import com.github.kassak.indexer.tokenizing.TokenizerModes;
 import com.github.kassak.indexer.tokenizing.factories.AlphanumTokenizerFactory;
+import com.github.kassak.indexer.tokenizing.factories.FilesProcessorServiceFactory;
 import com.github.kassak.indexer.tokenizing.factories.ITokenizerFactory;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.*;
 import java.util.*;
 import java.lang.reflect.Constructor;
+import java.util.regex.Pattern;
 
 public class IndexerApp {
     private static class Config {
@@ -30,6 +42,72 @@ public class IndexerApp {
             registrationQueueSize = Integer.parseInt(prop.getProperty("registrationQueueSize", "10"));
             internalQueueSize = Integer.parseInt(prop.getProperty("internalQueueSize", "100"));
             logFile = prop.getProperty("logFile", null);
+            storageTypeName = prop.getProperty("storageType", "map");
+            storageType = parseStorageType(storageTypeName);
+            hashContents = Boolean.parseBoolean(prop.getProperty("hashContents", "false"));
+            trigramIndex = Boolean.parseBoolean(prop.getProperty("trigramIndex", "false"));
+            indexWritersNum = Integer.parseInt(prop.getProperty("indexWritersNum", "1"));
+            debounceMillis = Long.parseLong(prop.getProperty("debounceMillis", "0"));
+            crawlThreadsNum = Integer.parseInt(prop.getProperty("crawlThreadsNum", "4"));
+            tokenizerModeName = prop.getProperty("tokenizerMode", "charclass");
+            tokenizerMode = parseTokenizerMode(tokenizerModeName);
+            chunkSize = Long.parseLong(prop.getProperty("chunkSize", "67108864"));
+            processorModeName = prop.getProperty("processorMode", "fixed");
+            processorMode = parseProcessorMode(processorModeName);
+            readThreadsNum = Integer.parseInt(prop.getProperty("readThreadsNum", "2"));
+            readBuffersNum = Integer.parseInt(prop.getProperty("readBuffersNum", "8"));
+            readBufferSize = Integer.parseInt(prop.getProperty("readBufferSize", "1048576"));
+            tokenizeQueueSize = Integer.parseInt(prop.getProperty("tokenizeQueueSize", Integer.toString(readBuffersNum)));
+            snapshotFile = prop.getProperty("snapshotFile", null);
+            walFile = prop.getProperty("walFile", null);
+            walSyncName = prop.getProperty("walSync", "periodic");
+            walSync = parseLogSyncMode(walSyncName);
+        }
+
+        private static int parseLogSyncMode(String s) {
+            if(s.equals("none"))
+                return LogSyncModes.NONE;
+            if(s.equals("periodic"))
+                return LogSyncModes.PERIODIC;
+            if(s.equals("group"))
+                return LogSyncModes.GROUP;
+            throw new IllegalArgumentException("Unknown log sync mode " + s);
+        }
+
+        private static int parseTokenizerMode(String s) {
+            if(s.equals("scanner"))
+                return TokenizerModes.SCANNER;
+            if(s.equals("charclass"))
+                return TokenizerModes.CHAR_CLASS;
+            if(s.equals("mapped"))
+                return TokenizerModes.MAPPED;
+            throw new IllegalArgumentException("Unknown tokenizer mode " + s);
+        }
+
+        private static int parseProcessorMode(String s) {
+            if(s.equals("fixed"))
+                return ProcessorModes.FIXED;
+            if(s.equals("adaptive"))
+                return ProcessorModes.ADAPTIVE;
+            if(s.equals("thread"))
+                return ProcessorModes.THREAD_PER_FILE;
+            if(s.equals("pipeline"))
+                return ProcessorModes.PIPELINE;
+            throw new IllegalArgumentException("Unknown processor mode " + s);
+        }
+
+        private static int parseStorageType(String s) {
+            if(s.equals("map"))
+                return StorageTypes.MAP;
+            if(s.equals("interned"))
+                return StorageTypes.INTERNED;
+            if(s.equals("compressed"))
+                return StorageTypes.COMPRESSED;
+            if(s.equals("mapped"))
+                return StorageTypes.MAPPED;
+            if(s.equals("segmented"))
+                return StorageTypes.SEGMENTED;
+            throw new IllegalArgumentException("Unknown storage type " + s);
         }
 
         public final String logFile;
@@ -38,6 +116,26 @@ public class IndexerApp {
         public final int parserQueueSize;
         public final int registrationQueueSize;
         public final int internalQueueSize;
+        public final String storageTypeName;
+        public final int storageType;
+        public final boolean hashContents;
+        public final boolean trigramIndex;
+        public final int indexWritersNum;
+        public final long debounceMillis;
+        public final int crawlThreadsNum;
+        public final String tokenizerModeName;
+        public final int tokenizerMode;
+        public final long chunkSize;
+        public final String processorModeName;
+        public final int processorMode;
+        public final int readThreadsNum;
+        public final int readBuffersNum;
+        public final int readBufferSize;
+        public final int tokenizeQueueSize;
+        public final String snapshotFile;
+        public final String walFile;
+        public final String walSyncName;
+        public final int walSync;
     }
 
     private static Future<Void> lastOp;
@@ -47,6 +145,10 @@ public class IndexerApp {
         System.out.println("a\t--\tadd file");
         System.out.println("r\t--\tremove file");
         System.out.println("s\t--\tsearch");
+        System.out.println("b\t--\tboolean search: `foo bar -baz | qux`");
+        System.out.println("p\t--\tsearch by word prefix");
+        System.out.println("u\t--\tsearch by substring of word");
+        System.out.println("g\t--\tsearch by regex matched inside words");
         System.out.println("f\t--\tfiles");
         System.out.println("l\t--\ttoggle console logging");
         System.out.println("c\t--\tcancel last {,un}registration if it running");
@@ -78,11 +180,18 @@ public class IndexerApp {
         }
     }
 
-    private static void search(Scanner ins, Indexer indexer) {
-        System.out.print("word > ");
+    /**
+        @param kind `s` for word, `b` for boolean query, `p` for prefix, `u` for substring, `g` for regex
+    */
+    private static void search(Scanner ins, Indexer indexer, char kind) {
+        System.out.print(kind == 'b' ? "query > " : kind == 'p' ? "prefix > " : kind == 'u' ? "substring > "
+                : kind == 'g' ? "regex > " : "word > ");
         System.out.flush();
         try {
-            List<FileEntry> res = new ArrayList<>(indexer.search(ins.nextLine().trim()));
+            String line = ins.nextLine().trim();
+            List<FileEntry> res = new ArrayList<>(kind == 'b' ? indexer.search(Query.parse(line))
+                    : kind == 'p' ? indexer.searchPrefix(line) : kind == 'u' ? indexer.searchSubstring(line)
+                    : kind == 'g' ? indexer.searchRegex(Pattern.compile(line)) : indexer.search(line));
             Collections.sort(res, new Comparator<FileEntry>() {
                 @Override
                 public int compare(@NotNull FileEntry o1, @NotNull FileEntry o2) {
@@ -164,10 +273,34 @@ public class IndexerApp {
         System.out.println("Words: " + res.size());
     }
 
-    private static void listStats(Indexer indexer) {
+    private static void listStats(Indexer indexer, boolean pipeline) {
         IndexStatistics s = indexer.getStats();
         System.out.println("Files: " + s.numFiles + ", Valid files: "
-                + s.numValidFiles + ", Words: " + s.numWords);
+                + s.numValidFiles + ", Words: " + s.numWords + ", Segments: " + s.numSegments
+                + ", Merges: " + s.numMerges);
+        System.out.println("Processed: " + s.numProcessed + ", Restored: " + s.numRestored + ", Replayed: " + s.numReplayed + ", Skipped unchanged: "
+                + s.numSkippedByAttributes + ", Skipped same content: " + s.numSkippedByHash
+                + ", Coalesced: " + s.numCoalescedFiles + ", Merged events: " + s.numCoalescedEvents);
+        if(pipeline)
+            System.out.println("Read stage utilization: " + s.readUtilization + ", Tokenize stage utilization: "
+                    + s.tokenizeUtilization + ", Waiting for tokenizer: " + s.numWaitingForTokenizer);
+    }
+
+    private static void saveIndex(Indexer indexer, Path snapshot) {
+        try {
+            if(!indexer.waitFinished(10, TimeUnit.SECONDS)) {
+                System.out.println("Indexer is not stopped, index is not saved");
+                return;
+            }
+            if(snapshot != null) {
+                indexer.saveSnapshot(snapshot);
+                System.out.println("Index saved to " + snapshot);
+            }
+            indexer.closeLog();
+        } catch (Exception e) {
+            System.out.println("Failed to save index:");
+            e.printStackTrace();
+        }
     }
 
     public static void main(String[] argv) {
@@ -180,8 +313,16 @@ public class IndexerApp {
         try {
             c = new Config(argv[0]);
             Class<?> clazz = Class.forName(c.tokenizerFactoryClass);
-            Constructor<?> ctor = clazz.getConstructor();
-            tf = (ITokenizerFactory)ctor.newInstance();
+            Constructor<?> ctor;
+            try {
+                ctor = clazz.getConstructor(int.class);
+            } catch(NoSuchMethodException e) {
+                ctor = null;
+            }
+            if(ctor != null)
+                tf = (ITokenizerFactory)ctor.newInstance(c.tokenizerMode);
+            else
+                tf = (ITokenizerFactory)clazz.getConstructor().newInstance();
         } catch(Exception e) {
             e.printStackTrace();
             System.err.println("Failed to configure.");
@@ -210,12 +351,48 @@ public class IndexerApp {
 
         System.out.println("Current configuration:");
         System.out.println("\tTokenizer factory: " + c.tokenizerFactoryClass);
+        System.out.println("\tTokenizer mode: " + c.tokenizerModeName);
+        System.out.println("\tProcessor mode: " + c.processorModeName);
         System.out.println("\tNumber of parser threads: " + c.parserThreadsNum);
+        if(c.processorMode == ProcessorModes.PIPELINE)
+            System.out.println("\tRead threads: " + c.readThreadsNum + ", buffers: " + c.readBuffersNum
+                    + " of " + c.readBufferSize + " bytes, tokenize queue: " + c.tokenizeQueueSize);
         System.out.println("\tParser queue size: " + c.parserQueueSize);
+        System.out.println("\tChunk size: " + c.chunkSize);
         System.out.println("\tInternal queue size: " + c.internalQueueSize);
         System.out.println("\tRegistration queue size: " + c.registrationQueueSize);
+        System.out.println("\tStorage type: " + c.storageTypeName);
+        System.out.println("\tHash contents: " + c.hashContents);
+        System.out.println("\tTrigram index: " + c.trigramIndex);
+        System.out.println("\tIndex writers: " + c.indexWritersNum);
+        System.out.println("\tDebounce interval: " + c.debounceMillis);
+        System.out.println("\tCrawl threads: " + c.crawlThreadsNum);
+        System.out.println("\tSnapshot file: " + c.snapshotFile);
+        System.out.println("\tWrite-ahead log: " + c.walFile + ", sync: " + c.walSyncName);
         
-        Indexer indexer = new Indexer(tf, c.registrationQueueSize, c.internalQueueSize, c.parserThreadsNum, c.parserQueueSize);
+        Indexer indexer = new Indexer(tf, new FilesProcessorServiceFactory(c.processorMode
+                , c.parserThreadsNum, c.parserQueueSize, true, c.chunkSize, c.readThreadsNum, c.readBuffersNum, c.readBufferSize
+                , c.tokenizeQueueSize)
+                , new IndexProcessorFactory(c.storageType, c.hashContents, c.trigramIndex, c.indexWritersNum, c.internalQueueSize)
+                , c.registrationQueueSize, c.internalQueueSize, c.debounceMillis, c.crawlThreadsNum);
+        Path snapshot = c.snapshotFile == null ? null : FileSystems.getDefault().getPath(c.snapshotFile);
+        if(snapshot != null && Files.exists(snapshot)) {
+            try {
+                indexer.loadSnapshot(snapshot);
+                System.out.println("Index restored from " + snapshot);
+            } catch (IOException e) {
+                System.out.println("Failed to restore index:");
+                e.printStackTrace();
+            }
+        }
+        if(c.walFile != null) {
+            try {
+                indexer.openLog(FileSystems.getDefault().getPath(c.walFile), c.walSync);
+            } catch (IOException e) {
+                System.out.println("Failed to open write-ahead log:");
+                e.printStackTrace();
+            }
+        }
         try(Scanner ins = new Scanner(System.in)) {
             indexer.startService();
             while(true) {
@@ -232,7 +409,15 @@ public class IndexerApp {
                 } else if(cmd.equals("r")) {
                     remove(ins, indexer);
                 } else if(cmd.equals("s")) {
-                    search(ins, indexer);
+                    search(ins, indexer, 's');
+                } else if(cmd.equals("b")) {
+                    search(ins, indexer, 'b');
+                } else if(cmd.equals("p")) {
+                    search(ins, indexer, 'p');
+                } else if(cmd.equals("u")) {
+                    search(ins, indexer, 'u');
+                } else if(cmd.equals("g")) {
+                    search(ins, indexer, 'g');
                 } else if(cmd.equals("f")) {
                     listFiles(indexer);
                 } else if(cmd.equals("l")) {
@@ -240,7 +425,7 @@ public class IndexerApp {
                 } else if(cmd.equals("c")) {
                     cancel();
                 } else if(cmd.equals("i")) {
-                    listStats(indexer);
+                    listStats(indexer, c.processorMode == ProcessorModes.PIPELINE);
                 } else if(cmd.equals("w")) {
                     listWords(indexer);
                 } else if(cmd.equals("q")) {
@@ -255,6 +440,8 @@ public class IndexerApp {
         } finally {
             indexer.stopService();
         }
+        if(snapshot != null || c.walFile != null)
+            saveIndex(indexer, snapshot);
 
     }
 }
@@ -34,7 +34,7 @@ public class FSEventsService implements Runnable, IService {
     public FSEventsService(@NotNull IRawFSEventsProcessor fsProcessor) {
         currentService = new ThreadService(this);
         this.fsProcessor = fsProcessor;
-        this.watchKeys = new HashMap<>();
+        this.watchKeys = new ConcurrentHashMap<>(); //directories are registered by crawler threads
         this.watchWhitelists = new ConcurrentHashMap<>();
         this.watchBlacklists = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
         waitingForEvents = false;
@@ -126,8 +126,7 @@ public class FSEventsService implements Runnable, IService {
             log.finer("Registering " + dir);
         String sdir = dir.toString();
         if(!watchKeys.containsKey(sdir)) {
-            watchKeys.put(sdir, dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY));
-            return true;
+            return watchKeys.put(sdir, dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY)) == null;
         } else {
             Set<String> f = watchWhitelists.get(sdir);
             if(f == null || f.isEmpty())
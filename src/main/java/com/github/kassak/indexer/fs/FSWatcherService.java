@@ -2,6 +2,7 @@ package com.github.kassak.indexer.fs;
 
 import com.github.kassak.indexer.utils.*;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 
 import java.io.IOException;
@@ -11,8 +12,12 @@ import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,7 +32,39 @@ public class FSWatcherService implements Runnable, IService, FSEventsService.IRa
         @param queueSize size of registration queue
     */
     public FSWatcherService(@NotNull IFSEventsProcessor processor, int queueSize) {
+        this(processor, queueSize, 0);
+    }
+
+    /**
+        Creates new service merging bursts of events.
+        Events of path received during debounce interval after its first event are merged into
+        their net effect: creation followed by modifications is creation, creation followed by
+        removal is nothing, removal followed by creation is removal and creation.
+
+        @param processor filesystem events processor
+        @param queueSize size of registration queue
+        @param debounceMillis debounce interval in milliseconds, 0 disables merging
+    */
+    public FSWatcherService(@NotNull IFSEventsProcessor processor, int queueSize, long debounceMillis) {
+        this(processor, queueSize, debounceMillis, 1);
+    }
+
+    /**
+        Creates new service merging bursts of events and registering directories in parallel.
+        Registered tree is walked in fork-join pool, each directory is listed by its own task.
+
+        @param processor filesystem events processor
+        @param queueSize size of registration queue
+        @param debounceMillis debounce interval in milliseconds, 0 disables merging
+        @param crawlThreadsNum number of threads walking registered directories
+    */
+    public FSWatcherService(@NotNull IFSEventsProcessor processor, int queueSize, long debounceMillis
+            , int crawlThreadsNum) {
         eventsProcessor = processor;
+        this.crawlThreadsNum = crawlThreadsNum;
+        debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        debounced = new LinkedHashMap<>();
+        coalescedNum = new AtomicLong();
         currentService = new ThreadService(this);
         queue = new ArrayBlockingQueue<>(queueSize*2);
         fsSemaphore = new Semaphore(queueSize);
@@ -37,14 +74,26 @@ public class FSWatcherService implements Runnable, IService, FSEventsService.IRa
 
     @Override
     public void startService() throws FailureException {
-        Services.startServices(eventsService, currentService);
-        running = true;
+        running = true; //before thread start, otherwise it could exit at once
+        crawlPool = new ForkJoinPool(crawlThreadsNum);
+        crawler = new ParallelCrawler(crawlPool);
+        try {
+            Services.startServices(eventsService, currentService);
+        } catch (FailureException e) {
+            running = false;
+            crawlPool.shutdownNow();
+            throw e;
+        }
     }
 
     @Override
     public void stopService() {
         running = false;
-        Services.stopServices(currentService, eventsService);
+        try {
+            Services.stopServices(currentService, eventsService);
+        } finally {
+            crawlPool.shutdownNow();
+        }
     }
 
     @Override
@@ -54,32 +103,54 @@ public class FSWatcherService implements Runnable, IService, FSEventsService.IRa
 
     @Override
     public boolean waitFinished(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
-        return Services.waitServicesFinished(timeout, unit, eventsService, currentService);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if(!Services.waitServicesFinished(timeout, unit, eventsService, currentService))
+            return false;
+        return crawlPool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
     }
 
     @Override
     public void run() {
+        updateActivity();
         while(running) {
-            updateActivity();
             FutureTask<Void> task;
             try {
-                task = queue.take();
+                if(debounceNanos > 0) {
+                    long wait = flushDebounced();
+                    Thread.interrupted(); //reset interruption state
+                    if(!running) //interruption by stop is reset too
+                        break;
+                    task = queue.poll(wait, TimeUnit.NANOSECONDS);
+                } else {
+                    task = queue.take();
+                }
             } catch (InterruptedException e) {
                 if(log.isLoggable(Level.FINE))
                     log.fine("Interrupted while waiting for file");
                 Thread.currentThread().interrupt();
                 break;
             }
+            if(task == null) //only debounce interval passed
+                continue;
             task.run();
             Thread.interrupted(); //reset interruption state
+            updateActivity();
         }
     }
 
     public Future<Void> registerRoot(@NotNull final Path path) throws InterruptedException {
+        return registerRoot(path, null);
+    }
+
+    /**
+        @param path file or directory to register
+        @param onDone called when registration is finished, failed or cancelled
+    */
+    public Future<Void> registerRoot(@NotNull final Path path, @Nullable final Runnable onDone) throws InterruptedException {
         if(log.isLoggable(Level.FINER))
             log.finer("Registering " + path);
         userSemaphore.acquire();
-        FutureTask <Void> res = new FutureTask<>(new Callable<Void>() {
+        FutureTask <Void> res = new FutureTask<Void>(new Callable<Void>() {
             @Override
             public Void call() throws Exception {
                 try {
@@ -89,7 +160,13 @@ public class FSWatcherService implements Runnable, IService, FSEventsService.IRa
                 }
                 return null;
             }
-        });
+        }) {
+            @Override
+            protected void done() {
+                if(onDone != null)
+                    onDone.run();
+            }
+        };
         queue.put(res);
         return res;
     }
@@ -140,52 +217,43 @@ public class FSWatcherService implements Runnable, IService, FSEventsService.IRa
                     eventsService.setBlacklisted(path, false);
                 }
                 try {
-                    Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                    //cancellation of registration interrupts this thread, crawler stops walk then
+                    if(crawler.crawl(path, new ParallelCrawler.IVisitor() {
                         @Override
-                        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                        public boolean preVisitDirectory(@NotNull Path dir) throws IOException {
                             updateActivity();
-                            if (Thread.currentThread().isInterrupted())
-                                return FileVisitResult.SKIP_SIBLINGS;
                             if(eventsService.isBlacklisted(dir)) {
                                 if(log.isLoggable(Level.FINER))
                                     log.finer("Skipping blacklisted " + dir);
-                                return FileVisitResult.SKIP_SUBTREE;
+                                return false;
                             }
-                            if (eventsService.registerDirectory(dir))
-                                return FileVisitResult.CONTINUE;
-                            return FileVisitResult.SKIP_SUBTREE;
+                            return eventsService.registerDirectory(dir);
                         }
 
                         @Override
-                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        public void visitFile(@NotNull Path file) throws InterruptedException {
                             updateActivity();
-                            if (Thread.currentThread().isInterrupted())
-                                return FileVisitResult.SKIP_SIBLINGS;
                             if(eventsService.isBlacklisted(file)) {
                                 if(log.isLoggable(Level.FINER))
                                     log.finer("Skipping blacklisted " + file);
-                                return FileVisitResult.SKIP_SUBTREE;
+                                return;
                             }
                             if (Files.isRegularFile(file))
                                 try {
                                     eventsProcessor.onFileChanged(file);
                                 } catch (InterruptedException e) {
                                     log.fine("Interrupted while reporting change " + file);
-                                    Thread.currentThread().interrupt();
-                                    return FileVisitResult.SKIP_SIBLINGS;
+                                    throw e;
                                 }
                             else if (log.isLoggable(Level.FINER))
                                 log.finer("Skipping not a regular file " + file);
-                            return FileVisitResult.CONTINUE;
                         }
 
                         @Override
-                        public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                        public void visitFileFailed(@NotNull Path file, @NotNull IOException exc) {
                             log.log(Level.WARNING, "Failed to visit " + file, exc);
-                            return FileVisitResult.CONTINUE;
                         }
-                    });
-                    if (!Thread.currentThread().isInterrupted())
+                    }))
                         finished = true;
                 } catch (IOException e) {
                     log.log(Level.WARNING, "Exception while registering " + path, e);
@@ -394,10 +462,130 @@ public class FSWatcherService implements Runnable, IService, FSEventsService.IRa
         queue.put(res);
     }
 
+    /**
+        Net effect of events of path merged during debounce interval
+    */
+    private static class DebouncedEvent {
+        public DebouncedEvent(int effect, long deadline) {
+            this.effect = effect;
+            this.deadline = deadline;
+            eventsNum = 1;
+        }
+
+        public void merge(int event) {
+            ++eventsNum;
+            switch(effect) {
+                case NOTHING:
+                    effect = event;
+                    break;
+                case CREATED:
+                    effect = event == DELETED ? NOTHING : CREATED;
+                    break;
+                case MODIFIED:
+                    effect = event == MODIFIED ? MODIFIED : (event == DELETED ? DELETED : REPLACED);
+                    break;
+                default: //DELETED, REPLACED
+                    effect = event == DELETED ? DELETED : REPLACED;
+            }
+        }
+
+        public int effect;
+        public int eventsNum;
+        public final long deadline;
+    }
+
+    /**
+        Merges event into net effect of path, waiting for free space if path has no pending events
+    */
+    private void debounce(@NotNull Path path, int event) throws InterruptedException {
+        synchronized(debounced) {
+            DebouncedEvent e = debounced.get(path);
+            if(e != null) {
+                e.merge(event);
+                return;
+            }
+        }
+        fsSemaphore.acquire();
+        synchronized(debounced) {
+            DebouncedEvent e = debounced.get(path);
+            if(e == null) {
+                debounced.put(path, new DebouncedEvent(event, System.nanoTime() + debounceNanos));
+                return;
+            }
+            e.merge(event);
+        }
+        fsSemaphore.release();
+    }
+
+    /**
+        Processes net effects whose debounce interval have passed
+
+        @return nanoseconds till next debounce interval ends
+    */
+    private long flushDebounced() {
+        while(true) {
+            Path path;
+            DebouncedEvent e;
+            synchronized(debounced) {
+                Iterator<Map.Entry<Path, DebouncedEvent>> it = debounced.entrySet().iterator();
+                if(!it.hasNext())
+                    return debounceNanos;
+                Map.Entry<Path, DebouncedEvent> first = it.next(); //intervals end in order of first events
+                long left = first.getValue().deadline - System.nanoTime();
+                if(left > 0)
+                    return left;
+                it.remove();
+                path = first.getKey();
+                e = first.getValue();
+            }
+            fsSemaphore.release();
+            updateActivity();
+            processDebounced(path, e);
+        }
+    }
+
+    private void processDebounced(@NotNull Path path, @NotNull DebouncedEvent e) {
+        if(log.isLoggable(Level.FINER))
+            log.finer("Processing " + e.eventsNum + " merged events of " + path);
+        switch(e.effect) {
+            case NOTHING:
+                coalescedNum.addAndGet(e.eventsNum);
+                break;
+            case CREATED:
+                coalescedNum.addAndGet(e.eventsNum - 1);
+                processNewEntryImpl(path);
+                break;
+            case MODIFIED:
+                coalescedNum.addAndGet(e.eventsNum - 1);
+                processModifyEntryImpl(path);
+                break;
+            case DELETED:
+                coalescedNum.addAndGet(e.eventsNum - 1);
+                processDeleteEntryImpl(path);
+                break;
+            case REPLACED:
+                coalescedNum.addAndGet(e.eventsNum - 2);
+                processDeleteEntryImpl(path);
+                processNewEntryImpl(path);
+                break;
+        }
+    }
+
+    /**
+        @return number of events which were merged with other events of the same path
+    */
+    public long getCoalescedEvents() {
+        return coalescedNum.get();
+    }
+
     @Override
     public void processNewEntry(final @NotNull Path path) throws InterruptedException {
         if(log.isLoggable(Level.FINER))
             log.finer("processNewEntry " + path);
+        if(debounceNanos > 0) {
+            debounce(path, CREATED);
+            return;
+        }
         fsSemaphore.acquire();
         FutureTask <Void> res = new FutureTask<>(new Callable<Void>() {
             @Override
@@ -417,6 +605,10 @@ public class FSWatcherService implements Runnable, IService, FSEventsService.IRa
     public void processDeleteEntry(final @NotNull Path path) throws InterruptedException {
         if(log.isLoggable(Level.FINER))
             log.finer("processDeleteEntry " + path);
+        if(debounceNanos > 0) {
+            debounce(path, DELETED);
+            return;
+        }
         fsSemaphore.acquire();
         FutureTask <Void> res = new FutureTask<>(new Callable<Void>() {
             @Override
@@ -436,6 +628,10 @@ public class FSWatcherService implements Runnable, IService, FSEventsService.IRa
     public void processModifyEntry(final @NotNull Path path) throws InterruptedException {
         if(log.isLoggable(Level.FINER))
             log.finer("processModifyEntry " + path);
+        if(debounceNanos > 0) {
+            debounce(path, MODIFIED);
+            return;
+        }
         fsSemaphore.acquire();
         FutureTask <Void> res = new FutureTask<>(new Callable<Void>() {
             @Override
@@ -453,6 +649,10 @@ public class FSWatcherService implements Runnable, IService, FSEventsService.IRa
 
     @TestOnly
     public boolean isIdle() {
+        synchronized(debounced) {
+            if(!debounced.isEmpty())
+                return false;
+        }
         return queue.isEmpty() && eventsService.isIdle();
     }
 
@@ -465,6 +665,18 @@ public class FSWatcherService implements Runnable, IService, FSEventsService.IRa
         lastActivity = System.currentTimeMillis();
     }
 
+    private static final int NOTHING = 0;
+    private static final int CREATED = 1;
+    private static final int MODIFIED = 2;
+    private static final int DELETED = 3;
+    private static final int REPLACED = 4;
+
+    private final int crawlThreadsNum;
+    private ForkJoinPool crawlPool;
+    private ParallelCrawler crawler;
+    private final long debounceNanos;
+    private final Map<Path, DebouncedEvent> debounced; //in order of first events, guarded by itself
+    private final AtomicLong coalescedNum;
     private final Semaphore userSemaphore;
     private final Semaphore fsSemaphore;
     private final BlockingQueue<FutureTask<Void>> queue;
@@ -0,0 +1,161 @@
+package com.github.kassak.indexer.fs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+    Walks directory tree in fork-join pool, each directory is listed by its own task.
+    Symbolic links are not followed. Directory which can't be listed and entry whose attributes
+    can't be read are passed to {@link IVisitor#visitFileFailed} and walk continues,
+    as {@link Files#walkFileTree} does with visitor returning CONTINUE. Walk fails if visitor fails.
+*/
+public class ParallelCrawler {
+    public static interface IVisitor {
+        /**
+            Called before listing directory, may be called concurrently
+
+            @return false if directory should be skipped
+        */
+        public boolean preVisitDirectory(@NotNull Path dir) throws IOException, InterruptedException;
+
+        /**
+            Called for each entry which is not directory, may be called concurrently
+        */
+        public void visitFile(@NotNull Path file) throws IOException, InterruptedException;
+
+        /**
+            Called if attributes of entry can't be read or directory can't be listed, may be called concurrently
+        */
+        public void visitFileFailed(@NotNull Path file, @NotNull IOException exc);
+    }
+
+    /**
+        @param pool pool walking directories
+    */
+    public ParallelCrawler(@NotNull ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+        Walks tree waiting for its end. Interruption of calling thread cancels walk,
+        in that case method returns when all started visits end.
+
+        @param root root of tree
+        @param visitor visitor of directories and files
+        @return false if walk was interrupted, interruption state is set in that case
+        @throws IOException if visitor failed
+    */
+    public boolean crawl(@NotNull Path root, @NotNull IVisitor visitor) throws IOException {
+        Walk walk = new Walk(visitor);
+        ForkJoinTask<Void> task = pool.submit(walk.new DirectoryTask(root));
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            walk.abort(null);
+            walk.interrupted = true;
+            task.quietlyJoin();
+        } catch (CancellationException e) { //pool is shut down
+            walk.interrupted = true;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to walk " + root, e.getCause());
+        }
+        IOException failure = walk.failure.get();
+        if(failure != null)
+            throw failure;
+        if(walk.interrupted) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    private static class Walk {
+        public Walk(@NotNull IVisitor visitor) {
+            this.visitor = visitor;
+            failure = new AtomicReference<>();
+        }
+
+        public void abort(IOException e) {
+            if(e != null)
+                failure.compareAndSet(null, e);
+            cancelled = true;
+        }
+
+        @SuppressWarnings("serial") //never serialized
+        private class DirectoryTask extends RecursiveAction {
+            public DirectoryTask(@NotNull Path dir) {
+                this.dir = dir;
+            }
+
+            @Override
+            protected void compute() {
+                if(cancelled)
+                    return;
+                List<DirectoryTask> subdirs = new ArrayList<>();
+                try {
+                    if(!visitor.preVisitDirectory(dir))
+                        return;
+                    DirectoryStream<Path> ds;
+                    try {
+                        ds = Files.newDirectoryStream(dir);
+                    } catch (IOException e) { //e.g. no permission or removed during walk
+                        visitor.visitFileFailed(dir, e);
+                        return;
+                    }
+                    try {
+                        for(Path p : ds) {
+                            if(cancelled)
+                                return;
+                            BasicFileAttributes attrs;
+                            try {
+                                attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                            } catch (IOException e) {
+                                visitor.visitFileFailed(p, e);
+                                continue;
+                            }
+                            if(attrs.isDirectory())
+                                subdirs.add(new DirectoryTask(p));
+                            else
+                                visitor.visitFile(p);
+                        }
+                    } catch (DirectoryIteratorException e) { //entries listed so far are walked
+                        visitor.visitFileFailed(dir, e.getCause());
+                    } finally {
+                        ds.close();
+                    }
+                } catch (IOException e) {
+                    abort(e);
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    abort(null);
+                    return;
+                }
+                invokeAll(subdirs);
+            }
+
+            private final Path dir;
+        }
+
+        private final IVisitor visitor;
+        private final AtomicReference<IOException> failure;
+        private volatile boolean cancelled, interrupted;
+    }
+
+    private final ForkJoinPool pool;
+}
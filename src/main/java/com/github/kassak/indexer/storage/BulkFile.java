@@ -0,0 +1,28 @@
+package com.github.kassak.indexer.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+import java.util.Collection;
+
+/**
+    File with its words and fingerprint of its content, loaded into index at once
+*/
+public class BulkFile {
+    /**
+        @param path tokenized file
+        @param size size of file before tokenizing
+        @param modified modification time of file before tokenizing in milliseconds
+        @param words distinct words of file
+    */
+    public BulkFile(@NotNull Path path, long size, long modified, @NotNull Collection<String> words) {
+        this.path = path;
+        this.size = size;
+        this.modified = modified;
+        this.words = words;
+    }
+
+    public final Path path;
+    public final long size, modified;
+    public final Collection<String> words;
+}
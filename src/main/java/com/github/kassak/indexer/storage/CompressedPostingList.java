@@ -0,0 +1,438 @@
+package com.github.kassak.indexer.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+    Sorted set of ints kept compressed.
+    Base part is either blocks of delta encoded varints with skip table (sparse lists)
+    or a bitmap (dense lists), whichever is smaller. Modifications are collected in small
+    sorted buffers and merged into the base when buffers grow large enough.
+*/
+public class CompressedPostingList implements IPostingList {
+    public CompressedPostingList() {
+        kind = EMPTY;
+        added = NONE;
+        removed = NONE;
+    }
+
+    /**
+        @param ids ascending ids
+        @param num number of ids to take
+        @return compressed list of ids
+    */
+    @NotNull
+    public static CompressedPostingList encode(@NotNull int[] ids, int num) {
+        CompressedPostingList res = new CompressedPostingList();
+        res.encodeBase(ids, num);
+        return res;
+    }
+
+    @Override
+    public boolean add(int v) {
+        if(removed.remove(v))
+            return true;
+        if(baseContains(v))
+            return false;
+        if(added == NONE)
+            added = new IntPostingList();
+        if(!added.add(v))
+            return false;
+        maybeCompact();
+        return true;
+    }
+
+    @Override
+    public boolean remove(int v) {
+        if(added.remove(v))
+            return true;
+        if(removed.contains(v) || !baseContains(v))
+            return false;
+        if(removed == NONE)
+            removed = new IntPostingList();
+        removed.add(v);
+        maybeCompact();
+        return true;
+    }
+
+    @Override
+    public boolean contains(int v) {
+        if(added.contains(v))
+            return true;
+        return !removed.contains(v) && baseContains(v);
+    }
+
+    @Override
+    public int size() {
+        return baseSize - removed.size() + added.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+        @return approximate number of bytes used by ids
+    */
+    public long bytesUsed() {
+        long res = (added.size() + removed.size()) * 4;
+        if(kind == VARINT)
+            res += bytes.length + skipIds.length * 8;
+        else if(kind == BITMAP)
+            res += bits.length * 8;
+        return res;
+    }
+
+    @Override
+    @NotNull
+    public IPostingIterator iterator() {
+        final IPostingIterator base = baseIterator();
+        final IPostingIterator add = added.iterator();
+        final IPostingIterator rem = removed.iterator();
+        return new IPostingIterator() {
+            {
+                nextRemoved = Integer.MIN_VALUE;
+                nextBase = advanceBase();
+                nextAdded = add.hasNext() ? add.next() : Integer.MAX_VALUE;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextBase != Integer.MAX_VALUE || nextAdded != Integer.MAX_VALUE;
+            }
+
+            @Override
+            public int next() {
+                int res;
+                if(nextBase < nextAdded) {
+                    res = nextBase;
+                    nextBase = advanceBase();
+                } else {
+                    res = nextAdded;
+                    nextAdded = add.hasNext() ? add.next() : Integer.MAX_VALUE;
+                }
+                return res;
+            }
+
+            private int advanceBase() {
+                while(base.hasNext()) {
+                    int v = base.next();
+                    while(nextRemoved < v)
+                        nextRemoved = rem.hasNext() ? rem.next() : Integer.MAX_VALUE;
+                    if(nextRemoved != v)
+                        return v;
+                }
+                return Integer.MAX_VALUE;
+            }
+
+            private int nextBase, nextAdded, nextRemoved;
+        };
+    }
+
+    /**
+        Cursor over base skips whole blocks by skip table or bitmap words,
+        then it is filtered by removed ids and merged with added ones
+    */
+    @Override
+    @NotNull
+    public IPostingCursor cursor() {
+        final IPostingCursor base = baseCursor();
+        final IPostingCursor add = added.cursor();
+        final IPostingCursor rem = removed.cursor();
+        final long cost = size();
+        return new IPostingCursor() {
+            @Override
+            public int advance(int target) {
+                int b = base.advance(target);
+                while(b != END && rem.advance(b) == b)
+                    b = base.advance(b + 1);
+                return Math.min(b, add.advance(target));
+            }
+
+            @Override
+            public long cost() {
+                return cost;
+            }
+        };
+    }
+
+    private void maybeCompact() {
+        if(added.size() + removed.size() > MIN_PENDING + (baseSize >> 3))
+            compact();
+    }
+
+    /**
+        Merges pending modifications into base
+    */
+    public void compact() {
+        if(added.isEmpty() && removed.isEmpty())
+            return;
+        int num = size();
+        int[] ids = new int[num];
+        IPostingIterator it = iterator();
+        for(int i = 0; i < num; ++i)
+            ids[i] = it.next();
+        added = NONE;
+        removed = NONE;
+        encodeBase(ids, num);
+    }
+
+    private void encodeBase(int[] ids, int num) {
+        bytes = null;
+        skipIds = null;
+        skipOffsets = null;
+        bits = null;
+        baseSize = num;
+        if(num == 0) {
+            kind = EMPTY;
+            return;
+        }
+        baseLast = ids[num - 1];
+        long varintSize = 0;
+        for(int i = 0; i < num; ++i) {
+            if(i % BLOCK_SIZE != 0)
+                varintSize += varintLength(ids[i] - ids[i - 1]);
+        }
+        varintSize += ((num + BLOCK_SIZE - 1) / BLOCK_SIZE) * 8;
+        long bitmapSize = ((ids[num - 1] >> 6) - (ids[0] >> 6) + 1) * 8L;
+        if(bitmapSize < varintSize)
+            encodeBitmap(ids, num);
+        else
+            encodeVarints(ids, num);
+    }
+
+    private void encodeBitmap(int[] ids, int num) {
+        kind = BITMAP;
+        bitsBase = ids[0] & ~63;
+        bits = new long[((ids[num - 1] - bitsBase) >> 6) + 1];
+        for(int i = 0; i < num; ++i) {
+            int off = ids[i] - bitsBase;
+            bits[off >> 6] |= 1L << off;
+        }
+    }
+
+    private void encodeVarints(int[] ids, int num) {
+        kind = VARINT;
+        int blocks = (num + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        skipIds = new int[blocks];
+        skipOffsets = new int[blocks];
+        byte[] buf = new byte[num * 5];
+        int pos = 0;
+        for(int i = 0; i < num; ++i) {
+            if(i % BLOCK_SIZE == 0) {
+                skipIds[i / BLOCK_SIZE] = ids[i];
+                skipOffsets[i / BLOCK_SIZE] = pos;
+                continue;
+            }
+            int delta = ids[i] - ids[i - 1];
+            while((delta & ~0x7F) != 0) {
+                buf[pos++] = (byte)((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            buf[pos++] = (byte)delta;
+        }
+        bytes = Arrays.copyOf(buf, pos);
+    }
+
+    private static int varintLength(int v) {
+        int res = 1;
+        while((v & ~0x7F) != 0) {
+            v >>>= 7;
+            ++res;
+        }
+        return res;
+    }
+
+    private boolean baseContains(int v) {
+        if(kind == EMPTY || v > baseLast)
+            return false;
+        if(kind == BITMAP) {
+            int off = v - bitsBase;
+            return off >= 0 && (bits[off >> 6] & (1L << off)) != 0;
+        }
+        int block = Arrays.binarySearch(skipIds, v);
+        if(block >= 0)
+            return true;
+        block = -block - 2;
+        if(block < 0)
+            return false;
+        int cur = skipIds[block];
+        int pos = skipOffsets[block];
+        int left = Math.min(BLOCK_SIZE, baseSize - block * BLOCK_SIZE) - 1;
+        while(left-- > 0) {
+            int delta = 0;
+            for(int shift = 0; ; shift += 7) {
+                byte b = bytes[pos++];
+                delta |= (b & 0x7F) << shift;
+                if(b >= 0)
+                    break;
+            }
+            cur += delta;
+            if(cur >= v)
+                return cur == v;
+        }
+        return false;
+    }
+
+    @NotNull
+    private IPostingIterator baseIterator() {
+        if(kind == BITMAP) {
+            final long[] b = bits;
+            final int base = bitsBase;
+            return new IPostingIterator() {
+                {
+                    word = b[0];
+                }
+
+                @Override
+                public boolean hasNext() {
+                    while(word == 0) {
+                        if(idx + 1 >= b.length)
+                            return false;
+                        word = b[++idx];
+                    }
+                    return true;
+                }
+
+                @Override
+                public int next() {
+                    hasNext();
+                    int res = base + (idx << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    return res;
+                }
+
+                private int idx;
+                private long word;
+            };
+        }
+        final int num = kind == EMPTY ? 0 : baseSize;
+        final byte[] bs = bytes;
+        final int[] firsts = skipIds;
+        return new IPostingIterator() {
+            @Override
+            public boolean hasNext() {
+                return i < num;
+            }
+
+            @Override
+            public int next() {
+                if(i % BLOCK_SIZE == 0) {
+                    cur = firsts[i / BLOCK_SIZE];
+                } else {
+                    int delta = 0;
+                    for(int shift = 0; ; shift += 7) {
+                        byte b = bs[pos++];
+                        delta |= (b & 0x7F) << shift;
+                        if(b >= 0)
+                            break;
+                    }
+                    cur += delta;
+                }
+                ++i;
+                return cur;
+            }
+
+            private int i, pos, cur;
+        };
+    }
+
+    @NotNull
+    private IPostingCursor baseCursor() {
+        if(kind == EMPTY)
+            return QueryEvaluator.EMPTY;
+        final int num = baseSize;
+        if(kind == BITMAP) {
+            final long[] b = bits;
+            final int base = bitsBase;
+            return new IPostingCursor() {
+                @Override
+                public int advance(int target) {
+                    if(target <= cur)
+                        return cur;
+                    int off = Math.max(target - base, 0);
+                    int idx = off >> 6;
+                    if(idx >= b.length)
+                        return cur = END;
+                    long word = b[idx] & (-1L << off);
+                    while(word == 0) {
+                        if(++idx >= b.length)
+                            return cur = END;
+                        word = b[idx];
+                    }
+                    return cur = base + (idx << 6) + Long.numberOfTrailingZeros(word);
+                }
+
+                @Override
+                public long cost() {
+                    return num;
+                }
+
+                private int cur = -1;
+            };
+        }
+        final byte[] bs = bytes;
+        final int[] firsts = skipIds;
+        final int[] offsets = skipOffsets;
+        return new IPostingCursor() {
+            @Override
+            public int advance(int target) {
+                if(target <= cur)
+                    return cur;
+                int block = i / BLOCK_SIZE;
+                if(block + 1 < firsts.length && firsts[block + 1] <= target) {
+                    int found = Arrays.binarySearch(firsts, block + 1, firsts.length, target);
+                    block = found >= 0 ? found : -found - 2;
+                    i = block * BLOCK_SIZE;
+                    cur = firsts[block];
+                    pos = offsets[block];
+                }
+                while(cur < target) {
+                    if(++i >= num)
+                        return cur = END;
+                    if(i % BLOCK_SIZE == 0) {
+                        cur = firsts[i / BLOCK_SIZE];
+                        continue;
+                    }
+                    int delta = 0;
+                    for(int shift = 0; ; shift += 7) {
+                        byte b = bs[pos++];
+                        delta |= (b & 0x7F) << shift;
+                        if(b >= 0)
+                            break;
+                    }
+                    cur += delta;
+                }
+                return cur;
+            }
+
+            @Override
+            public long cost() {
+                return num;
+            }
+
+            private int i, pos;
+            private int cur = firsts[0];
+        };
+    }
+
+    private static final int EMPTY = 0;
+    private static final int VARINT = 1;
+    private static final int BITMAP = 2;
+    private static final int BLOCK_SIZE = 128;
+    private static final int MIN_PENDING = 16;
+
+    private int kind;
+    private int baseSize;
+    private int baseLast;
+    private byte[] bytes;
+    private int[] skipIds;
+    private int[] skipOffsets;
+    private long[] bits;
+    private int bitsBase;
+    private IntPostingList added;
+    private IntPostingList removed;
+    private static final IntPostingList NONE = new IntPostingList(); //shared empty buffer, never modified
+}
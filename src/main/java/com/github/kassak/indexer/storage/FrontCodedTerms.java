@@ -0,0 +1,184 @@
+package com.github.kassak.indexer.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+    Immutable sorted array of terms, front coded: terms are UTF-8 bytes grouped by 16, first term
+    of group is stored whole, others as length of prefix shared with previous term and the rest.
+    Group is found by binary search over first terms, so lookup decodes at most one group.
+    Takes several bytes per term instead of a String per term.
+*/
+class FrontCodedTerms {
+    private FrontCodedTerms(@NotNull byte[] data, @NotNull int[] groups, int size) {
+        this.data = data;
+        this.groups = groups;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+        @param from UTF-8 bytes of term
+        @return cursor at the first term not less than from in {@link Segment#TERMS_ORDER}
+    */
+    @NotNull
+    public Cursor cursor(@NotNull byte[] from) {
+        int lo = 0, hi = (size + GROUP_SIZE - 1) / GROUP_SIZE - 1, group = 0;
+        while(lo <= hi) { //last group starting not after from
+            int mid = (lo + hi) >>> 1;
+            if(compareFirst(mid, from) <= 0) {
+                group = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        Cursor res = new Cursor(group);
+        while(res.hasNext() && res.compareTo(from) < 0)
+            res.skip();
+        return res;
+    }
+
+    private int compareFirst(int group, @NotNull byte[] term) {
+        int pos = groups[group];
+        int len = 0;
+        for(int shift = 0; ; shift += 7) {
+            byte b = data[pos++];
+            len |= (b & 0x7F) << shift;
+            if(b >= 0)
+                break;
+        }
+        for(int i = 0; i < len && i < term.length; ++i) {
+            int cmp = (data[pos + i] & 0xFF) - (term[i] & 0xFF);
+            if(cmp != 0)
+                return cmp;
+        }
+        return len - term.length;
+    }
+
+    /**
+        Iterates terms in ascending order. Decoded term is kept in buffer reused for the next term.
+    */
+    class Cursor {
+        private Cursor(int group) {
+            idx = group * GROUP_SIZE;
+            pos = idx < size ? groups[group] : data.length;
+            decode();
+        }
+
+        public boolean hasNext() {
+            return idx < size;
+        }
+
+        @NotNull
+        public String next() {
+            String res = new String(term, 0, len, StandardCharsets.UTF_8);
+            skip();
+            return res;
+        }
+
+        private void skip() {
+            ++idx;
+            decode();
+        }
+
+        private int compareTo(@NotNull byte[] other) {
+            for(int i = 0; i < len && i < other.length; ++i) {
+                int cmp = (term[i] & 0xFF) - (other[i] & 0xFF);
+                if(cmp != 0)
+                    return cmp;
+            }
+            return len - other.length;
+        }
+
+        private void decode() {
+            if(idx >= size)
+                return;
+            int shared = idx % GROUP_SIZE == 0 ? 0 : readVarInt();
+            int rest = readVarInt();
+            len = shared + rest;
+            if(len > term.length)
+                term = Arrays.copyOf(term, Math.max(len, term.length * 2));
+            System.arraycopy(data, pos, term, shared, rest);
+            pos += rest;
+        }
+
+        private int readVarInt() {
+            int res = 0;
+            for(int shift = 0; ; shift += 7) {
+                byte b = data[pos++];
+                res |= (b & 0x7F) << shift;
+                if(b >= 0)
+                    return res;
+            }
+        }
+
+        private int idx, pos, len;
+        private byte[] term = new byte[16];
+    }
+
+    /**
+        Collects terms, which must be added in ascending order without duplicates
+    */
+    static class Builder {
+        public void add(@NotNull String term) {
+            byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+            int shared = 0;
+            if(size % GROUP_SIZE == 0) {
+                if(size / GROUP_SIZE == groups.length)
+                    groups = Arrays.copyOf(groups, groups.length * 2);
+                groups[size / GROUP_SIZE] = pos;
+            } else {
+                while(shared < bytes.length && shared < prev.length && bytes[shared] == prev[shared])
+                    ++shared;
+                writeVarInt(shared);
+            }
+            writeVarInt(bytes.length - shared);
+            ensureCapacity(bytes.length - shared);
+            System.arraycopy(bytes, shared, data, pos, bytes.length - shared);
+            pos += bytes.length - shared;
+            prev = bytes;
+            ++size;
+        }
+
+        @NotNull
+        public FrontCodedTerms build() {
+            return new FrontCodedTerms(Arrays.copyOf(data, pos), Arrays.copyOf(groups, (size + GROUP_SIZE - 1) / GROUP_SIZE), size);
+        }
+
+        private void writeVarInt(int v) {
+            ensureCapacity(5);
+            while((v & ~0x7F) != 0) {
+                data[pos++] = (byte)((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            data[pos++] = (byte)v;
+        }
+
+        private void ensureCapacity(int more) {
+            if(pos + more > data.length)
+                data = Arrays.copyOf(data, Math.max(pos + more, data.length * 2));
+        }
+
+        private byte[] data = new byte[64];
+        private int[] groups = new int[4];
+        private int pos, size;
+        private byte[] prev = new byte[0];
+    }
+
+    /**
+        Terms without terms
+    */
+    static final FrontCodedTerms EMPTY = new Builder().build();
+
+    private static final int GROUP_SIZE = 16;
+
+    private final byte[] data;
+    private final int[] groups; //offsets of first terms of groups
+    private final int size;
+}
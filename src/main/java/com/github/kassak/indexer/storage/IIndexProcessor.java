@@ -1,10 +1,14 @@
 package com.github.kassak.indexer.storage;
 
+import com.github.kassak.indexer.utils.ContentHash;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
     Interface for index processing.
@@ -47,8 +51,27 @@ public interface IIndexProcessor {
         @param stamp time when file started processing
         @param file file that was processed
         @param b true if processing was ok
+        @param hash content hash of file or {@link ContentHash#NO_HASH} if it was not computed
     */
-    void fileFinished(long stamp, @NotNull Path file, boolean b);
+    void fileFinished(long stamp, @NotNull Path file, boolean b, long hash);
+
+    /**
+        Process event of file which was not tokenized as its content hash equals indexed one
+
+        @param stamp time when file started processing
+        @param file file that was processed
+    */
+    void fileUnchanged(long stamp, @NotNull Path file);
+
+    /**
+        Hash which processing of file should compare its content with. May be called from any thread.
+
+        @param file file being processed
+        @return content hash of indexed file, {@link ContentHash#NO_HASH} if it is unknown
+                or null if content should not be hashed
+    */
+    @Nullable
+    Long indexedHash(@NotNull Path file);
 
     /**
         Remove all words, associated with file
@@ -65,6 +88,54 @@ public interface IIndexProcessor {
     */
     void addWord(@NotNull Path file, @NotNull String word);
 
+    /**
+        Replace all words associated to file.
+        Words which file keeps are not removed from index even temporarily.
+
+        @param file file
+        @param words new words of file
+    */
+    void replaceWords(@NotNull Path file, @NotNull Collection<String> words);
+
+    /**
+        Write valid files of index with their words to snapshot.
+        Must not be called concurrently with modifications.
+
+        @param out snapshot with registered paths already written
+    */
+    void writeSnapshot(@NotNull IndexSnapshot.Writer out) throws IOException;
+
+    /**
+        Add files from snapshot as valid ones with their fingerprints, bypassing processing.
+        Must be called before any modification.
+
+        @param in snapshot with registered paths already read
+    */
+    void readSnapshot(@NotNull IndexSnapshot.Reader in) throws IOException;
+
+    /**
+        Log files which become valid or are removed. Must be called before any modification.
+
+        @param out log to append records to, null disables logging
+    */
+    void setLog(@Nullable IndexLog.Writer out);
+
+    /**
+        Apply records of log over restored index: logged valid files are added with their
+        fingerprints, removed ones are removed. Must be called before any modification.
+
+        @param in log with header read
+    */
+    void replayLog(@NotNull IndexLog.Reader in) throws IOException;
+
+    /**
+        Check whether directory is indexed. May be called from any thread.
+
+        @param dir directory
+        @return true if directory or any file beneath it is in index
+    */
+    boolean hasFilesUnder(@NotNull Path dir);
+
     /**
         Get all files from index
 
@@ -82,6 +153,42 @@ public interface IIndexProcessor {
     @NotNull
     Collection<FileEntry> search(@NotNull String word);
 
+    /**
+        Search files matching boolean query
+
+        @param query bounded query
+        @return list of files and their validness
+    */
+    @NotNull
+    Collection<FileEntry> search(@NotNull Query query);
+
+    /**
+        Search files with any word starting with prefix
+
+        @param prefix prefix of words
+        @return list of files and their validness
+    */
+    @NotNull
+    Collection<FileEntry> searchPrefix(@NotNull String prefix);
+
+    /**
+        Search files with any word containing substring
+
+        @param s substring of words
+        @return list of files and their validness
+    */
+    @NotNull
+    Collection<FileEntry> searchSubstring(@NotNull String s);
+
+    /**
+        Search files with any word in which regex finds match
+
+        @param regex pattern matched against each word separately
+        @return list of files and their validness
+    */
+    @NotNull
+    Collection<FileEntry> searchRegex(@NotNull Pattern regex);
+
     /**
      * Get index statistics
      * @return index statistics
@@ -95,4 +202,21 @@ public interface IIndexProcessor {
      */
     @NotNull
     public List<String> getWords();
+
+    /**
+        Words in range in order of code points, read by pages: next page starts after the last word of previous one
+
+        @param from first word of range, inclusive
+        @param to end of range, exclusive, or null if range is unbounded
+        @param limit maximal number of words to return
+        @return ascending words of range
+    */
+    @NotNull
+    public List<String> getWords(@NotNull String from, @Nullable String to, int limit);
+
+    /**
+     * Checks whether all submitted modifications are applied
+     * @return true if there are no pending modifications
+     */
+    public boolean isIdle();
 }
@@ -0,0 +1,149 @@
+package com.github.kassak.indexer.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+
+/**
+    Bidirectional mapping between files & words.
+    Implementations are single writer multiple readers.
+*/
+interface IIndexStorage {
+    /**
+        Associate word with file. Ignored if file is not in storage.
+
+        @param file file
+        @param word word
+    */
+    void addWord(@NotNull Path file, @NotNull String word);
+
+    /**
+        Replace all words of file. Ignored if file is not in storage.
+        Only difference between old and new words is applied, so words present in both
+        are visible to readers all the time.
+
+        @param file file
+        @param words new words of file
+    */
+    void replaceWords(@NotNull Path file, @NotNull Collection<String> words);
+
+    /**
+        Add words of files which have no words yet, in one pass.
+        Files which are not in storage are ignored.
+
+        @param files files with their words
+    */
+    void loadWords(@NotNull Collection<BulkFile> files);
+
+    /**
+        Search files with word
+
+        @param word word
+        @return files containing word and their validness
+    */
+    @NotNull
+    Collection<FileEntry> search(@NotNull String word);
+
+    /**
+        Search files matching boolean query
+
+        @param query bounded query
+        @return files matching query and their validness
+        @throws IllegalArgumentException if query is not {@link Query#isBounded() bounded}
+    */
+    @NotNull
+    Collection<FileEntry> search(@NotNull Query query);
+
+    /**
+        Search files with any word starting with prefix
+
+        @param prefix prefix of words
+        @return files containing such words, each once, and their validness
+    */
+    @NotNull
+    Collection<FileEntry> searchPrefix(@NotNull String prefix);
+
+    /**
+        @param file file
+        @return indexed file or null if not in storage
+    */
+    @Nullable
+    IndexedFile getFile(@NotNull Path file);
+
+    /**
+        @param file file
+        @param stamp stamp of newly created file
+        @return existing indexed file or newly created one
+    */
+    @NotNull
+    IndexedFile getOrAddFile(@NotNull Path file, long stamp);
+
+    @NotNull
+    List<FileStatistics> getFileNames();
+
+    /**
+        May be called from any thread
+
+        @param dir directory
+        @return true if directory or any file beneath it is in storage
+    */
+    boolean hasFilesUnder(@NotNull Path dir);
+
+    /**
+        Must be called by writer thread
+
+        @param dir directory
+        @return paths of files beneath directory
+    */
+    @NotNull
+    List<String> getFilesUnder(@NotNull Path dir);
+
+    @NotNull
+    IndexStatistics getStats();
+
+    @NotNull
+    List<String> getWords();
+
+    /**
+        Words in range in order of code points ({@link SortedTerms#ORDER}).
+        Range is read by pages: next page starts after the last word of previous one.
+
+        @param from first word of range, inclusive
+        @param to end of range, exclusive, or null if range is unbounded
+        @param limit maximal number of words to return
+        @return ascending words of range
+    */
+    @NotNull
+    List<String> getWords(@NotNull String from, @Nullable String to, int limit);
+
+    /**
+        Write valid files with their words to snapshot. Must be called by writer thread.
+
+        @param out snapshot, words of storage are already written to it
+    */
+    void writeFiles(@NotNull IndexSnapshot.Writer out) throws IOException;
+
+    /**
+        Remove file with all its words
+    */
+    void removeFile(@NotNull Path file);
+
+    /**
+        Remove directory and all files beneath it
+    */
+    void removeDirectory(@NotNull Path file);
+
+    /**
+        Remove files beneath directory which are no longer exist
+    */
+    void removeNonexistent(@NotNull Path file);
+
+    /**
+        Remove all words associated with file, keeping file itself
+    */
+    void removeWords(@NotNull Path file);
+}
@@ -0,0 +1,20 @@
+package com.github.kassak.indexer.storage;
+
+/**
+    Cursor over ascending ids which skips forward without decoding skipped ids where it can
+*/
+interface IPostingCursor {
+    /**
+        Moves to the least id not less than target. Target must not be less than previous one.
+
+        @return current id or {@link #END} if there are no more ids
+    */
+    int advance(int target);
+
+    /**
+        @return number of ids, cursors are intersected starting from the cheapest
+    */
+    long cost();
+
+    int END = Integer.MAX_VALUE;
+}
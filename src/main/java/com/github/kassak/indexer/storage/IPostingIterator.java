@@ -0,0 +1,10 @@
+package com.github.kassak.indexer.storage;
+
+/**
+    Iterator over ascending ids without boxing
+*/
+public interface IPostingIterator {
+    boolean hasNext();
+
+    int next();
+}
@@ -0,0 +1,38 @@
+package com.github.kassak.indexer.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+    Sorted set of int ids
+*/
+interface IPostingList {
+    /**
+        @param v value to add
+        @return false if value was already present
+    */
+    boolean add(int v);
+
+    /**
+        @param v value to remove
+        @return false if there were no such value
+    */
+    boolean remove(int v);
+
+    boolean contains(int v);
+
+    int size();
+
+    boolean isEmpty();
+
+    /**
+        @return iterator over ids in ascending order
+    */
+    @NotNull
+    IPostingIterator iterator();
+
+    /**
+        @return cursor over ids in ascending order, list must not change while it is used
+    */
+    @NotNull
+    IPostingCursor cursor();
+}
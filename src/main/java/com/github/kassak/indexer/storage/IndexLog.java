@@ -0,0 +1,633 @@
+package com.github.kassak.indexer.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+    Append-only write-ahead log of index changes made after snapshot.
+    Log consists of records of files which became valid with their fingerprints and words,
+    records of files which were removed or became invalid, and records of registrations.
+    Removal of directory is logged as removal of each its file, so records of different files
+    commute and writers of different partitions may share log. Each record is protected by CRC32,
+    replay stops at first damaged record, which is the one being written on crash.
+*/
+public class IndexLog {
+    /**
+        Record of file, applied over restored index
+    */
+    static class Record {
+        public Record(@NotNull Path path, @Nullable BulkFile file) {
+            this.path = path;
+            this.file = file;
+        }
+
+        public final Path path;
+        public final BulkFile file; //null if file was removed
+    }
+
+    /**
+        Writer of log. Records are collected in memory and written by group commit,
+        which is requested by index manager when it runs out of tasks and periodically.
+        Records may be added from any thread. Failure of writing disables and removes log,
+        so that index is restored from snapshot and registered paths instead of log with gap.
+    */
+    public static class Writer implements Closeable {
+        /**
+            Creates new log, replacing existing one
+
+            @param file log file
+            @param base stamp of snapshot which log continues, 0 if log starts from empty index
+            @param syncMode one of {@link LogSyncModes}
+        */
+        public Writer(@NotNull Path file, long base, int syncMode) throws IOException {
+            this(file, syncMode);
+            try {
+                out.setLength(0);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(base);
+                out.writeLong(System.currentTimeMillis());
+                out.getFD().sync();
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+        }
+
+        /**
+            Continues replayed log after its last complete record, dropping damaged tail
+
+            @param replayed log read to the end
+            @param syncMode one of {@link LogSyncModes}
+        */
+        public Writer(@NotNull Reader replayed, int syncMode) throws IOException {
+            this(replayed.file, syncMode);
+            try {
+                out.setLength(replayed.getValidLength());
+                out.seek(replayed.getValidLength());
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+        }
+
+        private Writer(@NotNull Path file, int syncMode) throws IOException {
+            this.file = file;
+            this.syncMode = syncMode;
+            out = new RandomAccessFile(file.toFile(), "rw"); //unlike channel, is not closed by interrupt of writing thread
+            group = new Buffer();
+            spare = new Buffer();
+            crc = new CRC32();
+            lastSync = System.nanoTime();
+        }
+
+        /**
+            @param path registered path
+            @param added true if path was added, false if removed
+        */
+        public void logRegistration(@NotNull Path path, boolean added) {
+            boolean full;
+            synchronized(this) {
+                if(failed)
+                    return;
+                int start = startRecord();
+                group.write(added ? ADDED : UNREGISTERED);
+                group.writeString(path.toString());
+                full = finishRecord(start);
+            }
+            if(full)
+                commit();
+        }
+
+        /**
+            @param path file which became valid
+            @param size size of indexed content
+            @param modified modification time of indexed content in milliseconds
+            @param words all words of file, {@link EncodedWords} are copied as they are
+        */
+        void logFile(@NotNull String path, long size, long modified, @NotNull Collection<String> words) {
+            boolean full;
+            synchronized(this) {
+                if(failed)
+                    return;
+                int start = startRecord();
+                group.write(FILE);
+                group.writeString(path);
+                group.writeLong(size);
+                group.writeLong(modified);
+                group.writeVarInt(words.size());
+                if(words instanceof EncodedWords) {
+                    Buffer encoded = ((EncodedWords)words).encoded;
+                    group.write(encoded.array(), 0, encoded.size());
+                } else {
+                    for(String w : words)
+                        group.writeString(w);
+                }
+                full = finishRecord(start);
+            }
+            if(full)
+                commit();
+        }
+
+        /**
+            @param path file which was removed or became invalid
+        */
+        void logRemoved(@NotNull String path) {
+            boolean full;
+            synchronized(this) {
+                if(failed)
+                    return;
+                int start = startRecord();
+                group.write(REMOVED);
+                group.writeString(path);
+                full = finishRecord(start);
+            }
+            if(full)
+                commit();
+        }
+
+        /**
+            Reserves length of record, which is written to group in place
+
+            @return start of record
+        */
+        private int startRecord() {
+            int start = group.size();
+            group.writeInt(0);
+            return start;
+        }
+
+        /**
+            Frames record written since start with its length and checksum
+
+            @return true if group should be committed
+        */
+        private boolean finishRecord(int start) {
+            int len = group.size() - start - 4;
+            group.setInt(start, len);
+            crc.reset();
+            crc.update(group.array(), start + 4, len);
+            group.writeInt((int)crc.getValue());
+            ++recordsNum;
+            return group.size() >= GROUP_SIZE;
+        }
+
+        /**
+            Writes records collected since last commit with one write, and forces them to disk
+            according to sync mode. Records added meanwhile wait for next commit.
+        */
+        public void commit() {
+            synchronized(io) {
+                Buffer data;
+                synchronized(this) {
+                    if(failed)
+                        return;
+                    data = group;
+                    group = spare;
+                    spare = data;
+                }
+                try {
+                    if(data.size() > 0) {
+                        out.write(data.array(), 0, data.size());
+                        unsynced = true;
+                        ++groupsNum;
+                    }
+                    data.reset();
+                    long now = System.nanoTime();
+                    if(unsynced && (syncMode == LogSyncModes.GROUP
+                            || syncMode == LogSyncModes.PERIODIC && now - lastSync >= SYNC_INTERVAL_NANOS)) {
+                        out.getFD().sync();
+                        unsynced = false;
+                        lastSync = now;
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        private void fail(@NotNull IOException e) {
+            log.log(Level.WARNING, "Failed to write log " + file + ", removing it", e);
+            synchronized(this) {
+                failed = true;
+            }
+            try {
+                out.close();
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Failed to remove log " + file, ex);
+            }
+        }
+
+        /**
+            @return number of records added
+        */
+        public synchronized long getRecordsNum() {
+            return recordsNum;
+        }
+
+        /**
+            @return number of group commits which wrote records
+        */
+        public long getGroupsNum() {
+            synchronized(io) {
+                return groupsNum;
+            }
+        }
+
+        /**
+            Commits remaining records and forces log to disk
+        */
+        @Override
+        public void close() throws IOException {
+            synchronized(io) {
+                commit();
+                synchronized(this) {
+                    if(failed)
+                        return;
+                    failed = true; //records added after close are dropped
+                }
+                try {
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+            }
+        }
+
+        private final Path file;
+        private final int syncMode;
+        private final RandomAccessFile out;
+        private final Object io = new Object(); //serializes commits
+        //guarded by this
+        private Buffer group, spare;
+        private final CRC32 crc;
+        private long recordsNum;
+        private boolean failed;
+        //guarded by io
+        private boolean unsynced;
+        private long lastSync, groupsNum;
+    }
+
+    /**
+        Reader of log. Registrations are collected while records are read.
+    */
+    public static class Reader implements Closeable {
+        /**
+            Reads header of log
+
+            @param file log file
+            @throws IOException if log has unknown format
+        */
+        public Reader(@NotNull Path file) throws IOException {
+            this.file = file;
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+            registrations = new LinkedHashMap<>();
+            crc = new CRC32();
+            try {
+                if(in.readInt() != MAGIC)
+                    throw new IOException("Not an index log " + file);
+                int version = in.readInt();
+                if(version != VERSION)
+                    throw new IOException("Unsupported log version " + version);
+                base = in.readLong();
+                stamp = in.readLong();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            validLength = HEADER_SIZE;
+        }
+
+        /**
+            @return stamp of snapshot which log continues, 0 if log starts from empty index
+        */
+        public long getBase() {
+            return base;
+        }
+
+        /**
+            @return time when log was started
+        */
+        public long getStamp() {
+            return stamp;
+        }
+
+        /**
+            @param max maximal number of records to read
+            @return next records of files or empty list if all records are read
+        */
+        @NotNull
+        List<Record> readRecords(int max) throws IOException {
+            List<Record> res = new ArrayList<>();
+            while(!finished && res.size() < max) {
+                byte[] payload = readPayload();
+                if(payload == null) {
+                    finished = true;
+                    break;
+                }
+                if(!parseRecord(payload, res)) { //e.g. zeros written after crash, which have valid checksum
+                    damaged = true;
+                    finished = true;
+                    break;
+                }
+                validLength += 4 + payload.length + 4;
+                ++recordsNum;
+            }
+            return res;
+        }
+
+        /**
+            Adds file record to result or applies registration
+
+            @return false if payload is not a record
+        */
+        private boolean parseRecord(@NotNull byte[] payload, @NotNull List<Record> res) {
+            DataInputStream rin = new DataInputStream(new ByteArrayInputStream(payload));
+            try {
+                int type = rin.readUnsignedByte();
+                Path path = FileSystems.getDefault().getPath(IndexSnapshot.readString(rin));
+                switch(type) {
+                    case FILE: {
+                        long size = rin.readLong();
+                        long modified = rin.readLong();
+                        int num = IndexSnapshot.readVarInt(rin);
+                        List<String> words = new ArrayList<>();
+                        for(int i = 0; i < num; ++i)
+                            words.add(IndexSnapshot.readString(rin));
+                        res.add(new Record(path, new BulkFile(path, size, modified, words)));
+                        return true;
+                    }
+                    case REMOVED:
+                        res.add(new Record(path, null));
+                        return true;
+                    case ADDED:
+                    case UNREGISTERED:
+                        registrations.remove(path);
+                        registrations.put(path, type == ADDED);
+                        return true;
+                    default:
+                        log.warning("Unknown record " + type + " in log " + file);
+                        return false;
+                }
+            } catch (IOException e) {
+                log.warning("Damaged record in log " + file);
+                return false;
+            }
+        }
+
+        /**
+            Length of log is advanced by caller once payload is parsed
+
+            @return payload of next complete record or null if log ends or record is damaged
+        */
+        @Nullable
+        private byte[] readPayload() throws IOException {
+            int first = in.read();
+            if(first == -1)
+                return null;
+            try {
+                int len = first << 24 | in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+                if(len <= 0 || len > MAX_RECORD_SIZE) { //record has at least type and path
+                    damaged = true;
+                    return null;
+                }
+                byte[] payload = new byte[len];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                if(in.readInt() != (int)crc.getValue()) {
+                    damaged = true;
+                    return null;
+                }
+                return payload;
+            } catch (EOFException e) {
+                damaged = true;
+                return null;
+            }
+        }
+
+        /**
+            @return registrations read so far in order, true if path was added, false if removed
+        */
+        @NotNull
+        public Map<Path, Boolean> getRegistrations() {
+            return registrations;
+        }
+
+        /**
+            @return number of complete records read
+        */
+        public long getRecordsNum() {
+            return recordsNum;
+        }
+
+        /**
+            @return true if log ends with damaged record, which is dropped
+        */
+        public boolean isDamaged() {
+            return damaged;
+        }
+
+        /**
+            @return length of log up to end of last complete record read
+        */
+        long getValidLength() {
+            return validLength;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private final Path file;
+        private final DataInputStream in;
+        private final long base, stamp;
+        private final Map<Path, Boolean> registrations;
+        private final CRC32 crc;
+        private long validLength, recordsNum;
+        private boolean finished, damaged;
+    }
+
+    /**
+        Words of file encoded as in record when they are submitted, while they are still in cache,
+        so that logging of finished file copies bytes instead of iterating words again.
+        Submitted collection is not retained till file is finished, iteration decodes words.
+    */
+    static class EncodedWords extends AbstractCollection<String> {
+        public EncodedWords(@NotNull Collection<String> words) {
+            encoded = new Buffer(words.size() * 8);
+            for(String w : words)
+                encoded.writeString(w);
+            size = words.size();
+        }
+
+        @NotNull
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                @Override
+                public boolean hasNext() {
+                    return pos < encoded.size();
+                }
+
+                @Override
+                public String next() {
+                    if(!hasNext())
+                        throw new NoSuchElementException();
+                    byte[] buf = encoded.array();
+                    int len = 0;
+                    for(int shift = 0; ; shift += 7) {
+                        int b = buf[pos++];
+                        len |= (b & 0x7F) << shift;
+                        if((b & 0x80) == 0)
+                            break;
+                    }
+                    String res = new String(buf, pos, len, StandardCharsets.UTF_8);
+                    pos += len;
+                    return res;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                private int pos;
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        private final Buffer encoded;
+        private final int size;
+    }
+
+    /**
+        Growing byte array which exposes its content. Unlike data output stream over
+        byte array stream, does not synchronize and encode ASCII strings through temporary arrays.
+    */
+    private static class Buffer {
+        public Buffer() {
+            this(64 * 1024);
+        }
+
+        public Buffer(int capacity) {
+            buf = new byte[Math.max(capacity, 16)];
+        }
+
+        @NotNull
+        public byte[] array() {
+            return buf;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void reset() {
+            size = 0;
+        }
+
+        public void write(int b) {
+            ensureCapacity(1);
+            buf[size++] = (byte)b;
+        }
+
+        public void write(@NotNull byte[] b, int off, int len) {
+            ensureCapacity(len);
+            System.arraycopy(b, off, buf, size, len);
+            size += len;
+        }
+
+        public void writeVarInt(int v) {
+            ensureCapacity(5);
+            while((v & ~0x7F) != 0) {
+                buf[size++] = (byte)((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte)v;
+        }
+
+        public void writeInt(int v) {
+            ensureCapacity(4);
+            setInt(size, v);
+            size += 4;
+        }
+
+        public void setInt(int pos, int v) {
+            for(int shift = 24; shift >= 0; shift -= 8)
+                buf[pos++] = (byte)(v >>> shift);
+        }
+
+        public void writeLong(long v) {
+            ensureCapacity(8);
+            for(int shift = 56; shift >= 0; shift -= 8)
+                buf[size++] = (byte)(v >>> shift);
+        }
+
+        /**
+            Writes string as {@link IndexSnapshot} does: varint length and UTF-8 bytes
+        */
+        public void writeString(@NotNull String s) {
+            int len = s.length();
+            if(len < 0x80) { //ASCII is encoded in place
+                ensureCapacity(len + 1);
+                int start = size;
+                buf[size++] = (byte)len;
+                for(int i = 0; i < len; ++i) {
+                    char c = s.charAt(i);
+                    if(c >= 0x80) {
+                        size = start;
+                        writeUtf8(s);
+                        return;
+                    }
+                    buf[size++] = (byte)c;
+                }
+                return;
+            }
+            writeUtf8(s);
+        }
+
+        private void writeUtf8(@NotNull String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        private void ensureCapacity(int n) {
+            if(size + n > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+        }
+
+        private byte[] buf;
+        private int size;
+    }
+
+    private static final int MAGIC = 0x4944584c; //IDXL
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int FILE = 1;
+    private static final int REMOVED = 2;
+    private static final int ADDED = 3;
+    private static final int UNREGISTERED = 4;
+    private static final int GROUP_SIZE = 1024 * 1024;
+    private static final int MAX_RECORD_SIZE = 1 << 30;
+    private static final long SYNC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final Logger log = Logger.getLogger(IndexLog.class.getName());
+}
@@ -1,14 +1,19 @@
 package com.github.kassak.indexer.storage;
 
 import com.github.kassak.indexer.tokenizing.IFilesProcessor;
+import com.github.kassak.indexer.utils.ContentHash;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 /**
     Standard implementation of index processor
@@ -20,43 +25,189 @@ public class IndexProcessor implements IIndexProcessor {
         @param im processor of files
     */
     public IndexProcessor(@NotNull IFilesProcessor im) {
+        this(im, StorageTypes.MAP);
+    }
+
+    /**
+        Creates new index processor
+
+        @param im processor of files
+        @param storageType one of {@link StorageTypes}
+    */
+    public IndexProcessor(@NotNull IFilesProcessor im, int storageType) {
+        this(im, storageType, false);
+    }
+
+    /**
+        Creates new index processor.
+        Valid files whose size and modification time did not change are not reprocessed.
+        With content hashing files are additionally read by index thread, so that
+        files which were only touched are not reprocessed too.
+
+        @param im processor of files
+        @param storageType one of {@link StorageTypes}
+        @param hashContents check content hash of files with changed modification time
+    */
+    public IndexProcessor(@NotNull IFilesProcessor im, int storageType, boolean hashContents) {
+        this(im, storageType, hashContents, false);
+    }
+
+    /**
+        Creates new index processor.
+        With trigram index every new word is also split into trigrams, so that substring and regex
+        search check only words having all trigrams of literals of query instead of all words.
+
+        @param im processor of files
+        @param storageType one of {@link StorageTypes}
+        @param hashContents check content hash of files with changed modification time
+        @param trigrams keep trigram index of words
+    */
+    public IndexProcessor(@NotNull IFilesProcessor im, int storageType, boolean hashContents, boolean trigrams) {
+        this(im, storageType, hashContents, trigrams, 0, 1);
+    }
+
+    /**
+        Creates processor of one partition of index.
+        Directory sync touches only files of this partition.
+
+        @param im processor of files
+        @param storageType one of {@link StorageTypes}
+        @param hashContents check content hash of files with changed modification time
+        @param trigrams keep trigram index of words
+        @param partition number of this partition
+        @param partitionsNum number of partitions
+    */
+    IndexProcessor(@NotNull IFilesProcessor im, int storageType, boolean hashContents, boolean trigrams
+            , int partition, int partitionsNum) {
         indexManager = im;
-        index = new IndexStorage();
+        index = newStorage(storageType);
+        this.hashContents = hashContents;
+        trigramIndex = trigrams ? new TrigramIndex() : null;
+        this.partition = partition;
+        this.partitionsNum = partitionsNum;
+    }
+
+    @NotNull
+    private static IIndexStorage newStorage(int storageType) {
+        switch(storageType) {
+            case StorageTypes.MAP:
+                return new IndexStorage();
+            case StorageTypes.INTERNED:
+                return new InternedIndexStorage(false);
+            case StorageTypes.COMPRESSED:
+                return new InternedIndexStorage(true);
+            case StorageTypes.MAPPED:
+                return new MappedIndexStorage();
+            case StorageTypes.SEGMENTED:
+                return new SegmentedIndexStorage();
+            default:
+                throw new IllegalArgumentException("Unknown storage type " + storageType);
+        }
     }
+
     @Override
     public void syncFile(long stamp, @NotNull Path file) {
+        syncFile(stamp, file, null, 0);
+    }
+
+    /**
+        @param attrs attributes of file or null if they should be read
+        @param attrsTime time after attributes were read
+    */
+    private void syncFile(long stamp, @NotNull Path file, @Nullable BasicFileAttributes attrs, long attrsTime) {
         if(log.isLoggable(Level.FINER))
             log.finer("Syncing file " + file);
         IndexedFile f = index.getOrAddFile(file, stamp);
         assert(f.stamp <= stamp); //this is guaranteed
         f.stamp = stamp;
         if(f.state == States.PROCESSING) {//already processing
-            if(log.isLoggable(Level.FINER))
+            if(indexManager.cancelProcessing(file)) {
+                f.restart = true;
+                if(log.isLoggable(Level.FINER))
+                    log.finer("Cancelled running processing " + file);
+            } else if(log.isLoggable(Level.FINER)) {
                 log.finer("Already processing " + file);
+            }
+            return;
+        }
+        if(attrs == null) {
+            attrs = readAttributes(file);
+            attrsTime = System.currentTimeMillis();
+        }
+        if(f.state == States.VALID && isUnchanged(f, file, attrs)) {
+            f.processingStamp = stamp;
             return;
         }
         f.state = States.PROCESSING;
         f.processingStamp = stamp;
+        startProcessing(f, file, attrs, attrsTime);
+    }
+
+    /**
+        Compares file with fingerprint of indexed content.
+        Modification time within timestamp granularity of reading fingerprint is not trusted,
+        as file could be modified again without changing it. Content of such files and files with
+        changed modification time is compared by processing if hashing is enabled.
+    */
+    private boolean isUnchanged(@NotNull IndexedFile f, @NotNull Path file, @Nullable BasicFileAttributes attrs) {
+        if(attrs == null || attrs.size() != f.size || attrs.lastModifiedTime().toMillis() != f.modified)
+            return false;
+        if(f.modified >= f.checked - TIMESTAMP_GRANULARITY) {
+            if(log.isLoggable(Level.FINER))
+                log.finer("Modification time is too close to fingerprint " + file);
+            return false;
+        }
+        ++numSkippedByAttributes;
+        if(log.isLoggable(Level.FINER))
+            log.finer("File not modified " + file);
+        return true;
+    }
+
+    /**
+        Takes fingerprint of file and passes it to processing.
+        If hashing is enabled processing compares content with hash of indexed file.
+
+        @param attrsTime time after attributes were read
+    */
+    private void startProcessing(@NotNull IndexedFile f, @NotNull Path file, @Nullable BasicFileAttributes attrs
+            , long attrsTime) {
+        if(attrs == null) {
+            f.size = -1;
+            f.modified = -1;
+        } else {
+            f.size = attrs.size();
+            f.modified = attrs.lastModifiedTime().toMillis();
+        }
+        f.checked = attrsTime;
+        if(hashContents)
+            hashRequests.put(file, f.hash);
+        ++numProcessed;
         processFile(file);
     }
 
+    @Nullable
+    private static BasicFileAttributes readAttributes(@NotNull Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            if(log.isLoggable(Level.FINER))
+                log.finer("Failed to read attributes of " + file);
+            return null;
+        }
+    }
+
     @Override
     public void syncDirectory(final long stamp, @NotNull Path file) {
         if(log.isLoggable(Level.FINER))
             log.finer("Syncing directory " + file);
         try {
-            Files.walkFileTree(file, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                    return FileVisitResult.SKIP_SUBTREE;
-                }
-
+            Files.walkFileTree(file, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
                     if(Thread.currentThread().isInterrupted())
                         return FileVisitResult.SKIP_SIBLINGS;
-                    //TODO: check file modification
-                    syncFile(stamp, file);
+                    if(!attrs.isDirectory() && ownsFile(file)) //subdirectories are synced by their own events
+                        syncFile(stamp, file, attrs, System.currentTimeMillis());
                     return FileVisitResult.CONTINUE;
                 }
 
@@ -71,17 +222,58 @@ public class IndexProcessor implements IIndexProcessor {
         }
         if(Thread.currentThread().isInterrupted())
             return;
+        List<String> logged = filesToLog(file);
         index.removeNonexistent(file);
+        logRemoved(logged);
+    }
+
+    private boolean ownsFile(@NotNull Path file) {
+        return partitionsNum == 1 || PartitionedIndexProcessor.partitionOf(file, partitionsNum) == partition;
     }
 
     @Override
     public void removeFile(@NotNull Path file) {
+        if(indexLog != null && index.getFile(file) != null) {
+            index.removeFile(file);
+            loggedWords.remove(file.toString());
+            indexLog.logRemoved(file.toString());
+            return;
+        }
         index.removeFile(file);
     }
 
     @Override
     public void removeDirectory(@NotNull Path file) {
+        List<String> logged = filesToLog(file);
         index.removeDirectory(file);
+        logRemoved(logged);
+    }
+
+    /**
+        @return directory and files beneath it which are in index if log is enabled, otherwise null
+    */
+    @Nullable
+    private List<String> filesToLog(@NotNull Path dir) {
+        if(indexLog == null)
+            return null;
+        List<String> res = index.getFilesUnder(dir);
+        if(index.getFile(dir) != null)
+            res.add(dir.toString());
+        return res;
+    }
+
+    /**
+        Logs removal of files which are no longer in index, so that directory removal is logged file by file
+    */
+    private void logRemoved(@Nullable List<String> files) {
+        if(files == null)
+            return;
+        for(String f : files) {
+            if(index.getFile(FileSystems.getDefault().getPath(f)) != null)
+                continue;
+            loggedWords.remove(f);
+            indexLog.logRemoved(f);
+        }
     }
 
     private void processFile(Path file) {
@@ -91,44 +283,253 @@ public class IndexProcessor implements IIndexProcessor {
     }
 
     @Override
-    public void fileFinished(long stamp, @NotNull Path file, boolean b) {
+    public void fileFinished(long stamp, @NotNull Path file, boolean b, long hash) {
         String sfile = file.toString();
         if(log.isLoggable(Level.FINER))
             log.finer("File finished " + sfile + " with result " + b);
+        hashRequests.remove(file);
         IndexedFile f = index.getFile(file);
         if(f == null) { //file removed
             log.finer("Finished processing removed file " + sfile);
             return;
         }
         assert(f.state == States.PROCESSING && f.processingStamp <= stamp); //NOTE: how couldn't it be?
-        if(f.stamp > stamp) { //modified while processing
-            if(log.isLoggable(Level.FINER))
-                log.finer("File was modified while processing. Doing it again " + sfile);
-            f.processingStamp = f.stamp;
-            f.state = States.PROCESSING;
-            processFile(file);
+        if(f.stamp > stamp || f.restart) { //modified while processing
+            f.hash = ContentHash.NO_HASH; //words may be of neither content
+            restartProcessing(f, file);
         }
         else {
             f.stamp = stamp;
             f.processingStamp = stamp;
             f.state = (b ? States.VALID : States.INVALID); //TODO: do we need to retry on invalid?
+            f.hash = b ? hash : ContentHash.NO_HASH;
+            if(indexLog != null)
+                logFinished(f, b);
+        }
+    }
+
+    /**
+        Indexed words are kept, only fingerprint taken when processing started is updated
+    */
+    @Override
+    public void fileUnchanged(long stamp, @NotNull Path file) {
+        if(log.isLoggable(Level.FINER))
+            log.finer("File content not changed " + file);
+        hashRequests.remove(file);
+        IndexedFile f = index.getFile(file);
+        if(f == null) { //file removed
+            log.finer("Finished processing removed file " + file);
+            return;
+        }
+        assert(f.state == States.PROCESSING && f.processingStamp <= stamp);
+        if(f.stamp > stamp || f.restart) { //modified while processing
+            restartProcessing(f, file);
+            return;
         }
+        f.stamp = stamp;
+        f.processingStamp = stamp;
+        f.state = States.VALID;
+        ++numSkippedByHash;
+    }
+
+    private void restartProcessing(@NotNull IndexedFile f, @NotNull Path file) {
+        if(log.isLoggable(Level.FINER))
+            log.finer("File was modified while processing. Doing it again " + file);
+        f.restart = false;
+        f.processingStamp = f.stamp;
+        f.state = States.PROCESSING;
+        if(indexLog != null)
+            loggedWords.remove(file.toString());
+        startProcessing(f, file, readAttributes(file), System.currentTimeMillis());
+    }
+
+    @Nullable
+    @Override
+    public Long indexedHash(@NotNull Path file) {
+        return hashRequests.get(file);
+    }
+
+    /**
+        Logs file which became valid with words collected since its processing started.
+        File whose words are unknown is logged as removed, so that it is processed again after recovery.
+    */
+    private void logFinished(@NotNull IndexedFile f, boolean valid) {
+        Collection<String> words = loggedWords.remove(f.path);
+        if(valid && words != null)
+            indexLog.logFile(f.path, f.size, f.modified, words);
+        else
+            indexLog.logRemoved(f.path);
     }
 
     @Override
     public void removeWords(@NotNull Path file) {
         index.removeWords(file);
+        if(indexLog != null && index.getFile(file) != null)
+            loggedWords.put(file.toString(), new LoggedWords());
     }
 
     @Override
     public void addWord(@NotNull Path file, @NotNull String word) {
         index.addWord(file, word);
+        if(trigramIndex != null) {
+            trigramIndex.add(word);
+            checkTrigrams();
+        }
+        if(indexLog == null)
+            return;
+        String sfile = file.toString();
+        Collection<String> words = loggedWords.get(sfile);
+        if(words == null)
+            return;
+        if(!(words instanceof LoggedWords)) { //submitted collection is not modified
+            words = new LoggedWords(words);
+            loggedWords.put(sfile, words);
+        }
+        words.add(word);
+    }
+
+    @Override
+    public void replaceWords(@NotNull Path file, @NotNull Collection<String> words) {
+        index.replaceWords(file, words);
+        if(trigramIndex != null) {
+            trigramIndex.addAll(words);
+            checkTrigrams();
+        }
+        if(indexLog != null && index.getFile(file) != null) //storage have just read words, they are encoded while in cache
+            loggedWords.put(file.toString(), new IndexLog.EncodedWords(words));
+    }
+
+    /**
+        Words of file added one by one since its processing started
+    */
+    @SuppressWarnings("serial") //never serialized
+    private static class LoggedWords extends HashSet<String> {
+        public LoggedWords() {
+        }
+
+        public LoggedWords(@NotNull Collection<String> words) {
+            super(words);
+        }
+    }
+
+    /**
+        Adds files which are not in index as valid ones
+
+        @return added files
+    */
+    @NotNull
+    List<BulkFile> loadFiles(long stamp, @NotNull Collection<BulkFile> files) {
+        List<BulkFile> loaded = new ArrayList<>(files.size());
+        long now = System.currentTimeMillis(); //attributes of files were read before
+        for(BulkFile bf : files) {
+            if(!ownsFile(bf.path))
+                continue;
+            if(index.getFile(bf.path) != null) {
+                if(log.isLoggable(Level.FINER))
+                    log.finer("Not loading already indexed " + bf.path);
+                continue;
+            }
+            IndexedFile f = index.getOrAddFile(bf.path, stamp);
+            f.size = bf.size;
+            f.modified = bf.modified;
+            f.checked = now;
+            f.hash = ContentHash.NO_HASH; //touched files are reprocessed instead of hashed
+            loaded.add(bf);
+        }
+        index.loadWords(loaded);
+        if(trigramIndex != null) {
+            for(BulkFile bf : loaded)
+                trigramIndex.addAll(bf.words);
+            checkTrigrams();
+        }
+        for(BulkFile bf : loaded) {
+            IndexedFile f = index.getFile(bf.path);
+            assert f != null;
+            f.state = States.VALID;
+        }
+        return loaded;
+    }
+
+    @Override
+    public void writeSnapshot(@NotNull IndexSnapshot.Writer out) throws IOException {
+        out.writeWords(index.getWords());
+        writeFiles(out);
+    }
+
+    void writeFiles(@NotNull IndexSnapshot.Writer out) throws IOException {
+        index.writeFiles(out);
+    }
+
+    /**
+        Files are restored with stamp of snapshot, so that any later event is newer
+    */
+    @Override
+    public void readSnapshot(@NotNull IndexSnapshot.Reader in) throws IOException {
+        in.readWords();
+        long stamp = Math.min(in.getStamp(), System.currentTimeMillis());
+        for(List<BulkFile> files = in.readFiles(RESTORE_BATCH_SIZE); !files.isEmpty(); files = in.readFiles(RESTORE_BATCH_SIZE))
+            restoreFiles(stamp, files);
+    }
+
+    void restoreFiles(long stamp, @NotNull Collection<BulkFile> files) {
+        numRestored += loadFiles(stamp, files).size();
+    }
+
+    @Override
+    public void setLog(@Nullable IndexLog.Writer out) {
+        indexLog = out;
+        loggedWords.clear();
+    }
+
+    /**
+        Files are replayed with stamp of log start, so that any later event is newer
+    */
+    @Override
+    public void replayLog(@NotNull IndexLog.Reader in) throws IOException {
+        long stamp = Math.min(in.getStamp(), System.currentTimeMillis());
+        for(List<IndexLog.Record> records = in.readRecords(RESTORE_BATCH_SIZE); !records.isEmpty()
+                ; records = in.readRecords(RESTORE_BATCH_SIZE))
+            replayRecords(stamp, records);
+    }
+
+    /**
+        Replaces files of records in order, consecutive valid files are loaded at once
+    */
+    void replayRecords(long stamp, @NotNull List<IndexLog.Record> records) {
+        List<BulkFile> files = new ArrayList<>();
+        Set<Path> batch = new HashSet<>();
+        for(IndexLog.Record r : records) {
+            if(!ownsFile(r.path))
+                continue;
+            if(!batch.add(r.path)) { //later record of the same file
+                loadFiles(stamp, files);
+                files.clear();
+                batch.clear();
+                batch.add(r.path);
+            }
+            index.removeFile(r.path);
+            if(r.file != null)
+                files.add(r.file);
+            ++numReplayed;
+        }
+        loadFiles(stamp, files);
+    }
+
+    @Override
+    public boolean hasFilesUnder(@NotNull Path dir) {
+        return index.hasFilesUnder(dir);
     }
 
     @NotNull
     @Override
     public IndexStatistics getStats() {
-        return index.getStats();
+        IndexStatistics res = index.getStats();
+        res.numProcessed = numProcessed;
+        res.numRestored = numRestored;
+        res.numReplayed = numReplayed;
+        res.numSkippedByAttributes = numSkippedByAttributes;
+        res.numSkippedByHash = numSkippedByHash;
+        return res;
     }
 
     @NotNull
@@ -137,6 +538,12 @@ public class IndexProcessor implements IIndexProcessor {
         return index.getWords();
     }
 
+    @NotNull
+    @Override
+    public List<String> getWords(@NotNull String from, @Nullable String to, int limit) {
+        return index.getWords(from, to, limit);
+    }
+
     @Override
     @NotNull
     public List<FileStatistics> getFiles() {
@@ -149,7 +556,89 @@ public class IndexProcessor implements IIndexProcessor {
         return index.search(word);
     }
 
-    private final IndexStorage index;
+    @Override
+    @NotNull
+    public Collection<FileEntry> search(@NotNull Query query) {
+        return index.search(query);
+    }
+
+    @Override
+    @NotNull
+    public Collection<FileEntry> searchPrefix(@NotNull String prefix) {
+        return index.searchPrefix(prefix);
+    }
+
+    @Override
+    @NotNull
+    public Collection<FileEntry> searchSubstring(@NotNull String s) {
+        return searchWords(Collections.singletonList(s), TrigramIndex.substringFilter(s));
+    }
+
+    @Override
+    @NotNull
+    public Collection<FileEntry> searchRegex(@NotNull Pattern regex) {
+        return searchWords(TrigramIndex.requiredLiterals(regex), TrigramIndex.regexFilter(regex));
+    }
+
+    /**
+        Searches files of words accepted by filter.
+        Without trigram index all words of storage are checked.
+
+        @param literals substrings which any accepted word contains
+    */
+    @NotNull
+    private Collection<FileEntry> searchWords(@NotNull List<String> literals, @NotNull TrigramIndex.IWordFilter filter) {
+        TrigramIndex trigrams = trigramIndex;
+        List<String> words;
+        if(trigrams != null) {
+            words = trigrams.find(literals, filter);
+        } else {
+            words = new ArrayList<>();
+            TrigramIndex.filter(index.getWords(), filter, words);
+        }
+        Map<String, FileEntry> res = new LinkedHashMap<>(); //file usually has several matching words
+        for(String w : words)
+            for(FileEntry fe : index.search(w))
+                res.put(fe.getPath(), fe);
+        return res.values();
+    }
+
+    /**
+        Rebuilds trigram index from words of storage when it doubles since last rebuild,
+        so that removed words take at most half of it
+    */
+    private void checkTrigrams() {
+        if(trigramIndex.size() < 2 * trigramWordsBase + MIN_TRIGRAM_REBUILD)
+            return;
+        TrigramIndex res = new TrigramIndex();
+        res.addAll(index.getWords());
+        trigramWordsBase = res.size();
+        trigramIndex = res;
+        if(log.isLoggable(Level.FINE))
+            log.fine("Rebuilt trigram index of " + trigramWordsBase + " words");
+    }
+
+    /**
+        @return true, modifications are applied in calling thread
+    */
+    @Override
+    public boolean isIdle() {
+        return true;
+    }
+
+    private final IIndexStorage index;
     private final IFilesProcessor indexManager;
+    private final boolean hashContents;
+    private volatile TrigramIndex trigramIndex; //replaced by index thread on rebuild, null if disabled
+    private int trigramWordsBase;
+    private final int partition, partitionsNum;
+    private final ConcurrentMap<Path, Long> hashRequests = new ConcurrentHashMap<>(); //indexed hashes of files being processed
+    private IndexLog.Writer indexLog;
+    private final Map<String, Collection<String>> loggedWords = new HashMap<>(); //files being processed
+    //written by index thread only
+    private volatile long numProcessed, numRestored, numReplayed, numSkippedByAttributes, numSkippedByHash;
+    private static final int RESTORE_BATCH_SIZE = 1024;
+    private static final int MIN_TRIGRAM_REBUILD = 64 * 1024;
+    private static final long TIMESTAMP_GRANULARITY = 2000; //of FAT, coarsest of common file systems
     private static final Logger log = Logger.getLogger(IndexProcessor.class.getName());
 }
@@ -0,0 +1,319 @@
+package com.github.kassak.indexer.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+    Binary snapshot of index. Snapshot consists of registered paths, word dictionary and
+    valid files with their fingerprints and sorted ids of their words, ids are delta encoded varints.
+    Whole snapshot is protected by CRC32, it is written to temporary file which replaces
+    target only when snapshot is complete, and it is verified before anything is read.
+*/
+public class IndexSnapshot {
+    /**
+        Writer of snapshot, parts are written in order: registered paths, words, files
+    */
+    public static class Writer implements Closeable {
+        /**
+            @param file file to save snapshot to, it is replaced on commit
+        */
+        public Writer(@NotNull Path file) throws IOException {
+            this.file = file;
+            tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            fileOut = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING
+                    , StandardOpenOption.WRITE);
+            raw = new BufferedOutputStream(Channels.newOutputStream(fileOut));
+            crc = new CRC32();
+            out = new DataOutputStream(new CheckedOutputStream(raw, crc));
+            wordIds = new HashMap<>();
+            ids = new int[16];
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            stamp = System.currentTimeMillis();
+            out.writeLong(stamp);
+        }
+
+        /**
+            @return time when snapshot is saved
+        */
+        public long getStamp() {
+            return stamp;
+        }
+
+        /**
+            @param paths registered paths in order of registration, true if path was added, false if removed
+        */
+        public void writeRegistrations(@NotNull Map<Path, Boolean> paths) throws IOException {
+            writeVarInt(out, paths.size());
+            for(Map.Entry<Path, Boolean> e : paths.entrySet()) {
+                out.writeBoolean(e.getValue());
+                writeString(out, e.getKey().toString());
+            }
+        }
+
+        /**
+            @param words all words of files written afterwards
+        */
+        void writeWords(@NotNull Collection<String> words) throws IOException {
+            writeVarInt(out, words.size());
+            for(String w : words) {
+                wordIds.put(w, wordIds.size());
+                writeString(out, w);
+            }
+        }
+
+        /**
+            @param path valid file
+            @param size size of indexed content
+            @param modified modification time of indexed content in milliseconds
+            @param words words of file, all of them were passed to {@link #writeWords}
+        */
+        void writeFile(@NotNull String path, long size, long modified, @NotNull Collection<String> words) throws IOException {
+            if(ids.length < words.size())
+                ids = new int[Math.max(words.size(), ids.length * 2)];
+            int num = 0;
+            for(String w : words) {
+                Integer id = wordIds.get(w);
+                if(id == null)
+                    throw new IllegalStateException("Word of " + path + " is not in dictionary " + w);
+                ids[num++] = id;
+            }
+            Arrays.sort(ids, 0, num);
+            out.writeBoolean(true);
+            writeString(out, path);
+            out.writeLong(size);
+            out.writeLong(modified);
+            writeVarInt(out, num);
+            for(int i = 0; i < num; ++i)
+                writeVarInt(out, i == 0 ? ids[0] : ids[i] - ids[i - 1]);
+            ++filesNum;
+        }
+
+        /**
+            Completes snapshot replacing target file. Snapshot is forced to disk before it replaces target,
+            and rename is forced too, so that log truncated after commit never outlives its snapshot.
+        */
+        public void commit() throws IOException {
+            out.writeBoolean(false); //end of files
+            out.flush();
+            new DataOutputStream(raw).writeLong(crc.getValue());
+            raw.flush();
+            fileOut.force(true);
+            raw.close();
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            committed = true;
+            syncDirectory(file.toAbsolutePath().getParent());
+        }
+
+        /**
+            Forces entries of directory to disk where directory can be opened, e.g. not on Windows
+        */
+        private static void syncDirectory(@Nullable Path dir) {
+            if(dir == null)
+                return;
+            try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+                ch.force(true);
+            } catch (IOException e) {
+                if(log.isLoggable(Level.FINE))
+                    log.fine("Can't sync directory " + dir + ": " + e);
+            }
+        }
+
+        /**
+            @return number of files written
+        */
+        public long getFilesNum() {
+            return filesNum;
+        }
+
+        /**
+            Removes incomplete snapshot if it was not committed
+        */
+        @Override
+        public void close() throws IOException {
+            if(committed)
+                return;
+            try {
+                raw.close();
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        private final Path file, tmp;
+        private final long stamp;
+        private final FileChannel fileOut;
+        private final OutputStream raw;
+        private final CRC32 crc;
+        private final DataOutputStream out;
+        private final Map<String, Integer> wordIds;
+        private int[] ids;
+        private long filesNum;
+        private boolean committed;
+    }
+
+    /**
+        Reader of snapshot, parts are read in the same order they were written
+    */
+    public static class Reader implements Closeable {
+        /**
+            Checks snapshot integrity and reads its header
+
+            @param file snapshot
+            @throws IOException if snapshot is corrupted or has unknown format
+        */
+        public Reader(@NotNull Path file) throws IOException {
+            verify(file);
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+            try {
+                if(in.readInt() != MAGIC)
+                    throw new IOException("Not an index snapshot " + file);
+                int version = in.readInt();
+                if(version != VERSION)
+                    throw new IOException("Unsupported snapshot version " + version);
+                stamp = in.readLong();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        private static void verify(@NotNull Path file) throws IOException {
+            long size = Files.size(file) - 8;
+            if(size < 0)
+                throw new IOException("Truncated snapshot " + file);
+            CRC32 crc = new CRC32();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                CheckedInputStream checked = new CheckedInputStream(in, crc);
+                byte[] buf = new byte[64 * 1024];
+                for(long left = size; left > 0; ) {
+                    int read = checked.read(buf, 0, (int)Math.min(buf.length, left));
+                    if(read == -1)
+                        throw new EOFException("Truncated snapshot " + file);
+                    left -= read;
+                }
+                if(in.readLong() != crc.getValue())
+                    throw new IOException("Checksum mismatch in snapshot " + file);
+            }
+        }
+
+        /**
+            @return time when snapshot was saved
+        */
+        public long getStamp() {
+            return stamp;
+        }
+
+        @NotNull
+        public Map<Path, Boolean> readRegistrations() throws IOException {
+            int num = readVarInt(in);
+            Map<Path, Boolean> res = new LinkedHashMap<>();
+            for(int i = 0; i < num; ++i) {
+                boolean added = in.readBoolean();
+                res.put(FileSystems.getDefault().getPath(readString(in)), added);
+            }
+            return res;
+        }
+
+        void readWords() throws IOException {
+            words = new String[readVarInt(in)];
+            for(int i = 0; i < words.length; ++i)
+                words[i] = readString(in);
+        }
+
+        /**
+            @param max maximal number of files to read
+            @return next files or empty list if all files are read
+        */
+        @NotNull
+        List<BulkFile> readFiles(int max) throws IOException {
+            List<BulkFile> res = new ArrayList<>();
+            while(!filesRead && res.size() < max) {
+                if(!in.readBoolean()) {
+                    filesRead = true;
+                    break;
+                }
+                Path path = FileSystems.getDefault().getPath(readString(in));
+                long size = in.readLong();
+                long modified = in.readLong();
+                int num = readVarInt(in);
+                List<String> fileWords = new ArrayList<>(num);
+                for(int i = 0, id = 0; i < num; ++i) {
+                    id += readVarInt(in);
+                    if(id < 0 || id >= words.length)
+                        throw new IOException("Bad word id " + id + " of " + path);
+                    fileWords.add(words[id]);
+                }
+                res.add(new BulkFile(path, size, modified, fileWords));
+            }
+            return res;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private final DataInputStream in;
+        private final long stamp;
+        private String[] words;
+        private boolean filesRead;
+    }
+
+    static void writeVarInt(@NotNull DataOutput out, int v) throws IOException {
+        while((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    static int readVarInt(@NotNull DataInput in) throws IOException {
+        int res = 0;
+        for(int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            res |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+                return res;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static void writeString(@NotNull DataOutput out, @NotNull String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    @NotNull
+    static String readString(@NotNull DataInput in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final int MAGIC = 0x49445853; //IDXS
+    private static final int VERSION = 1;
+    private static final Logger log = Logger.getLogger(IndexSnapshot.class.getName());
+}
@@ -2,6 +2,18 @@ package com.github.kassak.indexer.storage;
 
 public class IndexStatistics {
     public long numWords;
+    public long numSegments;
+    public long numMerges;
     public long numFiles;
     public long numValidFiles;
+    public long numProcessed;
+    public long numRestored;
+    public long numReplayed;
+    public long numSkippedByAttributes;
+    public long numSkippedByHash;
+    public long numCoalescedFiles;
+    public long numCoalescedEvents;
+    public int numWaitingForTokenizer; //stages of pipeline files processor, zero for others
+    public double readUtilization;
+    public double tokenizeUtilization;
 }
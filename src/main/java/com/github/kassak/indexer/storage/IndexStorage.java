@@ -3,6 +3,7 @@ package com.github.kassak.indexer.storage;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -15,7 +16,7 @@ import java.util.logging.Logger;
 /**
  * Concurrent SWMR bidirectional mapping between files & words
  */
-class IndexStorage {
+class IndexStorage implements IIndexStorage {
     static class IndexedWordWrapper {
         public IndexedWordWrapper(@NotNull IndexedWord wrapped) {
             this.wrapped = wrapped;
@@ -34,6 +35,7 @@ class IndexStorage {
         public final IndexedFile wrapped;
         public final Set<IndexedWordWrapper> words;
     }
+    @Override
     public void addWord(@NotNull Path file, @NotNull String word) {
         IndexedFileWrapper ifile = files.get(file.toString());
         if(ifile == null) {
@@ -45,11 +47,63 @@ class IndexStorage {
         if(iword == null) {
             iword = new IndexedWordWrapper(new IndexedWord(word));
             words.put(iword.wrapped.word, iword);
+            sortedWords.added(word);
+            sortedWords.rebuildIfNeeded(); //storage has no lock, readers are never blocked
         }
         iword.files.add(ifile);
         ifile.words.add(iword);
     }
 
+    @Override
+    public void replaceWords(@NotNull Path file, @NotNull Collection<String> words) {
+        IndexedFileWrapper ifile = files.get(file.toString());
+        if(ifile == null) {
+            if(log.isLoggable(Level.FINER))
+                log.finer("Ignoring attempt to replace words of removed file " + file);
+            return;
+        }
+        Set<String> newWords = words instanceof Set ? (Set<String>)words : new HashSet<>(words);
+        Iterator<IndexedWordWrapper> it = ifile.words.iterator();
+        while(it.hasNext()) {
+            IndexedWordWrapper iword = it.next();
+            if(newWords.contains(iword.wrapped.word))
+                continue;
+            it.remove();
+            iword.files.remove(ifile);
+            if(iword.files.isEmpty()) {
+                this.words.remove(iword.wrapped.word);
+                sortedWords.removed();
+            }
+        }
+        sortedWords.rebuildIfNeeded();
+        for(String w : newWords) {
+            IndexedWordWrapper iword = this.words.get(w);
+            if(iword == null || !ifile.words.contains(iword))
+                addWord(file, w);
+        }
+    }
+
+    @Override
+    public void loadWords(@NotNull Collection<BulkFile> files) {
+        for(BulkFile bf : files) {
+            IndexedFileWrapper ifile = this.files.get(bf.path.toString());
+            if(ifile == null)
+                continue;
+            for(String w : bf.words) {
+                IndexedWordWrapper iword = words.get(w);
+                if(iword == null) {
+                    iword = new IndexedWordWrapper(new IndexedWord(w));
+                    words.put(w, iword);
+                    sortedWords.added(w);
+                }
+                iword.files.add(ifile);
+                ifile.words.add(iword);
+            }
+        }
+        sortedWords.rebuildIfNeeded();
+    }
+
+    @Override
     @NotNull
     public Collection<FileEntry> search(@NotNull String word) {
         IndexedWordWrapper iword = words.get(word);
@@ -61,6 +115,50 @@ class IndexStorage {
         return res;
     }
 
+    @Override
+    @NotNull
+    public Collection<FileEntry> search(@NotNull Query query) {
+        List<IndexedFileWrapper> found = new ArrayList<>();
+        QueryEvaluator.evaluate(query, new QueryEvaluator.ISetSource<IndexedFileWrapper>() {
+            @NotNull
+            @Override
+            public Collection<IndexedFileWrapper> files(@NotNull String word) {
+                IndexedWordWrapper iword = words.get(word);
+                return iword == null ? Collections.<IndexedFileWrapper>emptySet() : iword.files;
+            }
+
+            @Override
+            public boolean contains(@NotNull String word, @NotNull IndexedFileWrapper file) {
+                IndexedWordWrapper iword = words.get(word);
+                return iword != null && file.words.contains(iword);
+            }
+        }, found);
+        List<FileEntry> res = new ArrayList<>(found.size());
+        for(IndexedFileWrapper ifile : found)
+            res.add(new FileEntry(ifile.wrapped.path, ifile.wrapped.state == States.VALID));
+        return res;
+    }
+
+    @Override
+    @NotNull
+    public Collection<FileEntry> searchPrefix(@NotNull String prefix) {
+        final Set<IndexedFileWrapper> found = new LinkedHashSet<>();
+        sortedWords.visitPrefix(prefix, new SortedTerms.IVisitor() {
+            @Override
+            public boolean visit(@NotNull String word) {
+                IndexedWordWrapper iword = words.get(word);
+                if(iword != null)
+                    found.addAll(iword.files);
+                return true;
+            }
+        });
+        List<FileEntry> res = new ArrayList<>(found.size());
+        for(IndexedFileWrapper ifile : found)
+            res.add(new FileEntry(ifile.wrapped.path, ifile.wrapped.state == States.VALID));
+        return res;
+    }
+
+    @Override
     @Nullable
     public IndexedFile getFile(@NotNull Path file) {
         IndexedFileWrapper ifile = files.get(file.toString());
@@ -69,6 +167,8 @@ class IndexStorage {
         return ifile.wrapped;
     }
 
+    @Override
+    @NotNull
     public IndexedFile getOrAddFile(@NotNull Path file, long stamp) {
         IndexedFileWrapper ifile = files.get(file.toString());
         if(ifile == null) {
@@ -78,6 +178,7 @@ class IndexStorage {
         return ifile.wrapped;
     }
 
+    @Override
     @NotNull
     public List<FileStatistics> getFileNames() {
         List<FileStatistics> res = new ArrayList<>(files.size());
@@ -86,6 +187,23 @@ class IndexStorage {
         return res;
     }
 
+    @Override
+    public boolean hasFilesUnder(@NotNull Path dir) {
+        String sdir = dir.toString();
+        if(files.containsKey(sdir))
+            return true;
+        sdir += FileSystems.getDefault().getSeparator();
+        return !files.subMap(sdir, sdir + Character.MAX_VALUE).isEmpty();
+    }
+
+    @Override
+    @NotNull
+    public List<String> getFilesUnder(@NotNull Path dir) {
+        String sdir = dir.toString() + FileSystems.getDefault().getSeparator();
+        return new ArrayList<>(files.subMap(sdir, sdir + Character.MAX_VALUE).keySet());
+    }
+
+    @Override
     @NotNull
     public IndexStatistics getStats() {
         IndexStatistics res = new IndexStatistics();
@@ -100,11 +218,41 @@ class IndexStorage {
         return res;
     }
 
+    @Override
     @NotNull
     public List<String> getWords() {
         return new ArrayList<>(words.keySet());
     }
 
+    @Override
+    @NotNull
+    public List<String> getWords(@NotNull String from, @Nullable String to, final int limit) {
+        final List<String> res = new ArrayList<>();
+        if(limit > 0)
+            sortedWords.visit(from, to, new SortedTerms.IVisitor() {
+                @Override
+                public boolean visit(@NotNull String word) {
+                    res.add(word);
+                    return res.size() < limit;
+                }
+            });
+        return res;
+    }
+
+    @Override
+    public void writeFiles(@NotNull IndexSnapshot.Writer out) throws IOException {
+        List<String> fileWords = new ArrayList<>();
+        for(IndexedFileWrapper f : files.values()) {
+            if(f.wrapped.state != States.VALID)
+                continue;
+            fileWords.clear();
+            for(IndexedWordWrapper w : f.words)
+                fileWords.add(w.wrapped.word);
+            out.writeFile(f.wrapped.path, f.wrapped.size, f.wrapped.modified, fileWords);
+        }
+    }
+
+    @Override
     public void removeFile(@NotNull Path file) {
         if(log.isLoggable(Level.FINER))
             log.finer("Removing file " + file);
@@ -112,6 +260,7 @@ class IndexStorage {
         files.remove(file.toString());
     }
 
+    @Override
     public void removeDirectory(@NotNull Path file) {
         String sfile = file.toString();
         if(log.isLoggable(Level.FINER))
@@ -123,6 +272,7 @@ class IndexStorage {
         }
     }
 
+    @Override
     public void removeNonexistent(@NotNull Path file) {
         String sfile = file.toString();
         if(log.isLoggable(Level.FINER))
@@ -136,6 +286,7 @@ class IndexStorage {
         }
     }
 
+    @Override
     public void removeWords(@NotNull Path file) {
         IndexedFileWrapper ifile = files.get(file.toString());
         if(ifile == null) {
@@ -148,12 +299,21 @@ class IndexStorage {
             IndexedWordWrapper iword = it.next();
             it.remove();
             iword.files.remove(ifile);
-            if(iword.files.isEmpty())
-            words.remove(iword.wrapped.word);
+            if(iword.files.isEmpty()) {
+                words.remove(iword.wrapped.word);
+                sortedWords.removed();
+            }
         }
+        sortedWords.rebuildIfNeeded();
     }
 
     private final SortedMap<String, IndexedFileWrapper> files = new ConcurrentSkipListMap<>();
     private final Map<String, IndexedWordWrapper> words = new ConcurrentHashMap<>();
+    private final SortedTerms sortedWords = new SortedTerms(new SortedTerms.ILiveness() {
+        @Override
+        public boolean isLive(@NotNull String word) {
+            return words.containsKey(word);
+        }
+    });
     private static final Logger log = Logger.getLogger(IndexStorage.class.getName());
 }
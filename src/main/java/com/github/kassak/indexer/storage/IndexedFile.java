@@ -13,4 +13,7 @@ class IndexedFile {
     public final String path;
     public volatile int state;
     public long stamp, processingStamp;
+    public boolean restart; //running processing was cancelled, process again when it finishes
+    public long size = -1, modified = -1, hash; //fingerprint of indexed content
+    public long checked = -1; //when size and modification time of fingerprint were read
 }
@@ -0,0 +1,145 @@
+package com.github.kassak.indexer.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+    Growable sorted set of ints backed by array
+*/
+class IntPostingList implements IPostingList {
+    public IntPostingList() {
+        data = EMPTY;
+    }
+
+    @Override
+    public boolean add(int v) {
+        if(size == 0 || data[size - 1] < v) { //common case: ids come in ascending order
+            ensureCapacity(size + 1);
+            data[size++] = v;
+            return true;
+        }
+        int pos = Arrays.binarySearch(data, 0, size, v);
+        if(pos >= 0)
+            return false;
+        pos = -pos - 1;
+        ensureCapacity(size + 1);
+        System.arraycopy(data, pos, data, pos + 1, size - pos);
+        data[pos] = v;
+        ++size;
+        return true;
+    }
+
+    @Override
+    public boolean remove(int v) {
+        int pos = Arrays.binarySearch(data, 0, size, v);
+        if(pos < 0)
+            return false;
+        System.arraycopy(data, pos + 1, data, pos, size - pos - 1);
+        --size;
+        if(size == 0)
+            data = EMPTY;
+        else if(size < data.length / 4)
+            data = Arrays.copyOf(data, data.length / 2);
+        return true;
+    }
+
+    @Override
+    public boolean contains(int v) {
+        return Arrays.binarySearch(data, 0, size, v) >= 0;
+    }
+
+    public int get(int i) {
+        return data[i];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    @NotNull
+    public IPostingIterator iterator() {
+        return new IPostingIterator() {
+            @Override
+            public boolean hasNext() {
+                return pos < size;
+            }
+
+            @Override
+            public int next() {
+                return data[pos++];
+            }
+
+            private int pos;
+        };
+    }
+
+    /**
+        Galloping cursor: probes ids at doubling distances from current one,
+        then binary searches between the last two probes, so skipping k ids costs O(log k)
+    */
+    @Override
+    @NotNull
+    public IPostingCursor cursor() {
+        final int[] ids = data;
+        final int num = size;
+        return new IPostingCursor() {
+            @Override
+            public int advance(int target) {
+                if(pos >= num)
+                    return END;
+                if(ids[pos] >= target)
+                    return ids[pos];
+                int lo = pos; //ids[lo] < target
+                int step = 1;
+                while(lo + step < num && ids[lo + step] < target) {
+                    lo += step;
+                    step <<= 1;
+                }
+                int found = Arrays.binarySearch(ids, lo + 1, Math.min(lo + step + 1, num), target);
+                pos = found >= 0 ? found : -found - 1;
+                return pos < num ? ids[pos] : END;
+            }
+
+            @Override
+            public long cost() {
+                return num;
+            }
+
+            private int pos;
+        };
+    }
+
+    /**
+        Replaces content of list
+
+        @param ids ascending distinct ids
+        @param num number of ids to take
+    */
+    public void assign(@NotNull int[] ids, int num) {
+        data = num == 0 ? EMPTY : Arrays.copyOf(ids, num);
+        size = num;
+    }
+
+    public void clear() {
+        data = EMPTY;
+        size = 0;
+    }
+
+    private void ensureCapacity(int cap) {
+        if(cap <= data.length)
+            return;
+        data = Arrays.copyOf(data, Math.max(cap, data.length + (data.length >> 1) + 1));
+    }
+
+    private int[] data;
+    private int size;
+    private static final int[] EMPTY = new int[0];
+}
@@ -0,0 +1,465 @@
+package com.github.kassak.indexer.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SWMR bidirectional mapping between files & words.
+ * Files and words are interned to dense int ids and edges are kept in sorted int arrays,
+ * so edge costs 4 bytes in each direction. Word postings may be kept compressed.
+ * Readers are guarded by read-write lock, writer thread reads without locking.
+ */
+class InternedIndexStorage implements IIndexStorage {
+    /**
+        @param compressed if true word postings are kept in {@link CompressedPostingList}
+    */
+    public InternedIndexStorage(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    static class InternedFile extends IndexedFile {
+        public InternedFile(@NotNull String path, long stamp, int id) {
+            super(path, stamp);
+            this.id = id;
+            words = new IntPostingList();
+        }
+
+        public final int id;
+        public final IntPostingList words;
+    }
+
+    @Override
+    public void addWord(@NotNull Path file, @NotNull String word) {
+        InternedFile ifile = files.get(file.toString());
+        if(ifile == null) {
+            if(log.isLoggable(Level.FINER))
+                log.finer("Ignoring attempt to add word to removed file " + file);
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            addWord(ifile, word);
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    @Override
+    public void replaceWords(@NotNull Path file, @NotNull Collection<String> words) {
+        InternedFile ifile = files.get(file.toString());
+        if(ifile == null) {
+            if(log.isLoggable(Level.FINER))
+                log.finer("Ignoring attempt to replace words of removed file " + file);
+            return;
+        }
+        int[] ids = new int[words.size()];
+        int num = 0;
+        lock.writeLock().lock();
+        try {
+            for(String word : words)
+                ids[num++] = dictionary.getOrAdd(word);
+            Arrays.sort(ids, 0, num);
+            int unique = 0;
+            for(int i = 0; i < num; ++i) {
+                if(unique == 0 || ids[unique - 1] != ids[i])
+                    ids[unique++] = ids[i];
+            }
+            num = unique;
+            IntPostingList old = ifile.words;
+            int i = 0, j = 0;
+            while(i < old.size() || j < num) {
+                int o = i < old.size() ? old.get(i) : Integer.MAX_VALUE;
+                int n = j < num ? ids[j] : Integer.MAX_VALUE;
+                if(o == n) {
+                    ++i;
+                    ++j;
+                } else if(o < n) {
+                    removePosting(o, ifile.id);
+                    ++i;
+                } else {
+                    postingsOf(n).add(ifile.id);
+                    ++j;
+                }
+            }
+            old.assign(ids, num);
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    /**
+        Files are loaded in batches under write lock, so that readers are not blocked for whole load.
+        Word ids of each file are sorted once and postings are appended without diffing.
+    */
+    @Override
+    public void loadWords(@NotNull Collection<BulkFile> files) {
+        Iterator<BulkFile> it = files.iterator();
+        int[] ids = new int[16];
+        while(it.hasNext()) {
+            lock.writeLock().lock();
+            try {
+                for(int batch = 0; batch < LOAD_BATCH_SIZE && it.hasNext(); ++batch) {
+                    BulkFile bf = it.next();
+                    InternedFile ifile = this.files.get(bf.path.toString());
+                    if(ifile == null || !ifile.words.isEmpty())
+                        continue;
+                    if(ids.length < bf.words.size())
+                        ids = new int[bf.words.size()];
+                    int num = 0;
+                    for(String word : bf.words)
+                        ids[num++] = dictionary.getOrAdd(word);
+                    Arrays.sort(ids, 0, num);
+                    int unique = 0;
+                    for(int i = 0; i < num; ++i) {
+                        if(unique == 0 || ids[unique - 1] != ids[i])
+                            ids[unique++] = ids[i];
+                    }
+                    for(int i = 0; i < unique; ++i)
+                        postingsOf(ids[i]).add(ifile.id);
+                    ifile.words.assign(ids, unique);
+                }
+            } finally {
+                unlockWrite();
+            }
+        }
+    }
+
+    @Override
+    @NotNull
+    public Collection<FileEntry> search(@NotNull String word) {
+        lock.readLock().lock();
+        try {
+            int wid = dictionary.get(word);
+            if(wid == -1)
+                return Collections.emptyList();
+            IPostingList p = postings[wid];
+            List<FileEntry> res = new ArrayList<>(p.size());
+            IPostingIterator it = p.iterator(); //decodes compressed postings on the fly
+            while(it.hasNext()) {
+                InternedFile ifile = filesById[it.next()];
+                res.add(new FileEntry(ifile.path, ifile.state == States.VALID));
+            }
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @NotNull
+    public Collection<FileEntry> search(@NotNull Query query) {
+        final List<FileEntry> res = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            QueryEvaluator.evaluate(query, new QueryEvaluator.ICursorSource() {
+                @NotNull
+                @Override
+                public IPostingCursor cursor(@NotNull String word) {
+                    int wid = dictionary.get(word);
+                    return wid == -1 ? QueryEvaluator.EMPTY : postings[wid].cursor();
+                }
+            }, new QueryEvaluator.IIdConsumer() {
+                @Override
+                public void accept(int id) {
+                    InternedFile ifile = filesById[id];
+                    res.add(new FileEntry(ifile.path, ifile.state == States.VALID));
+                }
+            });
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+        Postings of matching words are merged into bitmap of file ids, so files are listed once
+    */
+    @Override
+    @NotNull
+    public Collection<FileEntry> searchPrefix(@NotNull String prefix) {
+        final BitSet found = new BitSet();
+        lock.readLock().lock();
+        try {
+            dictionary.sorted().visitPrefix(prefix, new SortedTerms.IVisitor() {
+                @Override
+                public boolean visit(@NotNull String word) {
+                    IPostingIterator it = postings[dictionary.get(word)].iterator();
+                    while(it.hasNext())
+                        found.set(it.next());
+                    return true;
+                }
+            });
+            List<FileEntry> res = new ArrayList<>(found.cardinality());
+            for(int id = found.nextSetBit(0); id >= 0; id = found.nextSetBit(id + 1)) {
+                InternedFile ifile = filesById[id];
+                res.add(new FileEntry(ifile.path, ifile.state == States.VALID));
+            }
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public IndexedFile getFile(@NotNull Path file) {
+        return files.get(file.toString()); //writer only
+    }
+
+    @Override
+    @NotNull
+    public IndexedFile getOrAddFile(@NotNull Path file, long stamp) {
+        String sfile = file.toString();
+        InternedFile ifile = files.get(sfile);
+        if(ifile == null) {
+            lock.writeLock().lock();
+            try {
+                int id = freeFileIdsNum > 0 ? freeFileIds[--freeFileIdsNum] : nextFileId++;
+                if(id >= filesById.length)
+                    filesById = Arrays.copyOf(filesById, filesById.length * 2);
+                ifile = new InternedFile(sfile, stamp, id);
+                filesById[id] = ifile;
+                files.put(sfile, ifile);
+            } finally {
+                unlockWrite();
+            }
+        }
+        return ifile;
+    }
+
+    @Override
+    @NotNull
+    public List<FileStatistics> getFileNames() {
+        lock.readLock().lock();
+        try {
+            List<FileStatistics> res = new ArrayList<>(files.size());
+            for(InternedFile f : files.values())
+                res.add(new FileStatistics(f.path, f.state, f.words.size()));
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean hasFilesUnder(@NotNull Path dir) {
+        String sdir = dir.toString();
+        lock.readLock().lock();
+        try {
+            if(files.containsKey(sdir))
+                return true;
+            sdir += FileSystems.getDefault().getSeparator();
+            return !files.subMap(sdir, sdir + Character.MAX_VALUE).isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @NotNull
+    public List<String> getFilesUnder(@NotNull Path dir) {
+        return filesUnder(dir.toString());
+    }
+
+    @Override
+    @NotNull
+    public IndexStatistics getStats() {
+        IndexStatistics res = new IndexStatistics();
+        lock.readLock().lock();
+        try {
+            for(InternedFile f : files.values()) {
+                ++res.numFiles;
+                if(f.state == States.VALID)
+                    ++res.numValidFiles;
+            }
+            res.numWords = dictionary.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+        return res;
+    }
+
+    @Override
+    @NotNull
+    public List<String> getWords() {
+        lock.readLock().lock();
+        try {
+            List<String> res = new ArrayList<>(dictionary.size());
+            for(int i = 0; i < dictionary.idsBound(); ++i) {
+                String w = dictionary.getWord(i);
+                if(w != null)
+                    res.add(w);
+            }
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @NotNull
+    public List<String> getWords(@NotNull String from, @Nullable String to, final int limit) {
+        final List<String> res = new ArrayList<>();
+        if(limit <= 0)
+            return res;
+        lock.readLock().lock();
+        try {
+            dictionary.sorted().visit(from, to, new SortedTerms.IVisitor() {
+                @Override
+                public boolean visit(@NotNull String word) {
+                    res.add(word);
+                    return res.size() < limit;
+                }
+            });
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void writeFiles(@NotNull IndexSnapshot.Writer out) throws IOException {
+        List<String> fileWords = new ArrayList<>();
+        for(InternedFile f : files.values()) { //writer only
+            if(f.state != States.VALID)
+                continue;
+            fileWords.clear();
+            for(int i = 0; i < f.words.size(); ++i)
+                fileWords.add(dictionary.getWord(f.words.get(i)));
+            out.writeFile(f.path, f.size, f.modified, fileWords);
+        }
+    }
+
+    @Override
+    public void removeFile(@NotNull Path file) {
+        if(log.isLoggable(Level.FINER))
+            log.finer("Removing file " + file);
+        removeFile(file.toString());
+    }
+
+    @Override
+    public void removeDirectory(@NotNull Path file) {
+        String sfile = file.toString();
+        if(log.isLoggable(Level.FINER))
+            log.finer("Removing directory " + sfile);
+        removeFile(sfile);
+        for(String f : filesUnder(sfile))
+            removeFile(f);
+    }
+
+    @Override
+    public void removeNonexistent(@NotNull Path file) {
+        String sfile = file.toString();
+        if(log.isLoggable(Level.FINER))
+            log.finer("Removing nonexistent " + sfile);
+        removeFile(sfile);
+        for(String f : filesUnder(sfile)) {
+            if(!Files.exists(FileSystems.getDefault().getPath(f)))
+                removeFile(f);
+        }
+    }
+
+    @Override
+    public void removeWords(@NotNull Path file) {
+        InternedFile ifile = files.get(file.toString());
+        if(ifile == null) {
+            if(log.isLoggable(Level.FINER))
+                log.finer("Ignoring attempt to remove word from removed file " + file);
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            removeWords(ifile);
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    private void removeFile(@NotNull String sfile) {
+        InternedFile ifile = files.get(sfile);
+        if(ifile == null)
+            return;
+        lock.writeLock().lock();
+        try {
+            removeWords(ifile);
+            files.remove(sfile);
+            filesById[ifile.id] = null;
+            if(freeFileIdsNum == freeFileIds.length)
+                freeFileIds = Arrays.copyOf(freeFileIds, freeFileIds.length * 2);
+            freeFileIds[freeFileIdsNum++] = ifile.id;
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    private void addWord(@NotNull InternedFile ifile, @NotNull String word) {
+        int wid = dictionary.getOrAdd(word);
+        if(ifile.words.add(wid))
+            postingsOf(wid).add(ifile.id);
+    }
+
+    private void removeWords(@NotNull InternedFile ifile) {
+        IntPostingList words = ifile.words;
+        for(int i = 0; i < words.size(); ++i)
+            removePosting(words.get(i), ifile.id);
+        words.clear();
+    }
+
+    private void removePosting(int wid, int fid) {
+        IPostingList p = postings[wid];
+        p.remove(fid);
+        if(p.isEmpty()) {
+            postings[wid] = null;
+            dictionary.remove(wid);
+        }
+    }
+
+    @NotNull
+    private List<String> filesUnder(@NotNull String sdir) {
+        sdir += FileSystems.getDefault().getSeparator();
+        return new ArrayList<>(files.subMap(sdir, sdir + Character.MAX_VALUE).keySet());
+    }
+
+    @NotNull
+    private IPostingList postingsOf(int wid) {
+        if(wid >= postings.length)
+            postings = Arrays.copyOf(postings, Math.max(wid + 1, postings.length * 2));
+        IPostingList res = postings[wid];
+        if(res == null) {
+            res = compressed ? new CompressedPostingList() : new IntPostingList();
+            postings[wid] = res;
+        }
+        return res;
+    }
+
+    /**
+        Releases write lock, then rebuilds sorted words if needed, so that readers are not blocked by rebuild
+    */
+    private void unlockWrite() {
+        lock.writeLock().unlock();
+        dictionary.sorted().rebuildIfNeeded();
+    }
+
+    private static final int LOAD_BATCH_SIZE = 256;
+
+    private final TreeMap<String, InternedFile> files = new TreeMap<>();
+    private InternedFile[] filesById = new InternedFile[16];
+    private int[] freeFileIds = new int[16];
+    private int freeFileIdsNum;
+    private int nextFileId;
+    private final WordDictionary dictionary = new WordDictionary();
+    private IPostingList[] postings = new IPostingList[16];
+    private final boolean compressed;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private static final Logger log = Logger.getLogger(InternedIndexStorage.class.getName());
+}
@@ -0,0 +1,16 @@
+package com.github.kassak.indexer.storage;
+
+public class LogSyncModes {
+    /**
+        Log is written to OS on group commit, so it survives crash of process but not of system
+    */
+    static public final int NONE = 0;
+    /**
+        Same as {@link #NONE}, and log is forced to disk at most once a second
+    */
+    static public final int PERIODIC = 1;
+    /**
+        Log is forced to disk on each group commit
+    */
+    static public final int GROUP = 2;
+}
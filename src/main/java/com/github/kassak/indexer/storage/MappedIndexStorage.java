@@ -0,0 +1,789 @@
+package com.github.kassak.indexer.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SWMR bidirectional mapping between files & words.
+ * Words of most files are kept in immutable memory mapped {@link Segment}s, recent changes are kept
+ * in small delta in heap. Words of file are either in delta or in one segment: file modified after
+ * it was written to segment is tombstoned there and its words are moved to delta.
+ * Full delta is flushed to new segment and segments of the same size tier are merged by writer thread,
+ * so posting is rewritten logarithmic number of times. Heap keeps files and delta only.
+ * Readers are guarded by read-write lock, writer thread reads without locking.
+ */
+class MappedIndexStorage implements IIndexStorage {
+    static class MappedFile extends IndexedFile {
+        public MappedFile(@NotNull String path, long stamp) {
+            super(path, stamp);
+        }
+
+        public MappedSegment segment; //segment with words of file, null if words are not there
+        public int id = -1; //id in segment
+        public Set<String> words; //words in delta, null if none
+    }
+
+    /**
+        Segment with files it was written for, tombstoned files are nulls.
+        Term is live if any of its files is, it is found by postings when needed.
+    */
+    private static class MappedSegment {
+        public MappedSegment(@NotNull Segment segment, @NotNull MappedFile[] files) {
+            this.segment = segment;
+            this.files = files;
+            liveFilesNum = files.length;
+        }
+
+        /**
+            Hides file in segment, its words there are not seen anymore
+        */
+        public void tombstone(int id) {
+            files[id] = null;
+            --liveFilesNum;
+            deadPostings += segment.getFileTermsNum(id);
+        }
+
+        public boolean isLive(int t) {
+            if(deadPostings == 0)
+                return true;
+            IPostingIterator it = segment.postings(t);
+            while(it.hasNext())
+                if(files[it.next()] != null)
+                    return true;
+            return false;
+        }
+
+        public long getLivePostings() {
+            return segment.getPostingsNum() - deadPostings;
+        }
+
+        /**
+            @return tier of segment by number of live postings, segments of the same tier are merged together
+        */
+        public int getTier() {
+            int tier = 0;
+            for(long bound = FLUSH_POSTINGS * MERGE_FACTOR; getLivePostings() >= bound; bound *= MERGE_FACTOR)
+                ++tier;
+            return tier;
+        }
+
+        public final Segment segment;
+        public final MappedFile[] files; //files by id, null if tombstoned
+        public int liveFilesNum;
+        public long deadPostings;
+    }
+
+    @Override
+    public void addWord(@NotNull Path file, @NotNull String word) {
+        MappedFile f = files.get(file.toString());
+        if(f == null) {
+            if(log.isLoggable(Level.FINER))
+                log.finer("Ignoring attempt to add word to removed file " + file);
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if(f.segment != null)
+                moveToDelta(f);
+            addDeltaWord(f, word);
+        } finally {
+            unlockWrite();
+        }
+        maybeFlush();
+    }
+
+    /**
+        Words of file which is in segment are tombstoned there and added to delta at once
+    */
+    @Override
+    public void replaceWords(@NotNull Path file, @NotNull Collection<String> words) {
+        MappedFile f = files.get(file.toString());
+        if(f == null) {
+            if(log.isLoggable(Level.FINER))
+                log.finer("Ignoring attempt to replace words of removed file " + file);
+            return;
+        }
+        Set<String> newWords = words instanceof Set ? (Set<String>)words : new HashSet<>(words);
+        lock.writeLock().lock();
+        try {
+            if(f.segment != null)
+                tombstone(f);
+            if(f.words != null) {
+                Iterator<String> it = f.words.iterator();
+                while(it.hasNext()) {
+                    String w = it.next();
+                    if(newWords.contains(w))
+                        continue;
+                    it.remove();
+                    removeDeltaPosting(w, f);
+                }
+            }
+            for(String w : newWords)
+                addDeltaWord(f, w);
+        } finally {
+            unlockWrite();
+        }
+        maybeFlush();
+    }
+
+    @Override
+    public void loadWords(@NotNull Collection<BulkFile> files) {
+        Iterator<BulkFile> it = files.iterator();
+        while(it.hasNext()) {
+            lock.writeLock().lock();
+            try {
+                for(int batch = 0; batch < LOAD_BATCH_SIZE && it.hasNext(); ++batch) {
+                    BulkFile bf = it.next();
+                    MappedFile f = this.files.get(bf.path.toString());
+                    if(f == null || f.segment != null || f.words != null)
+                        continue;
+                    for(String w : bf.words)
+                        addDeltaWord(f, w);
+                }
+            } finally {
+                unlockWrite();
+            }
+            maybeFlush();
+        }
+    }
+
+    @Override
+    @NotNull
+    public Collection<FileEntry> search(@NotNull String word) {
+        byte[] term = word.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            List<FileEntry> res = new ArrayList<>();
+            for(MappedSegment s : segments) {
+                int t = s.segment.find(term);
+                if(t == -1)
+                    continue;
+                IPostingIterator it = s.segment.postings(t); //decoded from mapped segment
+                while(it.hasNext()) {
+                    MappedFile f = s.files[it.next()];
+                    if(f != null)
+                        res.add(new FileEntry(f.path, f.state == States.VALID));
+                }
+            }
+            Set<MappedFile> fs = delta.get(word);
+            if(fs != null)
+                for(MappedFile f : fs)
+                    res.add(new FileEntry(f.path, f.state == States.VALID));
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+        Postings of matching terms of each segment are merged into bitmap of its ids.
+        File is live in one segment only, so files are listed once.
+    */
+    @Override
+    @NotNull
+    public Collection<FileEntry> searchPrefix(@NotNull String prefix) {
+        byte[] p = prefix.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            List<FileEntry> res = new ArrayList<>();
+            for(MappedSegment s : segments) {
+                BitSet found = new BitSet();
+                for(int t = s.segment.lowerBound(p); t < s.segment.getTermsNum() && s.segment.startsWith(t, p); ++t) {
+                    IPostingIterator it = s.segment.postings(t);
+                    while(it.hasNext())
+                        found.set(it.next());
+                }
+                for(int id = found.nextSetBit(0); id >= 0; id = found.nextSetBit(id + 1)) {
+                    MappedFile f = s.files[id];
+                    if(f != null)
+                        res.add(new FileEntry(f.path, f.state == States.VALID));
+                }
+            }
+            final Set<MappedFile> fs = new LinkedHashSet<>();
+            sortedDelta.visitPrefix(prefix, new SortedTerms.IVisitor() {
+                @Override
+                public boolean visit(@NotNull String word) {
+                    fs.addAll(delta.get(word));
+                    return true;
+                }
+            });
+            for(MappedFile f : fs)
+                res.add(new FileEntry(f.path, f.state == States.VALID));
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+        Query is evaluated over each segment by cursors, skipping postings of frequent words,
+        and over delta by lookups in words of files. File is live in one of them only.
+    */
+    @Override
+    @NotNull
+    public Collection<FileEntry> search(@NotNull Query query) {
+        final List<FileEntry> res = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for(final MappedSegment s : segments) {
+                QueryEvaluator.evaluate(query, new QueryEvaluator.ICursorSource() {
+                    @NotNull
+                    @Override
+                    public IPostingCursor cursor(@NotNull String word) {
+                        int t = s.segment.find(word.getBytes(StandardCharsets.UTF_8));
+                        return t == -1 ? QueryEvaluator.EMPTY : s.segment.cursor(t);
+                    }
+                }, new QueryEvaluator.IIdConsumer() {
+                    @Override
+                    public void accept(int id) {
+                        MappedFile f = s.files[id];
+                        if(f != null)
+                            res.add(new FileEntry(f.path, f.state == States.VALID));
+                    }
+                });
+            }
+            List<MappedFile> found = new ArrayList<>();
+            QueryEvaluator.evaluate(query, new QueryEvaluator.ISetSource<MappedFile>() {
+                @NotNull
+                @Override
+                public Collection<MappedFile> files(@NotNull String word) {
+                    Set<MappedFile> fs = delta.get(word);
+                    return fs == null ? Collections.<MappedFile>emptySet() : fs;
+                }
+
+                @Override
+                public boolean contains(@NotNull String word, @NotNull MappedFile file) {
+                    return file.words.contains(word);
+                }
+            }, found);
+            for(MappedFile f : found)
+                res.add(new FileEntry(f.path, f.state == States.VALID));
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public IndexedFile getFile(@NotNull Path file) {
+        return files.get(file.toString()); //writer only
+    }
+
+    @Override
+    @NotNull
+    public IndexedFile getOrAddFile(@NotNull Path file, long stamp) {
+        String sfile = file.toString();
+        MappedFile f = files.get(sfile);
+        if(f == null) {
+            f = new MappedFile(sfile, stamp);
+            lock.writeLock().lock();
+            try {
+                files.put(sfile, f);
+            } finally {
+                unlockWrite();
+            }
+        }
+        return f;
+    }
+
+    @Override
+    @NotNull
+    public List<FileStatistics> getFileNames() {
+        lock.readLock().lock();
+        try {
+            List<FileStatistics> res = new ArrayList<>(files.size());
+            for(MappedFile f : files.values())
+                res.add(new FileStatistics(f.path, f.state, wordsNum(f)));
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int wordsNum(@NotNull MappedFile f) {
+        if(f.segment != null)
+            return f.segment.segment.getFileTermsNum(f.id);
+        return f.words == null ? 0 : f.words.size();
+    }
+
+    @Override
+    public boolean hasFilesUnder(@NotNull Path dir) {
+        String sdir = dir.toString();
+        lock.readLock().lock();
+        try {
+            if(files.containsKey(sdir))
+                return true;
+            sdir += FileSystems.getDefault().getSeparator();
+            return !files.subMap(sdir, sdir + Character.MAX_VALUE).isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @NotNull
+    public List<String> getFilesUnder(@NotNull Path dir) {
+        return filesUnder(dir.toString());
+    }
+
+    @Override
+    @NotNull
+    public IndexStatistics getStats() {
+        IndexStatistics res = new IndexStatistics();
+        lock.readLock().lock();
+        try {
+            for(MappedFile f : files.values()) {
+                ++res.numFiles;
+                if(f.state == States.VALID)
+                    ++res.numValidFiles;
+            }
+            boolean oneLive = segments.size() == 1 && segments.get(0).deadPostings == 0 && delta.isEmpty();
+            res.numWords = oneLive ? segments.get(0).segment.getTermsNum() : words().size();
+            res.numSegments = segments.size();
+            res.numMerges = mergesNum;
+        } finally {
+            lock.readLock().unlock();
+        }
+        return res;
+    }
+
+    @Override
+    @NotNull
+    public List<String> getWords() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(words());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+        Terms of each segment and words of delta are sorted, so only pages of them are read and merged
+    */
+    @Override
+    @NotNull
+    public List<String> getWords(@NotNull String from, @Nullable String to, final int limit) {
+        final TreeSet<String> words = new TreeSet<>(SortedTerms.ORDER);
+        final int[] num = {0};
+        lock.readLock().lock();
+        try {
+            for(MappedSegment s : segments) {
+                int added = 0;
+                for(int t = s.segment.lowerBound(from.getBytes(StandardCharsets.UTF_8))
+                        ; t < s.segment.getTermsNum() && added < limit; ++t) {
+                    if(!s.isLive(t))
+                        continue;
+                    String term = s.segment.getTermString(t);
+                    if(to != null && SortedTerms.ORDER.compare(term, to) >= 0)
+                        break;
+                    words.add(term);
+                    ++added;
+                }
+            }
+            sortedDelta.visit(from, to, new SortedTerms.IVisitor() {
+                @Override
+                public boolean visit(@NotNull String word) {
+                    words.add(word);
+                    return ++num[0] < limit;
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<String> res = new ArrayList<>();
+        for(String w : words) {
+            if(res.size() >= limit)
+                break;
+            res.add(w);
+        }
+        return res;
+    }
+
+    /**
+        @return live words of all segments and delta, words present in several segments are listed once
+    */
+    @NotNull
+    private Set<String> words() {
+        Set<String> res = new HashSet<>(delta.keySet());
+        for(MappedSegment s : segments)
+            for(int t = 0; t < s.segment.getTermsNum(); ++t)
+                if(s.isLive(t))
+                    res.add(s.segment.getTermString(t));
+        return res;
+    }
+
+    @Override
+    public void writeFiles(@NotNull IndexSnapshot.Writer out) throws IOException {
+        List<String> fileWords = new ArrayList<>();
+        for(MappedFile f : files.values()) { //writer only
+            if(f.state != States.VALID)
+                continue;
+            fileWords.clear();
+            if(f.segment != null) {
+                IPostingIterator it = f.segment.segment.fileTerms(f.id);
+                while(it.hasNext())
+                    fileWords.add(f.segment.segment.getTermString(it.next()));
+            } else if(f.words != null) {
+                fileWords.addAll(f.words);
+            }
+            out.writeFile(f.path, f.size, f.modified, fileWords);
+        }
+    }
+
+    @Override
+    public void removeFile(@NotNull Path file) {
+        if(log.isLoggable(Level.FINER))
+            log.finer("Removing file " + file);
+        removeFile(file.toString());
+    }
+
+    @Override
+    public void removeDirectory(@NotNull Path file) {
+        String sfile = file.toString();
+        if(log.isLoggable(Level.FINER))
+            log.finer("Removing directory " + sfile);
+        removeFile(sfile);
+        for(String f : filesUnder(sfile))
+            removeFile(f);
+    }
+
+    @Override
+    public void removeNonexistent(@NotNull Path file) {
+        String sfile = file.toString();
+        if(log.isLoggable(Level.FINER))
+            log.finer("Removing nonexistent " + sfile);
+        removeFile(sfile);
+        for(String f : filesUnder(sfile)) {
+            if(!Files.exists(FileSystems.getDefault().getPath(f)))
+                removeFile(f);
+        }
+    }
+
+    @Override
+    public void removeWords(@NotNull Path file) {
+        MappedFile f = files.get(file.toString());
+        if(f == null) {
+            if(log.isLoggable(Level.FINER))
+                log.finer("Ignoring attempt to remove word from removed file " + file);
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            removeWords(f);
+        } finally {
+            unlockWrite();
+        }
+        maybeFlush();
+    }
+
+    private void removeFile(@NotNull String sfile) {
+        MappedFile f = files.get(sfile);
+        if(f == null)
+            return;
+        lock.writeLock().lock();
+        try {
+            removeWords(f);
+            files.remove(sfile);
+        } finally {
+            unlockWrite();
+        }
+        maybeFlush();
+    }
+
+    @NotNull
+    private List<String> filesUnder(@NotNull String sdir) {
+        sdir += FileSystems.getDefault().getSeparator();
+        return new ArrayList<>(files.subMap(sdir, sdir + Character.MAX_VALUE).keySet());
+    }
+
+    private void removeWords(@NotNull MappedFile f) {
+        if(f.segment != null)
+            tombstone(f);
+        if(f.words != null) {
+            for(String w : f.words)
+                removeDeltaPosting(w, f);
+            f.words = null;
+            deltaFiles.remove(f);
+        }
+    }
+
+    /**
+        Segment without live files is dropped
+    */
+    private void tombstone(@NotNull MappedFile f) {
+        MappedSegment s = f.segment;
+        s.tombstone(f.id);
+        f.segment = null;
+        f.id = -1;
+        if(s.liveFilesNum == 0) {
+            segments.remove(s);
+            s.segment.delete();
+        }
+    }
+
+    private void moveToDelta(@NotNull MappedFile f) {
+        Segment s = f.segment.segment;
+        List<String> words = new ArrayList<>(s.getFileTermsNum(f.id));
+        IPostingIterator it = s.fileTerms(f.id);
+        while(it.hasNext())
+            words.add(s.getTermString(it.next()));
+        tombstone(f);
+        for(String w : words)
+            addDeltaWord(f, w);
+    }
+
+    private void addDeltaWord(@NotNull MappedFile f, @NotNull String word) {
+        if(f.words == null) {
+            f.words = new HashSet<>();
+            deltaFiles.add(f);
+        }
+        if(!f.words.add(word))
+            return;
+        Set<MappedFile> fs = delta.get(word);
+        if(fs == null) {
+            fs = new HashSet<>(2);
+            delta.put(word, fs);
+            sortedDelta.added(word);
+        }
+        fs.add(f);
+        ++deltaPostings;
+    }
+
+    private void removeDeltaPosting(@NotNull String word, @NotNull MappedFile f) {
+        Set<MappedFile> fs = delta.get(word);
+        fs.remove(f);
+        if(fs.isEmpty()) {
+            delta.remove(word);
+            sortedDelta.removed();
+        }
+        --deltaPostings;
+    }
+
+    /**
+        Flushes full delta to new segment, then merges segments while some tier has enough of them.
+        Failure to write segment leaves delta in heap and postpones next attempt,
+        failed merge leaves its segments as they are till next flush.
+    */
+    private void maybeFlush() {
+        if(deltaPostings < flushThreshold)
+            return;
+        try {
+            flush();
+            flushThreshold = FLUSH_POSTINGS;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to write index segment, keeping changes in heap", e);
+            flushThreshold = deltaPostings * 2;
+            return;
+        }
+        for(List<MappedSegment> sources = mergeSources(); sources != null; sources = mergeSources()) {
+            try {
+                merge(sources);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to merge index segments", e);
+                return;
+            }
+        }
+    }
+
+    @NotNull
+    private Path newSegmentFile() throws IOException {
+        if(dir == null) {
+            dir = Files.createTempDirectory("indexer-segments");
+            dir.toFile().deleteOnExit();
+        }
+        Path file = dir.resolve("segment-" + segmentsNum++);
+        file.toFile().deleteOnExit();
+        return file;
+    }
+
+    /**
+        Writes files of delta into new segment
+    */
+    private void flush() throws IOException {
+        Path file = newSegmentFile();
+        MappedFile[] newFiles = deltaFiles.toArray(new MappedFile[deltaFiles.size()]);
+        Map<MappedFile, Integer> fileIds = new HashMap<>();
+        for(int id = 0; id < newFiles.length; ++id)
+            fileIds.put(newFiles[id], id);
+        List<byte[]> terms = new ArrayList<>(delta.size());
+        for(String w : delta.keySet())
+            terms.add(w.getBytes(StandardCharsets.UTF_8));
+        Collections.sort(terms, Segment.TERMS_ORDER);
+
+        Map<String, Integer> termIds = new HashMap<>();
+        int[] ids = new int[16];
+        try (Segment.Writer out = new Segment.Writer(file)) {
+            for(byte[] term : terms) {
+                String w = new String(term, StandardCharsets.UTF_8);
+                int num = 0;
+                for(MappedFile f : delta.get(w)) {
+                    if(num == ids.length)
+                        ids = Arrays.copyOf(ids, num * 2);
+                    ids[num++] = fileIds.get(f);
+                }
+                Arrays.sort(ids, 0, num);
+                termIds.put(w, termIds.size());
+                out.addTerm(term, ids, num);
+            }
+            for(MappedFile f : newFiles) {
+                int num = 0;
+                for(String w : f.words) {
+                    if(num == ids.length)
+                        ids = Arrays.copyOf(ids, num * 2);
+                    ids[num++] = termIds.get(w);
+                }
+                Arrays.sort(ids, 0, num);
+                out.addFile(ids, num);
+            }
+            out.finish();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        MappedSegment segment = new MappedSegment(Segment.open(file), newFiles);
+
+        lock.writeLock().lock();
+        try {
+            for(int id = 0; id < newFiles.length; ++id) {
+                newFiles[id].segment = segment;
+                newFiles[id].id = id;
+                newFiles[id].words = null;
+            }
+            segments.add(segment);
+            delta.clear();
+            sortedDelta.clear();
+            deltaFiles.clear();
+            deltaPostings = 0;
+        } finally {
+            unlockWrite();
+        }
+        if(log.isLoggable(Level.FINE))
+            log.fine("Flushed segment of " + newFiles.length + " files, " + terms.size() + " words and "
+                    + segment.getLivePostings() + " postings");
+    }
+
+    /**
+        @return {@link #MERGE_FACTOR} smallest segments of the lowest tier which has that many,
+        or segment which is mostly tombstoned, or null if nothing is to be merged
+    */
+    @Nullable
+    private List<MappedSegment> mergeSources() {
+        Map<Integer, List<MappedSegment>> tiers = new TreeMap<>();
+        for(MappedSegment s : segments) {
+            List<MappedSegment> tier = tiers.get(s.getTier());
+            if(tier == null) {
+                tier = new ArrayList<>();
+                tiers.put(s.getTier(), tier);
+            }
+            tier.add(s);
+        }
+        for(List<MappedSegment> tier : tiers.values()) {
+            if(tier.size() >= MERGE_FACTOR) {
+                Collections.sort(tier, BY_SIZE);
+                return new ArrayList<>(tier.subList(0, MERGE_FACTOR));
+            }
+        }
+        for(MappedSegment s : segments)
+            if(s.deadPostings > s.getLivePostings())
+                return Collections.singletonList(s);
+        return null;
+    }
+
+    /**
+        Writes live files of segments into new segment which replaces them.
+        Files keep order of segments, so their postings stay sorted after renumbering.
+    */
+    private void merge(@NotNull List<MappedSegment> sources) throws IOException {
+        Path file = newSegmentFile();
+        Segment[] in = new Segment[sources.size()];
+        int[][] newIds = new int[in.length][];
+        List<MappedFile> newFiles = new ArrayList<>();
+        for(int k = 0; k < in.length; ++k) {
+            MappedSegment s = sources.get(k);
+            in[k] = s.segment;
+            newIds[k] = new int[s.files.length];
+            for(int id = 0; id < s.files.length; ++id) {
+                newIds[k][id] = s.files[id] == null ? -1 : newFiles.size();
+                if(s.files[id] != null)
+                    newFiles.add(s.files[id]);
+            }
+        }
+        try (Segment.Writer out = new Segment.Writer(file)) {
+            out.addSegments(in, newIds, null);
+            out.finish();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        MappedFile[] filesById = newFiles.toArray(new MappedFile[newFiles.size()]);
+        MappedSegment segment = new MappedSegment(Segment.open(file), filesById);
+
+        lock.writeLock().lock();
+        try {
+            for(int id = 0; id < filesById.length; ++id) {
+                filesById[id].segment = segment;
+                filesById[id].id = id;
+            }
+            segments.removeAll(sources);
+            segments.add(segment);
+            ++mergesNum;
+        } finally {
+            unlockWrite();
+        }
+        for(MappedSegment s : sources)
+            s.segment.delete();
+        if(log.isLoggable(Level.FINE))
+            log.fine("Merged " + sources.size() + " segments into segment of " + filesById.length
+                    + " files and " + segment.getLivePostings() + " postings");
+    }
+
+    /**
+        Releases write lock, then rebuilds sorted words if needed, so that readers are not blocked by rebuild
+    */
+    private void unlockWrite() {
+        lock.writeLock().unlock();
+        sortedDelta.rebuildIfNeeded();
+    }
+
+    private static final Comparator<MappedSegment> BY_SIZE = new Comparator<MappedSegment>() {
+        @Override
+        public int compare(MappedSegment a, MappedSegment b) {
+            return Long.compare(a.getLivePostings(), b.getLivePostings());
+        }
+    };
+
+    private static final int LOAD_BATCH_SIZE = 256;
+    private static final long FLUSH_POSTINGS = 16 * 1024;
+    private static final int MERGE_FACTOR = 4;
+
+    private final TreeMap<String, MappedFile> files = new TreeMap<>();
+    private final Map<String, Set<MappedFile>> delta = new HashMap<>();
+    private final SortedTerms sortedDelta = new SortedTerms(new SortedTerms.ILiveness() {
+        @Override
+        public boolean isLive(@NotNull String word) {
+            return delta.containsKey(word);
+        }
+    });
+    private final Set<MappedFile> deltaFiles = new LinkedHashSet<>();
+    private long deltaPostings;
+    private long flushThreshold = FLUSH_POSTINGS;
+    private final List<MappedSegment> segments = new ArrayList<>();
+    private long mergesNum;
+    private Path dir;
+    private int segmentsNum;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private static final Logger log = Logger.getLogger(MappedIndexStorage.class.getName());
+}
@@ -0,0 +1,513 @@
+package com.github.kassak.indexer.storage;
+
+import com.github.kassak.indexer.tokenizing.IFilesProcessor;
+import com.github.kassak.indexer.utils.ContentHash;
+import com.github.kassak.indexer.utils.IService;
+import com.github.kassak.indexer.utils.MpscRingBuffer;
+import com.github.kassak.indexer.utils.Services;
+import com.github.kassak.indexer.utils.ThreadService;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+    Index processor applying modifications in several writer threads.
+    Files are partitioned by hash of path, every partition has its own storage,
+    writer thread and queue of modifications. Modifications of file are routed to
+    the queue of its partition, so they are applied in order they were submitted.
+    Directory modifications are applied by every partition to files it owns,
+    so synced directory is listed by every writer.
+    Modifications must be submitted from single thread, queries may be made from any thread.
+*/
+public class PartitionedIndexProcessor implements IIndexProcessor, IService {
+    /**
+        @param im processor of files
+        @param storageType one of {@link StorageTypes}
+        @param hashContents check content hash of files with changed modification time
+        @param partitionsNum number of partitions and writer threads
+        @param queueSize size of modifications queue of each partition
+    */
+    public PartitionedIndexProcessor(@NotNull IFilesProcessor im, int storageType, boolean hashContents
+            , int partitionsNum, int queueSize) {
+        this(im, storageType, hashContents, false, partitionsNum, queueSize);
+    }
+
+    /**
+        @param im processor of files
+        @param storageType one of {@link StorageTypes}
+        @param hashContents check content hash of files with changed modification time
+        @param trigrams keep trigram index of words of each partition for substring and regex search
+        @param partitionsNum number of partitions and writer threads
+        @param queueSize size of modifications queue of each partition
+    */
+    public PartitionedIndexProcessor(@NotNull IFilesProcessor im, int storageType, boolean hashContents, boolean trigrams
+            , int partitionsNum, int queueSize) {
+        if(partitionsNum <= 0)
+            throw new IllegalArgumentException("Bad number of partitions " + partitionsNum);
+        partitions = new Partition[partitionsNum];
+        writers = new ThreadService[partitionsNum];
+        for(int i = 0; i < partitionsNum; ++i) {
+            partitions[i] = new Partition(new IndexProcessor(im, storageType, hashContents, trigrams, i, partitionsNum), i, queueSize);
+            writers[i] = new ThreadService(partitions[i]);
+        }
+        pending = new AtomicLong();
+    }
+
+    /**
+        @return partition owning file
+    */
+    static int partitionOf(@NotNull Path file, int partitionsNum) {
+        return (file.toString().hashCode() & Integer.MAX_VALUE) % partitionsNum;
+    }
+
+    private static class Mutation {
+        public Mutation(int op, @NotNull Path path, long stamp, @Nullable Collection<String> words, @Nullable String word) {
+            this.op = op;
+            this.path = path;
+            this.stamp = stamp;
+            this.words = words;
+            this.word = word;
+            hash = ContentHash.NO_HASH;
+        }
+
+        public Mutation(int op, @NotNull Path path, long stamp, long hash) {
+            this.op = op;
+            this.path = path;
+            this.stamp = stamp;
+            this.words = null;
+            this.word = null;
+            this.hash = hash;
+        }
+
+        public final int op;
+        public final Path path;
+        public final long stamp;
+        public final Collection<String> words;
+        public final String word;
+        public final long hash;
+    }
+
+    /**
+        Writer of single partition
+    */
+    private class Partition implements Runnable {
+        public Partition(@NotNull IndexProcessor processor, int index, int queueSize) {
+            this.processor = processor;
+            this.index = index;
+            queue = new MpscRingBuffer<>(queueSize);
+        }
+
+        /**
+            Puts modification to queue waiting for free space while writer is running
+
+            @return false if writer is not running or interrupted while waiting
+        */
+        public boolean put(@NotNull Mutation m) {
+            if(!writers[index].isRunning())
+                return false;
+            pending.incrementAndGet();
+            for(int attempt = 0; !queue.offer(m); ++attempt) {
+                if(Thread.currentThread().isInterrupted() || !writers[index].isRunning()) {
+                    pending.decrementAndGet();
+                    return false;
+                }
+                if(attempt < SPINS_BEFORE_PARK)
+                    Thread.yield();
+                else
+                    LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+            }
+            if(writerWaiting)
+                LockSupport.unpark(writer);
+            return true;
+        }
+
+        @Nullable
+        private Mutation take() {
+            while(!Thread.currentThread().isInterrupted()) {
+                Mutation m = queue.poll();
+                if(m != null)
+                    return m;
+                writerWaiting = true;
+                try {
+                    m = queue.poll(); //producer could miss the flag
+                    if(m != null)
+                        return m;
+                    LockSupport.parkNanos(this, WRITER_PARK_NANOS);
+                } finally {
+                    writerWaiting = false;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void run() {
+            writer = Thread.currentThread();
+            while(true) {
+                Mutation m = take();
+                if(m == null)
+                    break;
+                try {
+                    apply(m);
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+        }
+
+        private void apply(@NotNull Mutation m) {
+            switch(m.op) {
+                case SYNC_FILE:
+                    processor.syncFile(m.stamp, m.path);
+                    break;
+                case SYNC_DIR:
+                    processor.syncDirectory(m.stamp, m.path);
+                    break;
+                case DEL_FILE:
+                    processor.removeFile(m.path);
+                    break;
+                case DEL_DIR:
+                    processor.removeDirectory(m.path);
+                    break;
+                case FILE_FINISHED_OK:
+                case FILE_FINISHED_FAIL:
+                    processor.fileFinished(m.stamp, m.path, m.op == FILE_FINISHED_OK, m.hash);
+                    break;
+                case FILE_UNCHANGED:
+                    processor.fileUnchanged(m.stamp, m.path);
+                    break;
+                case REMOVE_WORDS:
+                    processor.removeWords(m.path);
+                    break;
+                case ADD_WORD:
+                    assert m.word != null;
+                    processor.addWord(m.path, m.word);
+                    break;
+                case REPLACE_WORDS:
+                    assert m.words != null;
+                    processor.replaceWords(m.path, m.words);
+                    break;
+            }
+        }
+
+        public final IndexProcessor processor;
+        private final int index;
+        private final MpscRingBuffer<Mutation> queue;
+        private volatile Thread writer;
+        private volatile boolean writerWaiting;
+    }
+
+    private void route(int op, @NotNull Path file, long stamp, @Nullable Collection<String> words, @Nullable String word) {
+        route(new Mutation(op, file, stamp, words, word));
+    }
+
+    private void route(@NotNull Mutation m) {
+        if(!partitions[partitionOf(m.path, partitions.length)].put(m))
+            log.fine("Writer stopped or interrupted while waiting for it. Modification dropped");
+    }
+
+    private void broadcast(int op, @NotNull Path dir, long stamp) {
+        Mutation m = new Mutation(op, dir, stamp, null, null);
+        for(Partition p : partitions) {
+            if(!p.put(m)) {
+                log.fine("Writer stopped or interrupted while waiting for it. Modification dropped");
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void syncFile(long stamp, @NotNull Path file) {
+        route(SYNC_FILE, file, stamp, null, null);
+    }
+
+    @Override
+    public void syncDirectory(long stamp, @NotNull Path file) {
+        broadcast(SYNC_DIR, file, stamp);
+    }
+
+    @Override
+    public void removeFile(@NotNull Path file) {
+        route(DEL_FILE, file, 0, null, null);
+    }
+
+    @Override
+    public void removeDirectory(@NotNull Path file) {
+        broadcast(DEL_DIR, file, 0);
+    }
+
+    @Override
+    public void fileFinished(long stamp, @NotNull Path file, boolean b, long hash) {
+        route(new Mutation(b ? FILE_FINISHED_OK : FILE_FINISHED_FAIL, file, stamp, hash));
+    }
+
+    @Override
+    public void fileUnchanged(long stamp, @NotNull Path file) {
+        route(FILE_UNCHANGED, file, stamp, null, null);
+    }
+
+    @Nullable
+    @Override
+    public Long indexedHash(@NotNull Path file) {
+        return partitions[partitionOf(file, partitions.length)].processor.indexedHash(file);
+    }
+
+    @Override
+    public void removeWords(@NotNull Path file) {
+        route(REMOVE_WORDS, file, 0, null, null);
+    }
+
+    @Override
+    public void addWord(@NotNull Path file, @NotNull String word) {
+        route(ADD_WORD, file, 0, null, word);
+    }
+
+    @Override
+    public void replaceWords(@NotNull Path file, @NotNull Collection<String> words) {
+        route(REPLACE_WORDS, file, 0, words, null);
+    }
+
+    /**
+        Must be called while writers are stopped
+    */
+    @Override
+    public void writeSnapshot(@NotNull IndexSnapshot.Writer out) throws IOException {
+        if(isRunning())
+            throw new IllegalStateException("Snapshot can't be written while writers are running");
+        out.writeWords(getWords());
+        for(Partition p : partitions)
+            p.processor.writeFiles(out);
+    }
+
+    /**
+        Every partition takes its files of each batch. Must be called before writers are started.
+    */
+    @Override
+    public void readSnapshot(@NotNull IndexSnapshot.Reader in) throws IOException {
+        if(isRunning())
+            throw new IllegalStateException("Snapshot can't be read while writers are running");
+        in.readWords();
+        long stamp = Math.min(in.getStamp(), System.currentTimeMillis());
+        for(List<BulkFile> files = in.readFiles(RESTORE_BATCH_SIZE); !files.isEmpty(); files = in.readFiles(RESTORE_BATCH_SIZE))
+            for(Partition p : partitions)
+                p.processor.restoreFiles(stamp, files);
+    }
+
+    /**
+        Partitions share log, their records are of different files. Must be called before writers are started.
+    */
+    @Override
+    public void setLog(@Nullable IndexLog.Writer out) {
+        if(isRunning())
+            throw new IllegalStateException("Log can't be set while writers are running");
+        for(Partition p : partitions)
+            p.processor.setLog(out);
+    }
+
+    /**
+        Every partition takes its files of each batch. Must be called before writers are started.
+    */
+    @Override
+    public void replayLog(@NotNull IndexLog.Reader in) throws IOException {
+        if(isRunning())
+            throw new IllegalStateException("Log can't be replayed while writers are running");
+        long stamp = Math.min(in.getStamp(), System.currentTimeMillis());
+        for(List<IndexLog.Record> records = in.readRecords(RESTORE_BATCH_SIZE); !records.isEmpty()
+                ; records = in.readRecords(RESTORE_BATCH_SIZE))
+            for(Partition p : partitions)
+                p.processor.replayRecords(stamp, records);
+    }
+
+    /**
+        Modifications which are not applied yet are not seen
+    */
+    @Override
+    public boolean hasFilesUnder(@NotNull Path dir) {
+        for(Partition p : partitions)
+            if(p.processor.hasFilesUnder(dir))
+                return true;
+        return false;
+    }
+
+    @Override
+    @NotNull
+    public List<FileStatistics> getFiles() {
+        List<FileStatistics> res = new ArrayList<>();
+        for(Partition p : partitions)
+            res.addAll(p.processor.getFiles());
+        return res;
+    }
+
+    @Override
+    @NotNull
+    public Collection<FileEntry> search(@NotNull String word) {
+        List<FileEntry> res = new ArrayList<>();
+        for(Partition p : partitions)
+            res.addAll(p.processor.search(word));
+        return res;
+    }
+
+    @Override
+    @NotNull
+    public Collection<FileEntry> search(@NotNull Query query) {
+        List<FileEntry> res = new ArrayList<>();
+        for(Partition p : partitions) //files are partitioned with all their words, so query is answered by each
+            res.addAll(p.processor.search(query));
+        return res;
+    }
+
+    @Override
+    @NotNull
+    public Collection<FileEntry> searchPrefix(@NotNull String prefix) {
+        List<FileEntry> res = new ArrayList<>();
+        for(Partition p : partitions)
+            res.addAll(p.processor.searchPrefix(prefix));
+        return res;
+    }
+
+    @Override
+    @NotNull
+    public Collection<FileEntry> searchSubstring(@NotNull String s) {
+        List<FileEntry> res = new ArrayList<>();
+        for(Partition p : partitions)
+            res.addAll(p.processor.searchSubstring(s));
+        return res;
+    }
+
+    @Override
+    @NotNull
+    public Collection<FileEntry> searchRegex(@NotNull Pattern regex) {
+        List<FileEntry> res = new ArrayList<>();
+        for(Partition p : partitions)
+            res.addAll(p.processor.searchRegex(regex));
+        return res;
+    }
+
+    /**
+        Sums statistics of partitions. Words present in several partitions are counted once.
+    */
+    @Override
+    @NotNull
+    public IndexStatistics getStats() {
+        IndexStatistics res = new IndexStatistics();
+        for(Partition p : partitions) {
+            IndexStatistics s = p.processor.getStats();
+            res.numFiles += s.numFiles;
+            res.numValidFiles += s.numValidFiles;
+            res.numSegments += s.numSegments;
+            res.numMerges += s.numMerges;
+            res.numProcessed += s.numProcessed;
+            res.numRestored += s.numRestored;
+            res.numReplayed += s.numReplayed;
+            res.numSkippedByAttributes += s.numSkippedByAttributes;
+            res.numSkippedByHash += s.numSkippedByHash;
+        }
+        res.numWords = partitions.length == 1 ? partitions[0].processor.getStats().numWords : countWords();
+        return res;
+    }
+
+    /**
+        Counts distinct words reading merged vocabulary by pages, so it is never copied whole
+    */
+    private long countWords() {
+        long res = 0;
+        String from = "";
+        while(true) {
+            List<String> page = getWords(from, null, WORDS_PAGE_SIZE);
+            res += page.size();
+            if(page.size() < WORDS_PAGE_SIZE)
+                return res;
+            from = page.get(page.size() - 1) + '\0'; //least word after the last one
+        }
+    }
+
+    @Override
+    @NotNull
+    public List<String> getWords() {
+        Set<String> res = new HashSet<>();
+        for(Partition p : partitions)
+            res.addAll(p.processor.getWords());
+        return new ArrayList<>(res);
+    }
+
+    /**
+        Merges pages of partitions, words present in several partitions are listed once
+    */
+    @Override
+    @NotNull
+    public List<String> getWords(@NotNull String from, @Nullable String to, int limit) {
+        TreeSet<String> words = new TreeSet<>(SortedTerms.ORDER);
+        for(Partition p : partitions)
+            words.addAll(p.processor.getWords(from, to, limit));
+        List<String> res = new ArrayList<>();
+        for(String w : words) {
+            if(res.size() >= limit)
+                break;
+            res.add(w);
+        }
+        return res;
+    }
+
+    /**
+        @return true if all submitted modifications are applied
+    */
+    @Override
+    public boolean isIdle() {
+        return pending.get() == 0;
+    }
+
+    @Override
+    public void startService() throws FailureException {
+        Services.startServices(writers);
+    }
+
+    @Override
+    public void stopService() {
+        Services.stopServices(writers);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return Services.isServicesRunning(writers);
+    }
+
+    @Override
+    public boolean waitFinished(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        return Services.waitServicesFinished(timeout, unit, writers);
+    }
+
+    private static final int SYNC_FILE = 0;
+    private static final int SYNC_DIR = 1;
+    private static final int DEL_FILE = 2;
+    private static final int DEL_DIR = 3;
+    private static final int FILE_FINISHED_OK = 4;
+    private static final int FILE_FINISHED_FAIL = 5;
+    private static final int REMOVE_WORDS = 6;
+    private static final int ADD_WORD = 7;
+    private static final int REPLACE_WORDS = 8;
+    private static final int FILE_UNCHANGED = 9;
+
+    private static final int RESTORE_BATCH_SIZE = 1024;
+    private static final int WORDS_PAGE_SIZE = 4096;
+    private static final int SPINS_BEFORE_PARK = 100;
+    private static final long PRODUCER_PARK_NANOS = 100000;
+    private static final long WRITER_PARK_NANOS = 100000000;
+
+    private final Partition[] partitions;
+    private final ThreadService[] writers;
+    private final AtomicLong pending;
+    private static final Logger log = Logger.getLogger(PartitionedIndexProcessor.class.getName());
+}
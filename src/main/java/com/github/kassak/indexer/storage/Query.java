@@ -0,0 +1,121 @@
+package com.github.kassak.indexer.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+    Boolean query over words: word, AND, OR and NOT of queries.
+    Query is answered if it is bounded, i.e. it can not match file without words:
+    word is bounded, AND is bounded if any operand is, OR if all operands are, NOT never is.
+    So NOT is used to exclude files inside AND.
+*/
+public class Query {
+    private Query(int kind, String word, @NotNull List<Query> operands) {
+        this.kind = kind;
+        this.word = word;
+        this.operands = operands;
+    }
+
+    @NotNull
+    public static Query word(@NotNull String word) {
+        return new Query(WORD, word, Collections.<Query>emptyList());
+    }
+
+    @NotNull
+    public static Query and(@NotNull Query... operands) {
+        return new Query(AND, null, operandsOf(operands));
+    }
+
+    @NotNull
+    public static Query or(@NotNull Query... operands) {
+        return new Query(OR, null, operandsOf(operands));
+    }
+
+    @NotNull
+    public static Query not(@NotNull Query operand) {
+        return new Query(NOT, null, Collections.singletonList(operand));
+    }
+
+    @NotNull
+    private static List<Query> operandsOf(@NotNull Query[] operands) {
+        if(operands.length == 0)
+            throw new IllegalArgumentException("Query without operands");
+        return Collections.unmodifiableList(Arrays.asList(operands.clone()));
+    }
+
+    /**
+        Parses alternatives separated by `|`, each of words separated by spaces which all must be present.
+        Word prefixed by `-` must be absent.
+        E.g. `foo bar -baz | qux` is files with foo and bar but without baz, or with qux.
+    */
+    @NotNull
+    public static Query parse(@NotNull String s) {
+        List<Query> alternatives = new ArrayList<>();
+        for(String alt : s.split("\\|")) {
+            List<Query> terms = new ArrayList<>();
+            for(String w : alt.trim().split("\\s+")) {
+                if(w.startsWith("-") && w.length() > 1)
+                    terms.add(not(word(w.substring(1))));
+                else if(!w.isEmpty())
+                    terms.add(word(w));
+            }
+            if(terms.isEmpty())
+                throw new IllegalArgumentException("Empty alternative in query " + s);
+            alternatives.add(terms.size() == 1 ? terms.get(0) : and(terms.toArray(new Query[terms.size()])));
+        }
+        return alternatives.size() == 1 ? alternatives.get(0) : or(alternatives.toArray(new Query[alternatives.size()]));
+    }
+
+    /**
+        @return true if query can not match file without words, so it may be answered
+    */
+    public boolean isBounded() {
+        switch(kind) {
+            case WORD:
+                return true;
+            case AND:
+                for(Query q : operands)
+                    if(q.isBounded())
+                        return true;
+                return false;
+            case OR:
+                for(Query q : operands)
+                    if(!q.isBounded())
+                        return false;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch(kind) {
+            case WORD:
+                return word;
+            case NOT:
+                return "-" + operands.get(0);
+            default:
+                StringBuilder res = new StringBuilder("(");
+                for(Query q : operands) {
+                    if(res.length() > 1)
+                        res.append(kind == AND ? " " : " | ");
+                    res.append(q);
+                }
+                return res.append(')').toString();
+        }
+    }
+
+    static final int WORD = 0;
+    static final int AND = 1;
+    static final int OR = 2;
+    static final int NOT = 3;
+
+    final int kind;
+    final String word; //for WORD
+    final List<Query> operands; //for AND, OR and NOT
+}
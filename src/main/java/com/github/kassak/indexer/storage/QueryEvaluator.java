@@ -0,0 +1,326 @@
+package com.github.kassak.indexer.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+    Evaluates {@link Query} without materializing postings of its words.
+    Storages with sorted int ids provide cursors: operands of AND are intersected starting from
+    the cheapest one, which proposes candidates, and others skip to them by galloping or skip tables.
+    Storages of objects provide sets: candidates come from the smallest set and are checked
+    against other words by hash lookups.
+*/
+class QueryEvaluator {
+    interface ICursorSource {
+        /**
+            @return cursor over ids of files with word, empty if there are none
+        */
+        @NotNull
+        IPostingCursor cursor(@NotNull String word);
+    }
+
+    interface IIdConsumer {
+        void accept(int id);
+    }
+
+    interface ISetSource<F> {
+        /**
+            @return files with word, empty if there are none
+        */
+        @NotNull
+        Collection<F> files(@NotNull String word);
+
+        boolean contains(@NotNull String word, @NotNull F file);
+    }
+
+    /**
+        Passes ascending ids of files matching query to consumer
+    */
+    public static void evaluate(@NotNull Query query, @NotNull ICursorSource source, @NotNull IIdConsumer out) {
+        checkBounded(query);
+        Node root = build(query, source);
+        for(int id = root.advance(0); id != IPostingCursor.END; id = root.advance(id + 1))
+            out.accept(id);
+    }
+
+    /**
+        Adds files matching query to result
+    */
+    public static <F> void evaluate(@NotNull Query query, @NotNull ISetSource<F> source, @NotNull Collection<F> out) {
+        checkBounded(query);
+        Set<F> res = new LinkedHashSet<>(); //candidates of alternatives may intersect
+        collect(query, query, source, res);
+        out.addAll(res);
+    }
+
+    private static void checkBounded(@NotNull Query query) {
+        if(!query.isBounded())
+            throw new IllegalArgumentException("Query may match files without words: " + query);
+    }
+
+    /**
+        Adds files of the cheapest words of query which match whole query
+    */
+    private static <F> void collect(@NotNull Query root, @NotNull Query q, @NotNull ISetSource<F> source
+            , @NotNull Collection<F> out) {
+        switch(q.kind) {
+            case Query.WORD:
+                for(F f : source.files(q.word))
+                    if(matches(root, f, source))
+                        out.add(f);
+                break;
+            case Query.AND:
+                Query cheapest = null;
+                long cheapestSize = Long.MAX_VALUE;
+                for(Query op : q.operands) {
+                    if(!op.isBounded())
+                        continue;
+                    long size = size(op, source);
+                    if(size < cheapestSize) {
+                        cheapest = op;
+                        cheapestSize = size;
+                    }
+                }
+                assert cheapest != null;
+                collect(root, cheapest, source, out);
+                break;
+            case Query.OR:
+                for(Query op : q.operands)
+                    collect(root, op, source, out);
+                break;
+            default:
+                throw new IllegalStateException("Unbounded query " + q);
+        }
+    }
+
+    private static <F> long size(@NotNull Query q, @NotNull ISetSource<F> source) {
+        switch(q.kind) {
+            case Query.WORD:
+                return source.files(q.word).size();
+            case Query.AND:
+                long min = Long.MAX_VALUE;
+                for(Query op : q.operands)
+                    if(op.isBounded())
+                        min = Math.min(min, size(op, source));
+                return min;
+            default:
+                long sum = 0;
+                for(Query op : q.operands)
+                    sum += size(op, source);
+                return sum;
+        }
+    }
+
+    private static <F> boolean matches(@NotNull Query q, @NotNull F file, @NotNull ISetSource<F> source) {
+        switch(q.kind) {
+            case Query.WORD:
+                return source.contains(q.word, file);
+            case Query.AND:
+                for(Query op : q.operands)
+                    if(!matches(op, file, source))
+                        return false;
+                return true;
+            case Query.OR:
+                for(Query op : q.operands)
+                    if(matches(op, file, source))
+                        return true;
+                return false;
+            default:
+                return !matches(q.operands.get(0), file, source);
+        }
+    }
+
+    @NotNull
+    private static Node build(@NotNull Query q, @NotNull ICursorSource source) {
+        switch(q.kind) {
+            case Query.WORD:
+                return new TermNode(source.cursor(q.word));
+            case Query.AND: {
+                List<Node> drivers = new ArrayList<>();
+                List<Node> filters = new ArrayList<>();
+                for(Query op : q.operands)
+                    (op.isBounded() ? drivers : filters).add(build(op, source));
+                if(drivers.size() == 1 && filters.isEmpty())
+                    return drivers.get(0);
+                Collections.sort(drivers, BY_COST);
+                return new AndNode(drivers, filters);
+            }
+            case Query.OR: {
+                List<Node> children = new ArrayList<>();
+                for(Query op : q.operands)
+                    children.add(build(op, source));
+                return children.size() == 1 ? children.get(0) : new OrNode(children);
+            }
+            default:
+                return new NotNode(build(q.operands.get(0), source));
+        }
+    }
+
+    /**
+        Node of evaluated query. Node is either advanced, if it is bounded and proposes ids,
+        or asked whether it matches, if it filters candidates, both with ascending ids.
+    */
+    private static abstract class Node implements IPostingCursor {
+        public abstract boolean matches(int id);
+    }
+
+    private static class TermNode extends Node {
+        public TermNode(@NotNull IPostingCursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public int advance(int target) {
+            return cursor.advance(target);
+        }
+
+        @Override
+        public boolean matches(int id) {
+            return cursor.advance(id) == id;
+        }
+
+        @Override
+        public long cost() {
+            return cursor.cost();
+        }
+
+        private final IPostingCursor cursor;
+    }
+
+    /**
+        Leapfrog intersection: the cheapest driver proposes candidate, other drivers skip to it,
+        and the first one which overshoots proposes next candidate. Agreed candidate is checked by filters.
+    */
+    private static class AndNode extends Node {
+        public AndNode(@NotNull List<Node> drivers, @NotNull List<Node> filters) {
+            this.drivers = drivers.toArray(new Node[drivers.size()]);
+            this.filters = filters.toArray(new Node[filters.size()]);
+        }
+
+        @Override
+        public int advance(int target) {
+            int id = drivers[0].advance(target);
+            next:
+            while(id != END) {
+                for(int i = 1; i < drivers.length; ++i) {
+                    int other = drivers[i].advance(id);
+                    if(other != id) {
+                        id = drivers[0].advance(other);
+                        continue next;
+                    }
+                }
+                for(Node f : filters) {
+                    if(!f.matches(id)) {
+                        id = drivers[0].advance(id + 1);
+                        continue next;
+                    }
+                }
+                return id;
+            }
+            return END;
+        }
+
+        @Override
+        public boolean matches(int id) {
+            for(Node n : drivers)
+                if(!n.matches(id))
+                    return false;
+            for(Node n : filters)
+                if(!n.matches(id))
+                    return false;
+            return true;
+        }
+
+        @Override
+        public long cost() {
+            return drivers[0].cost();
+        }
+
+        private final Node[] drivers; //by ascending cost
+        private final Node[] filters;
+    }
+
+    private static class OrNode extends Node {
+        public OrNode(@NotNull List<Node> children) {
+            this.children = children.toArray(new Node[children.size()]);
+            current = new int[this.children.length];
+            Arrays.fill(current, -1);
+        }
+
+        @Override
+        public int advance(int target) {
+            int res = END;
+            for(int i = 0; i < children.length; ++i) {
+                if(current[i] < target)
+                    current[i] = children[i].advance(target);
+                res = Math.min(res, current[i]);
+            }
+            return res;
+        }
+
+        @Override
+        public boolean matches(int id) {
+            for(Node n : children)
+                if(n.matches(id))
+                    return true;
+            return false;
+        }
+
+        @Override
+        public long cost() {
+            long res = 0;
+            for(Node n : children)
+                res += n.cost();
+            return res;
+        }
+
+        private final Node[] children;
+        private final int[] current; //last id of each child, -1 before start
+    }
+
+    private static class NotNode extends Node {
+        public NotNode(@NotNull Node child) {
+            this.child = child;
+        }
+
+        @Override
+        public int advance(int target) {
+            throw new IllegalStateException("Negation can only filter");
+        }
+
+        @Override
+        public boolean matches(int id) {
+            return !child.matches(id);
+        }
+
+        @Override
+        public long cost() {
+            return Long.MAX_VALUE;
+        }
+
+        private final Node child;
+    }
+
+    private static final Comparator<Node> BY_COST = new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+            return Long.compare(a.cost(), b.cost());
+        }
+    };
+
+    /**
+        Cursor without ids
+    */
+    static final IPostingCursor EMPTY = new IPostingCursor() {
+        @Override
+        public int advance(int target) {
+            return END;
+        }
+
+        @Override
+        public long cost() {
+            return 0;
+        }
+    };
+}
@@ -0,0 +1,597 @@
+package com.github.kassak.indexer.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+    Immutable part of index: sorted term dictionary with postings of terms and forward lists of files.
+    Segment is written once, mapped into memory and searched in place, so its data is cached
+    by OS instead of being kept in heap. Terms are sorted by their UTF-8 bytes, postings and
+    forward lists are delta encoded varints. Long postings have skip table of every 128th id,
+    so they are intersected without decoding all ids. File is mapped by chunks, so segment may exceed 2 GB.
+    May be read from any thread.
+*/
+class Segment {
+    private Segment(@NotNull Path file, @NotNull MappedByteBuffer[] chunks) throws IOException {
+        this.file = file;
+        this.chunks = chunks;
+        if(chunks[0].getInt(0) != MAGIC || chunks[0].getInt(4) != VERSION)
+            throw new IOException("Not an index segment " + file);
+        termsNum = chunks[0].getInt(8);
+        filesNum = chunks[0].getInt(12);
+        postingsNum = chunks[0].getLong(16);
+        termIndex = chunks[0].getLong(24);
+        fileIndex = chunks[0].getLong(32);
+    }
+
+    /**
+        Maps segment written by {@link Writer}
+    */
+    @NotNull
+    public static Segment open(@NotNull Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if(size < HEADER_SIZE)
+                throw new IOException("Truncated segment " + file);
+            MappedByteBuffer[] chunks = new MappedByteBuffer[(int)((size + CHUNK_MASK) >>> CHUNK_BITS)];
+            for(int i = 0; i < chunks.length; ++i) {
+                long from = (long)i << CHUNK_BITS;
+                chunks[i] = ch.map(FileChannel.MapMode.READ_ONLY, from, Math.min(CHUNK_MASK + 1, size - from));
+            }
+            return new Segment(file, chunks);
+        }
+    }
+
+    public int getTermsNum() {
+        return termsNum;
+    }
+
+    public int getFilesNum() {
+        return filesNum;
+    }
+
+    /**
+        @return total number of postings of all terms
+    */
+    public long getPostingsNum() {
+        return postingsNum;
+    }
+
+    /**
+        @param term UTF-8 bytes of term
+        @return id of term or -1 if not present
+    */
+    public int find(@NotNull byte[] term) {
+        int lo = 0, hi = termsNum - 1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareTerm(mid, term);
+            if(cmp < 0)
+                lo = mid + 1;
+            else if(cmp > 0)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    /**
+        @param term UTF-8 bytes of term
+        @return id of the first term not less than given one, or number of terms if there is none
+    */
+    public int lowerBound(@NotNull byte[] term) {
+        int lo = 0, hi = termsNum;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(compareTerm(mid, term) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+        @param prefix UTF-8 bytes of prefix
+    */
+    public boolean startsWith(int t, @NotNull byte[] prefix) {
+        Cursor c = new Cursor(getLong(termIndex + t * 8L));
+        if(c.readVarInt() < prefix.length)
+            return false;
+        for(byte b : prefix)
+            if(c.readByte() != b)
+                return false;
+        return true;
+    }
+
+    /**
+        Adds terms of range [from, to) which have live files, at most limit of them
+
+        @param to end of range or null if range is unbounded
+        @param liveCounts numbers of live files of terms
+    */
+    public void addTerms(@NotNull String from, @Nullable String to, @NotNull int[] liveCounts, int limit
+            , @NotNull Collection<String> res) {
+        for(int t = lowerBound(from.getBytes(StandardCharsets.UTF_8)); t < termsNum && limit > 0; ++t) {
+            if(liveCounts[t] == 0)
+                continue;
+            String term = getTermString(t);
+            if(to != null && SortedTerms.ORDER.compare(term, to) >= 0)
+                break;
+            res.add(term);
+            --limit;
+        }
+    }
+
+    private int compareTerm(int t, @NotNull byte[] term) {
+        Cursor c = new Cursor(getLong(termIndex + t * 8L));
+        int len = c.readVarInt();
+        for(int i = 0; i < len && i < term.length; ++i) {
+            int cmp = (c.readByte() & 0xFF) - (term[i] & 0xFF);
+            if(cmp != 0)
+                return cmp;
+        }
+        return len - term.length;
+    }
+
+    /**
+        @return UTF-8 bytes of term
+    */
+    @NotNull
+    public byte[] getTerm(int t) {
+        Cursor c = new Cursor(getLong(termIndex + t * 8L));
+        byte[] res = new byte[c.readVarInt()];
+        for(int i = 0; i < res.length; ++i)
+            res[i] = c.readByte();
+        return res;
+    }
+
+    @NotNull
+    public String getTermString(int t) {
+        return new String(getTerm(t), StandardCharsets.UTF_8);
+    }
+
+    /**
+        @return number of files containing term
+    */
+    public int getPostingsNum(int t) {
+        return postingsStart(t).readVarInt();
+    }
+
+    /**
+        @return ascending ids of files containing term
+    */
+    @NotNull
+    public IPostingIterator postings(int t) {
+        return new PostingsCursor(postingsStart(t));
+    }
+
+    /**
+        @return cursor over ascending ids of files containing term
+    */
+    @NotNull
+    public IPostingCursor cursor(int t) {
+        return new PostingsCursor(postingsStart(t));
+    }
+
+    @NotNull
+    private Cursor postingsStart(int t) {
+        Cursor c = new Cursor(getLong(termIndex + t * 8L));
+        int len = c.readVarInt(); //skip term
+        c.pos += len;
+        return c;
+    }
+
+    /**
+        @return number of terms of file
+    */
+    public int getFileTermsNum(int f) {
+        return new Cursor(getLong(fileIndex + f * 8L)).readVarInt();
+    }
+
+    /**
+        @return ascending ids of terms of file
+    */
+    @NotNull
+    public IPostingIterator fileTerms(int f) {
+        return new DeltaIterator(new Cursor(getLong(fileIndex + f * 8L)));
+    }
+
+    /**
+        Deletes segment file. Mapping is released by garbage collector, so on systems
+        which do not allow to delete mapped files it is deleted on exit.
+    */
+    public void delete() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            if(log.isLoggable(Level.FINE))
+                log.fine("Segment will be deleted on exit " + file);
+            file.toFile().deleteOnExit();
+        }
+    }
+
+    private long getLong(long pos) { //aligned, so never crosses chunks
+        return chunks[(int)(pos >>> CHUNK_BITS)].getLong((int)(pos & CHUNK_MASK));
+    }
+
+    private class Cursor {
+        public Cursor(long pos) {
+            this.pos = pos;
+        }
+
+        public byte readByte() {
+            byte res = chunks[(int)(pos >>> CHUNK_BITS)].get((int)(pos & CHUNK_MASK));
+            ++pos;
+            return res;
+        }
+
+        public int readVarInt() {
+            int res = 0;
+            for(int shift = 0; ; shift += 7) {
+                byte b = readByte();
+                res |= (b & 0x7F) << shift;
+                if(b >= 0)
+                    return res;
+            }
+        }
+
+        public int readInt() {
+            return ((readByte() & 0xFF) << 24) | ((readByte() & 0xFF) << 16) | ((readByte() & 0xFF) << 8) | (readByte() & 0xFF);
+        }
+
+        public long pos;
+    }
+
+    /**
+        Postings are number of ids, skip table of first id and data offset of each block but the first one,
+        and data of deltas without first ids of blocks, which are in skip table
+    */
+    private class PostingsCursor implements IPostingIterator, IPostingCursor {
+        public PostingsCursor(@NotNull Cursor c) {
+            this.c = c;
+            num = c.readVarInt();
+            blocks = (num + SKIP_INTERVAL - 1) / SKIP_INTERVAL;
+            skipTable = c.pos;
+            data = skipTable + Math.max(blocks - 1, 0) * 8L;
+            c.pos = data;
+            i = -1;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return i + 1 < num;
+        }
+
+        @Override
+        public int next() {
+            ++i;
+            if(i == 0)
+                cur = c.readVarInt();
+            else if(i % SKIP_INTERVAL == 0)
+                cur = skipId(i / SKIP_INTERVAL);
+            else
+                cur += c.readVarInt();
+            return cur;
+        }
+
+        @Override
+        public int advance(int target) {
+            if(i >= 0 && cur >= target)
+                return cur;
+            int lo = i / SKIP_INTERVAL + 1, hi = blocks - 1, block = -1;
+            while(lo <= hi) { //last block starting not after target
+                int mid = (lo + hi) >>> 1;
+                if(skipId(mid) <= target) {
+                    block = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if(block > 0) {
+                i = block * SKIP_INTERVAL;
+                cur = skipId(block);
+                c.pos = data + new Cursor(skipTable + (block - 1) * 8L + 4).readInt();
+            }
+            while(i < 0 || cur < target) {
+                if(!hasNext()) {
+                    i = num;
+                    return cur = END;
+                }
+                next();
+            }
+            return cur;
+        }
+
+        @Override
+        public long cost() {
+            return num;
+        }
+
+        private int skipId(int block) {
+            return new Cursor(skipTable + (block - 1) * 8L).readInt();
+        }
+
+        private final Cursor c;
+        private final int num, blocks;
+        private final long skipTable, data;
+        private int i, cur;
+    }
+
+    private static class DeltaIterator implements IPostingIterator {
+        public DeltaIterator(@NotNull Cursor c) {
+            this.c = c;
+            left = c.readVarInt();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return left > 0;
+        }
+
+        @Override
+        public int next() {
+            --left;
+            cur += c.readVarInt();
+            return cur;
+        }
+
+        private final Cursor c;
+        private int left, cur;
+    }
+
+    /**
+        Compares terms by their UTF-8 bytes, the order terms are kept in segment
+    */
+    public static final Comparator<byte[]> TERMS_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            for(int i = 0; i < a.length && i < b.length; ++i) {
+                int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+                if(cmp != 0)
+                    return cmp;
+            }
+            return a.length - b.length;
+        }
+    };
+
+    /**
+        Observer of long write
+    */
+    interface IProgress {
+        void written(long size);
+    }
+
+    /**
+        Writes segment sequentially: terms in {@link #TERMS_ORDER}, then forward lists of files in order of ids
+    */
+    static class Writer implements Closeable {
+        public Writer(@NotNull Path file) throws IOException {
+            ch = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+            out.write(new byte[HEADER_SIZE]); //written on finish
+            pos = HEADER_SIZE;
+            termOffsets = new long[16];
+            fileOffsets = new long[16];
+        }
+
+        /**
+            @param term UTF-8 bytes of term, greater than previous one
+            @param ids ascending ids of files containing term
+            @param num number of ids
+        */
+        public void addTerm(@NotNull byte[] term, @NotNull int[] ids, int num) throws IOException {
+            if(filesNum > 0)
+                throw new IllegalStateException("Terms must be written before files");
+            if(termsNum == termOffsets.length)
+                termOffsets = Arrays.copyOf(termOffsets, termsNum * 2);
+            termOffsets[termsNum++] = pos;
+            writeVarInt(term.length);
+            out.write(term);
+            pos += term.length;
+            writePostings(ids, num);
+            postingsNum += num;
+        }
+
+        /**
+            @param terms ascending ids of terms of next file
+            @param num number of ids
+        */
+        public void addFile(@NotNull int[] terms, int num) throws IOException {
+            if(filesNum == fileOffsets.length)
+                fileOffsets = Arrays.copyOf(fileOffsets, filesNum * 2);
+            fileOffsets[filesNum++] = pos;
+            writeDeltas(terms, num);
+        }
+
+        /**
+            Writes live files of segments, renumbered in order of segments, so postings are concatenated
+            and stay sorted, as well as renumbered terms of files. Terms without live files are dropped.
+
+            @param in segments to write
+            @param newIds id in result for each id of each segment, -1 if file is not written
+            @param progress notified of written size after each term and file, or null
+        */
+        public void addSegments(@NotNull Segment[] in, @NotNull int[][] newIds, @Nullable IProgress progress)
+                throws IOException {
+            int k = in.length;
+            int[][] oldTermToNew = new int[k][];
+            for(int i = 0; i < k; ++i)
+                oldTermToNew[i] = new int[in[i].getTermsNum()];
+            int[] at = new int[k]; //next term of each segment
+            byte[][] cur = new byte[k][];
+            boolean[] matched = new boolean[k];
+            int[] ids = new int[16];
+            while(true) {
+                byte[] term = null;
+                for(int i = 0; i < k; ++i) {
+                    if(at[i] == in[i].getTermsNum())
+                        continue;
+                    if(cur[i] == null)
+                        cur[i] = in[i].getTerm(at[i]);
+                    if(term == null || TERMS_ORDER.compare(cur[i], term) < 0)
+                        term = cur[i];
+                }
+                if(term == null)
+                    break;
+                int num = 0;
+                for(int i = 0; i < k; ++i) {
+                    matched[i] = cur[i] != null && Arrays.equals(cur[i], term);
+                    if(!matched[i])
+                        continue;
+                    IPostingIterator it = in[i].postings(at[i]);
+                    while(it.hasNext()) {
+                        int id = newIds[i][it.next()];
+                        if(id == -1)
+                            continue;
+                        if(num == ids.length)
+                            ids = Arrays.copyOf(ids, num * 2);
+                        ids[num++] = id;
+                    }
+                }
+                for(int i = 0; i < k; ++i) {
+                    if(!matched[i])
+                        continue;
+                    oldTermToNew[i][at[i]++] = num == 0 ? -1 : termsNum;
+                    cur[i] = null;
+                }
+                if(num == 0)
+                    continue;
+                addTerm(term, ids, num);
+                if(progress != null)
+                    progress.written(pos);
+            }
+            for(int i = 0; i < k; ++i) {
+                for(int id = 0; id < newIds[i].length; ++id) {
+                    if(newIds[i][id] == -1)
+                        continue;
+                    int num = 0;
+                    IPostingIterator it = in[i].fileTerms(id);
+                    while(it.hasNext()) {
+                        if(num == ids.length)
+                            ids = Arrays.copyOf(ids, num * 2);
+                        ids[num++] = oldTermToNew[i][it.next()];
+                    }
+                    addFile(ids, num);
+                    if(progress != null)
+                        progress.written(pos);
+                }
+            }
+        }
+
+        /**
+            @return number of bytes written so far
+        */
+        public long getSize() {
+            return pos;
+        }
+
+        public void finish() throws IOException {
+            while(pos % 8 != 0) {
+                out.write(0);
+                ++pos;
+            }
+            long termIndex = pos;
+            for(int i = 0; i < termsNum; ++i)
+                out.writeLong(termOffsets[i]);
+            long fileIndex = termIndex + termsNum * 8L;
+            for(int i = 0; i < filesNum; ++i)
+                out.writeLong(fileOffsets[i]);
+            out.flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(termsNum).putInt(filesNum)
+                    .putLong(postingsNum).putLong(termIndex).putLong(fileIndex);
+            header.clear();
+            while(header.hasRemaining())
+                ch.write(header, header.position());
+            out.close();
+        }
+
+        @Override
+        public void close() throws IOException {
+            ch.close();
+        }
+
+        private void writePostings(@NotNull int[] ids, int num) throws IOException {
+            writeVarInt(num);
+            int offset = num > 0 ? varintLength(ids[0]) : 0;
+            for(int i = 1; i < num; ++i) {
+                if(i % SKIP_INTERVAL == 0) {
+                    out.writeInt(ids[i]);
+                    out.writeInt(offset);
+                    pos += 8;
+                } else {
+                    offset += varintLength(ids[i] - ids[i - 1]);
+                }
+            }
+            if(num > 0)
+                writeVarInt(ids[0]);
+            for(int i = 1; i < num; ++i)
+                if(i % SKIP_INTERVAL != 0)
+                    writeVarInt(ids[i] - ids[i - 1]);
+        }
+
+        private static int varintLength(int v) {
+            int res = 1;
+            while((v & ~0x7F) != 0) {
+                v >>>= 7;
+                ++res;
+            }
+            return res;
+        }
+
+        private void writeDeltas(@NotNull int[] ids, int num) throws IOException {
+            writeVarInt(num);
+            for(int i = 0; i < num; ++i)
+                writeVarInt(i == 0 ? ids[0] : ids[i] - ids[i - 1]);
+        }
+
+        private void writeVarInt(int v) throws IOException {
+            while((v & ~0x7F) != 0) {
+                out.writeByte((v & 0x7F) | 0x80);
+                v >>>= 7;
+                ++pos;
+            }
+            out.writeByte(v);
+            ++pos;
+        }
+
+        private final FileChannel ch;
+        private final DataOutputStream out;
+        private long pos;
+        private long[] termOffsets, fileOffsets;
+        private int termsNum, filesNum;
+        private long postingsNum;
+    }
+
+    private static final int MAGIC = 0x49445847; //IDXG
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int SKIP_INTERVAL = 128;
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    private final Path file;
+    private final MappedByteBuffer[] chunks;
+    private final int termsNum, filesNum;
+    private final long postingsNum;
+    private final long termIndex, fileIndex;
+    private static final Logger log = Logger.getLogger(Segment.class.getName());
+}
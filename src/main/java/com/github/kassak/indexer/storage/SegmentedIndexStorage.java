@@ -0,0 +1,904 @@
+package com.github.kassak.indexer.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SWMR bidirectional mapping between files & words, log-structured.
+ * New and changed files are kept in small in-memory segment, which is flushed to immutable
+ * memory mapped {@link Segment} when full. Words of file are either in memory or in one segment:
+ * file changed after it was flushed is deleted from its segment by clearing bit in live set
+ * of segment and its words are moved to memory. Segments of the same size tier are merged
+ * in background thread, which is throttled, and merged segment replaces its sources when writer
+ * thread notices it. Search asks memory and all segments.
+ * Readers are guarded by read-write lock, writer thread reads without locking.
+ */
+class SegmentedIndexStorage implements IIndexStorage {
+    static class SegmentedFile extends IndexedFile {
+        public SegmentedFile(@NotNull String path, long stamp) {
+            super(path, stamp);
+        }
+
+        public LiveSegment segment; //segment with words of file, null if words are not there
+        public int id = -1; //id in segment
+        public Set<String> words; //words in memory, null if none
+    }
+
+    /**
+        Segment with files it was written for and its deletions.
+        Changed by writer thread under write lock, merge thread reads only segment itself.
+    */
+    private static class LiveSegment {
+        public LiveSegment(@NotNull Segment segment, @NotNull SegmentedFile[] files) {
+            this.segment = segment;
+            this.files = files;
+            live = new BitSet(files.length);
+            live.set(0, files.length);
+            liveFilesNum = files.length;
+            liveCounts = new int[segment.getTermsNum()];
+            for(int t = 0; t < liveCounts.length; ++t)
+                liveCounts[t] = segment.getPostingsNum(t);
+            liveTermsNum = liveCounts.length;
+            livePostings = segment.getPostingsNum();
+        }
+
+        /**
+            Deletes file from segment, its words there are not seen anymore
+        */
+        public void delete(int id) {
+            live.clear(id);
+            --liveFilesNum;
+            IPostingIterator it = segment.fileTerms(id);
+            while(it.hasNext()) {
+                if(--liveCounts[it.next()] == 0)
+                    --liveTermsNum;
+                --livePostings;
+            }
+        }
+
+        /**
+            @return tier of segment by number of live postings, segments of the same tier are merged together
+        */
+        public int getTier() {
+            int tier = 0;
+            for(long bound = FLUSH_POSTINGS * MERGE_FACTOR; livePostings >= bound; bound *= MERGE_FACTOR)
+                ++tier;
+            return tier;
+        }
+
+        public final Segment segment;
+        public final SegmentedFile[] files; //files by id, including deleted ones
+        public final BitSet live;
+        public final int[] liveCounts; //number of live files of each term
+        public int liveTermsNum, liveFilesNum;
+        public long livePostings;
+        public boolean merging;
+    }
+
+    /**
+        Merge of several segments into one. Prepared by writer thread, written by merge thread.
+    */
+    private static class Merge implements Runnable {
+        public Merge(@NotNull List<LiveSegment> sources, @NotNull Path file) {
+            this.sources = sources;
+            this.file = file;
+            newIds = new int[sources.size()][];
+            int filesNum = 0;
+            for(int k = 0; k < newIds.length; ++k) { //files deleted later are deleted in result
+                LiveSegment s = sources.get(k);
+                newIds[k] = new int[s.files.length];
+                for(int id = 0; id < s.files.length; ++id)
+                    newIds[k][id] = s.live.get(id) ? filesNum++ : -1;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                result = write();
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ex) {
+                    e.addSuppressed(ex);
+                }
+            }
+            finished = true;
+        }
+
+        @NotNull
+        private Segment write() throws IOException {
+            Segment[] in = new Segment[sources.size()];
+            for(int i = 0; i < in.length; ++i)
+                in[i] = sources.get(i).segment;
+            final long start = System.nanoTime();
+            try (Segment.Writer out = new Segment.Writer(file)) {
+                out.addSegments(in, newIds, new Segment.IProgress() {
+                    @Override
+                    public void written(long size) {
+                        throttle(size, start);
+                    }
+                });
+                out.finish();
+            }
+            return Segment.open(file);
+        }
+
+        /**
+            Sleeps while merge is ahead of allowed rate, so that it does not take disk from tokenization
+        */
+        private static void throttle(long written, long start) {
+            long ahead = (long)(written * 1e9 / MERGE_BYTES_PER_SECOND) - (System.nanoTime() - start);
+            if(ahead < THROTTLE_MIN_SLEEP_NANOS)
+                return;
+            try {
+                TimeUnit.NANOSECONDS.sleep(ahead);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public final List<LiveSegment> sources;
+        public final Path file;
+        public final int[][] newIds; //id in result for each id of each source, -1 if not live
+        public Segment result;
+        public Exception failure;
+        public volatile boolean finished;
+    }
+
+    @Override
+    public void addWord(@NotNull Path file, @NotNull String word) {
+        SegmentedFile f = files.get(file.toString());
+        if(f == null) {
+            if(log.isLoggable(Level.FINER))
+                log.finer("Ignoring attempt to add word to removed file " + file);
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if(f.segment != null)
+                moveToMemory(f);
+            addMemoryWord(f, word);
+        } finally {
+            unlockWrite();
+        }
+        maintain();
+    }
+
+    /**
+        Words of file which is in segment are deleted there and added to memory at once
+    */
+    @Override
+    public void replaceWords(@NotNull Path file, @NotNull Collection<String> words) {
+        SegmentedFile f = files.get(file.toString());
+        if(f == null) {
+            if(log.isLoggable(Level.FINER))
+                log.finer("Ignoring attempt to replace words of removed file " + file);
+            return;
+        }
+        Set<String> newWords = words instanceof Set ? (Set<String>)words : new HashSet<>(words);
+        lock.writeLock().lock();
+        try {
+            if(f.segment != null)
+                deleteFromSegment(f);
+            if(f.words != null) {
+                Iterator<String> it = f.words.iterator();
+                while(it.hasNext()) {
+                    String w = it.next();
+                    if(newWords.contains(w))
+                        continue;
+                    it.remove();
+                    removeMemoryPosting(w, f);
+                }
+            }
+            for(String w : newWords)
+                addMemoryWord(f, w);
+        } finally {
+            unlockWrite();
+        }
+        maintain();
+    }
+
+    @Override
+    public void loadWords(@NotNull Collection<BulkFile> files) {
+        Iterator<BulkFile> it = files.iterator();
+        while(it.hasNext()) {
+            lock.writeLock().lock();
+            try {
+                for(int batch = 0; batch < LOAD_BATCH_SIZE && it.hasNext(); ++batch) {
+                    BulkFile bf = it.next();
+                    SegmentedFile f = this.files.get(bf.path.toString());
+                    if(f == null || f.segment != null || f.words != null)
+                        continue;
+                    for(String w : bf.words)
+                        addMemoryWord(f, w);
+                }
+            } finally {
+                unlockWrite();
+            }
+            maintain();
+        }
+    }
+
+    @Override
+    @NotNull
+    public Collection<FileEntry> search(@NotNull String word) {
+        byte[] term = word.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            List<FileEntry> res = new ArrayList<>();
+            for(LiveSegment s : segments) {
+                int t = s.segment.find(term);
+                if(t == -1 || s.liveCounts[t] == 0)
+                    continue;
+                IPostingIterator it = s.segment.postings(t); //decoded from mapped segment
+                while(it.hasNext()) {
+                    int id = it.next();
+                    if(!s.live.get(id))
+                        continue;
+                    SegmentedFile f = s.files[id];
+                    res.add(new FileEntry(f.path, f.state == States.VALID));
+                }
+            }
+            Set<SegmentedFile> fs = memory.get(word);
+            if(fs != null)
+                for(SegmentedFile f : fs)
+                    res.add(new FileEntry(f.path, f.state == States.VALID));
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+        Postings of matching terms of each segment are merged into bitmap of its ids.
+        File is live in one segment only, so files are listed once.
+    */
+    @Override
+    @NotNull
+    public Collection<FileEntry> searchPrefix(@NotNull String prefix) {
+        byte[] p = prefix.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            List<FileEntry> res = new ArrayList<>();
+            for(LiveSegment s : segments) {
+                BitSet found = new BitSet();
+                for(int t = s.segment.lowerBound(p); t < s.segment.getTermsNum() && s.segment.startsWith(t, p); ++t) {
+                    if(s.liveCounts[t] == 0)
+                        continue;
+                    IPostingIterator it = s.segment.postings(t);
+                    while(it.hasNext())
+                        found.set(it.next());
+                }
+                for(int id = found.nextSetBit(0); id >= 0; id = found.nextSetBit(id + 1)) {
+                    if(!s.live.get(id))
+                        continue;
+                    SegmentedFile f = s.files[id];
+                    res.add(new FileEntry(f.path, f.state == States.VALID));
+                }
+            }
+            final Set<SegmentedFile> fs = new LinkedHashSet<>();
+            sortedMemory.visitPrefix(prefix, new SortedTerms.IVisitor() {
+                @Override
+                public boolean visit(@NotNull String word) {
+                    fs.addAll(memory.get(word));
+                    return true;
+                }
+            });
+            for(SegmentedFile f : fs)
+                res.add(new FileEntry(f.path, f.state == States.VALID));
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+        Query is evaluated over each segment by cursors, skipping postings of frequent words,
+        and over memory segment by lookups in words of files. File is live in one of them only.
+    */
+    @Override
+    @NotNull
+    public Collection<FileEntry> search(@NotNull Query query) {
+        final List<FileEntry> res = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for(final LiveSegment s : segments) {
+                QueryEvaluator.evaluate(query, new QueryEvaluator.ICursorSource() {
+                    @NotNull
+                    @Override
+                    public IPostingCursor cursor(@NotNull String word) {
+                        int t = s.segment.find(word.getBytes(StandardCharsets.UTF_8));
+                        return t == -1 || s.liveCounts[t] == 0 ? QueryEvaluator.EMPTY : s.segment.cursor(t);
+                    }
+                }, new QueryEvaluator.IIdConsumer() {
+                    @Override
+                    public void accept(int id) {
+                        if(!s.live.get(id))
+                            return;
+                        SegmentedFile f = s.files[id];
+                        res.add(new FileEntry(f.path, f.state == States.VALID));
+                    }
+                });
+            }
+            List<SegmentedFile> found = new ArrayList<>();
+            QueryEvaluator.evaluate(query, new QueryEvaluator.ISetSource<SegmentedFile>() {
+                @NotNull
+                @Override
+                public Collection<SegmentedFile> files(@NotNull String word) {
+                    Set<SegmentedFile> fs = memory.get(word);
+                    return fs == null ? Collections.<SegmentedFile>emptySet() : fs;
+                }
+
+                @Override
+                public boolean contains(@NotNull String word, @NotNull SegmentedFile file) {
+                    return file.words.contains(word);
+                }
+            }, found);
+            for(SegmentedFile f : found)
+                res.add(new FileEntry(f.path, f.state == States.VALID));
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public IndexedFile getFile(@NotNull Path file) {
+        return files.get(file.toString()); //writer only
+    }
+
+    @Override
+    @NotNull
+    public IndexedFile getOrAddFile(@NotNull Path file, long stamp) {
+        String sfile = file.toString();
+        SegmentedFile f = files.get(sfile);
+        if(f == null) {
+            f = new SegmentedFile(sfile, stamp);
+            lock.writeLock().lock();
+            try {
+                files.put(sfile, f);
+            } finally {
+                unlockWrite();
+            }
+        }
+        return f;
+    }
+
+    @Override
+    @NotNull
+    public List<FileStatistics> getFileNames() {
+        lock.readLock().lock();
+        try {
+            List<FileStatistics> res = new ArrayList<>(files.size());
+            for(SegmentedFile f : files.values())
+                res.add(new FileStatistics(f.path, f.state, wordsNum(f)));
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int wordsNum(@NotNull SegmentedFile f) {
+        if(f.segment != null)
+            return f.segment.segment.getFileTermsNum(f.id);
+        return f.words == null ? 0 : f.words.size();
+    }
+
+    @Override
+    public boolean hasFilesUnder(@NotNull Path dir) {
+        String sdir = dir.toString();
+        lock.readLock().lock();
+        try {
+            if(files.containsKey(sdir))
+                return true;
+            sdir += FileSystems.getDefault().getSeparator();
+            return !files.subMap(sdir, sdir + Character.MAX_VALUE).isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @NotNull
+    public List<String> getFilesUnder(@NotNull Path dir) {
+        return filesUnder(dir.toString());
+    }
+
+    @Override
+    @NotNull
+    public IndexStatistics getStats() {
+        IndexStatistics res = new IndexStatistics();
+        lock.readLock().lock();
+        try {
+            for(SegmentedFile f : files.values()) {
+                ++res.numFiles;
+                if(f.state == States.VALID)
+                    ++res.numValidFiles;
+            }
+            res.numWords = segments.size() == 1 && memory.isEmpty() ? segments.get(0).liveTermsNum : words().size();
+            res.numSegments = segments.size();
+            res.numMerges = mergesNum;
+        } finally {
+            lock.readLock().unlock();
+        }
+        return res;
+    }
+
+    @Override
+    @NotNull
+    public List<String> getWords() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(words());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+        Terms of each segment and words of memory are sorted, so only pages of them are read and merged
+    */
+    @Override
+    @NotNull
+    public List<String> getWords(@NotNull String from, @Nullable String to, final int limit) {
+        final TreeSet<String> words = new TreeSet<>(SortedTerms.ORDER);
+        final int[] num = {0};
+        lock.readLock().lock();
+        try {
+            for(LiveSegment s : segments)
+                s.segment.addTerms(from, to, s.liveCounts, limit, words);
+            sortedMemory.visit(from, to, new SortedTerms.IVisitor() {
+                @Override
+                public boolean visit(@NotNull String word) {
+                    words.add(word);
+                    return ++num[0] < limit;
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<String> res = new ArrayList<>();
+        for(String w : words) {
+            if(res.size() >= limit)
+                break;
+            res.add(w);
+        }
+        return res;
+    }
+
+    /**
+        @return live words of all segments and memory, words present in several segments are listed once
+    */
+    @NotNull
+    private Set<String> words() {
+        Set<String> res = new HashSet<>(memory.keySet());
+        for(LiveSegment s : segments)
+            for(int t = 0; t < s.liveCounts.length; ++t)
+                if(s.liveCounts[t] > 0)
+                    res.add(s.segment.getTermString(t));
+        return res;
+    }
+
+    @Override
+    public void writeFiles(@NotNull IndexSnapshot.Writer out) throws IOException {
+        List<String> fileWords = new ArrayList<>();
+        for(SegmentedFile f : files.values()) { //writer only
+            if(f.state != States.VALID)
+                continue;
+            fileWords.clear();
+            if(f.segment != null) {
+                IPostingIterator it = f.segment.segment.fileTerms(f.id);
+                while(it.hasNext())
+                    fileWords.add(f.segment.segment.getTermString(it.next()));
+            } else if(f.words != null) {
+                fileWords.addAll(f.words);
+            }
+            out.writeFile(f.path, f.size, f.modified, fileWords);
+        }
+    }
+
+    @Override
+    public void removeFile(@NotNull Path file) {
+        if(log.isLoggable(Level.FINER))
+            log.finer("Removing file " + file);
+        removeFile(file.toString());
+    }
+
+    @Override
+    public void removeDirectory(@NotNull Path file) {
+        String sfile = file.toString();
+        if(log.isLoggable(Level.FINER))
+            log.finer("Removing directory " + sfile);
+        removeFile(sfile);
+        for(String f : filesUnder(sfile))
+            removeFile(f);
+    }
+
+    @Override
+    public void removeNonexistent(@NotNull Path file) {
+        String sfile = file.toString();
+        if(log.isLoggable(Level.FINER))
+            log.finer("Removing nonexistent " + sfile);
+        removeFile(sfile);
+        for(String f : filesUnder(sfile)) {
+            if(!Files.exists(FileSystems.getDefault().getPath(f)))
+                removeFile(f);
+        }
+    }
+
+    @Override
+    public void removeWords(@NotNull Path file) {
+        SegmentedFile f = files.get(file.toString());
+        if(f == null) {
+            if(log.isLoggable(Level.FINER))
+                log.finer("Ignoring attempt to remove word from removed file " + file);
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            removeWords(f);
+        } finally {
+            unlockWrite();
+        }
+        maintain();
+    }
+
+    private void removeFile(@NotNull String sfile) {
+        SegmentedFile f = files.get(sfile);
+        if(f == null)
+            return;
+        lock.writeLock().lock();
+        try {
+            removeWords(f);
+            files.remove(sfile);
+        } finally {
+            unlockWrite();
+        }
+        maintain();
+    }
+
+    @NotNull
+    private List<String> filesUnder(@NotNull String sdir) {
+        sdir += FileSystems.getDefault().getSeparator();
+        return new ArrayList<>(files.subMap(sdir, sdir + Character.MAX_VALUE).keySet());
+    }
+
+    private void removeWords(@NotNull SegmentedFile f) {
+        if(f.segment != null)
+            deleteFromSegment(f);
+        if(f.words != null) {
+            for(String w : f.words)
+                removeMemoryPosting(w, f);
+            f.words = null;
+            memoryFiles.remove(f);
+        }
+    }
+
+    /**
+        Segment without live files is dropped, unless it is being merged
+    */
+    private void deleteFromSegment(@NotNull SegmentedFile f) {
+        LiveSegment s = f.segment;
+        s.delete(f.id);
+        f.segment = null;
+        f.id = -1;
+        if(s.liveFilesNum == 0 && !s.merging) {
+            segments.remove(s);
+            s.segment.delete();
+        }
+    }
+
+    private void moveToMemory(@NotNull SegmentedFile f) {
+        Segment s = f.segment.segment;
+        List<String> words = new ArrayList<>(s.getFileTermsNum(f.id));
+        IPostingIterator it = s.fileTerms(f.id);
+        while(it.hasNext())
+            words.add(s.getTermString(it.next()));
+        deleteFromSegment(f);
+        for(String w : words)
+            addMemoryWord(f, w);
+    }
+
+    private void addMemoryWord(@NotNull SegmentedFile f, @NotNull String word) {
+        if(f.words == null) {
+            f.words = new HashSet<>();
+            memoryFiles.add(f);
+        }
+        if(!f.words.add(word))
+            return;
+        Set<SegmentedFile> fs = memory.get(word);
+        if(fs == null) {
+            fs = new HashSet<>(2);
+            memory.put(word, fs);
+            sortedMemory.added(word);
+        }
+        fs.add(f);
+        ++memoryPostings;
+    }
+
+    private void removeMemoryPosting(@NotNull String word, @NotNull SegmentedFile f) {
+        Set<SegmentedFile> fs = memory.get(word);
+        fs.remove(f);
+        if(fs.isEmpty()) {
+            memory.remove(word);
+            sortedMemory.removed();
+        }
+        --memoryPostings;
+    }
+
+    /**
+        Installs finished merge, flushes memory when it is full and starts next merge.
+        Failure to write segment leaves memory as is and postpones next attempt.
+    */
+    private void maintain() {
+        if(merge != null && merge.finished)
+            finishMerge();
+        if(memoryPostings < flushThreshold)
+            return;
+        try {
+            flush();
+            flushThreshold = FLUSH_POSTINGS;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to write index segment, keeping changes in heap", e);
+            flushThreshold = memoryPostings * 2;
+            return;
+        }
+        maybeMerge();
+    }
+
+    @NotNull
+    private Path newSegmentFile() throws IOException {
+        if(dir == null) {
+            dir = Files.createTempDirectory("indexer-segments");
+            dir.toFile().deleteOnExit();
+        }
+        Path file = dir.resolve("segment-" + segmentsNum++);
+        file.toFile().deleteOnExit();
+        return file;
+    }
+
+    /**
+        Writes files of memory into new segment
+    */
+    private void flush() throws IOException {
+        Path file = newSegmentFile();
+        SegmentedFile[] newFiles = memoryFiles.toArray(new SegmentedFile[memoryFiles.size()]);
+        Map<SegmentedFile, Integer> fileIds = new HashMap<>();
+        for(int id = 0; id < newFiles.length; ++id)
+            fileIds.put(newFiles[id], id);
+        List<byte[]> terms = new ArrayList<>(memory.size());
+        for(String w : memory.keySet())
+            terms.add(w.getBytes(StandardCharsets.UTF_8));
+        Collections.sort(terms, Segment.TERMS_ORDER);
+
+        Map<String, Integer> termIds = new HashMap<>();
+        int[] ids = new int[16];
+        try (Segment.Writer out = new Segment.Writer(file)) {
+            for(byte[] term : terms) {
+                String w = new String(term, StandardCharsets.UTF_8);
+                int num = 0;
+                for(SegmentedFile f : memory.get(w)) {
+                    if(num == ids.length)
+                        ids = Arrays.copyOf(ids, num * 2);
+                    ids[num++] = fileIds.get(f);
+                }
+                Arrays.sort(ids, 0, num);
+                termIds.put(w, termIds.size());
+                out.addTerm(term, ids, num);
+            }
+            for(SegmentedFile f : newFiles) {
+                int num = 0;
+                for(String w : f.words) {
+                    if(num == ids.length)
+                        ids = Arrays.copyOf(ids, num * 2);
+                    ids[num++] = termIds.get(w);
+                }
+                Arrays.sort(ids, 0, num);
+                out.addFile(ids, num);
+            }
+            out.finish();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        LiveSegment segment = new LiveSegment(Segment.open(file), newFiles);
+
+        lock.writeLock().lock();
+        try {
+            for(int id = 0; id < newFiles.length; ++id) {
+                newFiles[id].segment = segment;
+                newFiles[id].id = id;
+                newFiles[id].words = null;
+            }
+            segments.add(segment);
+            memory.clear();
+            sortedMemory.clear();
+            memoryFiles.clear();
+            memoryPostings = 0;
+        } finally {
+            unlockWrite();
+        }
+        if(log.isLoggable(Level.FINE))
+            log.fine("Flushed segment of " + newFiles.length + " files, " + terms.size() + " words and "
+                    + segment.livePostings + " postings");
+    }
+
+    /**
+        Starts merge of {@link #MERGE_FACTOR} smallest segments of the lowest tier which has that many,
+        or of segment which is mostly deleted. Only one merge of storage runs at a time.
+    */
+    private void maybeMerge() {
+        if(merge != null)
+            return;
+        List<LiveSegment> sources = null;
+        Map<Integer, List<LiveSegment>> tiers = new TreeMap<>();
+        for(LiveSegment s : segments) {
+            List<LiveSegment> tier = tiers.get(s.getTier());
+            if(tier == null) {
+                tier = new ArrayList<>();
+                tiers.put(s.getTier(), tier);
+            }
+            tier.add(s);
+        }
+        for(List<LiveSegment> tier : tiers.values()) {
+            if(tier.size() >= MERGE_FACTOR) {
+                Collections.sort(tier, BY_SIZE);
+                sources = new ArrayList<>(tier.subList(0, MERGE_FACTOR));
+                break;
+            }
+        }
+        if(sources == null) {
+            for(LiveSegment s : segments) {
+                if(s.segment.getPostingsNum() - s.livePostings > s.livePostings) {
+                    sources = Collections.singletonList(s);
+                    break;
+                }
+            }
+        }
+        if(sources == null)
+            return;
+        Merge m;
+        try {
+            m = new Merge(sources, newSegmentFile());
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to create index segment, merge is postponed", e);
+            return;
+        }
+        try {
+            mergeExecutor.execute(m);
+        } catch (RejectedExecutionException e) {
+            log.log(Level.WARNING, "Merge of index segments is rejected", e);
+            return;
+        }
+        for(LiveSegment s : sources)
+            s.merging = true;
+        merge = m;
+    }
+
+    /**
+        Replaces sources of merge with its result. Files deleted from sources since merge was started
+        are deleted from result. Failed merge leaves sources as they are.
+    */
+    private void finishMerge() {
+        Merge m = merge;
+        merge = null;
+        if(m.result == null) {
+            log.log(Level.WARNING, "Failed to merge index segments", m.failure);
+            for(LiveSegment s : m.sources)
+                s.merging = false;
+            return;
+        }
+        SegmentedFile[] newFiles = new SegmentedFile[m.result.getFilesNum()];
+        for(int k = 0; k < m.sources.size(); ++k) {
+            LiveSegment s = m.sources.get(k);
+            for(int id = 0; id < s.files.length; ++id)
+                if(m.newIds[k][id] != -1)
+                    newFiles[m.newIds[k][id]] = s.files[id];
+        }
+        LiveSegment segment = new LiveSegment(m.result, newFiles);
+        lock.writeLock().lock();
+        try {
+            for(int k = 0; k < m.sources.size(); ++k) {
+                LiveSegment s = m.sources.get(k);
+                for(int id = 0; id < s.files.length; ++id) {
+                    int newId = m.newIds[k][id];
+                    if(newId == -1)
+                        continue;
+                    SegmentedFile f = s.files[id];
+                    if(f.segment == s && f.id == id) {
+                        f.segment = segment;
+                        f.id = newId;
+                    } else {
+                        segment.delete(newId);
+                    }
+                }
+            }
+            segments.removeAll(m.sources);
+            if(segment.liveFilesNum > 0)
+                segments.add(segment);
+            ++mergesNum;
+        } finally {
+            unlockWrite();
+        }
+        for(LiveSegment s : m.sources)
+            s.segment.delete();
+        if(segment.liveFilesNum == 0)
+            segment.segment.delete();
+        if(log.isLoggable(Level.FINE))
+            log.fine("Merged " + m.sources.size() + " segments into segment of " + segment.liveFilesNum
+                    + " files and " + segment.livePostings + " postings");
+        maybeMerge();
+    }
+
+    /**
+        Releases write lock, then rebuilds sorted words if needed, so that readers are not blocked by rebuild
+    */
+    private void unlockWrite() {
+        lock.writeLock().unlock();
+        sortedMemory.rebuildIfNeeded();
+    }
+
+    private static final Comparator<LiveSegment> BY_SIZE = new Comparator<LiveSegment>() {
+        @Override
+        public int compare(LiveSegment a, LiveSegment b) {
+            return Long.compare(a.livePostings, b.livePostings);
+        }
+    };
+
+    /**
+        Merges of all storages share one low priority thread
+    */
+    private static final ExecutorService mergeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NotNull Runnable r) {
+            Thread t = new Thread(r, "Index segments merge");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    private static final int LOAD_BATCH_SIZE = 256;
+    private static final long FLUSH_POSTINGS = 16 * 1024;
+    private static final int MERGE_FACTOR = 4;
+    private static final long MERGE_BYTES_PER_SECOND = 32L * 1024 * 1024;
+    private static final long THROTTLE_MIN_SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final TreeMap<String, SegmentedFile> files = new TreeMap<>();
+    private final Map<String, Set<SegmentedFile>> memory = new HashMap<>();
+    private final SortedTerms sortedMemory = new SortedTerms(new SortedTerms.ILiveness() {
+        @Override
+        public boolean isLive(@NotNull String word) {
+            return memory.containsKey(word);
+        }
+    });
+    private final Set<SegmentedFile> memoryFiles = new LinkedHashSet<>();
+    private long memoryPostings;
+    private long flushThreshold = FLUSH_POSTINGS;
+    private final List<LiveSegment> segments = new ArrayList<>();
+    private Merge merge; //running or finished merge, writer only
+    private long mergesNum;
+    private Path dir;
+    private int segmentsNum;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private static final Logger log = Logger.getLogger(SegmentedIndexStorage.class.getName());
+}
@@ -0,0 +1,166 @@
+package com.github.kassak.indexer.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+    Sorted view of words kept by storage in hash map, for prefix and range queries.
+    Words are in {@link FrontCodedTerms} and words added since it was built are in skip list.
+    Removed words stay there until rebuild and are skipped by liveness check of storage.
+    Array is rebuilt when changes exceed 1/8 of it, so rebuild is amortized over changes.
+    Changed by single writer, read concurrently. Writer rebuilds array after releasing lock of storage,
+    so readers are not blocked by rebuild and keep searching previous state meanwhile.
+*/
+class SortedTerms {
+    interface ILiveness {
+        /**
+            @return true if word is still present in storage
+        */
+        boolean isLive(@NotNull String word);
+    }
+
+    interface IVisitor {
+        /**
+            @return false to stop
+        */
+        boolean visit(@NotNull String word);
+    }
+
+    public SortedTerms(@NotNull ILiveness liveness) {
+        this.liveness = liveness;
+        state = new State(FrontCodedTerms.EMPTY);
+    }
+
+    /**
+        Word became present in storage. Must be called by writer.
+    */
+    public void added(@NotNull String word) {
+        state.recent.add(word);
+        ++changes;
+    }
+
+    /**
+        Word is no longer present in storage. Must be called by writer.
+    */
+    public void removed() {
+        ++changes;
+    }
+
+    /**
+        All words are removed from storage. Must be called by writer.
+    */
+    public void clear() {
+        state = new State(FrontCodedTerms.EMPTY);
+        changes = 0;
+    }
+
+    /**
+        Rebuilds array if there were enough changes. Must be called by writer outside of lock of storage:
+        liveness is checked without lock, which is safe as storage is changed by writer only.
+    */
+    public void rebuildIfNeeded() {
+        if(changes <= Math.max(MIN_CHANGES, state.terms.size() >> 3))
+            return;
+        final FrontCodedTerms.Builder builder = new FrontCodedTerms.Builder();
+        visit("", null, new IVisitor() {
+            @Override
+            public boolean visit(@NotNull String word) {
+                builder.add(word);
+                return true;
+            }
+        });
+        state = new State(builder.build()); //readers keep previous state
+        changes = 0;
+    }
+
+    /**
+        Visits live words in [from, to) in {@link #ORDER}
+
+        @param to end of range or null if range is unbounded
+    */
+    public void visit(@NotNull String from, @Nullable String to, @NotNull IVisitor visitor) {
+        State s = state;
+        FrontCodedTerms.Cursor terms = s.terms.cursor(from.getBytes(StandardCharsets.UTF_8));
+        NavigableSet<String> tail = s.recent.tailSet(from, true);
+        Iterator<String> recent = (to == null ? tail : tail.headSet(to, false)).iterator();
+        String a = next(terms, to);
+        String b = recent.hasNext() ? recent.next() : null;
+        while(a != null || b != null) {
+            String w;
+            int cmp = a == null ? 1 : b == null ? -1 : ORDER.compare(a, b);
+            if(cmp <= 0) {
+                w = a;
+                a = next(terms, to);
+                if(cmp == 0) //removed and added again
+                    b = recent.hasNext() ? recent.next() : null;
+            } else {
+                w = b;
+                b = recent.hasNext() ? recent.next() : null;
+            }
+            if(liveness.isLive(w) && !visitor.visit(w))
+                return;
+        }
+    }
+
+    @Nullable
+    private static String next(@NotNull FrontCodedTerms.Cursor terms, @Nullable String to) {
+        if(!terms.hasNext())
+            return null;
+        String res = terms.next();
+        return to == null || ORDER.compare(res, to) < 0 ? res : null;
+    }
+
+    /**
+        Visits live words starting with prefix in {@link #ORDER}
+    */
+    public void visitPrefix(@NotNull final String prefix, @NotNull final IVisitor visitor) {
+        visit(prefix, null, new IVisitor() {
+            @Override
+            public boolean visit(@NotNull String word) {
+                return word.startsWith(prefix) && visitor.visit(word);
+            }
+        });
+    }
+
+    private static class State {
+        public State(@NotNull FrontCodedTerms terms) {
+            this.terms = terms;
+        }
+
+        public final FrontCodedTerms terms;
+        public final ConcurrentSkipListSet<String> recent = new ConcurrentSkipListSet<>(ORDER);
+    }
+
+    /**
+        Order of code points, which is the order of UTF-8 bytes used by {@link Segment#TERMS_ORDER}
+    */
+    public static final Comparator<String> ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            int n = Math.min(a.length(), b.length());
+            for(int i = 0; i < n; ++i) {
+                char ca = a.charAt(i), cb = b.charAt(i);
+                if(ca == cb)
+                    continue;
+                //surrogates encode code points above all other chars
+                boolean sa = Character.isSurrogate(ca), sb = Character.isSurrogate(cb);
+                if(sa != sb)
+                    return sa ? 1 : -1;
+                return ca - cb;
+            }
+            return a.length() - b.length();
+        }
+    };
+
+    private static final int MIN_CHANGES = 1024;
+
+    private final ILiveness liveness;
+    private volatile State state;
+    private int changes; //writer only
+}
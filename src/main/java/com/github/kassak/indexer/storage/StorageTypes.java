@@ -0,0 +1,25 @@
+package com.github.kassak.indexer.storage;
+
+public class StorageTypes {
+    /**
+        Cross referenced maps of files and words
+    */
+    static public final int MAP = 0;
+    /**
+        Files and words interned to int ids, postings are sorted int arrays
+    */
+    static public final int INTERNED = 1;
+    /**
+        Same as {@link #INTERNED}, but word postings are compressed
+    */
+    static public final int COMPRESSED = 2;
+    /**
+        Words are kept in memory mapped immutable segments, which are merged by writer thread,
+        recent changes are kept in heap
+    */
+    static public final int MAPPED = 3;
+    /**
+        Words are kept in memory mapped immutable segments, which are merged in background
+    */
+    static public final int SEGMENTED = 4;
+}
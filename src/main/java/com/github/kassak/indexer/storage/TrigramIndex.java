@@ -0,0 +1,277 @@
+package com.github.kassak.indexer.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+    Index of trigrams of words for substring and regex search inside words.
+    Words get ids in order of addition, every trigram has sorted list of ids of words containing it.
+    Candidates for literals are words having all their trigrams, they are verified by filter.
+    Words are only added, so removed ones remain until index is rebuilt and are dropped by search in storage.
+    Modified by single thread, searched from any thread.
+*/
+class TrigramIndex {
+    interface IWordFilter {
+        boolean accept(@NotNull String word);
+    }
+
+    /**
+        Adds word if it is not known yet
+    */
+    public void add(@NotNull String word) {
+        lock.writeLock().lock();
+        try {
+            addLocked(word);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+        Adds words which are not known yet under single lock
+    */
+    public void addAll(@NotNull Collection<String> words) {
+        lock.writeLock().lock();
+        try {
+            for(String w : words)
+                addLocked(w);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addLocked(@NotNull String word) {
+        if(!known.add(word))
+            return;
+        int id = words.size();
+        words.add(word);
+        for(int i = 0; i + TRIGRAM_LENGTH <= word.length(); ++i) {
+            String t = word.substring(i, i + TRIGRAM_LENGTH);
+            IntPostingList p = postings.get(t);
+            if(p == null) {
+                p = new IntPostingList();
+                postings.put(t, p);
+            }
+            p.add(id); //ids are ascending, repeated trigram is added once
+        }
+    }
+
+    /**
+        @return number of words added
+    */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return words.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+        Words containing every literal and accepted by filter.
+        Literals shorter than trigram do not narrow candidates.
+
+        @param literals substrings which any accepted word contains
+        @param filter exact check of candidate
+    */
+    @NotNull
+    public List<String> find(@NotNull Collection<String> literals, @NotNull final IWordFilter filter) {
+        final List<String> res = new ArrayList<>();
+        Query query = trigramsQuery(literals);
+        lock.readLock().lock();
+        try {
+            if(query == null) {
+                filter(words, filter, res);
+                return res;
+            }
+            QueryEvaluator.evaluate(query, new QueryEvaluator.ICursorSource() {
+                @NotNull
+                @Override
+                public IPostingCursor cursor(@NotNull String trigram) {
+                    IntPostingList p = postings.get(trigram);
+                    return p == null ? QueryEvaluator.EMPTY : p.cursor();
+                }
+            }, new QueryEvaluator.IIdConsumer() {
+                @Override
+                public void accept(int id) {
+                    String w = words.get(id);
+                    if(filter.accept(w))
+                        res.add(w);
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        return res;
+    }
+
+    /**
+        @return AND of distinct trigrams of literals or null if there are none
+    */
+    private static Query trigramsQuery(@NotNull Collection<String> literals) {
+        Set<String> trigrams = new LinkedHashSet<>();
+        for(String l : literals)
+            for(int i = 0; i + TRIGRAM_LENGTH <= l.length(); ++i)
+                trigrams.add(l.substring(i, i + TRIGRAM_LENGTH));
+        if(trigrams.isEmpty())
+            return null;
+        Query[] ops = new Query[trigrams.size()];
+        int i = 0;
+        for(String t : trigrams)
+            ops[i++] = Query.word(t);
+        return ops.length == 1 ? ops[0] : Query.and(ops);
+    }
+
+    /**
+        Adds words accepted by filter to result
+    */
+    static void filter(@NotNull Collection<String> words, @NotNull IWordFilter filter, @NotNull Collection<String> res) {
+        for(String w : words)
+            if(filter.accept(w))
+                res.add(w);
+    }
+
+    @NotNull
+    static IWordFilter substringFilter(@NotNull final String s) {
+        return new IWordFilter() {
+            @Override
+            public boolean accept(@NotNull String word) {
+                return word.contains(s);
+            }
+        };
+    }
+
+    @NotNull
+    static IWordFilter regexFilter(@NotNull final Pattern p) {
+        return new IWordFilter() {
+            @Override
+            public boolean accept(@NotNull String word) {
+                return p.matcher(word).find();
+            }
+        };
+    }
+
+    /**
+        Literal runs which any match of pattern contains.
+        Groups and classes are skipped, and character followed by optional quantifier is dropped.
+        Nothing is required of patterns with flags, top level alternatives or unusual escapes.
+    */
+    @NotNull
+    static List<String> requiredLiterals(@NotNull Pattern p) {
+        List<String> res = new ArrayList<>();
+        String s = p.pattern();
+        if(p.flags() != 0 || s.contains("(?"))
+            return res;
+        StringBuilder cur = new StringBuilder();
+        for(int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            switch(c) {
+                case '\\':
+                    if(i + 1 == s.length())
+                        return Collections.emptyList();
+                    char e = s.charAt(++i);
+                    if(!Character.isLetterOrDigit(e)) {
+                        cur.append(e);
+                    } else if("dDwWsSbB".indexOf(e) >= 0) {
+                        flush(cur, res);
+                    } else { //escaped literals, properties and quoting are not parsed
+                        return Collections.emptyList();
+                    }
+                    break;
+                case '[':
+                    flush(cur, res);
+                    i = skipClass(s, i);
+                    break;
+                case '(':
+                    flush(cur, res); //group may be optional or have alternatives
+                    i = skipGroup(s, i);
+                    break;
+                case '|':
+                    return Collections.emptyList();
+                case '*':
+                case '?':
+                case '{':
+                    if(cur.length() > 0) //quantifier applies to whole code point
+                        cur.setLength(cur.offsetByCodePoints(cur.length(), -1));
+                    flush(cur, res);
+                    if(c == '{')
+                        i = s.indexOf('}', i);
+                    break;
+                case '+':
+                case '.':
+                case '^':
+                case '$':
+                case ')':
+                    flush(cur, res);
+                    break;
+                default:
+                    cur.append(c);
+            }
+            if(i < 0) //not closed, pattern is parsed differently
+                return Collections.emptyList();
+        }
+        flush(cur, res);
+        return res;
+    }
+
+    private static void flush(@NotNull StringBuilder cur, @NotNull List<String> res) {
+        if(cur.length() >= TRIGRAM_LENGTH)
+            res.add(cur.toString());
+        cur.setLength(0);
+    }
+
+    /**
+        @return position of closing bracket of class, -1 if there is none
+    */
+    private static int skipClass(@NotNull String s, int i) {
+        int depth = 0;
+        for(; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if(c == '\\') {
+                ++i;
+            } else if(c == '[') {
+                ++depth;
+                if(i + 1 < s.length() && s.charAt(i + 1) == '^')
+                    ++i;
+                if(i + 1 < s.length() && s.charAt(i + 1) == ']') //leading bracket is literal
+                    ++i;
+            } else if(c == ']' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+        @return position of closing parenthesis of group, -1 if there is none
+    */
+    private static int skipGroup(@NotNull String s, int i) {
+        int depth = 0;
+        for(; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if(c == '\\') {
+                ++i;
+            } else if(c == '[') {
+                i = skipClass(s, i);
+                if(i < 0)
+                    return -1;
+            } else if(c == '(') {
+                ++depth;
+            } else if(c == ')' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<String> words = new ArrayList<>(); //by id
+    private final Set<String> known = new HashSet<>();
+    private final Map<String, IntPostingList> postings = new HashMap<>();
+    static final int TRIGRAM_LENGTH = 3;
+}
@@ -0,0 +1,152 @@
+package com.github.kassak.indexer.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+    Open addressing String to dense int id mapping.
+    Ids of removed words are reused. Words are also kept sorted for prefix and range queries.
+*/
+class WordDictionary {
+    public WordDictionary() {
+        table = new int[16];
+        Arrays.fill(table, -1);
+        words = new String[16];
+        freeIds = new int[16];
+        sorted = new SortedTerms(new SortedTerms.ILiveness() {
+            @Override
+            public boolean isLive(@NotNull String word) {
+                return get(word) != -1;
+            }
+        });
+    }
+
+    /**
+        @param word word
+        @return id of word or -1 if not present
+    */
+    public int get(@NotNull String word) {
+        int mask = table.length - 1;
+        for(int i = slot(word, mask); ; i = (i + 1) & mask) {
+            int id = table[i];
+            if(id == -1)
+                return -1;
+            if(words[id].equals(word))
+                return id;
+        }
+    }
+
+    /**
+        @param word word
+        @return id of word, word is added if not present
+    */
+    public int getOrAdd(@NotNull String word) {
+        int mask = table.length - 1;
+        int i = slot(word, mask);
+        for(; ; i = (i + 1) & mask) {
+            int id = table[i];
+            if(id == -1)
+                break;
+            if(words[id].equals(word))
+                return id;
+        }
+        int id = freeIdsNum > 0 ? freeIds[--freeIdsNum] : nextId++;
+        if(id >= words.length)
+            words = Arrays.copyOf(words, words.length * 2);
+        words[id] = word;
+        table[i] = id;
+        if(++size * 2 > table.length)
+            rehash(table.length * 2);
+        sorted.added(word);
+        return id;
+    }
+
+    /**
+        @param id word id
+        @return word or null if id is free
+    */
+    @Nullable
+    public String getWord(int id) {
+        return id < nextId ? words[id] : null;
+    }
+
+    /**
+        Removes word by id. Id will be reused.
+
+        @param id word id
+    */
+    public void remove(int id) {
+        String word = words[id];
+        int mask = table.length - 1;
+        int i = slot(word, mask);
+        while(table[i] != id)
+            i = (i + 1) & mask;
+        //backward shift deletion keeps probe sequences unbroken
+        for(int j = (i + 1) & mask; table[j] != -1; j = (j + 1) & mask) {
+            int home = slot(words[table[j]], mask);
+            if(((j - home) & mask) >= ((j - i) & mask)) {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+        table[i] = -1;
+        words[id] = null;
+        if(freeIdsNum == freeIds.length)
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        freeIds[freeIdsNum++] = id;
+        --size;
+        sorted.removed();
+    }
+
+    /**
+        @return words in code points order
+    */
+    @NotNull
+    public SortedTerms sorted() {
+        return sorted;
+    }
+
+    /**
+        @return number of words
+    */
+    public int size() {
+        return size;
+    }
+
+    /**
+        @return upper bound of ids ever allocated
+    */
+    public int idsBound() {
+        return nextId;
+    }
+
+    private static int slot(@NotNull String word, int mask) {
+        int h = word.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void rehash(int newSize) {
+        int[] nt = new int[newSize];
+        Arrays.fill(nt, -1);
+        int mask = newSize - 1;
+        for(int id : table) {
+            if(id == -1)
+                continue;
+            int i = slot(words[id], mask);
+            while(nt[i] != -1)
+                i = (i + 1) & mask;
+            nt[i] = id;
+        }
+        table = nt;
+    }
+
+    private int[] table;
+    private String[] words;
+    private int[] freeIds;
+    private int freeIdsNum;
+    private int nextId;
+    private int size;
+    private final SortedTerms sorted;
+}
@@ -2,12 +2,64 @@ package com.github.kassak.indexer.storage.factories;
 
 import com.github.kassak.indexer.storage.IIndexProcessor;
 import com.github.kassak.indexer.storage.IndexProcessor;
+import com.github.kassak.indexer.storage.PartitionedIndexProcessor;
+import com.github.kassak.indexer.storage.StorageTypes;
 import com.github.kassak.indexer.tokenizing.IFilesProcessor;
 import org.jetbrains.annotations.NotNull;
 
 public class IndexProcessorFactory implements IIndexProcessorFactory{
+    public IndexProcessorFactory() {
+        this(StorageTypes.MAP);
+    }
+
+    /**
+        @param storageType one of {@link StorageTypes}
+    */
+    public IndexProcessorFactory(int storageType) {
+        this(storageType, false);
+    }
+
+    /**
+        @param storageType one of {@link StorageTypes}
+        @param hashContents check content hash of touched files before reindexing
+    */
+    public IndexProcessorFactory(int storageType, boolean hashContents) {
+        this(storageType, hashContents, 1, 0);
+    }
+
+    /**
+        @param storageType one of {@link StorageTypes}
+        @param hashContents check content hash of touched files before reindexing
+        @param writersNum number of index writer threads, 1 means modifications are applied by index manager thread
+        @param writerQueueSize size of modifications queue of each writer
+    */
+    public IndexProcessorFactory(int storageType, boolean hashContents, int writersNum, int writerQueueSize) {
+        this(storageType, hashContents, false, writersNum, writerQueueSize);
+    }
+
+    /**
+        @param storageType one of {@link StorageTypes}
+        @param hashContents check content hash of touched files before reindexing
+        @param trigrams keep trigram index of words for substring and regex search
+        @param writersNum number of index writer threads, 1 means modifications are applied by index manager thread
+        @param writerQueueSize size of modifications queue of each writer
+    */
+    public IndexProcessorFactory(int storageType, boolean hashContents, boolean trigrams, int writersNum, int writerQueueSize) {
+        this.storageType = storageType;
+        this.hashContents = hashContents;
+        this.trigrams = trigrams;
+        this.writersNum = writersNum;
+        this.writerQueueSize = writerQueueSize;
+    }
+
     @Override
     public @NotNull IIndexProcessor create(@NotNull IFilesProcessor im) {
-        return new IndexProcessor(im);
+        if(writersNum > 1)
+            return new PartitionedIndexProcessor(im, storageType, hashContents, trigrams, writersNum, writerQueueSize);
+        return new IndexProcessor(im, storageType, hashContents, trigrams);
     }
+
+    private final int storageType;
+    private final boolean hashContents, trigrams;
+    private final int writersNum, writerQueueSize;
 }
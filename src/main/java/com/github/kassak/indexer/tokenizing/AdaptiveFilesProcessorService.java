@@ -0,0 +1,284 @@
+package com.github.kassak.indexer.tokenizing;
+
+import com.github.kassak.indexer.utils.CoalescingQueue;
+import com.github.kassak.indexer.utils.ConcurrencyController;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+    Service processing files in work-stealing pool of adaptive size.
+    Number of workers is adjusted by {@link ConcurrencyController} from measured throughput
+    and part of time workers spend off CPU: pool is replaced by pool of new parallelism,
+    retired pool finishes its files and terminates. Chunks of large files are forked in the pool
+    processing the file and are stolen by idle workers.
+    Files are never declined, waiting files are kept in coalescing queue.
+*/
+public class AdaptiveFilesProcessorService implements IFilesProcessorService {
+    /**
+        @param im receiver of processing results
+        @param maxThreads maximal number of processor threads
+        @param batchWords if true words of file are submitted at once, otherwise one by one
+        @param chunkSize if positive, files larger than this are split into chunks of about this size
+                         which are tokenized in parallel. Works only with batched words
+    */
+    public AdaptiveFilesProcessorService(@NotNull IFileProcessingResults im, int maxThreads, boolean batchWords
+            , long chunkSize) {
+        this(im, maxThreads, batchWords, chunkSize, DEFAULT_SAMPLE_INTERVAL);
+    }
+
+    /**
+        @param im receiver of processing results
+        @param maxThreads maximal number of processor threads
+        @param batchWords if true words of file are submitted at once, otherwise one by one
+        @param chunkSize if positive, files larger than this are split into chunks of about this size
+                         which are tokenized in parallel. Works only with batched words
+        @param sampleInterval interval in milliseconds between adjustments of number of workers
+    */
+    public AdaptiveFilesProcessorService(@NotNull IFileProcessingResults im, int maxThreads, boolean batchWords
+            , long chunkSize, long sampleInterval) {
+        indexManager = im;
+        this.maxThreads = maxThreads;
+        this.batchWords = batchWords;
+        this.chunkSize = chunkSize;
+        this.sampleInterval = sampleInterval;
+        waiting = new CoalescingQueue<>();
+        retiredPools = new ArrayList<>();
+        activeNum = new AtomicInteger();
+        completedNum = new AtomicLong();
+        busyNanos = new AtomicLong();
+        cpuNanos = new AtomicLong();
+        threadsBean = ManagementFactory.getThreadMXBean();
+        measureCpu = threadsBean.isCurrentThreadCpuTimeSupported() && threadsBean.isThreadCpuTimeEnabled();
+        runningUnits = new RunningUnits();
+    }
+
+    /**
+        Enqueues file for further processing, file which is already waiting is not enqueued again.
+        @return true
+    */
+    @Override
+    public boolean processFile(@NotNull Path f) {
+        if(!isRunning())
+            throw new IllegalStateException("Service not running");
+        if(!waiting.add(f) && log.isLoggable(Level.FINER))
+            log.finer("File is already waiting for processing " + f);
+        dispatch();
+        return true;
+    }
+
+    @Override
+    public boolean cancelProcessing(@NotNull Path f) {
+        return runningUnits.cancel(f);
+    }
+
+    /**
+        @return current number of workers
+    */
+    public int getParallelism() {
+        ForkJoinPool p = pool;
+        return p == null ? 0 : p.getParallelism();
+    }
+
+    /**
+        @return number of files which were already waiting when added
+    */
+    public long getCoalesced() {
+        return waiting.getCoalesced();
+    }
+
+    /**
+        Starts processing of waiting files while there are free workers.
+        Files are not queued in pool, so that replaced pool has no files left to process.
+    */
+    private void dispatch() {
+        while(true) {
+            int active = activeNum.get();
+            if(active >= controller.getLimit() || waiting.isEmpty())
+                return;
+            if(!activeNum.compareAndSet(active, active + 1))
+                continue;
+            Path f = waiting.poll();
+            if(f == null) {
+                activeNum.decrementAndGet();
+                continue;
+            }
+            if(!execute(f)) {
+                activeNum.decrementAndGet();
+                return; //service stopped, waiting files are dropped
+            }
+        }
+    }
+
+    /**
+        @return false if service is stopped
+    */
+    private boolean execute(@NotNull Path f) {
+        while(true) {
+            ForkJoinPool p = pool;
+            try {
+                p.execute(new MeasuredUnit(runningUnits.track(new FileProcessorUnit(indexManager, f, batchWords
+                        , chunkSize > 0 ? p : null, chunkSize))));
+                return true;
+            } catch (RejectedExecutionException e) {
+                if(p == pool)
+                    return false;
+            }
+        }
+    }
+
+    /**
+        Runs unit accounting its wall and cpu time
+    */
+    private class MeasuredUnit implements Runnable {
+        public MeasuredUnit(@NotNull Runnable unit) {
+            this.unit = unit;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            long startCpu = measureCpu ? threadsBean.getCurrentThreadCpuTime() : 0;
+            try {
+                unit.run();
+            } finally {
+                if(measureCpu)
+                    cpuNanos.addAndGet(threadsBean.getCurrentThreadCpuTime() - startCpu);
+                busyNanos.addAndGet(System.nanoTime() - start);
+                completedNum.incrementAndGet();
+                activeNum.decrementAndGet();
+                if(isRunning())
+                    dispatch();
+            }
+        }
+
+        private final Runnable unit;
+    }
+
+    /**
+        Takes sample of throughput and adjusts number of workers
+    */
+    private void adjust() {
+        long now = System.nanoTime();
+        long completed = completedNum.get(), busy = busyNanos.get(), cpu = cpuNanos.get();
+        long dCompleted = completed - lastCompleted, dBusy = busy - lastBusy;
+        double throughput = dCompleted * 1e9 / Math.max(1, now - lastSample);
+        double ioWait = measureCpu && dBusy > 0 ? Math.max(0, 1 - (double)(cpu - lastCpu) / dBusy) : -1;
+        boolean saturated = !waiting.isEmpty();
+        lastSample = now;
+        lastCompleted = completed;
+        lastBusy = busy;
+        lastCpu = cpu;
+        int old = controller.getLimit();
+        int limit = controller.update(throughput, ioWait, saturated);
+        if(limit == old)
+            return;
+        if(log.isLoggable(Level.FINER))
+            log.finer("Parallelism " + old + " -> " + limit + ", throughput " + throughput + ", io wait " + ioWait);
+        resize(limit);
+        if(limit > old)
+            dispatch();
+    }
+
+    /**
+        Replaces pool by pool of given parallelism. Retired pool finishes files it runs and terminates
+    */
+    private void resize(int parallelism) {
+        synchronized(retiredPools) {
+            if(!isRunning())
+                return;
+            ForkJoinPool old = pool;
+            pool = new ForkJoinPool(parallelism);
+            old.shutdown();
+            for(Iterator<ForkJoinPool> it = retiredPools.iterator(); it.hasNext(); )
+                if(it.next().isTerminated())
+                    it.remove();
+            retiredPools.add(old);
+        }
+    }
+
+    @Override
+    public void startService() throws FailureException {
+        if(isRunning())
+            throw new IllegalStateException("Service already running");
+        controller = new ConcurrencyController(1, maxThreads, Runtime.getRuntime().availableProcessors());
+        pool = new ForkJoinPool(controller.getLimit());
+        lastSample = System.nanoTime();
+        sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    adjust();
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Failed to adjust parallelism", e);
+                }
+            }
+        }, sampleInterval, sampleInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stopService() {
+        if(!isRunning())
+            throw new IllegalStateException("Service already stopped");
+        sampler.shutdownNow();
+        synchronized(retiredPools) {
+            pool.shutdownNow();
+            for(ForkJoinPool p : retiredPools)
+                p.shutdownNow();
+        }
+        waiting.clear();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return pool != null && !pool.isShutdown();
+    }
+
+    @Override
+    public boolean waitFinished(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<ForkJoinPool> pools;
+        synchronized(retiredPools) {
+            pools = new ArrayList<>(retiredPools);
+        }
+        pools.add(pool);
+        for(ForkJoinPool p : pools)
+            if(!p.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+                return false;
+        return sampler.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    private static final long DEFAULT_SAMPLE_INTERVAL = 200;
+
+    private volatile ForkJoinPool pool;
+    private final List<ForkJoinPool> retiredPools; //guards replacement of pool
+    private ScheduledExecutorService sampler;
+    private ConcurrencyController controller;
+    private final CoalescingQueue<Path> waiting;
+    private final RunningUnits runningUnits;
+    private final AtomicInteger activeNum;
+    private final AtomicLong completedNum, busyNanos, cpuNanos;
+    private long lastSample, lastCompleted, lastBusy, lastCpu; //accessed only by sampler
+    private final ThreadMXBean threadsBean;
+    private final boolean measureCpu;
+    private final IFileProcessingResults indexManager;
+    private final int maxThreads;
+    private final boolean batchWords;
+    private final long chunkSize, sampleInterval;
+    private static final Logger log = Logger.getLogger(AdaptiveFilesProcessorService.class.getName());
+}
@@ -0,0 +1,234 @@
+package com.github.kassak.indexer.tokenizing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+    Tokenizer which splits words on characters of given class.
+    Reads file into reused buffer and creates string only for complete word.
+    Output is same as of {@link SeparatorTokenizer} with corresponding delimiter.
+*/
+public class CharClassTokenizer implements ITokenizer {
+    /**
+        Words consist of letters and digits, same as "[^\\p{IsAlphabetic}\\p{IsDigit}]" delimiter
+    */
+    static public final int ALPHANUMERIC = 0;
+    /**
+        Words are separated by whitespaces, same as "\\s" delimiter
+    */
+    static public final int NON_WHITESPACE = 1;
+
+    /**
+        @param path file to tokenize
+        @param wordChars {@link #ALPHANUMERIC} or {@link #NON_WHITESPACE}
+    */
+    public CharClassTokenizer(@NotNull Path path, int wordChars) throws IOException {
+        this(new FileReader(path.toFile()), wordChars);
+    }
+
+    /**
+        @param path file to tokenize
+        @param wordChars {@link #ALPHANUMERIC} or {@link #NON_WHITESPACE}
+        @param charset charset of file
+    */
+    public CharClassTokenizer(@NotNull Path path, int wordChars, @NotNull Charset charset) throws IOException {
+        this(new InputStreamReader(new FileInputStream(path.toFile()), charset), wordChars);
+    }
+
+    /**
+        @param contents bytes between position and limit are tokenized, buffer is not modified
+        @param wordChars {@link #ALPHANUMERIC} or {@link #NON_WHITESPACE}
+        @param charset charset of contents
+    */
+    public CharClassTokenizer(@NotNull ByteBuffer contents, int wordChars, @NotNull Charset charset) {
+        this(new InputStreamReader(Channels.newInputStream(new ByteBufferChannel(contents.slice())), charset), wordChars);
+    }
+
+    /**
+        Readable channel over bytes of buffer
+    */
+    private static class ByteBufferChannel implements ReadableByteChannel {
+        public ByteBufferChannel(@NotNull ByteBuffer contents) {
+            this.contents = contents;
+        }
+
+        @Override
+        public int read(@NotNull ByteBuffer dst) {
+            if(!contents.hasRemaining())
+                return -1;
+            int n = Math.min(dst.remaining(), contents.remaining());
+            ByteBuffer part = contents.duplicate();
+            part.limit(part.position() + n);
+            dst.put(part);
+            contents.position(contents.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        private final ByteBuffer contents;
+        private boolean open = true;
+    }
+
+    private CharClassTokenizer(@NotNull Reader reader, int wordChars) {
+        if(wordChars != ALPHANUMERIC && wordChars != NON_WHITESPACE) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                log.log(Level.FINE, "Failed to close reader", e);
+            }
+            throw new IllegalArgumentException("Unknown characters class " + wordChars);
+        }
+        alphanumeric = wordChars == ALPHANUMERIC;
+        asciiWordChars = asciiWordChars(wordChars);
+        this.reader = reader;
+        advance();
+    }
+
+    /**
+        @param wordChars {@link #ALPHANUMERIC} or {@link #NON_WHITESPACE}
+        @return table of ascii characters which are parts of words
+    */
+    static boolean[] asciiWordChars(int wordChars) {
+        return wordChars == ALPHANUMERIC ? ASCII_ALPHANUMERIC : ASCII_NON_WHITESPACE;
+    }
+
+    private boolean isWordChar(int cp) {
+        if(alphanumeric)
+            return Character.isAlphabetic(cp) || Character.isDigit(cp);
+        return true; //only ascii whitespaces are separators
+    }
+
+    private void advance() {
+        nextToken = null;
+        int tokenStart = -1;
+        try {
+            while(true) {
+                if(limit - pos < 2 && !eof) { //surrogate pair needs two chars
+                    tokenStart = fill(tokenStart);
+                }
+                if(pos == limit) {
+                    if(tokenStart >= 0)
+                        nextToken = new String(buf, tokenStart, pos - tokenStart);
+                    return;
+                }
+                char c = buf[pos];
+                boolean word;
+                int len = 1;
+                if(c < 128) {
+                    word = asciiWordChars[c];
+                } else {
+                    int cp = Character.codePointAt(buf, pos, limit);
+                    len = Character.charCount(cp);
+                    word = isWordChar(cp);
+                }
+                if(word) {
+                    if(tokenStart < 0)
+                        tokenStart = pos;
+                } else if(tokenStart >= 0) {
+                    nextToken = new String(buf, tokenStart, pos - tokenStart);
+                    pos += len;
+                    return;
+                }
+                pos += len;
+            }
+        } catch (IOException e) {
+            log.log(Level.FINE, "Failed to read file. Stopping.", e);
+            eof = true;
+        }
+    }
+
+    /**
+        Reads more characters keeping unprocessed ones and current word
+
+        @param tokenStart start of current word or -1
+        @return new start of current word
+    */
+    private int fill(int tokenStart) throws IOException {
+        int keep = tokenStart >= 0 ? tokenStart : pos;
+        if(keep > 0) {
+            System.arraycopy(buf, keep, buf, 0, limit - keep);
+            limit -= keep;
+            pos -= keep;
+            if(tokenStart >= 0)
+                tokenStart -= keep;
+        } else if(limit == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        int n = reader.read(buf, limit, buf.length - limit);
+        if(n < 0)
+            eof = true;
+        else
+            limit += n;
+        return tokenStart;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextToken != null;
+    }
+
+    @Override
+    public String next() {
+        if(nextToken == null)
+            throw new NoSuchElementException();
+        String res = nextToken;
+        advance();
+        return res;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("don't do it");
+    }
+
+    @Override
+    public void close() throws Exception {
+        reader.close();
+    }
+
+    private static boolean[] asciiTable(boolean alphanumeric) {
+        boolean[] res = new boolean[128];
+        for(char c = 0; c < 128; ++c) {
+            if(alphanumeric)
+                res[c] = Character.isAlphabetic(c) || Character.isDigit(c);
+            else
+                res[c] = " \t\n\u000B\f\r".indexOf(c) == -1;
+        }
+        return res;
+    }
+
+    private final Reader reader;
+    private final boolean alphanumeric;
+    private final boolean[] asciiWordChars;
+    private char[] buf = new char[BUFFER_SIZE];
+    private int pos, limit;
+    private boolean eof;
+    private String nextToken;
+    private static final int BUFFER_SIZE = 8192;
+    private static final boolean[] ASCII_ALPHANUMERIC = asciiTable(true);
+    private static final boolean[] ASCII_NON_WHITESPACE = asciiTable(false);
+    private final static Logger log = Logger.getLogger(CharClassTokenizer.class.getName());
+}
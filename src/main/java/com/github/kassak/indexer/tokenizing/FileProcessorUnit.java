@@ -1,22 +1,94 @@
 package com.github.kassak.indexer.tokenizing;
 
+import com.github.kassak.indexer.utils.ContentHash;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
-    Class that does the job on file processing
+    Class that does the job on file processing.
+    If index requests content hash, file is hashed before tokenizing and is not tokenized
+    when hash equals indexed one.
 */
 class FileProcessorUnit implements Runnable {
     /**
         @param im receiver of processing results
         @param f file to process
+        @param batchWords if true distinct words are submitted at once after file is tokenized,
+                          otherwise each word is submitted separately
     */
-    public FileProcessorUnit(@NotNull IFileProcessingResults im, @NotNull Path f) {
+    public FileProcessorUnit(@NotNull IFileProcessingResults im, @NotNull Path f, boolean batchWords) {
+        this(im, f, batchWords, (ForkJoinPool)null, 0);
+    }
+
+    /**
+        @param im receiver of processing results
+        @param f file to process
+        @param batchWords if true distinct words are submitted at once after file is tokenized,
+                          otherwise each word is submitted separately
+        @param chunksPool pool for tokenizing chunks of large files or null.
+                          If unit runs in this pool, chunks are forked by its worker
+        @param chunkSize files larger than this are split into chunks of about this size, if words are batched
+    */
+    public FileProcessorUnit(@NotNull IFileProcessingResults im, @NotNull Path f, boolean batchWords
+            , @Nullable ForkJoinPool chunksPool, long chunkSize) {
+        this(im, f, batchWords, chunksPool, chunkSize, null, 0);
+    }
+
+    /**
+        @param im receiver of processing results
+        @param f file to process
+        @param batchWords if true distinct words are submitted at once after file is tokenized,
+                          otherwise each word is submitted separately
+        @param contents contents of file already read into memory
+        @param stamp time when reading of contents have been started
+    */
+    public FileProcessorUnit(@NotNull IFileProcessingResults im, @NotNull Path f, boolean batchWords
+            , @NotNull ByteBuffer contents, long stamp) {
+        this(im, f, batchWords, null, 0, contents, stamp);
+    }
+
+    private FileProcessorUnit(@NotNull IFileProcessingResults im, @NotNull Path f, boolean batchWords
+            , @Nullable ForkJoinPool chunksPool, long chunkSize, @Nullable ByteBuffer contents, long stamp) {
         indexManager = im;
         file = f;
+        this.batchWords = batchWords;
+        this.chunksPool = chunksPool;
+        this.chunkSize = chunkSize;
+        this.contents = contents;
+        this.stamp = stamp;
+        cancelled = new AtomicBoolean();
+    }
+
+    /**
+        @return file being processed
+    */
+    @NotNull
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+        Requests cancellation. Cancelled unit stops tokenizing, does not submit collected words
+        and finishes as failed, so that index processes file again.
+        Words submitted one by one are already in index.
+    */
+    public void cancel() {
+        cancelled.set(true);
     }
 
     @Override
@@ -24,40 +96,183 @@ class FileProcessorUnit implements Runnable {
         if(log.isLoggable(Level.FINER))
             log.finer("Start processing " + file);
         boolean finished = false;
-        final long stamp = System.currentTimeMillis();
+        final long stamp = contents != null ? this.stamp : System.currentTimeMillis();
+        long hash = ContentHash.NO_HASH;
+        Long indexedHash = indexManager.indexedHash(file);
+        if(indexedHash != null) {
+            hash = contents != null ? ContentHash.of(contents) : ContentHash.of(file);
+            if(hash != ContentHash.NO_HASH && hash == indexedHash) {
+                submitUnchanged(stamp);
+                return;
+            }
+        }
+        Set<String> words = batchWords ? new HashSet<String>() : null;
         try {
-            indexManager.removeFromIndex(file);
-            try (ITokenizer tok = indexManager.newTokenizer(file)) {
+            if(!batchWords)
+                indexManager.removeFromIndex(file);
+            long[] chunks = words != null ? splitFile() : null;
+            if(chunks != null) {
+                finished = tokenizeChunks(chunks, words);
+                if(finished)
+                    submitWords(words);
+                return;
+            }
+            try (ITokenizer tok = newTokenizer()) {
                 if(tok == null)
                     return;
-                while (!Thread.currentThread().isInterrupted()) {
+                while (!Thread.currentThread().isInterrupted() && !cancelled.get()) {
                     if(!tok.hasNext()) {
                         finished = true;
                         break;
                     }
                     String word = tok.next();
-                    submitWord(word);
+                    if(words != null)
+                        words.add(word);
+                    else
+                        submitWord(word);
                 }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             } catch (Exception e) {
                 log.log(Level.FINE, "Failed to process " + file, e);
+            } finally {
+                if(words != null && !cancelled.get() && !Thread.currentThread().isInterrupted())
+                    submitWords(words);
             }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         } finally {
+            if(!finished && cancelled.get() && log.isLoggable(Level.FINER))
+                log.finer("Processing cancelled " + file);
             try {
-                submitFinished(stamp, finished);
+                submitFinished(stamp, finished, hash);
             } catch (InterruptedException e) {
                 log.fine("Interrupted while submitting result " + file);
             }
         }
     }
 
-    private void submitFinished(long stamp, boolean finished) throws InterruptedException {
+    @Nullable
+    private ITokenizer newTokenizer() throws IOException {
+        if(contents != null) {
+            ITokenizer res = indexManager.newTokenizer(file, contents);
+            if(res != null)
+                return res;
+        }
+        return indexManager.newTokenizer(file);
+    }
+
+    @Nullable
+    private long[] splitFile() {
+        if(chunksPool == null)
+            return null;
+        try {
+            if(Files.size(file) <= chunkSize)
+                return null;
+            long[] res = indexManager.splitFile(file, chunkSize);
+            return res != null && res.length > 2 ? res : null;
+        } catch (IOException e) {
+            log.log(Level.FINE, "Failed to split " + file, e);
+            return null;
+        }
+    }
+
+    /**
+        Tokenizes chunks in parallel and merges their words
+
+        @return true if all chunks were tokenized
+    */
+    private boolean tokenizeChunks(@NotNull long[] chunks, @NotNull Set<String> words) throws InterruptedException {
+        if(log.isLoggable(Level.FINER))
+            log.finer("Tokenizing " + (chunks.length - 1) + " chunks of " + file);
+        ChunksTask task = new ChunksTask(chunks, 0, chunks.length - 1, cancelled);
+        try {
+            if(ForkJoinTask.getPool() == chunksPool)
+                words.addAll(task.invoke());
+            else
+                words.addAll(chunksPool.submit(task).get());
+            return true;
+        } catch (InterruptedException e) {
+            cancelled.set(true);
+            throw e;
+        } catch (CancellationException e) {
+            return false;
+        } catch (ExecutionException e) {
+            log.log(Level.FINE, "Failed to process " + file, e.getCause());
+            return false;
+        } catch (RuntimeException e) {
+            log.log(Level.FINE, "Failed to process " + file, e);
+            return false;
+        }
+    }
+
+    /**
+        Tokenizes chunks [lo, hi) splitting them in halves
+    */
+    @SuppressWarnings("serial") //never serialized
+    private class ChunksTask extends RecursiveTask<Set<String>> {
+        public ChunksTask(@NotNull long[] chunks, int lo, int hi, @NotNull AtomicBoolean cancelled) {
+            this.chunks = chunks;
+            this.lo = lo;
+            this.hi = hi;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        protected Set<String> compute() {
+            if(hi - lo == 1)
+                return tokenizeChunk(chunks[lo], chunks[hi]);
+            int mid = (lo + hi) >>> 1;
+            ChunksTask left = new ChunksTask(chunks, lo, mid, cancelled);
+            left.fork();
+            Set<String> res = new ChunksTask(chunks, mid, hi, cancelled).compute();
+            Set<String> other = left.join();
+            if(other.size() > res.size()) {
+                Set<String> t = res;
+                res = other;
+                other = t;
+            }
+            res.addAll(other);
+            return res;
+        }
+
+        @NotNull
+        private Set<String> tokenizeChunk(long from, long to) {
+            Set<String> res = new HashSet<>();
+            try (ITokenizer tok = indexManager.newTokenizer(file, from, to)) {
+                if(tok == null)
+                    throw new IllegalStateException("File disappeared " + file);
+                while(tok.hasNext() && !cancelled.get())
+                    res.add(tok.next());
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to tokenize chunk of " + file, e);
+            }
+            if(cancelled.get())
+                throw new CancellationException();
+            return res;
+        }
+
+        private final long[] chunks;
+        private final int lo, hi;
+        private final AtomicBoolean cancelled;
+    }
+
+    private void submitFinished(long stamp, boolean finished, long hash) throws InterruptedException {
         if(log.isLoggable(Level.FINER))
             log.finer("Processing finished " + file + " with " + finished);
-        indexManager.submitFinishedProcessing(file, stamp, finished);
+        indexManager.submitFinishedProcessing(file, stamp, finished, finished ? hash : ContentHash.NO_HASH);
+    }
+
+    private void submitUnchanged(long stamp) {
+        if(log.isLoggable(Level.FINER))
+            log.finer("Content not changed " + file);
+        try {
+            indexManager.submitUnchanged(file, stamp);
+        } catch (InterruptedException e) {
+            log.fine("Interrupted while submitting result " + file);
+        }
     }
 
     private void submitWord(@NotNull String word) throws InterruptedException {
@@ -66,7 +281,19 @@ class FileProcessorUnit implements Runnable {
         indexManager.addWordToIndex(file, word);
     }
 
+    private void submitWords(@NotNull Set<String> words) throws InterruptedException {
+        if(log.isLoggable(Level.FINEST))
+            log.finest("Submitting " + words.size() + " words " + file);
+        indexManager.replaceWordsInIndex(file, words);
+    }
+
     private final IFileProcessingResults indexManager;
     private final Path file;
+    private final boolean batchWords;
+    private final ForkJoinPool chunksPool;
+    private final long chunkSize;
+    private final ByteBuffer contents;
+    private final long stamp;
+    private final AtomicBoolean cancelled;
     private static final Logger log = Logger.getLogger(FileProcessorUnit.class.getName());
 }
@@ -4,6 +4,7 @@ import com.github.kassak.indexer.utils.BoundedExecutor;
 import org.jetbrains.annotations.NotNull;
 
 import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -17,9 +18,35 @@ public class FilesProcessorService implements IFilesProcessorService {
         @param queueSize size of files queue
     */
     public FilesProcessorService(@NotNull IFileProcessingResults im, int threadsNum, int queueSize) {
+        this(im, threadsNum, queueSize, true);
+    }
+
+    /**
+        @param im receiver of processing results
+        @param threadsNum number of processor threads
+        @param queueSize size of files queue
+        @param batchWords if true words of file are submitted at once, otherwise one by one
+    */
+    public FilesProcessorService(@NotNull IFileProcessingResults im, int threadsNum, int queueSize, boolean batchWords) {
+        this(im, threadsNum, queueSize, batchWords, 0);
+    }
+
+    /**
+        @param im receiver of processing results
+        @param threadsNum number of processor threads
+        @param queueSize size of files queue
+        @param batchWords if true words of file are submitted at once, otherwise one by one
+        @param chunkSize if positive, files larger than this are split into chunks of about this size
+                         which are tokenized in parallel. Works only with batched words
+    */
+    public FilesProcessorService(@NotNull IFileProcessingResults im, int threadsNum, int queueSize, boolean batchWords
+            , long chunkSize) {
         indexManager = im;
         this.threadsNum = threadsNum;
         this.queueSize = queueSize;
+        this.batchWords = batchWords;
+        this.chunkSize = chunkSize;
+        runningUnits = new RunningUnits();
     }
 
     /**
@@ -30,15 +57,22 @@ public class FilesProcessorService implements IFilesProcessorService {
     public boolean processFile(@NotNull Path f) {
         if(!isRunning())
             throw new IllegalStateException("Service not running");
-        Runnable r = new FileProcessorUnit(indexManager, f);
+        Runnable r = runningUnits.track(new FileProcessorUnit(indexManager, f, batchWords, chunksPool, chunkSize));
         return executor.tryExecute(r);
     }
 
+    @Override
+    public boolean cancelProcessing(@NotNull Path f) {
+        return runningUnits.cancel(f);
+    }
+
     @Override
     public void startService() throws FailureException {
         if(isRunning())
             throw new IllegalStateException("Service already running");
         executor = new BoundedExecutor(threadsNum, queueSize);
+        if(chunkSize > 0 && batchWords)
+            chunksPool = new ForkJoinPool(threadsNum);
     }
 
     @Override
@@ -46,6 +80,8 @@ public class FilesProcessorService implements IFilesProcessorService {
         if(!isRunning())
             throw new IllegalStateException("Service already stopped");
         executor.shutdown();
+        if(chunksPool != null)
+            chunksPool.shutdownNow();
     }
 
     @Override
@@ -55,10 +91,17 @@ public class FilesProcessorService implements IFilesProcessorService {
 
     @Override
     public boolean waitFinished(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
-        return executor.awaitTermination(timeout, unit);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if(!executor.awaitTermination(timeout, unit))
+            return false;
+        return chunksPool == null || chunksPool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
     }
 
     private BoundedExecutor executor;
+    private ForkJoinPool chunksPool;
+    private final RunningUnits runningUnits;
     private final IFileProcessingResults indexManager;
     private final int threadsNum, queueSize;
+    private final boolean batchWords;
+    private final long chunkSize;
 }
@@ -1,10 +1,13 @@
 package com.github.kassak.indexer.tokenizing;
 
+import com.github.kassak.indexer.utils.ContentHash;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.Collection;
 
 /**
     Interface for interaction of file processor with index.
@@ -19,6 +22,15 @@ public interface IFileProcessingResults {
     */
     public void addWordToIndex(@NotNull Path file, @NotNull String word) throws InterruptedException;
 
+    /**
+        Replace all words of file in index at once
+
+        @param file source of words
+        @param words distinct words of file
+        @throws InterruptedException
+    */
+    public void replaceWordsInIndex(@NotNull Path file, @NotNull Collection<String> words) throws InterruptedException;
+
     /**
         Remove file from index
 
@@ -33,9 +45,28 @@ public interface IFileProcessingResults {
         @param file processed file
         @param stamp time when processing have been started
         @param valid true if parsed successfully
+        @param hash content hash of file if it was requested, otherwise {@link ContentHash#NO_HASH}
+        @throws InterruptedException
+    */
+    public void submitFinishedProcessing(@NotNull Path file, long stamp, boolean valid, long hash) throws InterruptedException;
+
+    /**
+        Submit that file content hash equals indexed one, so file was not tokenized
+
+        @param file processed file
+        @param stamp time when processing have been started
         @throws InterruptedException
     */
-    public void submitFinishedProcessing(@NotNull Path file, long stamp, boolean valid) throws InterruptedException;
+    public void submitUnchanged(@NotNull Path file, long stamp) throws InterruptedException;
+
+    /**
+        Get hash index expects from file being processed
+
+        @param file file being processed
+        @return content hash of indexed file, {@link ContentHash#NO_HASH} if it is unknown
+                or null if content should not be hashed
+    */
+    public @Nullable Long indexedHash(@NotNull Path file);
 
     /**
         Create tokenizer for file
@@ -44,4 +75,33 @@ public interface IFileProcessingResults {
       * @param file file to be tokenized
     */
     public @Nullable ITokenizer newTokenizer(@NotNull Path file) throws IOException;
+
+    /**
+        Split file into independently tokenizable chunks
+
+        @param file file to split
+        @param chunkSize desired size of chunk in bytes
+        @return ascending chunk boundaries starting with 0 and ending with file size
+                or null if file can't be split
+    */
+    public @Nullable long[] splitFile(@NotNull Path file, long chunkSize) throws IOException;
+
+    /**
+        Create tokenizer for chunk of file
+
+        @param file file to be tokenized
+        @param from offset of chunk start
+        @param to offset of chunk end
+        @return new tokenizer or null no file found
+    */
+    public @Nullable ITokenizer newTokenizer(@NotNull Path file, long from, long to) throws IOException;
+
+    /**
+        Create tokenizer for contents of file already read into memory
+
+        @param file file contents belong to
+        @param contents bytes of file between position and limit
+        @return new tokenizer or null if contents can't be tokenized in memory
+    */
+    public @Nullable ITokenizer newTokenizer(@NotNull Path file, @NotNull ByteBuffer contents) throws IOException;
 }
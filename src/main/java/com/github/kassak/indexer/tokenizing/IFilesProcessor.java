@@ -15,4 +15,13 @@ public interface IFilesProcessor {
         @return true if file was accepted for processing        
     */
     public boolean processFile(@NotNull Path f);
+
+    /**
+        Cancel processing of file if it is running.
+        Cancelled processing is reported as failed without submitting words of file.
+
+        @param f file to cancel
+        @return true if processing of file was running
+    */
+    public boolean cancelProcessing(@NotNull Path f);
 }
@@ -0,0 +1,342 @@
+package com.github.kassak.indexer.tokenizing;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+    Tokenizer which scans bytes of UTF-8 file.
+    ASCII bytes are classified by table, multi-byte sequences are decoded only to classify them,
+    malformed sequences are treated as U+FFFD. Files up to {@link #MAP_THRESHOLD} or window size
+    are read into reused buffer directly, as mapping costs more than copying few pages.
+    Larger ones are mapped in windows, bytes are transferred from mapping into buffer in bulk,
+    as reading mapped buffer byte by byte is several times slower.
+    Output is same as of {@link CharClassTokenizer} reading file in UTF-8.
+    Bytes already read into memory may be tokenized the same way.
+*/
+public class MappedTokenizer implements ITokenizer {
+    /**
+        @param path file to tokenize
+        @param wordChars {@link CharClassTokenizer#ALPHANUMERIC} or {@link CharClassTokenizer#NON_WHITESPACE}
+    */
+    public MappedTokenizer(@NotNull Path path, int wordChars) throws IOException {
+        this(path, wordChars, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+        @param path file to tokenize
+        @param wordChars {@link CharClassTokenizer#ALPHANUMERIC} or {@link CharClassTokenizer#NON_WHITESPACE}
+        @param windowSize size of mapped window
+    */
+    public MappedTokenizer(@NotNull Path path, int wordChars, int windowSize) throws IOException {
+        this(path, wordChars, windowSize, 0, Long.MAX_VALUE);
+    }
+
+    /**
+        Creates tokenizer for part of file. Part should be bounded by separators,
+        see {@link #split(Path, int, long)}.
+
+        @param path file to tokenize
+        @param wordChars {@link CharClassTokenizer#ALPHANUMERIC} or {@link CharClassTokenizer#NON_WHITESPACE}
+        @param from offset of first byte
+        @param to offset after last byte, trimmed to file size
+    */
+    public MappedTokenizer(@NotNull Path path, int wordChars, long from, long to) throws IOException {
+        this(path, wordChars, DEFAULT_WINDOW_SIZE, from, to);
+    }
+
+    /**
+        Creates tokenizer for UTF-8 bytes already read into memory
+
+        @param contents bytes between position and limit are tokenized, buffer is not modified
+        @param wordChars {@link CharClassTokenizer#ALPHANUMERIC} or {@link CharClassTokenizer#NON_WHITESPACE}
+    */
+    public MappedTokenizer(@NotNull ByteBuffer contents, int wordChars) throws IOException {
+        this(wordChars, DEFAULT_WINDOW_SIZE, null);
+        window = contents.slice();
+        size = mapped = window.remaining();
+        advance();
+    }
+
+    private MappedTokenizer(@NotNull Path path, int wordChars, int windowSize, long from, long to) throws IOException {
+        this(wordChars, windowSize, FileChannel.open(path, StandardOpenOption.READ));
+        try {
+            size = Math.min(to, channel.size());
+            mapped = Math.min(from, size);
+            mapping = size - mapped > Math.min(windowSize, MAP_THRESHOLD);
+            advance();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private MappedTokenizer(int wordChars, int windowSize, @Nullable FileChannel channel) throws IOException {
+        this.channel = channel;
+        if(wordChars != CharClassTokenizer.ALPHANUMERIC && wordChars != CharClassTokenizer.NON_WHITESPACE
+                || windowSize <= 0) {
+            if(channel != null)
+                channel.close();
+            if(windowSize <= 0)
+                throw new IllegalArgumentException("Bad window size " + windowSize);
+            throw new IllegalArgumentException("Unknown characters class " + wordChars);
+        }
+        alphanumeric = wordChars == CharClassTokenizer.ALPHANUMERIC;
+        asciiWordChars = CharClassTokenizer.asciiWordChars(wordChars);
+        this.windowSize = windowSize;
+    }
+
+    private boolean isWordChar(int cp) {
+        if(cp < 0) //malformed
+            return !alphanumeric;
+        if(alphanumeric)
+            return Character.isAlphabetic(cp) || Character.isDigit(cp);
+        return true; //only ascii whitespaces are separators
+    }
+
+    private void advance() throws IOException {
+        nextToken = null;
+        int tokenStart = -1;
+        boolean ascii = true;
+        while(true) {
+            if(pos == limit) {
+                if(!eof) {
+                    tokenStart = fill(tokenStart);
+                    continue;
+                }
+                if(tokenStart >= 0)
+                    nextToken = makeToken(tokenStart, pos, ascii);
+                return;
+            }
+            if(tokenStart < 0) { //ascii fast path
+                while(pos < limit && buf[pos] >= 0 && !asciiWordChars[buf[pos]])
+                    ++pos;
+            } else {
+                while(pos < limit && buf[pos] >= 0 && asciiWordChars[buf[pos]])
+                    ++pos;
+            }
+            if(pos == limit)
+                continue;
+            int b = buf[pos];
+            boolean word;
+            if(b >= 0) {
+                word = asciiWordChars[b];
+                seqLength = 1;
+            } else {
+                if(limit - pos < MAX_SEQUENCE && !eof) { //sequence must be whole in buffer
+                    tokenStart = fill(tokenStart);
+                    continue;
+                }
+                word = isWordChar(decode(b));
+            }
+            if(word) {
+                if(tokenStart < 0) {
+                    tokenStart = pos;
+                    ascii = true;
+                }
+                ascii &= b >= 0;
+            } else if(tokenStart >= 0) {
+                nextToken = makeToken(tokenStart, pos, ascii);
+                pos += seqLength;
+                return;
+            }
+            pos += seqLength;
+        }
+    }
+
+    /**
+        Decodes UTF-8 sequence at current position, sets {@link #seqLength}
+
+        @param b first byte of sequence
+        @return code point or -1 if sequence is malformed
+    */
+    private int decode(int b) {
+        seqLength = 1;
+        int len, cp, min;
+        if((b & 0xE0) == 0xC0) {
+            len = 2;
+            cp = b & 0x1F;
+            min = 0x80;
+        } else if((b & 0xF0) == 0xE0) {
+            len = 3;
+            cp = b & 0x0F;
+            min = 0x800;
+        } else if((b & 0xF8) == 0xF0) {
+            len = 4;
+            cp = b & 0x07;
+            min = 0x10000;
+        } else {
+            return -1;
+        }
+        if(pos + len > limit)
+            return -1;
+        for(int i = 1; i < len; ++i) {
+            int c = buf[pos + i];
+            if((c & 0xC0) != 0x80)
+                return -1;
+            cp = (cp << 6) | (c & 0x3F);
+        }
+        if(cp < min || cp > Character.MAX_CODE_POINT || (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE))
+            return -1;
+        seqLength = len;
+        return cp;
+    }
+
+    /**
+        Transfers more bytes from file keeping unprocessed ones and current word.
+        Maps next window when current one is exhausted if file is mapped.
+
+        @param tokenStart start of current word or -1
+        @return new start of current word
+    */
+    private int fill(int tokenStart) throws IOException {
+        int keep = tokenStart >= 0 ? tokenStart : pos;
+        if(keep > 0) {
+            System.arraycopy(buf, keep, buf, 0, limit - keep);
+            limit -= keep;
+            pos -= keep;
+            if(tokenStart >= 0)
+                tokenStart -= keep;
+        } else if(limit == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        if(channel != null && !mapping) {
+            int n = mapped == size ? -1
+                    : channel.read(ByteBuffer.wrap(buf, limit, (int)Math.min(buf.length - limit, size - mapped)), mapped);
+            if(n < 0) { //file may be truncated
+                eof = true;
+                return tokenStart;
+            }
+            mapped += n;
+            limit += n;
+            return tokenStart;
+        }
+        if(window == null || !window.hasRemaining()) {
+            if(mapped == size) {
+                eof = true;
+                return tokenStart;
+            }
+            long len = Math.min(windowSize, size - mapped);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, mapped, len);
+            if(log.isLoggable(Level.FINEST))
+                log.finest("Mapped window " + mapped + " of " + len + " bytes");
+            mapped += len;
+        }
+        int n = Math.min(buf.length - limit, window.remaining());
+        window.get(buf, limit, n);
+        limit += n;
+        return tokenStart;
+    }
+
+    @NotNull
+    private String makeToken(int start, int end, boolean ascii) {
+        return new String(buf, start, end - start, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    /**
+        Splits UTF-8 file into chunks at ASCII separator bytes.
+        Such bytes are never part of multi-byte sequence, so no word crosses chunk boundary.
+
+        @param path file to split
+        @param wordChars {@link CharClassTokenizer#ALPHANUMERIC} or {@link CharClassTokenizer#NON_WHITESPACE}
+        @param chunkSize desired size of chunk
+        @return ascending chunk boundaries starting with 0 and ending with file size
+    */
+    @NotNull
+    public static long[] split(@NotNull Path path, int wordChars, long chunkSize) throws IOException {
+        if(chunkSize <= 0)
+            throw new IllegalArgumentException("Bad chunk size " + chunkSize);
+        boolean[] ascii = CharClassTokenizer.asciiWordChars(wordChars);
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            long[] res = new long[(int)Math.min(size / chunkSize + 2, Integer.MAX_VALUE)];
+            int num = 0;
+            res[num++] = 0;
+            ByteBuffer bb = ByteBuffer.allocate(SPLIT_SCAN_SIZE);
+            long pos = chunkSize;
+            while(pos < size) {
+                long sep = -1;
+                while(sep < 0 && pos < size) {
+                    bb.clear();
+                    int n = ch.read(bb, pos);
+                    if(n <= 0)
+                        break;
+                    for(int i = 0; i < n; ++i) {
+                        byte b = bb.get(i);
+                        if(b >= 0 && !ascii[b]) {
+                            sep = pos + i;
+                            break;
+                        }
+                    }
+                    pos += n;
+                }
+                if(sep < 0) //word till the end of file
+                    break;
+                res[num++] = sep;
+                pos = sep + chunkSize;
+            }
+            res[num++] = size;
+            return Arrays.copyOf(res, num);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextToken != null;
+    }
+
+    @Override
+    public String next() {
+        if(nextToken == null)
+            throw new NoSuchElementException();
+        String res = nextToken;
+        try {
+            advance();
+        } catch (IOException e) {
+            log.log(Level.FINE, "Failed to map file. Stopping.", e);
+            nextToken = null;
+        }
+        return res;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("don't do it");
+    }
+
+    @Override
+    public void close() throws Exception {
+        window = null; //mapping is released by gc
+        if(channel != null)
+            channel.close();
+    }
+
+    private final FileChannel channel; //null if tokenizing bytes in memory
+    private long size;
+    private final int windowSize;
+    private final boolean alphanumeric;
+    private final boolean[] asciiWordChars;
+    private boolean mapping; //file is mapped rather than read
+    private ByteBuffer window;
+    private long mapped; //offset of bytes not transferred yet
+    private byte[] buf = new byte[BUFFER_SIZE];
+    private int pos, limit, seqLength;
+    private boolean eof;
+    private String nextToken;
+    private static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAP_THRESHOLD = 1024 * 1024;
+    private static final int MAX_SEQUENCE = 4;
+    private static final int SPLIT_SCAN_SIZE = 4096;
+    private final static Logger log = Logger.getLogger(MappedTokenizer.class.getName());
+}
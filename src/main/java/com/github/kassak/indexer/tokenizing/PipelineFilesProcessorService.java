@@ -0,0 +1,363 @@
+package com.github.kassak.indexer.tokenizing;
+
+import com.github.kassak.indexer.utils.UtilizationThreadPool;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+    Service processing files in two stages.
+    Read stage reads files with {@link AsynchronousFileChannel} into pooled buffers,
+    tokenize stage tokenizes contents of filled buffers. Stages have separate thread pools,
+    number of files being read is bounded by number of buffers. Tokenize queue is bounded too:
+    reading of next file starts only when there is a place for it in the queue,
+    so slow tokenizers hold files in read stage instead of piling up filled buffers.
+    Files which do not fit into buffer are passed to tokenizers unread.
+    When number of files in pipeline reaches queue size further processing requests are declined.
+*/
+public class PipelineFilesProcessorService implements IFilesProcessorService {
+    /**
+        @param im receiver of processing results
+        @param readThreadsNum number of threads of read stage
+        @param tokenizeThreadsNum number of threads of tokenize stage
+        @param buffersNum number of read buffers
+        @param bufferSize size of read buffer, larger files are read by tokenizers
+        @param queueSize maximal number of files in pipeline
+        @param batchWords if true words of file are submitted at once, otherwise one by one
+        @param chunkSize if positive, files larger than this are split into chunks of about this size
+                         which are tokenized in parallel. Works only with batched words
+    */
+    public PipelineFilesProcessorService(@NotNull IFileProcessingResults im, int readThreadsNum, int tokenizeThreadsNum
+            , int buffersNum, int bufferSize, int queueSize, boolean batchWords, long chunkSize) {
+        this(im, readThreadsNum, tokenizeThreadsNum, buffersNum, bufferSize, buffersNum, queueSize, batchWords, chunkSize);
+    }
+
+    /**
+        @param im receiver of processing results
+        @param readThreadsNum number of threads of read stage
+        @param tokenizeThreadsNum number of threads of tokenize stage
+        @param buffersNum number of read buffers
+        @param bufferSize size of read buffer, larger files are read by tokenizers
+        @param tokenizeQueueSize maximal number of files being read or waiting for tokenizer
+        @param queueSize maximal number of files in pipeline
+        @param batchWords if true words of file are submitted at once, otherwise one by one
+        @param chunkSize if positive, files larger than this are split into chunks of about this size
+                         which are tokenized in parallel. Works only with batched words
+    */
+    public PipelineFilesProcessorService(@NotNull IFileProcessingResults im, int readThreadsNum, int tokenizeThreadsNum
+            , int buffersNum, int bufferSize, int tokenizeQueueSize, int queueSize, boolean batchWords, long chunkSize) {
+        indexManager = im;
+        this.readThreadsNum = readThreadsNum;
+        this.tokenizeThreadsNum = tokenizeThreadsNum;
+        this.buffersNum = buffersNum;
+        this.bufferSize = bufferSize;
+        this.tokenizeQueueSize = tokenizeQueueSize;
+        this.batchWords = batchWords;
+        this.chunkSize = chunkSize;
+        admitted = new Semaphore(queueSize);
+        tokenizeSlots = new Semaphore(tokenizeQueueSize);
+        buffers = new ConcurrentLinkedQueue<>();
+        waitingForRead = new ConcurrentLinkedQueue<>();
+        waitingForReadNum = new AtomicInteger();
+        readNum = new AtomicLong();
+        bytesRead = new AtomicLong();
+        readByTokenizerNum = new AtomicLong();
+        tokenizedNum = new AtomicLong();
+        runningUnits = new RunningUnits();
+    }
+
+    /**
+        Enqueues file for further processing.
+        @return true if file successfully enqueued false if pipeline is full
+    */
+    @Override
+    public boolean processFile(@NotNull Path f) {
+        if(!isRunning())
+            throw new IllegalStateException("Service not running");
+        if(!admitted.tryAcquire())
+            return false;
+        waitingForReadNum.incrementAndGet();
+        waitingForRead.add(f);
+        startReads();
+        return true;
+    }
+
+    /**
+        Cancels tokenizing of file. Files being read are not cancelled.
+    */
+    @Override
+    public boolean cancelProcessing(@NotNull Path f) {
+        return runningUnits.cancel(f);
+    }
+
+    /**
+        @return current statistics of stages
+    */
+    @NotNull
+    public PipelineStatistics getStatistics() {
+        PipelineStatistics res = new PipelineStatistics();
+        res.numRead = readNum.get();
+        res.bytesRead = bytesRead.get();
+        res.numReadByTokenizer = readByTokenizerNum.get();
+        res.numTokenized = tokenizedNum.get();
+        res.numWaitingForRead = waitingForReadNum.get();
+        if(readPool != null) {
+            res.numWaitingForTokenizer = tokenizePool.getQueue().size();
+            res.readUtilization = readPool.getUtilization();
+            res.tokenizeUtilization = tokenizePool.getUtilization();
+        }
+        return res;
+    }
+
+    /**
+        Starts reading of waiting files while there are free buffers and places in tokenize queue
+    */
+    private void startReads() {
+        while(!waitingForRead.isEmpty()) {
+            if(!tokenizeSlots.tryAcquire())
+                return;
+            ByteBuffer buf = buffers.poll();
+            if(buf == null) {
+                tokenizeSlots.release();
+                return;
+            }
+            Path f = waitingForRead.poll();
+            if(f == null) {
+                buffers.add(buf);
+                tokenizeSlots.release();
+                continue;
+            }
+            waitingForReadNum.decrementAndGet();
+            try {
+                readPool.execute(new ReadStart(f, buf));
+            } catch (RejectedExecutionException e) {
+                buffers.add(buf);
+                tokenizeSlots.release();
+                admitted.release();
+                return; //service stopped, waiting files are dropped
+            }
+        }
+    }
+
+    /**
+        Frees place in tokenize queue taken when reading of file was started
+    */
+    private void releaseTokenizeSlot() {
+        tokenizeSlots.release();
+        if(isRunning())
+            startReads();
+    }
+
+    private void releaseBuffer(@NotNull ByteBuffer buf) {
+        buffers.add(buf);
+        if(isRunning())
+            startReads();
+    }
+
+    /**
+        Opens file and starts asynchronous reading into buffer
+    */
+    private class ReadStart implements Runnable {
+        public ReadStart(@NotNull Path file, @NotNull ByteBuffer buf) {
+            this.file = file;
+            this.buf = buf;
+        }
+
+        @Override
+        public void run() {
+            long stamp = System.currentTimeMillis();
+            AsynchronousFileChannel ch = null;
+            try {
+                ch = AsynchronousFileChannel.open(file, READ_OPTIONS, readPool);
+                if(ch.size() < buf.capacity()) {
+                    buf.clear();
+                    ch.read(buf, 0, new ReadState(file, ch, buf, stamp), readHandler);
+                    return;
+                }
+            } catch (IOException | RuntimeException e) {
+                if(log.isLoggable(Level.FINER))
+                    log.log(Level.FINER, "Failed to start reading " + file, e);
+            }
+            closeChannel(ch);
+            releaseBuffer(buf);
+            tokenize(file, null, stamp);
+        }
+
+        private final Path file;
+        private final ByteBuffer buf;
+    }
+
+    private static class ReadState {
+        public ReadState(@NotNull Path file, @NotNull AsynchronousFileChannel channel, @NotNull ByteBuffer buf, long stamp) {
+            this.file = file;
+            this.channel = channel;
+            this.buf = buf;
+            this.stamp = stamp;
+        }
+
+        public final Path file;
+        public final AsynchronousFileChannel channel;
+        public final ByteBuffer buf;
+        public final long stamp;
+    }
+
+    private final CompletionHandler<Integer, ReadState> readHandler = new CompletionHandler<Integer, ReadState>() {
+        @Override
+        public void completed(Integer n, ReadState s) {
+            if(n >= 0 && s.buf.hasRemaining()) {
+                try {
+                    s.channel.read(s.buf, s.buf.position(), s, this);
+                    return;
+                } catch (RuntimeException e) {
+                    failed(e, s);
+                    return;
+                }
+            }
+            closeChannel(s.channel);
+            if(!s.buf.hasRemaining()) { //file have grown, let tokenizer read it
+                releaseBuffer(s.buf);
+                tokenize(s.file, null, s.stamp);
+                return;
+            }
+            s.buf.flip();
+            readNum.incrementAndGet();
+            bytesRead.addAndGet(s.buf.remaining());
+            tokenize(s.file, s.buf, s.stamp);
+        }
+
+        @Override
+        public void failed(Throwable exc, ReadState s) {
+            if(log.isLoggable(Level.FINER))
+                log.log(Level.FINER, "Failed to read " + s.file, exc);
+            closeChannel(s.channel);
+            releaseBuffer(s.buf);
+            tokenize(s.file, null, s.stamp);
+        }
+    };
+
+    private static void closeChannel(@Nullable AsynchronousFileChannel ch) {
+        if(ch == null)
+            return;
+        try {
+            ch.close();
+        } catch (IOException e) {
+            log.log(Level.FINE, "Failed to close channel", e);
+        }
+    }
+
+    /**
+        Passes file to tokenize stage, place in its queue is already taken
+
+        @param file file to tokenize
+        @param contents contents of file or null if tokenizer should read file itself
+        @param stamp time when reading have been started
+    */
+    private void tokenize(@NotNull Path file, @Nullable final ByteBuffer contents, long stamp) {
+        final Runnable unit;
+        if(contents != null) {
+            unit = runningUnits.track(new FileProcessorUnit(indexManager, file, batchWords, contents, stamp));
+        } else {
+            readByTokenizerNum.incrementAndGet();
+            unit = runningUnits.track(new FileProcessorUnit(indexManager, file, batchWords, chunksPool, chunkSize));
+        }
+        try {
+            tokenizePool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    releaseTokenizeSlot();
+                    try {
+                        unit.run();
+                    } finally {
+                        tokenizedNum.incrementAndGet();
+                        admitted.release();
+                        if(contents != null)
+                            releaseBuffer(contents);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            tokenizeSlots.release();
+            admitted.release();
+            if(contents != null)
+                buffers.add(contents);
+        }
+    }
+
+    @Override
+    public void startService() throws FailureException {
+        if(isRunning())
+            throw new IllegalStateException("Service already running");
+        for(int i = 0; i < buffersNum; ++i)
+            buffers.add(ByteBuffer.allocate(bufferSize));
+        readPool = new UtilizationThreadPool(readThreadsNum); //holds at most a task of each buffer
+        tokenizePool = new UtilizationThreadPool(tokenizeThreadsNum, tokenizeQueueSize);
+        if(chunkSize > 0 && batchWords)
+            chunksPool = new ForkJoinPool(tokenizeThreadsNum);
+    }
+
+    @Override
+    public void stopService() {
+        if(!isRunning())
+            throw new IllegalStateException("Service already stopped");
+        if(log.isLoggable(Level.FINE)) {
+            PipelineStatistics s = getStatistics();
+            log.fine("Read utilization " + s.readUtilization + ", tokenize utilization " + s.tokenizeUtilization);
+        }
+        readPool.shutdownNow();
+        tokenizePool.shutdownNow();
+        if(chunksPool != null)
+            chunksPool.shutdownNow();
+        waitingForRead.clear();
+        waitingForReadNum.set(0);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return readPool != null && !readPool.isShutdown();
+    }
+
+    @Override
+    public boolean waitFinished(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if(!readPool.awaitTermination(timeout, unit))
+            return false;
+        if(!tokenizePool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+            return false;
+        return chunksPool == null || chunksPool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    private static final Set<OpenOption> READ_OPTIONS = Collections.<OpenOption>singleton(StandardOpenOption.READ);
+
+    private UtilizationThreadPool readPool, tokenizePool;
+    private ForkJoinPool chunksPool;
+    private final Semaphore admitted, tokenizeSlots;
+    private final Queue<ByteBuffer> buffers;
+    private final Queue<Path> waitingForRead;
+    private final RunningUnits runningUnits;
+    private final AtomicInteger waitingForReadNum;
+    private final AtomicLong readNum, bytesRead, readByTokenizerNum, tokenizedNum;
+    private final IFileProcessingResults indexManager;
+    private final int readThreadsNum, tokenizeThreadsNum, buffersNum, bufferSize, tokenizeQueueSize;
+    private final boolean batchWords;
+    private final long chunkSize;
+    private static final Logger log = Logger.getLogger(PipelineFilesProcessorService.class.getName());
+}
@@ -0,0 +1,12 @@
+package com.github.kassak.indexer.tokenizing;
+
+public class PipelineStatistics {
+    public long numRead;
+    public long bytesRead;
+    public long numReadByTokenizer;
+    public long numTokenized;
+    public int numWaitingForRead;
+    public int numWaitingForTokenizer;
+    public double readUtilization;
+    public double tokenizeUtilization;
+}
@@ -0,0 +1,20 @@
+package com.github.kassak.indexer.tokenizing;
+
+public class ProcessorModes {
+    /**
+        {@link FilesProcessorService}: fixed number of threads with bounded queue
+    */
+    static public final int FIXED = 0;
+    /**
+        {@link AdaptiveFilesProcessorService}: pool with adaptive number of files processed simultaneously
+    */
+    static public final int ADAPTIVE = 1;
+    /**
+        {@link ThreadPerFileFilesProcessorService}: thread per file with bounded number of outstanding files
+    */
+    static public final int THREAD_PER_FILE = 2;
+    /**
+        {@link PipelineFilesProcessorService}: separate pools for reading files and tokenizing them
+    */
+    static public final int PIPELINE = 3;
+}
@@ -0,0 +1,49 @@
+package com.github.kassak.indexer.tokenizing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+    Registry of units being run, allows to cancel processing of file
+*/
+class RunningUnits {
+    RunningUnits() {
+        units = new ConcurrentHashMap<>();
+    }
+
+    /**
+        @return runnable running unit registered while it runs
+    */
+    @NotNull
+    public Runnable track(@NotNull final FileProcessorUnit unit) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                units.put(unit.getFile(), unit);
+                try {
+                    unit.run();
+                } finally {
+                    units.remove(unit.getFile(), unit);
+                }
+            }
+        };
+    }
+
+    /**
+        Cancels running unit processing file
+
+        @return true if unit was running
+    */
+    public boolean cancel(@NotNull Path file) {
+        FileProcessorUnit unit = units.get(file);
+        if(unit == null)
+            return false;
+        unit.cancel();
+        return true;
+    }
+
+    private final ConcurrentMap<Path, FileProcessorUnit> units;
+}
@@ -0,0 +1,136 @@
+package com.github.kassak.indexer.tokenizing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+    Service processing each file in its own thread.
+    Concurrency is bounded by number of outstanding files rather than by number of threads,
+    so blocking reads of many files may overlap. When limit is reached further processing requests are declined.
+    Threads are virtual if runtime supports them (Java 21+), otherwise platform threads of cached pool are used.
+*/
+public class ThreadPerFileFilesProcessorService implements IFilesProcessorService {
+    /**
+        @param im receiver of processing results
+        @param maxOutstanding maximal number of files being processed simultaneously
+        @param batchWords if true words of file are submitted at once, otherwise one by one
+        @param chunkSize if positive, files larger than this are split into chunks of about this size
+                         which are tokenized in parallel. Works only with batched words
+    */
+    public ThreadPerFileFilesProcessorService(@NotNull IFileProcessingResults im, int maxOutstanding
+            , boolean batchWords, long chunkSize) {
+        indexManager = im;
+        outstanding = new Semaphore(maxOutstanding);
+        this.batchWords = batchWords;
+        this.chunkSize = chunkSize;
+        runningUnits = new RunningUnits();
+    }
+
+    /**
+        Starts processing of file.
+        @return true if file accepted false if too many files are being processed
+    */
+    @Override
+    public boolean processFile(@NotNull Path f) {
+        if(!isRunning())
+            throw new IllegalStateException("Service not running");
+        if(!outstanding.tryAcquire())
+            return false;
+        final Runnable unit = runningUnits.track(new FileProcessorUnit(indexManager, f, batchWords, chunksPool, chunkSize));
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        unit.run();
+                    } finally {
+                        outstanding.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            outstanding.release();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean cancelProcessing(@NotNull Path f) {
+        return runningUnits.cancel(f);
+    }
+
+    /**
+        @return true if files are processed in virtual threads
+    */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+        @return executor starting virtual thread per task or null if runtime does not support them
+    */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void startService() throws FailureException {
+        if(isRunning())
+            throw new IllegalStateException("Service already running");
+        executor = newVirtualThreadPerTaskExecutor();
+        virtual = executor != null;
+        if(!virtual) {
+            log.warning("Virtual threads are not supported by runtime, using cached pool of platform threads");
+            executor = Executors.newCachedThreadPool();
+        }
+        if(chunkSize > 0 && batchWords)
+            chunksPool = new ForkJoinPool();
+    }
+
+    @Override
+    public void stopService() {
+        if(!isRunning())
+            throw new IllegalStateException("Service already stopped");
+        executor.shutdownNow();
+        if(chunksPool != null)
+            chunksPool.shutdownNow();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return executor != null && !executor.isShutdown();
+    }
+
+    @Override
+    public boolean waitFinished(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if(!executor.awaitTermination(timeout, unit))
+            return false;
+        return chunksPool == null || chunksPool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    private ExecutorService executor;
+    private boolean virtual;
+    private ForkJoinPool chunksPool;
+    private final Semaphore outstanding;
+    private final RunningUnits runningUnits;
+    private final IFileProcessingResults indexManager;
+    private final boolean batchWords;
+    private final long chunkSize;
+    private static final Logger log = Logger.getLogger(ThreadPerFileFilesProcessorService.class.getName());
+}
@@ -0,0 +1,28 @@
+package com.github.kassak.indexer.tokenizing;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+public class TokenizerModes {
+    /**
+        {@link SeparatorTokenizer}: Scanner with regex delimiter
+    */
+    static public final int SCANNER = 0;
+    /**
+        {@link CharClassTokenizer}: hand-written scanning over characters classes
+    */
+    static public final int CHAR_CLASS = 1;
+    /**
+        {@link MappedTokenizer}: scanning over bytes of memory mapped UTF-8 file
+    */
+    static public final int MAPPED = 2;
+
+    /**
+        @param mode tokenizer mode
+        @return true if files may be tokenized in independent chunks by {@link MappedTokenizer}
+                with same result as whole file
+    */
+    static public boolean canTokenizeChunks(int mode) {
+        return mode == MAPPED || (mode == CHAR_CLASS && Charset.defaultCharset().equals(StandardCharsets.UTF_8));
+    }
+}
@@ -1,22 +1,71 @@
 package com.github.kassak.indexer.tokenizing.factories;
 
+import com.github.kassak.indexer.tokenizing.CharClassTokenizer;
 import com.github.kassak.indexer.tokenizing.ITokenizer;
+import com.github.kassak.indexer.tokenizing.MappedTokenizer;
 import com.github.kassak.indexer.tokenizing.SeparatorTokenizer;
+import com.github.kassak.indexer.tokenizing.TokenizerModes;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
 /**
     Factory for tokenizer which splits words on non-alphanumeric characters
 */
-public class AlphanumTokenizerFactory implements ITokenizerFactory {
+public class AlphanumTokenizerFactory implements IChunkedTokenizerFactory, IBufferTokenizerFactory {
+    public AlphanumTokenizerFactory() {
+        this(TokenizerModes.CHAR_CLASS);
+    }
+
+    /**
+        @param mode one of {@link TokenizerModes}
+    */
+    public AlphanumTokenizerFactory(int mode) {
+        if(mode != TokenizerModes.SCANNER && mode != TokenizerModes.CHAR_CLASS && mode != TokenizerModes.MAPPED)
+            throw new IllegalArgumentException("Unknown tokenizer mode " + mode);
+        this.mode = mode;
+    }
+
     @Override
     public @Nullable ITokenizer create(@NotNull Path file) throws IOException {
         if(!Files.exists(file))
             return null;
+        if(mode == TokenizerModes.CHAR_CLASS)
+            return new CharClassTokenizer(file, CharClassTokenizer.ALPHANUMERIC);
+        if(mode == TokenizerModes.MAPPED)
+            return new MappedTokenizer(file, CharClassTokenizer.ALPHANUMERIC);
         return new SeparatorTokenizer(file, "[^\\p{IsAlphabetic}\\p{IsDigit}]");
     }
+
+    @Override
+    public @Nullable long[] split(@NotNull Path file, long chunkSize) throws IOException {
+        if(!TokenizerModes.canTokenizeChunks(mode) || !Files.exists(file))
+            return null;
+        return MappedTokenizer.split(file, CharClassTokenizer.ALPHANUMERIC, chunkSize);
+    }
+
+    @Override
+    public @Nullable ITokenizer create(@NotNull Path file, long from, long to) throws IOException {
+        if(!TokenizerModes.canTokenizeChunks(mode))
+            throw new IllegalStateException("Chunks are not supported in mode " + mode);
+        if(!Files.exists(file))
+            return null;
+        return new MappedTokenizer(file, CharClassTokenizer.ALPHANUMERIC, from, to);
+    }
+
+    @Override
+    public @Nullable ITokenizer create(@NotNull ByteBuffer contents) throws IOException {
+        if(TokenizerModes.canTokenizeChunks(mode))
+            return new MappedTokenizer(contents, CharClassTokenizer.ALPHANUMERIC);
+        if(mode == TokenizerModes.CHAR_CLASS)
+            return new CharClassTokenizer(contents, CharClassTokenizer.ALPHANUMERIC, Charset.defaultCharset());
+        return null;
+    }
+
+    private final int mode;
 }
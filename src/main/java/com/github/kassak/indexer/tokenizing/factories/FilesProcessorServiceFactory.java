@@ -1,8 +1,12 @@
 package com.github.kassak.indexer.tokenizing.factories;
 
+import com.github.kassak.indexer.tokenizing.AdaptiveFilesProcessorService;
 import com.github.kassak.indexer.tokenizing.FilesProcessorService;
 import com.github.kassak.indexer.tokenizing.IFileProcessingResults;
 import com.github.kassak.indexer.tokenizing.IFilesProcessorService;
+import com.github.kassak.indexer.tokenizing.PipelineFilesProcessorService;
+import com.github.kassak.indexer.tokenizing.ProcessorModes;
+import com.github.kassak.indexer.tokenizing.ThreadPerFileFilesProcessorService;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -10,15 +14,87 @@ import org.jetbrains.annotations.NotNull;
 */
 public class FilesProcessorServiceFactory implements IFilesProcessorServiceFactory {
     public FilesProcessorServiceFactory(int threadsNum, int queueSize) {
+        this(threadsNum, queueSize, true);
+    }
+
+    /**
+        @param threadsNum number of processor threads
+        @param queueSize size of files queue
+        @param batchWords if true words of file are submitted at once, otherwise one by one
+    */
+    public FilesProcessorServiceFactory(int threadsNum, int queueSize, boolean batchWords) {
+        this(threadsNum, queueSize, batchWords, 0);
+    }
+
+    /**
+        @param threadsNum number of processor threads
+        @param queueSize size of files queue
+        @param batchWords if true words of file are submitted at once, otherwise one by one
+        @param chunkSize if positive, files larger than this are tokenized in parallel chunks of about this size
+    */
+    public FilesProcessorServiceFactory(int threadsNum, int queueSize, boolean batchWords, long chunkSize) {
+        this(ProcessorModes.FIXED, threadsNum, queueSize, batchWords, chunkSize);
+    }
+
+    /**
+        @param mode one of {@link ProcessorModes}
+        @param threadsNum number of processor threads, maximal number for adaptive modes
+        @param queueSize size of files queue, number of outstanding files for thread per file mode,
+                         unbounded for adaptive mode
+        @param batchWords if true words of file are submitted at once, otherwise one by one
+        @param chunkSize if positive, files larger than this are tokenized in parallel chunks of about this size
+    */
+    public FilesProcessorServiceFactory(int mode, int threadsNum, int queueSize, boolean batchWords, long chunkSize) {
+        this(mode, threadsNum, queueSize, batchWords, chunkSize, threadsNum, queueSize, DEFAULT_READ_BUFFER_SIZE, queueSize);
+    }
+
+    /**
+        @param mode one of {@link ProcessorModes}
+        @param threadsNum number of processor threads, maximal number for adaptive modes
+        @param queueSize size of files queue, number of outstanding files for thread per file mode,
+                         unbounded for adaptive mode
+        @param batchWords if true words of file are submitted at once, otherwise one by one
+        @param chunkSize if positive, files larger than this are tokenized in parallel chunks of about this size
+        @param readThreadsNum number of threads reading files in pipeline mode
+        @param readBuffersNum number of read buffers in pipeline mode
+        @param readBufferSize size of read buffer in pipeline mode
+        @param tokenizeQueueSize number of files being read or waiting for tokenizer in pipeline mode
+    */
+    public FilesProcessorServiceFactory(int mode, int threadsNum, int queueSize, boolean batchWords, long chunkSize
+            , int readThreadsNum, int readBuffersNum, int readBufferSize, int tokenizeQueueSize) {
+        this.mode = mode;
         this.threadsNum = threadsNum;
         this.queueSize = queueSize;
+        this.batchWords = batchWords;
+        this.chunkSize = chunkSize;
+        this.readThreadsNum = readThreadsNum;
+        this.readBuffersNum = readBuffersNum;
+        this.readBufferSize = readBufferSize;
+        this.tokenizeQueueSize = tokenizeQueueSize;
     }
     @Override
     public @NotNull
     IFilesProcessorService create(@NotNull IFileProcessingResults im) {
-        return new FilesProcessorService(im, threadsNum, queueSize);
+        switch(mode) {
+            case ProcessorModes.FIXED:
+                return new FilesProcessorService(im, threadsNum, queueSize, batchWords, chunkSize);
+            case ProcessorModes.ADAPTIVE:
+                return new AdaptiveFilesProcessorService(im, threadsNum, batchWords, chunkSize);
+            case ProcessorModes.THREAD_PER_FILE:
+                return new ThreadPerFileFilesProcessorService(im, queueSize, batchWords, chunkSize);
+            case ProcessorModes.PIPELINE:
+                return new PipelineFilesProcessorService(im, readThreadsNum, threadsNum, readBuffersNum, readBufferSize
+                        , tokenizeQueueSize, queueSize, batchWords, chunkSize);
+            default:
+                throw new IllegalArgumentException("Unknown processor mode " + mode);
+        }
     }
 
+    private final int mode;
     private final int threadsNum;
     private final int queueSize;
+    private final boolean batchWords;
+    private final long chunkSize;
+    private final int readThreadsNum, readBuffersNum, readBufferSize, tokenizeQueueSize;
+    private static final int DEFAULT_READ_BUFFER_SIZE = 1024 * 1024;
 }
@@ -0,0 +1,21 @@
+package com.github.kassak.indexer.tokenizing.factories;
+
+import com.github.kassak.indexer.tokenizing.ITokenizer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+    Factory for tokenizers which may tokenize file contents already read into memory
+*/
+public interface IBufferTokenizerFactory extends ITokenizerFactory {
+    /**
+        Create tokenizer for file contents
+
+        @param contents bytes of file between position and limit, must not be modified while tokenizing
+        @return new tokenizer or null if contents can't be tokenized in memory
+    */
+    @Nullable ITokenizer create(@NotNull ByteBuffer contents) throws IOException;
+}
@@ -0,0 +1,33 @@
+package com.github.kassak.indexer.tokenizing.factories;
+
+import com.github.kassak.indexer.tokenizing.ITokenizer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+    Factory for tokenizers which may tokenize parts of file independently
+*/
+public interface IChunkedTokenizerFactory extends ITokenizerFactory {
+    /**
+        Split file into chunks, so that no word crosses chunk boundary
+
+        @param file file to split
+        @param chunkSize desired size of chunk in bytes
+        @return ascending chunk boundaries starting with 0 and ending with file size
+                or null if file can't be split
+    */
+    @Nullable long[] split(@NotNull Path file, long chunkSize) throws IOException;
+
+    /**
+        Create tokenizer for part of file
+
+        @param file file to tokenize
+        @param from offset of chunk start
+        @param to offset of chunk end
+        @return new tokenizer or null if no file found
+    */
+    @Nullable ITokenizer create(@NotNull Path file, long from, long to) throws IOException;
+}
@@ -0,0 +1,86 @@
+package com.github.kassak.indexer.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+    Unbounded FIFO queue keeping each element at most once.
+    Adding element which is already waiting does not change its position.
+    Element is removed from pending set when polled, so it may be added again
+    while being processed. May be used from any thread.
+*/
+public class CoalescingQueue<T> {
+    public CoalescingQueue() {
+        order = new ConcurrentLinkedDeque<>();
+        pending = Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+        coalescedNum = new AtomicLong();
+    }
+
+    /**
+        Adds element to tail of queue unless it is already waiting
+
+        @return false if element was already waiting
+    */
+    public boolean add(@NotNull T e) {
+        if(!pending.add(e)) {
+            coalescedNum.incrementAndGet();
+            return false;
+        }
+        order.addLast(e);
+        return true;
+    }
+
+    /**
+        Returns polled element to head of queue, unless it was added again meanwhile
+    */
+    public void addFirst(@NotNull T e) {
+        if(pending.add(e))
+            order.addFirst(e);
+    }
+
+    /**
+        @return head of queue or null if queue is empty
+    */
+    @Nullable
+    public T poll() {
+        T res = order.pollFirst();
+        if(res != null)
+            pending.remove(res);
+        return res;
+    }
+
+    /**
+        @return number of distinct waiting elements
+    */
+    public int size() {
+        return pending.size();
+    }
+
+    public void clear() {
+        T e;
+        while((e = order.pollFirst()) != null)
+            pending.remove(e);
+    }
+
+    public boolean isEmpty() {
+        return order.isEmpty();
+    }
+
+    /**
+        @return number of additions of elements which were already waiting
+    */
+    public long getCoalesced() {
+        return coalescedNum.get();
+    }
+
+    private final Deque<T> order;
+    private final Set<T> pending;
+    private final AtomicLong coalescedNum;
+}
@@ -0,0 +1,68 @@
+package com.github.kassak.indexer.utils;
+
+/**
+    Hill climbing controller of concurrency level.
+    Each sample moves the limit by one in current direction, direction is reversed when throughput drops.
+    When throughput does not change the limit grows if workers mostly wait for IO and shrinks otherwise.
+    Limit does not exceed number of cpus while workers are CPU bound.
+*/
+public class ConcurrencyController {
+    /**
+        @param minLimit minimal concurrency level
+        @param maxLimit maximal concurrency level
+        @param cpus number of available processors
+    */
+    public ConcurrencyController(int minLimit, int maxLimit, int cpus) {
+        if(minLimit < 1 || maxLimit < minLimit)
+            throw new IllegalArgumentException("Bad limits " + minLimit + ".." + maxLimit);
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.cpus = cpus;
+        limit = Math.max(minLimit, Math.min(maxLimit, cpus));
+        direction = 1;
+        lastThroughput = -1;
+    }
+
+    /**
+        @return current concurrency level
+    */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+        Accounts throughput measured with current limit and chooses next limit.
+        Samples taken while there was not enough work to occupy all workers are not informative
+        and only reset measurement.
+
+        @param throughput amount of work done per unit of time
+        @param ioWait part of workers time not spent on CPU, negative if unknown
+        @param saturated true if there was more work than workers
+        @return new concurrency level
+    */
+    public synchronized int update(double throughput, double ioWait, boolean saturated) {
+        if(!saturated) {
+            lastThroughput = -1;
+            return limit;
+        }
+        if(lastThroughput >= 0) {
+            if(throughput < lastThroughput * (1 - TOLERANCE))
+                direction = -direction;
+            else if(throughput <= lastThroughput * (1 + TOLERANCE) && ioWait >= 0)
+                direction = ioWait > IO_BOUND_WAIT ? 1 : -1;
+        }
+        lastThroughput = throughput;
+        int cap = ioWait >= 0 && ioWait < CPU_BOUND_WAIT ? Math.max(minLimit, Math.min(maxLimit, cpus)) : maxLimit;
+        limit = Math.max(minLimit, Math.min(cap, limit + direction));
+        return limit;
+    }
+
+    private static final double TOLERANCE = 0.05;
+    private static final double IO_BOUND_WAIT = 0.5;
+    private static final double CPU_BOUND_WAIT = 0.2;
+
+    private final int minLimit, maxLimit, cpus;
+    private volatile int limit;
+    private int direction;
+    private double lastThroughput;
+}
@@ -0,0 +1,61 @@
+package com.github.kassak.indexer.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+    64-bit FNV-1a hash of file content
+*/
+public class ContentHash {
+    /**
+        Hash of content which is unknown, never returned for read content
+    */
+    public static final long NO_HASH = 0;
+
+    /**
+        @return hash of bytes between position and limit, buffer position is not changed
+    */
+    public static long of(@NotNull ByteBuffer contents) {
+        long hash = FNV_OFFSET;
+        for(int i = contents.position(); i < contents.limit(); ++i) {
+            hash ^= contents.get(i) & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash == NO_HASH ? 1 : hash;
+    }
+
+    /**
+        @return hash of file content or {@link #NO_HASH} if reading failed
+    */
+    public static long of(@NotNull Path file) {
+        long hash = FNV_OFFSET;
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            while(ch.read(buf) != -1) {
+                buf.flip();
+                while(buf.hasRemaining()) {
+                    hash ^= buf.get() & 0xFF;
+                    hash *= FNV_PRIME;
+                }
+                buf.clear();
+            }
+        } catch (IOException e) {
+            if(log.isLoggable(Level.FINER))
+                log.finer("Failed to hash " + file);
+            return NO_HASH;
+        }
+        return hash == NO_HASH ? 1 : hash;
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final Logger log = Logger.getLogger(ContentHash.class.getName());
+}
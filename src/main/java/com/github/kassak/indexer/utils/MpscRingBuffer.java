@@ -0,0 +1,106 @@
+package com.github.kassak.indexer.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+    Bounded lock-free FIFO queue for many producers and single consumer.
+    Each slot has sequence number telling whether it is free for producer with given ticket
+    or filled for consumer, so producers only compete for ticket with CAS.
+*/
+public class MpscRingBuffer<T> {
+    /**
+        @param capacity minimal capacity, rounded up to power of two
+    */
+    public MpscRingBuffer(int capacity) {
+        if(capacity <= 0)
+            throw new IllegalArgumentException("Bad capacity " + capacity);
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        items = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; ++i)
+            sequences.set(i, i);
+        tail = new AtomicLong();
+    }
+
+    /**
+        Adds element if there is free space. May be called from any thread.
+
+        @param e element to add
+        @return false if buffer is full
+    */
+    public boolean offer(@NotNull T e) {
+        while(true) {
+            long t = tail.get();
+            int idx = (int)t & mask;
+            long diff = sequences.get(idx) - t;
+            if(diff == 0) {
+                if(tail.compareAndSet(t, t + 1)) {
+                    items.lazySet(idx, e);
+                    sequences.set(idx, t + 1); //publishes element
+                    return true;
+                }
+            } else if(diff < 0) {
+                return false; //slot still holds element of previous round
+            }
+        }
+    }
+
+    /**
+        Removes oldest element. Must be called from single consumer thread.
+
+        @return removed element or null if buffer is empty
+    */
+    @Nullable
+    public T poll() {
+        long h = head;
+        int idx = (int)h & mask;
+        if(sequences.get(idx) != h + 1)
+            return null;
+        T res = items.get(idx);
+        items.lazySet(idx, null);
+        sequences.set(idx, h + mask + 1); //frees slot for next round
+        head = h + 1;
+        return res;
+    }
+
+    /**
+        Removes all published elements. Must be called from single consumer thread.
+    */
+    public void clear() {
+        while(poll() != null);
+    }
+
+    /**
+        @return true if there are no published elements, exact only in consumer thread
+    */
+    public boolean isEmpty() {
+        long h = head;
+        return sequences.get((int)h & mask) != h + 1;
+    }
+
+    /**
+        @return approximate number of elements
+    */
+    public int size() {
+        return (int)Math.max(0, Math.min(tail.get() - head, mask + 1));
+    }
+
+    /**
+        @return number of slots
+    */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    private final int mask;
+    private final AtomicReferenceArray<T> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail;
+    private volatile long head; //written only by consumer
+}
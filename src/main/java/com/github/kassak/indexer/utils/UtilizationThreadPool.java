@@ -0,0 +1,63 @@
+package com.github.kassak.indexer.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+    Fixed thread pool which measures part of time its threads are busy
+*/
+public class UtilizationThreadPool extends ThreadPoolExecutor {
+    /**
+        @param threadsNum number of threads in pool
+    */
+    public UtilizationThreadPool(int threadsNum) {
+        this(threadsNum, new LinkedBlockingQueue<Runnable>());
+    }
+
+    /**
+        Tasks submitted while queue is full are rejected, so callers must bound number of waiting tasks themselves
+
+        @param threadsNum number of threads in pool
+        @param queueSize maximal number of waiting tasks
+    */
+    public UtilizationThreadPool(int threadsNum, int queueSize) {
+        this(threadsNum, new ArrayBlockingQueue<Runnable>(queueSize));
+    }
+
+    private UtilizationThreadPool(int threadsNum, @NotNull BlockingQueue<Runnable> queue) {
+        super(threadsNum, threadsNum, 0, TimeUnit.MILLISECONDS, queue);
+        busyNanos = new AtomicLong();
+        taskStart = new ThreadLocal<>();
+        created = System.nanoTime();
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        taskStart.set(System.nanoTime());
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        busyNanos.addAndGet(System.nanoTime() - taskStart.get());
+        super.afterExecute(r, t);
+    }
+
+    /**
+        @return part of threads time spent running tasks since pool creation, running tasks are not accounted
+    */
+    public double getUtilization() {
+        long elapsed = System.nanoTime() - created;
+        return elapsed <= 0 ? 0 : (double)busyNanos.get() / elapsed / getMaximumPoolSize();
+    }
+
+    private final AtomicLong busyNanos;
+    private final ThreadLocal<Long> taskStart;
+    private final long created;
+}
@@ -0,0 +1,59 @@
+package com.github.kassak.indexer.tests;
+
+import com.github.kassak.indexer.utils.CoalescingQueue;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class CoalescingQueueTest {
+    @Test
+    public void singleThread() {
+        CoalescingQueue<String> q = new CoalescingQueue<>();
+        Assert.assertTrue(q.isEmpty());
+        Assert.assertNull(q.poll());
+        Assert.assertTrue(q.add("a"));
+        Assert.assertTrue(q.add("b"));
+        Assert.assertFalse(q.add("a")); //keeps position
+        Assert.assertTrue(q.add("c"));
+        Assert.assertEquals(3, q.size());
+        Assert.assertEquals(1, q.getCoalesced());
+        Assert.assertEquals("a", q.poll());
+        Assert.assertTrue(q.add("a")); //polled, may wait again
+        q.addFirst("b"); //already waiting
+        Assert.assertEquals("b", q.poll());
+        q.addFirst("b");
+        Assert.assertEquals("b", q.poll());
+        Assert.assertEquals("c", q.poll());
+        Assert.assertEquals("a", q.poll());
+        Assert.assertNull(q.poll());
+        Assert.assertTrue(q.isEmpty());
+        Assert.assertEquals(0, q.size());
+    }
+
+    @Test
+    public void editStorm() throws InterruptedException {
+        final int producers = 4, files = 100, events = 100000;
+        final CoalescingQueue<String> q = new CoalescingQueue<>();
+        Thread[] threads = new Thread[producers];
+        for(int i = 0; i < producers; ++i) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int j = 0; j < events; ++j)
+                        q.add("file-" + j % files);
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread t : threads)
+            t.join();
+        Assert.assertEquals(files, q.size());
+        Assert.assertEquals(producers * events - files, q.getCoalesced());
+        Set<String> polled = new HashSet<>();
+        for(String s = q.poll(); s != null; s = q.poll())
+            Assert.assertTrue(polled.add(s));
+        Assert.assertEquals(files, polled.size());
+    }
+}
@@ -2,23 +2,34 @@ package com.github.kassak.indexer.tests;
 
 import com.github.kassak.indexer.fs.FSWatcherService;
 import com.github.kassak.indexer.fs.IFSEventsProcessor;
+import com.github.kassak.indexer.fs.ParallelCrawler;
 import com.github.kassak.indexer.tests.util.IndexerTesting;
 import com.github.kassak.indexer.utils.IService;
 import org.jetbrains.annotations.NotNull;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -69,6 +80,16 @@ class Collector implements IFSEventsProcessor {
     private final static Logger log = Logger.getLogger(Collector.class.getName());
 }
 
+class CountingCollector extends Collector {
+    @Override
+    public void onFileChanged(@NotNull Path file) {
+        changes.incrementAndGet();
+        super.onFileChanged(file);
+    }
+
+    public final AtomicInteger changes = new AtomicInteger();
+}
+
 public class FSWatcherTest {
     static {
         final Logger topLogger = Logger.getLogger("");
@@ -132,6 +153,169 @@ public class FSWatcherTest {
         watcher.waitFinished(10, TimeUnit.SECONDS);
     }
 
+    @Test
+    public void debouncedBurst() throws IOException, InterruptedException, ExecutionException, IService.FailureException {
+        CountingCollector cc = new CountingCollector();
+        FSWatcherService w = new FSWatcherService(cc, 10, 1000);
+        w.startService();
+        try {
+            Path root = tempDir();
+            w.registerRoot(root).get();
+
+            Path temp = addFile(root, "blah0.txt");
+            for(int i = 0; i < 10; ++i)
+                appendToFile(temp, "blah");
+            Path gone = addFile(root, "blah1.txt");
+            Files.delete(gone);
+
+            IndexerTesting.waitIdle(w);
+            Assert.assertEquals(1, cc.changes.get());
+            Assert.assertTrue(cc.files.contains(temp.toString()));
+            Assert.assertFalse(cc.files.contains(gone.toString()));
+            Assert.assertTrue(w.getCoalescedEvents() >= 3); //at least one modification, creation and removal
+        } finally {
+            w.stopService();
+            w.waitFinished(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void debouncedStopsAtOnce() throws IOException, InterruptedException, ExecutionException, IService.FailureException {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final AtomicBoolean released = new AtomicBoolean();
+        Collector cc = new Collector() {
+            @Override
+            public void onFileChanged(@NotNull Path file) {
+                entered.countDown();
+                while(!released.get()) //keep interruption state of watcher thread
+                    Thread.yield();
+                super.onFileChanged(file);
+            }
+        };
+        FSWatcherService w = new FSWatcherService(cc, 10, 2000);
+        w.startService();
+        try {
+            Path root = tempDir();
+            w.registerRoot(root).get();
+            addFile(root, "blah0.txt");
+            Assert.assertTrue(entered.await(10, TimeUnit.SECONDS));
+            w.stopService(); //interrupt arrives while debounced events are flushed
+            released.set(true);
+            Assert.assertTrue(w.waitFinished(1, TimeUnit.SECONDS));
+        } finally {
+            released.set(true);
+            w.stopService();
+            w.waitFinished(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static int fillTree(Path dir, int depth, int dirsNum, int filesNum) throws IOException {
+        int res = filesNum;
+        for(int i = 0; i < filesNum; ++i)
+            addFile(dir, "blah" + i + ".txt");
+        if(depth > 0)
+            for(int i = 0; i < dirsNum; ++i)
+                res += fillTree(addDir(dir, "dir" + i), depth - 1, dirsNum, filesNum);
+        return res;
+    }
+
+    @Test
+    public void parallelCrawl() throws IOException, InterruptedException, ExecutionException, IService.FailureException {
+        Collector cc = new Collector();
+        FSWatcherService w = new FSWatcherService(cc, 10, 0, 4);
+        w.startService();
+        try {
+            Path root = tempDir();
+            int filesNum = fillTree(root, 3, 3, 5);
+            w.registerRoot(root).get();
+            Assert.assertEquals(filesNum, cc.files.size());
+
+            Path file = addFile(root.resolve("dir2").resolve("dir1").resolve("dir0"), "new.txt");
+            IndexerTesting.waitIdle(w);
+            Assert.assertTrue(cc.files.contains(file.toString())); //deep directory is watched
+            Assert.assertEquals(filesNum + 1, cc.files.size());
+            Assert.assertTrue(cc.dirs.isEmpty());
+        } finally {
+            w.stopService();
+            w.waitFinished(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Test
+    public void crawlSkipsUnlistableDirectory() throws IOException {
+        final Path root = tempDir();
+        final int filesNum = fillTree(root, 2, 3, 5);
+        final Path gone = root.resolve("dir1");
+        final Set<String> files = new ConcurrentSkipListSet<>();
+        final Set<String> failed = new ConcurrentSkipListSet<>();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            boolean finished = new ParallelCrawler(pool).crawl(root, new ParallelCrawler.IVisitor() {
+                @Override
+                public boolean preVisitDirectory(@NotNull Path dir) throws IOException {
+                    if(dir.equals(gone)) //removed between listing of parent and its own listing
+                        deleteTree(dir);
+                    return true;
+                }
+
+                @Override
+                public void visitFile(@NotNull Path file) {
+                    files.add(file.toString());
+                }
+
+                @Override
+                public void visitFileFailed(@NotNull Path file, @NotNull IOException exc) {
+                    failed.add(file.toString());
+                }
+            });
+            Assert.assertTrue(finished);
+            Assert.assertEquals(Collections.singleton(gone.toString()), failed);
+            Assert.assertEquals(filesNum - 5 - 3 * 5, files.size()); //rest of tree is walked
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    @Ignore("Benchmark")
+    public void crawlThroughput() throws IOException, InterruptedException, ExecutionException, IService.FailureException {
+        Path root = tempDir();
+        int filesNum = fillTree(root, 4, 5, 25);
+        Logger.getLogger("").setLevel(Level.INFO);
+        for(int threads : new int[]{1, 4}) {
+            Collector cc = new Collector();
+            FSWatcherService w = new FSWatcherService(cc, 10, 0, threads);
+            w.startService();
+            try {
+                long start = System.nanoTime();
+                w.registerRoot(root).get();
+                long elapsed = System.nanoTime() - start;
+                Assert.assertEquals(filesNum, cc.files.size());
+                System.out.println("Crawl threads: " + threads + ", files: " + filesNum
+                        + ", files/sec: " + filesNum * 1000000000L / elapsed);
+            } finally {
+                w.stopService();
+                w.waitFinished(10, TimeUnit.SECONDS);
+            }
+        }
+    }
+
     @Test
     public void fileRegistration() throws IOException, InterruptedException {
         Path root = tempDir();
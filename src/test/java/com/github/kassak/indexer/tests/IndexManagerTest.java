@@ -2,23 +2,53 @@ package com.github.kassak.indexer.tests;
 
 import com.github.kassak.indexer.IndexManagerService;
 import com.github.kassak.indexer.storage.FileStatistics;
+import com.github.kassak.indexer.storage.IndexLog;
+import com.github.kassak.indexer.storage.IndexSnapshot;
+import com.github.kassak.indexer.storage.IndexStatistics;
+import com.github.kassak.indexer.storage.LogSyncModes;
+import com.github.kassak.indexer.storage.StorageTypes;
+import com.github.kassak.indexer.storage.factories.IIndexProcessorFactory;
 import com.github.kassak.indexer.storage.factories.IndexProcessorFactory;
 import com.github.kassak.indexer.tests.util.IndexerTesting;
+import com.github.kassak.indexer.tokenizing.AdaptiveFilesProcessorService;
+import com.github.kassak.indexer.tokenizing.IFileProcessingResults;
+import com.github.kassak.indexer.tokenizing.IFilesProcessorService;
 import com.github.kassak.indexer.tokenizing.ITokenizer;
+import com.github.kassak.indexer.tokenizing.PipelineFilesProcessorService;
+import com.github.kassak.indexer.tokenizing.PipelineStatistics;
+import com.github.kassak.indexer.tokenizing.ProcessorModes;
+import com.github.kassak.indexer.tokenizing.TokenizerModes;
+import com.github.kassak.indexer.tokenizing.factories.AlphanumTokenizerFactory;
 import com.github.kassak.indexer.tokenizing.factories.FilesProcessorServiceFactory;
+import com.github.kassak.indexer.tokenizing.factories.IFilesProcessorServiceFactory;
 import com.github.kassak.indexer.tokenizing.factories.ITokenizerFactory;
 import com.github.kassak.indexer.tokenizing.factories.WhitespaceTokenizerFactory;
+import com.github.kassak.indexer.utils.ConcurrencyController;
 import com.github.kassak.indexer.utils.IService;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -94,6 +124,505 @@ public class IndexManagerTest {
         }
     }
 
+    private static class ManyWordsTokenizerFactory implements ITokenizerFactory {
+        private ManyWordsTokenizerFactory(int wordsPerFile, int vocabulary) {
+            this.wordsPerFile = wordsPerFile;
+            this.vocabulary = vocabulary;
+        }
+
+        @Override
+        public ITokenizer create(@NotNull final Path file) throws IOException {
+            return new ITokenizer() {
+                @Override
+                public void close() throws Exception {}
+
+                @Override
+                public boolean hasNext() {
+                    return left > 0;
+                }
+
+                @Override
+                public String next() {
+                    --left;
+                    return "w" + (int)(vocabulary * Math.pow(rnd.nextDouble(), 3)); //skewed to frequent words
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException("Bazinga!");
+                }
+                private int left = wordsPerFile;
+                private final Random rnd = new Random(file.hashCode());
+            };
+        }
+
+        private final int wordsPerFile, vocabulary;
+    }
+
+    private static class SlowTokenizerFactory implements ITokenizerFactory {
+        private SlowTokenizerFactory(long latency) {
+            this.latency = latency;
+        }
+
+        @Override
+        public ITokenizer create(@NotNull Path file) throws IOException {
+            try {
+                Thread.sleep(latency); //simulates slow storage
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new BazingaTokenizerFactory().create(file);
+        }
+
+        private final long latency;
+    }
+
+    private static class EndlessOnceTokenizerFactory implements ITokenizerFactory {
+        @Override
+        public ITokenizer create(@NotNull Path file) throws IOException {
+            if(endlessCreated.getAndSet(true))
+                return new BazingaTokenizerFactory().create(file);
+            endlessStarted.countDown();
+            return new ITokenizer() {
+                @Override
+                public void close() throws Exception {}
+
+                @Override
+                public boolean hasNext() {
+                    return true;
+                }
+
+                @Override
+                public String next() {
+                    return "endless";
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException("Bazinga!");
+                }
+            };
+        }
+
+        private final AtomicBoolean endlessCreated = new AtomicBoolean();
+        private final CountDownLatch endlessStarted = new CountDownLatch(1);
+    }
+
+    private static class PipelineFactory implements IFilesProcessorServiceFactory {
+        private PipelineFactory(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        @Override
+        public @NotNull IFilesProcessorService create(@NotNull IFileProcessingResults im) {
+            service = new PipelineFilesProcessorService(im, 2, 3, 8, bufferSize, 4, 16, true, 0); //tokenize queue holds back reads
+            return service;
+        }
+
+        private final int bufferSize;
+        private PipelineFilesProcessorService service;
+    }
+
+    private static List<Path> writeFiles(Path dir, int num, int size, int largeEach) throws IOException {
+        List<Path> res = new ArrayList<>();
+        Random rnd = new Random(42);
+        for(int i = 0; i < num; ++i) {
+            Path file = dir.resolve("file-" + i);
+            try(Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                w.write("common w" + i);
+                int len = i % largeEach == 0 ? size * 8 : size;
+                for(int written = 0; written < len; written += 6)
+                    w.write(" f" + (1000 + rnd.nextInt(9000)));
+            }
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 60000)); //recent one is not trusted
+            res.add(file);
+        }
+        return res;
+    }
+
+    private static void deleteFiles(Path dir) throws IOException {
+        try(DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for(Path p : ds)
+                Files.delete(p);
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void pipelineFiles() throws Exception {
+        Path dir = Files.createTempDirectory("indexer");
+        try {
+            List<Path> files = writeFiles(dir, 200, 1000, 10);
+            PipelineFactory fpf = new PipelineFactory(4096);
+            IndexManagerService im = new IndexManagerService(new AlphanumTokenizerFactory(), fpf, new IndexProcessorFactory(), 10);
+            im.startService();
+            for(Path f : files)
+                im.onFileChanged(f);
+
+            IndexerTesting.waitIdle(im);
+
+            Assert.assertEquals(200, im.search("common").size());
+            Assert.assertEquals(1, im.search("w7").size());
+            Assert.assertEquals(1, im.search("w190").size());
+            PipelineStatistics s = fpf.service.getStatistics();
+            Assert.assertEquals(180, s.numRead);
+            Assert.assertEquals(20, s.numReadByTokenizer); //do not fit into buffer
+            Assert.assertEquals(200, s.numTokenized);
+            Assert.assertTrue(s.readUtilization > 0 && s.tokenizeUtilization > 0);
+            IndexStatistics is = im.getStats();
+            Assert.assertTrue(is.readUtilization > 0 && is.tokenizeUtilization > 0);
+            Assert.assertEquals(0, is.numWaitingForTokenizer);
+
+            im.stopService();
+            im.waitFinished(10, TimeUnit.SECONDS);
+        } finally {
+            deleteFiles(dir);
+        }
+    }
+
+    @Test
+    public void touchedFilesHashedByProcessing() throws Exception {
+        Path dir = Files.createTempDirectory("indexer").toAbsolutePath();
+        try {
+            List<Path> files = writeFiles(dir, 10, 100, 5);
+            IndexManagerService im = new IndexManagerService(new AlphanumTokenizerFactory()
+                    , new FilesProcessorServiceFactory(2, 10), new IndexProcessorFactory(StorageTypes.MAP, true), 10);
+            im.startService();
+            for(Path f : files)
+                im.onFileChanged(f);
+            IndexerTesting.waitIdle(im);
+            Assert.assertEquals(10, im.getStats().numProcessed);
+
+            Path touched = files.get(3);
+            Files.setLastModifiedTime(touched, FileTime.fromMillis(Files.getLastModifiedTime(touched).toMillis() + 10000));
+            try(Writer w = Files.newBufferedWriter(files.get(4), StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
+                w.write(" appended");
+            }
+            im.onFileChanged(touched);
+            im.onFileChanged(files.get(4));
+            IndexerTesting.waitIdle(im);
+            Assert.assertEquals(12, im.getStats().numProcessed);
+            Assert.assertEquals(1, im.getStats().numSkippedByHash);
+            Assert.assertEquals(10, im.getStats().numValidFiles);
+            Assert.assertEquals(1, im.search("w3").size());
+            Assert.assertEquals(1, im.search("appended").size());
+
+            im.stopService();
+            im.waitFinished(10, TimeUnit.SECONDS);
+        } finally {
+            deleteFiles(dir);
+        }
+    }
+
+    @Test
+    public void snapshotRestart() throws Exception {
+        Path dir = Files.createTempDirectory("indexer").toAbsolutePath();
+        Path snapshot = Files.createTempFile("indexer", ".snapshot");
+        try {
+            List<Path> files = writeFiles(dir, 200, 1000, 10);
+            IndexManagerService im = new IndexManagerService(new AlphanumTokenizerFactory()
+                    , new FilesProcessorServiceFactory(2, 10), new IndexProcessorFactory(StorageTypes.INTERNED), 10);
+            im.startService();
+            for(Path f : files)
+                im.onFileChanged(f);
+            IndexerTesting.waitIdle(im);
+            im.stopService();
+            im.waitFinished(10, TimeUnit.SECONDS);
+            try(IndexSnapshot.Writer out = new IndexSnapshot.Writer(snapshot)) {
+                out.writeRegistrations(Collections.singletonMap(dir, true));
+                im.saveSnapshot(out);
+                out.commit();
+            }
+
+            try(Writer w = Files.newBufferedWriter(files.get(7), StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
+                w.write(" appended");
+            }
+            Files.setLastModifiedTime(files.get(7), FileTime.fromMillis(System.currentTimeMillis() - 30000)); //restarted later
+            Files.delete(files.get(9));
+            im = new IndexManagerService(new AlphanumTokenizerFactory()
+                    , new FilesProcessorServiceFactory(2, 10), new IndexProcessorFactory(StorageTypes.INTERNED), 10);
+            try(IndexSnapshot.Reader in = new IndexSnapshot.Reader(snapshot)) {
+                Assert.assertEquals(Collections.singletonMap(dir, true), in.readRegistrations());
+                im.loadSnapshot(in);
+            }
+            Assert.assertEquals(200, im.search("common").size()); //searchable before start
+            Assert.assertEquals(200, im.getStats().numRestored);
+            im.startService();
+            for(Path f : files) //as watcher reports existing files
+                if(Files.exists(f))
+                    im.onFileChanged(f);
+            IndexerTesting.waitIdle(im);
+            im.finishRegistration(dir);
+
+            IndexerTesting.waitIdle(im);
+            Assert.assertEquals(199, im.search("common").size());
+            Assert.assertEquals(1, im.search("appended").size());
+            Assert.assertEquals(0, im.search("w9").size());
+            Assert.assertEquals(199, im.getStats().numValidFiles);
+            Assert.assertEquals(1, im.getStats().numProcessed);
+
+            im.stopService();
+            im.waitFinished(10, TimeUnit.SECONDS);
+        } finally {
+            Files.delete(snapshot);
+            deleteFiles(dir);
+        }
+    }
+
+    @Test
+    public void logRecovery() throws Exception {
+        Path dir = Files.createTempDirectory("indexer").toAbsolutePath();
+        Path log = Files.createTempFile("indexer", ".log");
+        try {
+            List<Path> files = writeFiles(dir, 200, 1000, 10);
+            IndexManagerService im = new IndexManagerService(new AlphanumTokenizerFactory()
+                    , new FilesProcessorServiceFactory(2, 10), new IndexProcessorFactory(StorageTypes.INTERNED), 10);
+            IndexLog.Writer out = new IndexLog.Writer(log, 0, LogSyncModes.GROUP);
+            im.setLog(out);
+            im.startService();
+            for(Path f : files)
+                im.onFileChanged(f);
+            IndexerTesting.waitIdle(im);
+            try(Writer w = Files.newBufferedWriter(files.get(7), StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
+                w.write(" appended");
+            }
+            Files.setLastModifiedTime(files.get(7), FileTime.fromMillis(System.currentTimeMillis() - 30000)); //restarted later
+            im.onFileChanged(files.get(7));
+            Files.delete(files.get(9));
+            im.onFileRemoved(files.get(9));
+            IndexerTesting.waitIdle(im);
+            im.stopService(); //crashed without snapshot, log is not closed
+            im.waitFinished(10, TimeUnit.SECONDS);
+
+            im = new IndexManagerService(new AlphanumTokenizerFactory()
+                    , new FilesProcessorServiceFactory(2, 10), new IndexProcessorFactory(StorageTypes.INTERNED), 10);
+            try(IndexLog.Reader in = new IndexLog.Reader(log)) {
+                im.replayLog(in);
+                Assert.assertFalse(in.isDamaged());
+                Assert.assertEquals(0, in.getBase());
+            }
+            Assert.assertEquals(199, im.search("common").size()); //searchable before start
+            Assert.assertEquals(1, im.search("appended").size());
+            Assert.assertEquals(202, im.getStats().numReplayed);
+            im.startService();
+            for(Path f : files) //as watcher reports existing files
+                if(Files.exists(f))
+                    im.onFileChanged(f);
+            IndexerTesting.waitIdle(im);
+            im.finishRegistration(dir);
+
+            IndexerTesting.waitIdle(im);
+            Assert.assertEquals(199, im.search("common").size());
+            Assert.assertEquals(199, im.getStats().numValidFiles);
+            Assert.assertEquals(0, im.getStats().numProcessed); //fingerprints are logged
+
+            im.stopService();
+            im.waitFinished(10, TimeUnit.SECONDS);
+            out.close();
+        } finally {
+            Files.delete(log);
+            deleteFiles(dir);
+        }
+    }
+
+    private static double coldStartFilesPerSecond(List<Path> files)
+            throws InterruptedException, IService.FailureException, IOException {
+        return coldStartFilesPerSecond(files, null, 0);
+    }
+
+    private static double coldStartFilesPerSecond(List<Path> files, @Nullable Path log, int syncMode)
+            throws InterruptedException, IService.FailureException, IOException {
+        IndexManagerService im = new IndexManagerService(new AlphanumTokenizerFactory()
+                , new FilesProcessorServiceFactory(3, 100), new IndexProcessorFactory(StorageTypes.INTERNED), 100);
+        IndexLog.Writer out = log == null ? null : new IndexLog.Writer(log, 0, syncMode);
+        im.setLog(out);
+        im.startService();
+        long start = System.nanoTime();
+        for(Path f : files)
+            im.onFileChanged(f);
+        while(im.getStats().numValidFiles < files.size())
+            Thread.sleep(1);
+        double res = files.size() * 1e9 / (System.nanoTime() - start);
+        im.stopService();
+        im.waitFinished(10, TimeUnit.SECONDS);
+        if(out != null)
+            out.close();
+        return res;
+    }
+
+    @Ignore("Benchmark")
+    @Test
+    public void logOverhead() throws Exception {
+        Path dir = Files.createTempDirectory("indexer").toAbsolutePath();
+        Path log = Files.createTempFile("indexer", ".log");
+        try {
+            List<Path> files = writeFiles(dir, 20000, 2048, Integer.MAX_VALUE);
+            for(int i = 0; i < 3; ++i) {
+                System.out.println("No log: " + coldStartFilesPerSecond(files) + " files/sec");
+                for(int mode : new int[] {LogSyncModes.NONE, LogSyncModes.PERIODIC, LogSyncModes.GROUP})
+                    System.out.println("Log, sync " + mode + ": "
+                            + coldStartFilesPerSecond(files, log, mode) + " files/sec");
+            }
+        } finally {
+            Files.delete(log);
+            deleteFiles(dir);
+        }
+    }
+
+    @Ignore("Benchmark")
+    @Test
+    public void snapshotRestartThroughput() throws Exception {
+        Path dir = Files.createTempDirectory("indexer").toAbsolutePath();
+        Path snapshot = Files.createTempFile("indexer", ".snapshot");
+        try {
+            List<Path> files = writeFiles(dir, 20000, 2048, Integer.MAX_VALUE);
+            for(int i = 0; i < 3; ++i) {
+                IndexManagerService im = new IndexManagerService(new AlphanumTokenizerFactory()
+                        , new FilesProcessorServiceFactory(3, 100), new IndexProcessorFactory(StorageTypes.INTERNED), 100);
+                im.startService();
+                long start = System.nanoTime();
+                for(Path f : files)
+                    im.onFileChanged(f);
+                while(im.getStats().numValidFiles < files.size())
+                    Thread.sleep(1);
+                long cold = System.nanoTime() - start;
+                im.stopService();
+                im.waitFinished(10, TimeUnit.SECONDS);
+                start = System.nanoTime();
+                try(IndexSnapshot.Writer out = new IndexSnapshot.Writer(snapshot)) {
+                    out.writeRegistrations(Collections.<Path, Boolean>emptyMap());
+                    im.saveSnapshot(out);
+                    out.commit();
+                }
+                long save = System.nanoTime() - start;
+
+                im = new IndexManagerService(new AlphanumTokenizerFactory()
+                        , new FilesProcessorServiceFactory(3, 100), new IndexProcessorFactory(StorageTypes.INTERNED), 100);
+                start = System.nanoTime();
+                try(IndexSnapshot.Reader in = new IndexSnapshot.Reader(snapshot)) {
+                    in.readRegistrations();
+                    im.loadSnapshot(in);
+                }
+                long load = System.nanoTime() - start;
+                im.startService();
+                for(Path f : files)
+                    im.onFileChanged(f);
+                while(im.getStats().numSkippedByAttributes < files.size())
+                    Thread.sleep(1);
+                long restart = System.nanoTime() - start;
+                im.stopService();
+                im.waitFinished(10, TimeUnit.SECONDS);
+                System.out.println("Cold start: " + cold / 1000000 + " ms, save: " + save / 1000000 + " ms ("
+                        + Files.size(snapshot) / 1024 + " KB), load: " + load / 1000000 + " ms, restart with reconcile: "
+                        + restart / 1000000 + " ms");
+            }
+        } finally {
+            Files.delete(snapshot);
+            deleteFiles(dir);
+        }
+    }
+
+    private static double realFilesPerSecond(IFilesProcessorServiceFactory fpf, List<Path> files)
+            throws InterruptedException, IService.FailureException {
+        IndexManagerService im = new IndexManagerService(new AlphanumTokenizerFactory(), fpf, new IndexProcessorFactory(), 100);
+        im.startService();
+        long start = System.nanoTime();
+        for(Path f : files)
+            im.onFileChanged(f);
+        while(im.getStats().numValidFiles < files.size())
+            Thread.sleep(1);
+        double res = files.size() * 1e9 / (System.nanoTime() - start);
+        im.stopService();
+        im.waitFinished(10, TimeUnit.SECONDS);
+        return res;
+    }
+
+    @Ignore("Benchmark")
+    @Test
+    public void pipelineThroughput() throws Exception {
+        Path dir = Files.createTempDirectory("indexer");
+        try {
+            List<Path> files = writeFiles(dir, 3000, 64 * 1024, Integer.MAX_VALUE);
+            realFilesPerSecond(new FilesProcessorServiceFactory(3, 10), files); //warm up
+            double fixed = realFilesPerSecond(new FilesProcessorServiceFactory(3, 10), files);
+            PipelineFactory fpf = new PipelineFactory(1024 * 1024);
+            double pipeline = realFilesPerSecond(fpf, files);
+            PipelineStatistics s = fpf.service.getStatistics();
+            System.out.println("3000 files of 64 KB, " + Runtime.getRuntime().availableProcessors() + " cpus");
+            System.out.println("fixed 3 threads:               " + String.format("%.0f", fixed) + " files/sec");
+            System.out.println("pipeline 2 read + 3 tokenize:  " + String.format("%.0f", pipeline) + " files/sec");
+            System.out.println("read utilization " + String.format("%.2f", s.readUtilization)
+                    + ", tokenize utilization " + String.format("%.2f", s.tokenizeUtilization));
+        } finally {
+            deleteFiles(dir);
+        }
+    }
+
+    private static double filesPerSecond(boolean batchWords, int files) throws InterruptedException, IService.FailureException {
+        IndexManagerService im = new IndexManagerService(new ManyWordsTokenizerFactory(500, 20000)
+                , new FilesProcessorServiceFactory(4, 100, batchWords), new IndexProcessorFactory(), 100);
+        im.startService();
+        long start = System.nanoTime();
+        for(int i = 0; i < files; ++i)
+            im.onFileChanged(FileSystems.getDefault().getPath("file-" + i));
+        while(im.getStats().numValidFiles < files)
+            Thread.sleep(1);
+        double res = files * 1e9 / (System.nanoTime() - start);
+        im.stopService();
+        im.waitFinished(10, TimeUnit.SECONDS);
+        return res;
+    }
+
+    private static double writersFilesPerSecond(int writersNum, int files) throws InterruptedException, IService.FailureException {
+        IndexManagerService im = new IndexManagerService(new ManyWordsTokenizerFactory(500, 20000)
+                , new FilesProcessorServiceFactory(4, 100, true), new IndexProcessorFactory(StorageTypes.MAP, false, writersNum, 100), 100);
+        im.startService();
+        long start = System.nanoTime();
+        for(int i = 0; i < files; ++i)
+            im.onFileChanged(FileSystems.getDefault().getPath("file-" + i));
+        while(im.getStats().numValidFiles < files || !im.isIdle())
+            Thread.sleep(1);
+        double res = files * 1e9 / (System.nanoTime() - start);
+        im.stopService();
+        im.waitFinished(10, TimeUnit.SECONDS);
+        return res;
+    }
+
+    @Ignore("Benchmark")
+    @Test
+    public void indexWritersThroughput() throws InterruptedException, IService.FailureException {
+        final int files = 20000;
+        writersFilesPerSecond(1, files / 10); //warm up
+        writersFilesPerSecond(4, files / 10);
+        double single = writersFilesPerSecond(1, files);
+        double partitioned = writersFilesPerSecond(4, files);
+        System.out.println("500 words per file, " + Runtime.getRuntime().availableProcessors() + " cpus");
+        System.out.println("index manager thread: " + String.format("%.0f", single) + " files/sec");
+        System.out.println("4 index writers:      " + String.format("%.0f", partitioned) + " files/sec");
+    }
+
+    @Test
+    public void cancelRunningProcessing() throws InterruptedException, IService.FailureException {
+        EndlessOnceTokenizerFactory tf = new EndlessOnceTokenizerFactory();
+        IndexManagerService im = new IndexManagerService(tf, new FilesProcessorServiceFactory(2, 10)
+                , new IndexProcessorFactory(), 10);
+        im.startService();
+
+        Path file = FileSystems.getDefault().getPath("endless");
+        im.onFileChanged(file);
+        Assert.assertTrue(tf.endlessStarted.await(10, TimeUnit.SECONDS));
+        im.onFileChanged(file); //cancels endless tokenizing and restarts it
+
+        IndexerTesting.waitIdle(im);
+        Assert.assertEquals(1, im.search("Bazinga!").size());
+        Assert.assertTrue(im.search("endless").isEmpty());
+        Assert.assertEquals(1, im.getStats().numValidFiles);
+        Assert.assertEquals(2, im.getStats().numProcessed);
+
+        im.stopService();
+        im.waitFinished(10, TimeUnit.SECONDS);
+    }
+
     @Test
     public void addingFilesToIndex() throws InterruptedException, IService.FailureException {
         IndexManagerService im = new IndexManagerService(new WhitespaceTokenizerFactory()
@@ -165,6 +694,233 @@ public class IndexManagerTest {
         im.waitFinished(10, TimeUnit.SECONDS);
     }
 
+    private static void indexThousandFiles(IFilesProcessorServiceFactory fpf) throws InterruptedException, IService.FailureException {
+        indexThousandFiles(fpf, new IndexProcessorFactory());
+    }
+
+    private static void indexThousandFiles(IFilesProcessorServiceFactory fpf, IIndexProcessorFactory ipf)
+            throws InterruptedException, IService.FailureException {
+        IndexManagerService im = new IndexManagerService(new BazingaTokenizerFactory(), fpf, ipf, 10);
+        im.startService();
+
+        for(int i = 0; i < 1000; ++i)
+            im.onFileChanged(FileSystems.getDefault().getPath("file-" + i));
+
+        IndexerTesting.waitIdle(im);
+
+        Assert.assertEquals(im.search("Bazinga!").size(), 1000);
+
+        Assert.assertEquals(im.getFiles().size(), 1000);
+        for(FileStatistics fs : im.getFiles())
+            Assert.assertEquals(fs.wordsNum, 1);
+
+        im.stopService();
+        im.waitFinished(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void adaptiveThousandFiles() throws InterruptedException, IService.FailureException {
+        indexThousandFiles(new FilesProcessorServiceFactory(ProcessorModes.ADAPTIVE, 4, 10, true, 0));
+    }
+
+    @Test
+    public void threadPerFileThousandFiles() throws InterruptedException, IService.FailureException {
+        indexThousandFiles(new FilesProcessorServiceFactory(ProcessorModes.THREAD_PER_FILE, 0, 50, true, 0));
+    }
+
+    @Test
+    public void partitionedThousandFiles() throws InterruptedException, IService.FailureException {
+        indexThousandFiles(new FilesProcessorServiceFactory(2, 10), new IndexProcessorFactory(StorageTypes.MAP, false, 4, 10));
+    }
+
+    @Test
+    public void concurrencyController() {
+        ConcurrencyController c = new ConcurrencyController(1, 8, 2);
+        Assert.assertEquals(2, c.getLimit());
+        Assert.assertEquals(2, c.update(0, 0.9, false)); //idle samples change nothing
+        Assert.assertEquals(3, c.update(10, 0.9, true));
+        Assert.assertEquals(4, c.update(20, 0.9, true));
+        Assert.assertEquals(3, c.update(15, 0.9, true)); //throughput dropped, turn back
+        Assert.assertEquals(2, c.update(20, 0.9, true));
+        Assert.assertEquals(3, c.update(20, 0.9, true)); //flat, but waits for IO
+        Assert.assertEquals(2, c.update(20, 0.0, true)); //CPU bound, not more than cpus
+        Assert.assertEquals(1, c.update(40, 0.0, true));
+        Assert.assertEquals(2, c.update(30, 0.0, true));
+        Assert.assertEquals(1, c.update(30, 0.0, true)); //flat and CPU bound
+        Assert.assertEquals(1, c.update(30, 0.0, true));
+    }
+
+    @Test
+    public void adaptivePoolGrowsForSlowFiles() throws InterruptedException, IService.FailureException {
+        final AdaptiveFilesProcessorService[] fp = new AdaptiveFilesProcessorService[1];
+        IndexManagerService im = new IndexManagerService(new SlowTokenizerFactory(20), new IFilesProcessorServiceFactory() {
+            @NotNull
+            @Override
+            public IFilesProcessorService create(@NotNull IFileProcessingResults im) {
+                return fp[0] = new AdaptiveFilesProcessorService(im, 64, true, 0, 50);
+            }
+        }, new IndexProcessorFactory(), 10);
+        im.startService();
+        int cpus = Math.min(64, Runtime.getRuntime().availableProcessors());
+        Assert.assertEquals(cpus, fp[0].getParallelism());
+        for(int i = 0; i < 5000; ++i)
+            im.onFileChanged(FileSystems.getDefault().getPath("file-" + i));
+        long deadline = System.currentTimeMillis() + 10000;
+        while(fp[0].getParallelism() <= cpus && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Assert.assertTrue(fp[0].getParallelism() > cpus); //workers wait for storage, so pool grows beyond cpus
+        im.stopService();
+        im.waitFinished(10, TimeUnit.SECONDS);
+    }
+
+    private static double slowFilesPerSecond(int mode, int threads, int queueSize, int files)
+            throws InterruptedException, IService.FailureException {
+        IndexManagerService im = new IndexManagerService(new SlowTokenizerFactory(5)
+                , new FilesProcessorServiceFactory(mode, threads, queueSize, true, 0), new IndexProcessorFactory(), 100);
+        im.startService();
+        long start = System.nanoTime();
+        for(int i = 0; i < files; ++i)
+            im.onFileChanged(FileSystems.getDefault().getPath("file-" + i));
+        while(im.getStats().numValidFiles < files)
+            Thread.sleep(1);
+        double res = files * 1e9 / (System.nanoTime() - start);
+        im.stopService();
+        im.waitFinished(10, TimeUnit.SECONDS);
+        return res;
+    }
+
+    @Ignore("Benchmark")
+    @Test
+    public void adaptiveParallelismThroughput() throws InterruptedException, IService.FailureException {
+        final int files = 10000;
+        slowFilesPerSecond(ProcessorModes.FIXED, 4, 100, files / 10); //warm up
+        slowFilesPerSecond(ProcessorModes.ADAPTIVE, 32, 100, files / 10);
+        double fixed = slowFilesPerSecond(ProcessorModes.FIXED, 4, 100, files);
+        double adaptive = slowFilesPerSecond(ProcessorModes.ADAPTIVE, 32, 100, files);
+        System.out.println("5 ms latency per file, " + Runtime.getRuntime().availableProcessors() + " cpus");
+        System.out.println("fixed 4 threads:        " + String.format("%.0f", fixed) + " files/sec");
+        System.out.println("adaptive up to 32:      " + String.format("%.0f", adaptive) + " files/sec");
+        Assert.assertTrue(adaptive > fixed);
+    }
+
+    @Ignore("Benchmark")
+    @Test
+    public void threadPerFileThroughput() throws InterruptedException, IService.FailureException {
+        final int files = 20000;
+        slowFilesPerSecond(ProcessorModes.FIXED, 3, 10, files / 10); //warm up
+        slowFilesPerSecond(ProcessorModes.THREAD_PER_FILE, 0, 1000, files / 10);
+        double fixed = slowFilesPerSecond(ProcessorModes.FIXED, 3, 10, files);
+        double perFile = slowFilesPerSecond(ProcessorModes.THREAD_PER_FILE, 0, 1000, files);
+        System.out.println("5 ms latency per file, " + Runtime.getRuntime().availableProcessors() + " cpus, java "
+                + System.getProperty("java.version"));
+        System.out.println("fixed 3 threads:                   " + String.format("%.0f", fixed) + " files/sec");
+        System.out.println("thread per file, 1000 outstanding: " + String.format("%.0f", perFile)
+                + " files/sec (virtual threads since java 21, cached pool before)");
+        Assert.assertTrue(perFile > fixed);
+    }
+
+    @Test
+    public void perWordSubmission() throws InterruptedException, IService.FailureException {
+        IndexManagerService im = new IndexManagerService(new BazingaTokenizerFactory()
+                , new FilesProcessorServiceFactory(2, 10, false), new IndexProcessorFactory(), 10);
+        im.startService();
+
+        for(int i = 0; i < 100; ++i)
+            im.onFileChanged(FileSystems.getDefault().getPath("file-" + i));
+
+        IndexerTesting.waitIdle(im);
+
+        Assert.assertEquals(im.search("Bazinga!").size(), 100);
+        for(FileStatistics fs : im.getFiles())
+            Assert.assertEquals(fs.wordsNum, 1);
+
+        im.stopService();
+        im.waitFinished(10, TimeUnit.SECONDS);
+    }
+
+    @Ignore("Benchmark")
+    @Test
+    public void batchedWordsThroughput() throws InterruptedException, IService.FailureException {
+        final int files = 20000;
+        filesPerSecond(true, files / 10); //warm up
+        filesPerSecond(false, files / 10);
+        double perWord = filesPerSecond(false, files);
+        double batched = filesPerSecond(true, files);
+        System.out.println("per word: " + String.format("%.0f", perWord) + " files/sec");
+        System.out.println("batched:  " + String.format("%.0f", batched) + " files/sec");
+        Assert.assertTrue(batched > perWord);
+    }
+
+    private static Path writeLargeFile(long size) throws IOException {
+        Path file = Files.createTempFile("indexer", ".log");
+        Random rnd = new Random(42);
+        try(Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for(long written = 0; written < size; ) {
+                String word = "w" + (int)(100000 * Math.pow(rnd.nextDouble(), 3));
+                w.write(word);
+                w.write(rnd.nextInt(10) == 0 ? '\n' : ' ');
+                written += word.length() + 1;
+            }
+        }
+        return file;
+    }
+
+    private static long indexLargeFile(Path file, long chunkSize, Set<String> words) throws InterruptedException, IService.FailureException {
+        return indexLargeFile(file, ProcessorModes.FIXED, chunkSize, words);
+    }
+
+    private static long indexLargeFile(Path file, int mode, long chunkSize, Set<String> words)
+            throws InterruptedException, IService.FailureException {
+        IndexManagerService im = new IndexManagerService(new AlphanumTokenizerFactory(TokenizerModes.MAPPED)
+                , new FilesProcessorServiceFactory(mode, 4, 10, true, chunkSize), new IndexProcessorFactory(), 10);
+        im.startService();
+        long start = System.nanoTime();
+        im.onFileChanged(file);
+        while(im.getStats().numValidFiles < 1)
+            Thread.sleep(1);
+        long res = System.nanoTime() - start;
+        IndexerTesting.waitIdle(im); //finish task overtakes words of file in queue
+        words.addAll(im.getWords());
+        Assert.assertEquals(1, im.getFiles().size());
+        Assert.assertEquals(words.size(), im.getFiles().get(0).wordsNum);
+        im.stopService();
+        im.waitFinished(10, TimeUnit.SECONDS);
+        return res;
+    }
+
+    @Test
+    public void chunkedLargeFile() throws Exception {
+        Path file = writeLargeFile(300000);
+        try {
+            Set<String> whole = new HashSet<>(), chunked = new HashSet<>(), forked = new HashSet<>();
+            indexLargeFile(file, 0, whole);
+            indexLargeFile(file, 10000, chunked);
+            indexLargeFile(file, ProcessorModes.ADAPTIVE, 10000, forked); //chunks forked in pool processing file
+            Assert.assertTrue(whole.size() > 1000);
+            Assert.assertEquals(whole, chunked);
+            Assert.assertEquals(whole, forked);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Ignore("Benchmark")
+    @Test
+    public void chunkedLargeFileThroughput() throws Exception {
+        Path file = writeLargeFile(50L * 1024 * 1024);
+        try {
+            Set<String> words = new HashSet<>();
+            indexLargeFile(file, 0, words); //warm up
+            long whole = indexLargeFile(file, 0, words);
+            long chunked = indexLargeFile(file, 4L * 1024 * 1024, words);
+            System.out.println("50 MB file, " + Runtime.getRuntime().availableProcessors() + " cpus");
+            System.out.println("whole:   " + whole / 1000000 + " ms");
+            System.out.println("chunked: " + chunked / 1000000 + " ms");
+        } finally {
+            Files.delete(file);
+        }
+    }
+
     @Ignore("Passing, but long")
     @Test
     public void millionWords() throws InterruptedException, IService.FailureException {
@@ -0,0 +1,1190 @@
+package com.github.kassak.indexer.tests;
+
+import com.github.kassak.indexer.storage.CompressedPostingList;
+import com.github.kassak.indexer.storage.FileEntry;
+import com.github.kassak.indexer.storage.FileStatistics;
+import com.github.kassak.indexer.storage.IIndexProcessor;
+import com.github.kassak.indexer.storage.IPostingIterator;
+import com.github.kassak.indexer.storage.IndexLog;
+import com.github.kassak.indexer.storage.IndexProcessor;
+import com.github.kassak.indexer.storage.IndexSnapshot;
+import com.github.kassak.indexer.storage.LogSyncModes;
+import com.github.kassak.indexer.storage.PartitionedIndexProcessor;
+import com.github.kassak.indexer.storage.Query;
+import com.github.kassak.indexer.storage.States;
+import com.github.kassak.indexer.storage.StorageTypes;
+import com.github.kassak.indexer.tokenizing.IFilesProcessor;
+import com.github.kassak.indexer.utils.ContentHash;
+import com.github.kassak.indexer.utils.IService;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+public class IndexStorageTest {
+    private static class NullFilesProcessor implements IFilesProcessor {
+        @Override
+        public boolean processFile(@NotNull Path f) {
+            return true;
+        }
+
+        @Override
+        public boolean cancelProcessing(@NotNull Path f) {
+            return false;
+        }
+    }
+
+    private static class CountingFilesProcessor implements IFilesProcessor {
+        @Override
+        public boolean processFile(@NotNull Path f) {
+            processed.add(f);
+            return true;
+        }
+
+        @Override
+        public boolean cancelProcessing(@NotNull Path f) {
+            return running.contains(f);
+        }
+
+        public final Set<Path> running = new HashSet<>();
+
+        public final List<Path> processed = new ArrayList<>();
+    }
+
+    private static Path path(String s) {
+        return FileSystems.getDefault().getPath(s);
+    }
+
+    private static void indexFile(IIndexProcessor ip, long stamp, Path file, Collection<String> words) {
+        ip.syncFile(stamp, file);
+        ip.removeWords(file);
+        for(String w : words)
+            ip.addWord(file, w);
+        ip.fileFinished(stamp, file, true, ContentHash.NO_HASH);
+    }
+
+    private static void reindexFile(IIndexProcessor ip, long stamp, Path file, Collection<String> words) {
+        ip.syncFile(stamp, file);
+        ip.replaceWords(file, words);
+        ip.fileFinished(stamp, file, true, ContentHash.NO_HASH);
+    }
+
+    private static Set<String> searchPaths(IIndexProcessor ip, String word) {
+        Set<String> res = new TreeSet<>();
+        for(FileEntry fe : ip.search(word))
+            Assert.assertTrue(res.add(fe.getPath()));
+        return res;
+    }
+
+    private static Map<String, Long> fileWords(IIndexProcessor ip) {
+        Map<String, Long> res = new TreeMap<>();
+        for(FileStatistics fs : ip.getFiles())
+            res.put(fs.name, fs.wordsNum);
+        return res;
+    }
+
+    private static void assertSameIndex(IIndexProcessor expected, IIndexProcessor actual) {
+        Set<String> words = new TreeSet<>(expected.getWords());
+        Assert.assertEquals(words, new TreeSet<>(actual.getWords()));
+        Assert.assertEquals(words.size(), actual.getWords().size());
+        Assert.assertEquals(fileWords(expected), fileWords(actual));
+        Assert.assertEquals(expected.getStats().numWords, actual.getStats().numWords);
+        Assert.assertEquals(expected.getStats().numFiles, actual.getStats().numFiles);
+        for(String w : words)
+            Assert.assertEquals(searchPaths(expected, w), searchPaths(actual, w));
+    }
+
+    private static List<String> randomWords(Random rnd, int num, int vocabulary) {
+        List<String> res = new ArrayList<>(num);
+        for(int i = 0; i < num; ++i)
+            res.add("w" + (int)(vocabulary * Math.pow(rnd.nextDouble(), 3))); //skewed to frequent words
+        return res;
+    }
+
+    private static void waitApplied(IIndexProcessor ip) {
+        while(!ip.isIdle())
+            Thread.yield();
+    }
+
+    private static void checkSameAsMap(int storageType) {
+        checkSameAsMap(new IndexProcessor(new NullFilesProcessor(), storageType));
+    }
+
+    private static void checkSameAsMap(IIndexProcessor actual) {
+        checkSameAsMap(actual, 3000, 50, true);
+    }
+
+    private static void checkSameAsMap(IIndexProcessor actual, int steps, int filesPerDir, boolean removeDirs) {
+        IIndexProcessor expected = new IndexProcessor(new NullFilesProcessor(), StorageTypes.MAP);
+        Random rnd = new Random(42);
+        for(int step = 0; step < steps; ++step) {
+            int op = rnd.nextInt(10);
+            Path file = path("d" + rnd.nextInt(10) + "/f" + rnd.nextInt(filesPerDir));
+            if(op < 7) {
+                List<String> words = randomWords(rnd, rnd.nextInt(50), 500);
+                indexFile(expected, step, file, words);
+                if(rnd.nextBoolean())
+                    indexFile(actual, step, file, words);
+                else
+                    reindexFile(actual, step, file, words);
+            } else if(op < 9 || !removeDirs) {
+                expected.removeFile(file);
+                actual.removeFile(file);
+            } else {
+                Path dir = file.getParent();
+                expected.removeDirectory(dir);
+                actual.removeDirectory(dir);
+            }
+            if(step % (steps / 30) == 0) {
+                waitApplied(actual);
+                assertSameIndex(expected, actual);
+            }
+        }
+        waitApplied(actual);
+        assertSameIndex(expected, actual);
+    }
+
+    @Test
+    public void mapReplaceSameAsMap() {
+        checkSameAsMap(StorageTypes.MAP);
+    }
+
+    @Test
+    public void internedSameAsMap() {
+        checkSameAsMap(StorageTypes.INTERNED);
+    }
+
+    @Test
+    public void compressedSameAsMap() {
+        checkSameAsMap(StorageTypes.COMPRESSED);
+    }
+
+    @Test
+    public void mappedSameAsMap() {
+        checkSameAsMap(StorageTypes.MAPPED);
+        //enough postings to flush and merge segments several times
+        IIndexProcessor actual = new IndexProcessor(new NullFilesProcessor(), StorageTypes.MAPPED);
+        checkSameAsMap(actual, 10000, 300, false);
+        Assert.assertTrue(actual.getStats().numSegments > 0);
+        Assert.assertTrue(actual.getStats().numMerges > 0);
+    }
+
+    @Test
+    public void segmentedSameAsMap() {
+        checkSameAsMap(StorageTypes.SEGMENTED);
+        //enough postings to flush and merge segments several times
+        IIndexProcessor actual = new IndexProcessor(new NullFilesProcessor(), StorageTypes.SEGMENTED);
+        checkSameAsMap(actual, 20000, 300, false);
+        Assert.assertTrue(actual.getStats().numSegments > 0);
+        Assert.assertTrue(actual.getStats().numMerges > 0);
+    }
+
+    @Test
+    public void partitionedSameAsMap() throws IService.FailureException, InterruptedException {
+        PartitionedIndexProcessor actual = new PartitionedIndexProcessor(new NullFilesProcessor(), StorageTypes.COMPRESSED
+                , false, 4, 16);
+        actual.startService();
+        try {
+            checkSameAsMap(actual);
+        } finally {
+            actual.stopService();
+            actual.waitFinished(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void partitionedCountsDistinctWords() throws IService.FailureException, InterruptedException {
+        PartitionedIndexProcessor actual = new PartitionedIndexProcessor(new NullFilesProcessor(), StorageTypes.COMPRESSED
+                , false, 4, 16);
+        IIndexProcessor expected = new IndexProcessor(new NullFilesProcessor(), StorageTypes.MAP);
+        actual.startService();
+        try {
+            Random rnd = new Random(42);
+            for(int i = 0; i < 1000; ++i) { //several pages of words, many of them in several partitions
+                List<String> words = randomWords(rnd, 50, 20000);
+                indexFile(expected, 1, path("f" + i), words);
+                indexFile(actual, 1, path("f" + i), words);
+            }
+            waitApplied(actual);
+            Assert.assertEquals(expected.getStats().numWords, actual.getStats().numWords);
+        } finally {
+            actual.stopService();
+            actual.waitFinished(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void partitionedDropsWhenStopped() throws IService.FailureException, InterruptedException {
+        PartitionedIndexProcessor ip = new PartitionedIndexProcessor(new NullFilesProcessor(), StorageTypes.INTERNED
+                , false, 2, 1);
+        ip.startService();
+        ip.stopService();
+        Assert.assertTrue(ip.waitFinished(10, TimeUnit.SECONDS));
+        for(int i = 0; i < 100; ++i) //queues are full long before
+            ip.syncFile(1, path("f" + i));
+        Assert.assertTrue(ip.isIdle());
+    }
+
+    private static IIndexProcessor indexRandomFiles(IIndexProcessor ip) {
+        IIndexProcessor expected = new IndexProcessor(new NullFilesProcessor(), StorageTypes.MAP);
+        Random rnd = new Random(42);
+        for(int i = 0; i < 300; ++i) {
+            Path file = path("d" + i % 10 + "/f" + i);
+            List<String> words = randomWords(rnd, rnd.nextInt(50), 500);
+            indexFile(expected, 1, file, words);
+            indexFile(ip, 1, file, words);
+        }
+        ip.syncFile(2, path("processing")); //not finished, so not saved
+        waitApplied(ip);
+        return expected;
+    }
+
+    private static void saveSnapshot(IIndexProcessor ip, Path snapshot, Map<Path, Boolean> registrations) throws IOException {
+        try(IndexSnapshot.Writer out = new IndexSnapshot.Writer(snapshot)) {
+            out.writeRegistrations(registrations);
+            ip.writeSnapshot(out);
+            out.commit();
+        }
+    }
+
+    private static Map<Path, Boolean> loadSnapshot(IIndexProcessor ip, Path snapshot) throws IOException {
+        try(IndexSnapshot.Reader in = new IndexSnapshot.Reader(snapshot)) {
+            Map<Path, Boolean> res = in.readRegistrations();
+            ip.readSnapshot(in);
+            return res;
+        }
+    }
+
+    @Test
+    public void snapshotRestoresSameIndex() throws IOException, IService.FailureException, InterruptedException {
+        Path snapshot = Files.createTempFile("indexer", ".snapshot");
+        try {
+            Map<Path, Boolean> registrations = new LinkedHashMap<>();
+            registrations.put(path("d1").toAbsolutePath(), true);
+            registrations.put(path("d1/sub").toAbsolutePath(), false);
+            int[] types = new int[] {StorageTypes.MAP, StorageTypes.INTERNED, StorageTypes.COMPRESSED, StorageTypes.MAPPED
+                , StorageTypes.SEGMENTED};
+            for(int savedType : types) {
+                for(int restoredType : types) {
+                    IIndexProcessor saved = new IndexProcessor(new NullFilesProcessor(), savedType);
+                    IIndexProcessor expected = indexRandomFiles(saved);
+                    saveSnapshot(saved, snapshot, registrations);
+                    IIndexProcessor restored = new IndexProcessor(new NullFilesProcessor(), restoredType);
+                    Assert.assertEquals(registrations, loadSnapshot(restored, snapshot));
+                    assertSameIndex(expected, restored);
+                    Assert.assertEquals(300, restored.getStats().numRestored);
+                    Assert.assertEquals(States.VALID, fileState(restored, path("d3/f3")));
+                }
+            }
+
+            PartitionedIndexProcessor saved = new PartitionedIndexProcessor(new NullFilesProcessor()
+                    , StorageTypes.INTERNED, false, 4, 16);
+            saved.startService();
+            IIndexProcessor expected;
+            try {
+                expected = indexRandomFiles(saved);
+            } finally {
+                saved.stopService();
+                saved.waitFinished(10, TimeUnit.SECONDS);
+            }
+            saveSnapshot(saved, snapshot, registrations);
+            IIndexProcessor restored = new PartitionedIndexProcessor(new NullFilesProcessor()
+                    , StorageTypes.COMPRESSED, false, 3, 16); //partitions are not saved
+            loadSnapshot(restored, snapshot);
+            assertSameIndex(expected, restored);
+            Assert.assertEquals(300, restored.getStats().numRestored);
+        } finally {
+            Files.deleteIfExists(snapshot);
+        }
+    }
+
+    @Test
+    public void corruptedSnapshot() throws IOException {
+        Path snapshot = Files.createTempFile("indexer", ".snapshot");
+        try {
+            IIndexProcessor saved = new IndexProcessor(new NullFilesProcessor(), StorageTypes.INTERNED);
+            indexRandomFiles(saved);
+            saveSnapshot(saved, snapshot, Collections.<Path, Boolean>emptyMap());
+            byte[] bytes = Files.readAllBytes(snapshot);
+            bytes[bytes.length / 2] ^= 1;
+            Files.write(snapshot, bytes);
+            IIndexProcessor restored = new IndexProcessor(new NullFilesProcessor(), StorageTypes.INTERNED);
+            try {
+                loadSnapshot(restored, snapshot);
+                Assert.fail("Corrupted snapshot loaded");
+            } catch (IOException e) {
+                Assert.assertTrue(e.getMessage().startsWith("Checksum mismatch"));
+            }
+            Assert.assertEquals(0, restored.getStats().numFiles);
+        } finally {
+            Files.deleteIfExists(snapshot);
+        }
+    }
+
+    /**
+        Applies random changes to both processors, all processings finish successfully
+    */
+    private static void changeRandomFiles(IIndexProcessor expected, IIndexProcessor ip, Random rnd, int steps) {
+        for(int step = 0; step < steps; ++step) {
+            int op = rnd.nextInt(10);
+            Path file = path("d" + rnd.nextInt(10) + "/f" + rnd.nextInt(400));
+            if(op < 6) {
+                List<String> words = randomWords(rnd, rnd.nextInt(50), 500);
+                indexFile(expected, 10 + step, file, words);
+                if(rnd.nextBoolean())
+                    indexFile(ip, 10 + step, file, words);
+                else
+                    reindexFile(ip, 10 + step, file, words);
+            } else if(op < 8) {
+                expected.removeFile(file);
+                ip.removeFile(file);
+            } else {
+                Path dir = file.getParent();
+                expected.removeDirectory(dir);
+                ip.removeDirectory(dir);
+            }
+        }
+        waitApplied(ip);
+    }
+
+    private interface IMatcher {
+        boolean matches(Set<String> words);
+    }
+
+    /**
+        @param matcher receives brute force evaluation of returned query
+    */
+    private static Query randomQuery(final Random rnd, int depth, boolean bounded, IMatcher[] matcher) {
+        int kind = depth == 0 ? 0 : rnd.nextInt(bounded ? 3 : 4);
+        if(kind == 0) {
+            final String w = randomWords(rnd, 1, 500).get(0);
+            matcher[0] = new IMatcher() {
+                @Override
+                public boolean matches(Set<String> words) {
+                    return words.contains(w);
+                }
+            };
+            return Query.word(w);
+        }
+        if(kind == 3) {
+            final IMatcher[] m = new IMatcher[1];
+            Query res = Query.not(randomQuery(rnd, depth - 1, true, m));
+            matcher[0] = new IMatcher() {
+                @Override
+                public boolean matches(Set<String> words) {
+                    return !m[0].matches(words);
+                }
+            };
+            return res;
+        }
+        final boolean and = kind == 1;
+        final Query[] ops = new Query[1 + rnd.nextInt(3)];
+        final IMatcher[] ms = new IMatcher[ops.length];
+        for(int i = 0; i < ops.length; ++i) {
+            IMatcher[] m = new IMatcher[1];
+            ops[i] = randomQuery(rnd, depth - 1, !and || i == 0, m); //AND needs one bounded operand
+            ms[i] = m[0];
+        }
+        matcher[0] = new IMatcher() {
+            @Override
+            public boolean matches(Set<String> words) {
+                for(IMatcher m : ms)
+                    if(m.matches(words) != and)
+                        return !and;
+                return and;
+            }
+        };
+        return and ? Query.and(ops) : Query.or(ops);
+    }
+
+    private static void checkQueries(IIndexProcessor expected, IIndexProcessor actual, Random rnd) {
+        Map<String, Set<String>> files = new HashMap<>();
+        for(String w : expected.getWords())
+            for(String f : searchPaths(expected, w)) {
+                if(!files.containsKey(f))
+                    files.put(f, new HashSet<String>());
+                files.get(f).add(w);
+            }
+        for(int i = 0; i < 300; ++i) {
+            IMatcher[] m = new IMatcher[1];
+            Query q = randomQuery(rnd, 1 + rnd.nextInt(3), true, m);
+            Set<String> brute = new TreeSet<>();
+            for(Map.Entry<String, Set<String>> e : files.entrySet())
+                if(m[0].matches(e.getValue()))
+                    brute.add(e.getKey());
+            Set<String> res = new TreeSet<>();
+            for(FileEntry fe : actual.search(q))
+                Assert.assertTrue(res.add(fe.getPath()));
+            Assert.assertEquals(q.toString(), brute, res);
+        }
+        try {
+            actual.search(Query.not(Query.word("w1")));
+            Assert.fail("Unbounded query answered");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void queryMatchesBruteForce() {
+        for(int type : new int[] {StorageTypes.MAP, StorageTypes.INTERNED, StorageTypes.COMPRESSED, StorageTypes.MAPPED
+                , StorageTypes.SEGMENTED}) {
+            IIndexProcessor expected = new IndexProcessor(new NullFilesProcessor(), StorageTypes.MAP);
+            IIndexProcessor ip = new IndexProcessor(new NullFilesProcessor(), type);
+            Random rnd = new Random(42);
+            for(int i = 0; i < 5000; ++i) { //long postings, written to segments
+                List<String> words = randomWords(rnd, rnd.nextInt(50), 500);
+                indexFile(expected, i, path("l" + i % 10 + "/f" + i), words);
+                indexFile(ip, i, path("l" + i % 10 + "/f" + i), words);
+            }
+            changeRandomFiles(expected, ip, rnd, 1000); //deletions and files in delta
+            checkQueries(expected, ip, rnd);
+        }
+    }
+
+    private static void checkPrefixes(IIndexProcessor expected, IIndexProcessor actual, Random rnd) {
+        TreeSet<String> words = new TreeSet<>(expected.getWords());
+        List<String> read = new ArrayList<>();
+        for(List<String> page = actual.getWords("", null, 100); !page.isEmpty()
+                ; page = actual.getWords(page.get(page.size() - 1) + "\0", null, 100)) {
+            Assert.assertTrue(page.size() <= 100);
+            read.addAll(page);
+        }
+        Assert.assertEquals(new ArrayList<>(words), read);
+        List<String> all = new ArrayList<>(words);
+        for(int i = 0; i < 100; ++i) {
+            String from = all.get(rnd.nextInt(all.size())).substring(0, 1 + rnd.nextInt(2));
+            String to = all.get(rnd.nextInt(all.size()));
+            int limit = rnd.nextInt(50);
+            List<String> range = new ArrayList<>(from.compareTo(to) < 0 ? words.subSet(from, to) : words.tailSet(from));
+            range = range.subList(0, Math.min(limit, range.size()));
+            Assert.assertEquals(range, actual.getWords(from, from.compareTo(to) < 0 ? to : null, limit));
+            Set<String> brute = new TreeSet<>();
+            for(String w : words.tailSet(from))
+                if(w.startsWith(from))
+                    brute.addAll(searchPaths(expected, w));
+            Set<String> res = new TreeSet<>();
+            for(FileEntry fe : actual.searchPrefix(from))
+                Assert.assertTrue(res.add(fe.getPath()));
+            Assert.assertEquals(from, brute, res);
+        }
+    }
+
+    @Test
+    public void prefixAndRangeSameAsBruteForce() {
+        for(int type : new int[] {StorageTypes.MAP, StorageTypes.INTERNED, StorageTypes.COMPRESSED, StorageTypes.MAPPED
+                , StorageTypes.SEGMENTED}) {
+            IIndexProcessor expected = new IndexProcessor(new NullFilesProcessor(), StorageTypes.MAP);
+            IIndexProcessor ip = new IndexProcessor(new NullFilesProcessor(), type);
+            Random rnd = new Random(42);
+            for(int i = 0; i < 3000; ++i) { //enough words to rebuild sorted dictionary and write segments
+                List<String> words = randomWords(rnd, rnd.nextInt(50), 20000);
+                if(i % 7 == 0)
+                    words.add("\u0436" + words.size());
+                indexFile(expected, i, path("l" + i % 10 + "/f" + i), words);
+                indexFile(ip, i, path("l" + i % 10 + "/f" + i), words);
+            }
+            checkPrefixes(expected, ip, rnd);
+            changeRandomFiles(expected, ip, rnd, 1000); //deletions and files in delta
+            checkPrefixes(expected, ip, rnd);
+        }
+    }
+
+    private static void checkSubstrings(IIndexProcessor expected, IIndexProcessor actual) {
+        List<String> words = expected.getWords();
+        for(String s : new String[] {"12", "123", "w99", "\u04361", "9999", "x12", "x1234", "nothing"}) {
+            Set<String> brute = new TreeSet<>();
+            for(String w : words)
+                if(w.contains(s))
+                    brute.addAll(searchPaths(expected, w));
+            Set<String> res = new TreeSet<>();
+            for(FileEntry fe : actual.searchSubstring(s))
+                Assert.assertTrue(res.add(fe.getPath()));
+            Assert.assertEquals(s, brute, res);
+        }
+        for(String r : new String[] {"w1.3", "^w12+3$", "5[0-3]7", "(12)?345", "123|\u0436", "w\\d{2}5", "12*34", "x1[^2]3"
+                , "(?i)W123", "77\\.?8", "\\Q123\\E", "\u0436[12]{1,2}$", "x5555"}) {
+            Pattern p = Pattern.compile(r);
+            Set<String> brute = new TreeSet<>();
+            for(String w : words)
+                if(p.matcher(w).find())
+                    brute.addAll(searchPaths(expected, w));
+            Set<String> res = new TreeSet<>();
+            for(FileEntry fe : actual.searchRegex(p))
+                Assert.assertTrue(res.add(fe.getPath()));
+            Assert.assertEquals(r, brute, res);
+        }
+    }
+
+    @Test
+    public void substringAndRegexSameAsBruteForce() {
+        int[] types = {StorageTypes.MAP, StorageTypes.SEGMENTED, StorageTypes.COMPRESSED};
+        boolean[] trigrams = {true, true, false}; //without index all words are scanned
+        for(int t = 0; t < types.length; ++t) {
+            IIndexProcessor expected = new IndexProcessor(new NullFilesProcessor(), StorageTypes.MAP);
+            IIndexProcessor ip = new IndexProcessor(new NullFilesProcessor(), types[t], false, trigrams[t]);
+            Random rnd = new Random(42);
+            for(int i = 0; i < 100; ++i) { //enough unique words to rebuild trigram index
+                List<String> words = new ArrayList<>();
+                for(int j = 0; j < 1000; ++j)
+                    words.add("x" + (i * 1000 + j));
+                indexFile(expected, i, path("x/f" + i), words);
+                reindexFile(ip, i, path("x/f" + i), words);
+            }
+            for(int i = 0; i < 3000; ++i) {
+                List<String> words = randomWords(rnd, rnd.nextInt(50), 20000);
+                if(i % 7 == 0)
+                    words.add("\u0436" + words.size());
+                indexFile(expected, i, path("l" + i % 10 + "/f" + i), words);
+                indexFile(ip, i, path("l" + i % 10 + "/f" + i), words);
+            }
+            checkSubstrings(expected, ip);
+            expected.removeDirectory(path("x")); //removed words stay in trigram index
+            ip.removeDirectory(path("x"));
+            changeRandomFiles(expected, ip, rnd, 1000);
+            checkSubstrings(expected, ip);
+        }
+    }
+
+    private static long replayLog(IIndexProcessor ip, Path log) throws IOException {
+        try(IndexLog.Reader in = new IndexLog.Reader(log)) {
+            ip.replayLog(in);
+            Assert.assertFalse(in.isDamaged());
+            return in.getRecordsNum();
+        }
+    }
+
+    @Test
+    public void logReplayRestoresSameIndex() throws IOException, IService.FailureException, InterruptedException {
+        Path snapshot = Files.createTempFile("indexer", ".snapshot");
+        Path log = Files.createTempFile("indexer", ".log");
+        try {
+            for(int storageType : new int[] {StorageTypes.MAP, StorageTypes.COMPRESSED, StorageTypes.MAPPED
+                    , StorageTypes.SEGMENTED}) {
+                IIndexProcessor ip = new IndexProcessor(new NullFilesProcessor(), storageType);
+                IIndexProcessor expected = indexRandomFiles(ip);
+                saveSnapshot(ip, snapshot, Collections.<Path, Boolean>emptyMap());
+                long base;
+                try(IndexSnapshot.Reader in = new IndexSnapshot.Reader(snapshot)) {
+                    base = in.getStamp();
+                }
+                try(IndexLog.Writer out = new IndexLog.Writer(log, base, LogSyncModes.NONE)) {
+                    ip.setLog(out);
+                    changeRandomFiles(expected, ip, new Random(storageType), 2000);
+                }
+                ip.removeFile(path("processing")); //not logged as valid
+
+                IIndexProcessor restored = new IndexProcessor(new NullFilesProcessor(), storageType);
+                loadSnapshot(restored, snapshot);
+                long records = replayLog(restored, log);
+                assertSameIndex(expected, restored);
+                Assert.assertEquals(records, restored.getStats().numReplayed);
+                Assert.assertTrue(records > 1000);
+            }
+
+            PartitionedIndexProcessor ip = new PartitionedIndexProcessor(new NullFilesProcessor()
+                    , StorageTypes.INTERNED, false, 4, 16);
+            IIndexProcessor expected = new IndexProcessor(new NullFilesProcessor(), StorageTypes.MAP);
+            try(IndexLog.Writer out = new IndexLog.Writer(log, 0, LogSyncModes.GROUP)) {
+                ip.setLog(out); //shared by writers
+                ip.startService();
+                try {
+                    changeRandomFiles(expected, ip, new Random(42), 2000);
+                } finally {
+                    ip.stopService();
+                    ip.waitFinished(10, TimeUnit.SECONDS);
+                }
+            }
+            IIndexProcessor restored = new PartitionedIndexProcessor(new NullFilesProcessor()
+                    , StorageTypes.MAPPED, false, 3, 16);
+            replayLog(restored, log);
+            assertSameIndex(expected, restored);
+        } finally {
+            Files.deleteIfExists(snapshot);
+            Files.deleteIfExists(log);
+        }
+    }
+
+    @Test
+    public void logWordsAddedAfterReplace() throws IOException {
+        Path log = Files.createTempFile("indexer", ".log");
+        try {
+            IIndexProcessor ip = new IndexProcessor(new NullFilesProcessor(), StorageTypes.INTERNED);
+            IIndexProcessor expected = new IndexProcessor(new NullFilesProcessor(), StorageTypes.MAP);
+            List<String> words = Arrays.asList("a", "\u0436\u0443\u043a", "bb");
+            try(IndexLog.Writer out = new IndexLog.Writer(log, 0, LogSyncModes.NONE)) {
+                ip.setLog(out);
+                for(IIndexProcessor p : new IIndexProcessor[] {ip, expected}) {
+                    p.syncFile(1, path("f"));
+                    p.replaceWords(path("f"), words);
+                    p.addWord(path("f"), "\u0436\u0443\u043a"); //logged words are decoded to add one
+                    p.addWord(path("f"), "c");
+                    p.fileFinished(1, path("f"), true, ContentHash.NO_HASH);
+                }
+            }
+            IIndexProcessor restored = new IndexProcessor(new NullFilesProcessor(), StorageTypes.INTERNED);
+            Assert.assertEquals(1, replayLog(restored, log));
+            assertSameIndex(expected, restored);
+            Assert.assertEquals(1, restored.search("\u0436\u0443\u043a").size());
+            Assert.assertEquals(1, restored.search("c").size());
+        } finally {
+            Files.deleteIfExists(log);
+        }
+    }
+
+    @Test
+    public void damagedLogTail() throws IOException {
+        Path log = Files.createTempFile("indexer", ".log");
+        try {
+            IIndexProcessor ip = new IndexProcessor(new NullFilesProcessor(), StorageTypes.INTERNED);
+            try(IndexLog.Writer out = new IndexLog.Writer(log, 0, LogSyncModes.GROUP)) {
+                ip.setLog(out);
+                indexRandomFiles(ip);
+                out.logRegistration(path("d1"), true);
+            }
+            long size = Files.size(log);
+            try(FileChannel ch = FileChannel.open(log, StandardOpenOption.WRITE)) { //record being written on crash
+                ch.truncate(size - 3);
+            }
+            IIndexProcessor restored = new IndexProcessor(new NullFilesProcessor(), StorageTypes.INTERNED);
+            try(IndexLog.Reader in = new IndexLog.Reader(log)) {
+                restored.replayLog(in);
+                Assert.assertTrue(in.isDamaged());
+                Assert.assertEquals(300, in.getRecordsNum());
+                Assert.assertTrue(in.getRegistrations().isEmpty());
+                try(IndexLog.Writer out = new IndexLog.Writer(in, LogSyncModes.GROUP)) { //damaged record is dropped
+                    out.logRegistration(path("d2"), false);
+                }
+            }
+            Assert.assertEquals(300, restored.getStats().numValidFiles);
+            try(IndexLog.Reader in = new IndexLog.Reader(log)) {
+                new IndexProcessor(new NullFilesProcessor(), StorageTypes.INTERNED).replayLog(in);
+                Assert.assertFalse(in.isDamaged());
+                Assert.assertEquals(301, in.getRecordsNum());
+                Assert.assertEquals(Collections.singletonMap(path("d2"), false), in.getRegistrations());
+            }
+        } finally {
+            Files.deleteIfExists(log);
+        }
+    }
+
+    @Test
+    public void zeroFilledLogTail() throws IOException {
+        Path log = Files.createTempFile("indexer", ".log");
+        try {
+            IIndexProcessor ip = new IndexProcessor(new NullFilesProcessor(), StorageTypes.MAP);
+            try(IndexLog.Writer out = new IndexLog.Writer(log, 0, LogSyncModes.GROUP)) {
+                ip.setLog(out);
+                indexFile(ip, 1, path("d/f"), Arrays.asList("foo", "bar"));
+                out.logRegistration(path("d"), true);
+            }
+            long size = Files.size(log);
+            try(FileChannel ch = FileChannel.open(log, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ch.write(ByteBuffer.allocate(4096)); //allocated but not written blocks after crash
+            }
+            IIndexProcessor restored = new IndexProcessor(new NullFilesProcessor(), StorageTypes.MAP);
+            try(IndexLog.Reader in = new IndexLog.Reader(log)) {
+                restored.replayLog(in);
+                Assert.assertTrue(in.isDamaged());
+                Assert.assertEquals(2, in.getRecordsNum());
+                Assert.assertEquals(Collections.singletonMap(path("d"), true), in.getRegistrations());
+                try(IndexLog.Writer out = new IndexLog.Writer(in, LogSyncModes.GROUP)) { //zeros are dropped
+                    out.logRegistration(path("e"), true);
+                }
+            }
+            Assert.assertEquals(Collections.singleton("d/f"), searchPaths(restored, "foo"));
+            Assert.assertTrue(Files.size(log) < size + 4096);
+            try(IndexLog.Reader in = new IndexLog.Reader(log)) {
+                new IndexProcessor(new NullFilesProcessor(), StorageTypes.MAP).replayLog(in);
+                Assert.assertFalse(in.isDamaged());
+                Assert.assertEquals(3, in.getRecordsNum());
+            }
+        } finally {
+            Files.deleteIfExists(log);
+        }
+    }
+
+    private static int fileState(IIndexProcessor ip, Path file) {
+        for(FileStatistics fs : ip.getFiles())
+            if(fs.name.equals(file.toString()))
+                return fs.state;
+        throw new AssertionError("No file " + file);
+    }
+
+    @Test
+    public void restartCancelledProcessing() {
+        CountingFilesProcessor fp = new CountingFilesProcessor();
+        IIndexProcessor ip = new IndexProcessor(fp);
+        Path file = path("nonexistent");
+        ip.syncFile(1, file);
+        Assert.assertEquals(1, fp.processed.size());
+
+        ip.syncFile(2, file); //waits for processing, nothing to cancel
+        ip.fileFinished(3, file, true, ContentHash.NO_HASH);
+        Assert.assertEquals(1, fp.processed.size());
+        Assert.assertEquals(States.VALID, fileState(ip, file));
+
+        ip.syncFile(4, file);
+        Assert.assertEquals(2, fp.processed.size());
+        fp.running.add(file);
+        ip.syncFile(5, file); //cancels running processing
+        ip.fileFinished(6, file, false, ContentHash.NO_HASH); //started after event, but cancelled
+        Assert.assertEquals(3, fp.processed.size());
+        Assert.assertEquals(States.PROCESSING, fileState(ip, file));
+        fp.running.clear();
+        ip.fileFinished(7, file, true, ContentHash.NO_HASH);
+        Assert.assertEquals(3, fp.processed.size());
+        Assert.assertEquals(States.VALID, fileState(ip, file));
+    }
+
+    private static void assertSameIds(TreeSet<Integer> expected, CompressedPostingList actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        IPostingIterator it = actual.iterator();
+        for(int v : expected) {
+            Assert.assertTrue(it.hasNext());
+            Assert.assertEquals(v, it.next());
+        }
+        Assert.assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void compressedPostingList() {
+        Random rnd = new Random(42);
+        for(int range : new int[] {100, 1000, 100000}) {
+            TreeSet<Integer> expected = new TreeSet<>();
+            CompressedPostingList actual = new CompressedPostingList();
+            for(int step = 0; step < 20000; ++step) {
+                int v = rnd.nextInt(range);
+                if(rnd.nextInt(3) == 0)
+                    Assert.assertEquals(expected.remove(v), actual.remove(v));
+                else
+                    Assert.assertEquals(expected.add(v), actual.add(v));
+                if(step % 1000 == 0) {
+                    assertSameIds(expected, actual);
+                    int probe = rnd.nextInt(range);
+                    Assert.assertEquals(expected.contains(probe), actual.contains(probe));
+                }
+            }
+            assertSameIds(expected, actual);
+            actual.compact();
+            assertSameIds(expected, actual);
+        }
+    }
+
+    @Test
+    public void internedRemovesWords() {
+        IIndexProcessor ip = new IndexProcessor(new NullFilesProcessor(), StorageTypes.INTERNED);
+        indexFile(ip, 1, path("a"), Arrays.asList("x", "y"));
+        indexFile(ip, 1, path("b"), Arrays.asList("y", "z"));
+        Assert.assertEquals(3, ip.getStats().numWords);
+
+        ip.removeFile(path("a"));
+        Assert.assertEquals(new TreeSet<>(Arrays.asList("y", "z")), new TreeSet<>(ip.getWords()));
+        Assert.assertTrue(ip.search("x").isEmpty());
+        Assert.assertEquals(Collections.singleton("b"), searchPaths(ip, "y"));
+
+        indexFile(ip, 2, path("c"), Arrays.asList("x"));
+        Assert.assertEquals(Collections.singleton("c"), searchPaths(ip, "x"));
+        Assert.assertEquals(2, ip.getStats().numFiles);
+    }
+
+    @Test
+    public void replaceKeepsCommonWords() throws InterruptedException {
+        for(int storageType : new int[] {StorageTypes.MAP, StorageTypes.INTERNED, StorageTypes.COMPRESSED, StorageTypes.MAPPED
+                , StorageTypes.SEGMENTED}) {
+            final IIndexProcessor ip = new IndexProcessor(new NullFilesProcessor(), storageType);
+            final Path file = path("hot");
+            reindexFile(ip, 0, file, Arrays.asList("common", "x"));
+            final AtomicBoolean done = new AtomicBoolean();
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 1; i < 20000; ++i)
+                        reindexFile(ip, i, file, Arrays.asList("common", "x" + i % 10, "y" + i % 7));
+                    done.set(true);
+                }
+            });
+            writer.start();
+            while(!done.get())
+                Assert.assertEquals(1, ip.search("common").size());
+            writer.join();
+            Assert.assertEquals(new TreeSet<>(Arrays.asList("common", "x9", "y0")), new TreeSet<>(ip.getWords()));
+            Assert.assertEquals(Collections.singleton("hot"), searchPaths(ip, "y0"));
+        }
+    }
+
+    @Test
+    public void unchangedFilesSkipped() throws IOException {
+        Path dir = Files.createTempDirectory("indexer");
+        try {
+            Path a = Files.write(dir.resolve("a"), "aaa bbb".getBytes());
+            Path b = Files.write(dir.resolve("b"), "ccc".getBytes());
+            Files.createDirectory(dir.resolve("sub"));
+            Files.write(dir.resolve("sub").resolve("c"), "ddd".getBytes());
+            FileTime old = FileTime.fromMillis(System.currentTimeMillis() - 60000);
+            Files.setLastModifiedTime(a, old);
+            Files.setLastModifiedTime(b, old);
+            for(boolean hashContents : new boolean[] {false, true}) {
+                CountingFilesProcessor fp = new CountingFilesProcessor();
+                IIndexProcessor ip = new IndexProcessor(fp, StorageTypes.MAP, hashContents);
+                ip.syncDirectory(1, dir);
+                Assert.assertEquals(new HashSet<>(Arrays.asList(a, b)), new HashSet<>(fp.processed));
+                Assert.assertEquals(hashContents ? Long.valueOf(ContentHash.NO_HASH) : null, ip.indexedHash(a));
+                ip.fileFinished(1, a, true, hashContents ? ContentHash.of(a) : ContentHash.NO_HASH);
+                ip.fileFinished(1, b, true, hashContents ? ContentHash.of(b) : ContentHash.NO_HASH);
+                Assert.assertNull(ip.indexedHash(a));
+
+                ip.syncDirectory(2, dir);
+                ip.syncFile(3, a);
+                Assert.assertEquals(2, fp.processed.size());
+                Assert.assertEquals(3, ip.getStats().numSkippedByAttributes);
+
+                Files.setLastModifiedTime(a, FileTime.fromMillis(Files.getLastModifiedTime(a).toMillis() + 10000));
+                ip.syncFile(4, a);
+                Assert.assertEquals(3, fp.processed.size()); //content is compared by processing
+                if(hashContents) {
+                    Assert.assertEquals(Long.valueOf(ContentHash.of(a)), ip.indexedHash(a));
+                    ip.fileUnchanged(4, a);
+                } else {
+                    ip.fileFinished(4, a, true, ContentHash.NO_HASH);
+                }
+                Assert.assertEquals(hashContents ? 1 : 0, ip.getStats().numSkippedByHash);
+
+                Files.write(a, "aaa bbc".getBytes());
+                Files.setLastModifiedTime(a, FileTime.fromMillis(Files.getLastModifiedTime(a).toMillis() + 20000));
+                ip.syncFile(5, a);
+                Assert.assertEquals(4, fp.processed.size());
+                Assert.assertEquals(fp.processed.size(), ip.getStats().numProcessed);
+                Files.write(a, "aaa bbb".getBytes());
+                Files.setLastModifiedTime(a, old);
+            }
+        } finally {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path d, IOException exc) throws IOException {
+                    Files.delete(d);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+
+    @Test
+    public void racyModificationTimeNotTrusted() throws IOException {
+        Path file = Files.createTempFile("indexer", null);
+        try {
+            FileTime modified = FileTime.fromMillis(System.currentTimeMillis() / 1000 * 1000);
+            Files.write(file, "aaa".getBytes());
+            Files.setLastModifiedTime(file, modified);
+            CountingFilesProcessor fp = new CountingFilesProcessor();
+            IIndexProcessor ip = new IndexProcessor(fp, StorageTypes.MAP, true);
+            ip.syncFile(1, file);
+            ip.fileFinished(1, file, true, ContentHash.of(file));
+
+            Files.write(file, "bbb".getBytes()); //within the same tick of file system timestamp
+            Files.setLastModifiedTime(file, modified);
+            ip.syncFile(2, file);
+            Assert.assertEquals(2, fp.processed.size());
+            Assert.assertEquals(0, ip.getStats().numSkippedByAttributes);
+            Assert.assertNotEquals(Long.valueOf(ContentHash.of(file)), ip.indexedHash(file));
+            ip.fileFinished(2, file, true, ContentHash.of(file));
+
+            Files.setLastModifiedTime(file, FileTime.fromMillis(modified.toMillis() - 10000));
+            ip.syncFile(3, file);
+            Assert.assertEquals(3, fp.processed.size());
+            ip.fileUnchanged(3, file);
+            Assert.assertEquals(1, ip.getStats().numSkippedByHash);
+            ip.syncFile(4, file); //modified long before its fingerprint was taken
+            Assert.assertEquals(3, fp.processed.size());
+            Assert.assertEquals(1, ip.getStats().numSkippedByAttributes);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static long usedMemory() {
+        Runtime rt = Runtime.getRuntime();
+        for(int i = 0; i < 5; ++i)
+            System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static long measureMemory(int storageType, int files, int wordsPerFile, int vocabulary) {
+        long before = usedMemory();
+        IIndexProcessor ip = new IndexProcessor(new NullFilesProcessor(), storageType);
+        Random rnd = new Random(42);
+        for(int i = 0; i < files; ++i)
+            indexFile(ip, i, path("dir" + (i % 100) + "/file" + i), randomWords(rnd, wordsPerFile, vocabulary));
+        long res = usedMemory() - before;
+        Assert.assertEquals(files, ip.getStats().numFiles);
+        return res;
+    }
+
+    @Ignore("Benchmark")
+    @Test
+    public void memoryComparison() {
+        final int files = 20000, wordsPerFile = 200, vocabulary = 100000;
+        long map = measureMemory(StorageTypes.MAP, files, wordsPerFile, vocabulary);
+        long interned = measureMemory(StorageTypes.INTERNED, files, wordsPerFile, vocabulary);
+        long compressed = measureMemory(StorageTypes.COMPRESSED, files, wordsPerFile, vocabulary);
+        long mapped = measureMemory(StorageTypes.MAPPED, files, wordsPerFile, vocabulary); //heap only
+        long segmented = measureMemory(StorageTypes.SEGMENTED, files, wordsPerFile, vocabulary); //heap only
+        System.out.println("Files: " + files + ", words per file: " + wordsPerFile + ", vocabulary: " + vocabulary);
+        System.out.println("map:        " + map / 1024 / 1024 + " MB");
+        System.out.println("interned:   " + interned / 1024 / 1024 + " MB");
+        System.out.println("compressed: " + compressed / 1024 / 1024 + " MB");
+        System.out.println("mapped:     " + mapped / 1024 / 1024 + " MB");
+        System.out.println("segmented:  " + segmented / 1024 / 1024 + " MB");
+        Assert.assertTrue(interned < map);
+    }
+
+    @Ignore("Benchmark")
+    @Test
+    public void searchThroughput() {
+        final int files = 20000, wordsPerFile = 200, vocabulary = 100000, searches = 20000;
+        for(int storageType : new int[] {StorageTypes.MAP, StorageTypes.INTERNED, StorageTypes.COMPRESSED, StorageTypes.MAPPED
+                , StorageTypes.SEGMENTED}) {
+            IIndexProcessor ip = new IndexProcessor(new NullFilesProcessor(), storageType);
+            Random rnd = new Random(42);
+            long start = System.nanoTime();
+            for(int i = 0; i < files; ++i)
+                indexFile(ip, i, path("dir" + (i % 100) + "/file" + i), randomWords(rnd, wordsPerFile, vocabulary));
+            long index = System.nanoTime() - start;
+            List<String> words = randomWords(rnd, searches, vocabulary);
+            long found = 0;
+            for(int r = 0; r < 2; ++r) {
+                start = System.nanoTime();
+                for(String w : words)
+                    found += ip.search(w).size();
+            }
+            long search = System.nanoTime() - start;
+            Assert.assertTrue(found > 0);
+            System.out.println("storage " + storageType + ": indexed in " + index / 1000000 + " ms, "
+                    + String.format("%.0f", searches * 1e9 / search) + " searches/sec");
+        }
+    }
+
+    @Ignore("Benchmark")
+    @Test
+    public void postingsThroughput() {
+        final int ids = 10000000;
+        for(int step : new int[] {1, 2, 10, 100, 1000}) {
+            int num = ids / step;
+            int[] src = new int[num];
+            Random rnd = new Random(42);
+            for(int i = 0, cur = 0; i < num; ++i) {
+                cur += 1 + rnd.nextInt(2 * step - 1); //average gap is step
+                src[i] = cur;
+            }
+            final int reps = 20;
+            CompressedPostingList pl = CompressedPostingList.encode(src, num); //warm up
+            long start = System.nanoTime();
+            for(int r = 0; r < reps; ++r)
+                pl = CompressedPostingList.encode(src, num);
+            long encode = (System.nanoTime() - start) / reps;
+            long sum = 0;
+            for(int r = 0; r < 2 * reps; ++r) {
+                if(r == reps)
+                    start = System.nanoTime();
+                IPostingIterator it = pl.iterator();
+                while(it.hasNext())
+                    sum += it.next();
+            }
+            long decode = (System.nanoTime() - start) / reps;
+            Assert.assertTrue(sum > 0);
+            System.out.println("gap " + step + ": " + num + " ids, "
+                    + String.format("%.2f", pl.bytesUsed() / (double)num) + " bytes/id (x"
+                    + String.format("%.1f", 4.0 * num / pl.bytesUsed()) + " vs int[]), encode "
+                    + num * 1000L / encode + " M ids/s, decode " + num * 1000L / decode + " M ids/s");
+        }
+    }
+
+    /**
+        Two-word AND of rare and frequent word, the case postings intersection is skipping for
+    */
+    @Ignore("Benchmark")
+    @Test
+    public void rareAndFrequentQuery() {
+        final int files = 100000, wordsPerFile = 20, vocabulary = 100000, queries = 2000;
+        for(int storageType : new int[] {StorageTypes.MAP, StorageTypes.INTERNED, StorageTypes.COMPRESSED, StorageTypes.MAPPED
+                , StorageTypes.SEGMENTED}) {
+            IIndexProcessor ip = new IndexProcessor(new NullFilesProcessor(), storageType);
+            Random rnd = new Random(42);
+            for(int i = 0; i < files; ++i) {
+                List<String> words = randomWords(rnd, wordsPerFile, vocabulary);
+                if(i % 10 != 0)
+                    words.add("frequent");
+                if(i % 1000 == 0)
+                    words.add("rare" + rnd.nextInt(10));
+                indexFile(ip, i, path("dir" + (i % 100) + "/file" + i), words);
+            }
+            waitApplied(ip);
+            long found = 0, intersected = 0, start = 0, query = 0;
+            for(int r = 0; r < 2; ++r) {
+                start = System.nanoTime();
+                for(int i = 0; i < queries; ++i)
+                    found += ip.search(Query.and(Query.word("rare" + i % 10), Query.word("frequent"))).size();
+                query = System.nanoTime() - start;
+            }
+            for(int r = 0; r < 2; ++r) {
+                start = System.nanoTime();
+                for(int i = 0; i < queries; ++i) { //intersection by client
+                    Set<String> rare = searchPaths(ip, "rare" + i % 10);
+                    for(FileEntry fe : ip.search("frequent"))
+                        if(rare.contains(fe.getPath()))
+                            ++intersected;
+                }
+            }
+            long client = System.nanoTime() - start;
+            Assert.assertEquals(found, intersected);
+            System.out.println("storage " + storageType + ": " + String.format("%.0f", queries * 1e9 / query)
+                    + " queries/sec, client intersection " + String.format("%.0f", queries * 1e9 / client) + "/sec");
+        }
+    }
+
+    @Ignore("Benchmark")
+    @Test
+    public void prefixSearchThroughput() {
+        final int files = 20000, wordsPerFile = 100, queries = 20000, scans = 20;
+        for(int storageType : new int[] {StorageTypes.MAP, StorageTypes.INTERNED, StorageTypes.MAPPED
+                , StorageTypes.SEGMENTED}) {
+            IIndexProcessor ip = new IndexProcessor(new NullFilesProcessor(), storageType);
+            Random rnd = new Random(42);
+            List<String> prefixes = new ArrayList<>();
+            for(int i = 0; i < files; ++i) {
+                List<String> words = new ArrayList<>();
+                for(int j = 0; j < wordsPerFile; ++j) { //mostly unique words
+                    char[] w = new char[8];
+                    for(int k = 0; k < w.length; ++k)
+                        w[k] = (char)('a' + rnd.nextInt(26));
+                    words.add(new String(w));
+                }
+                prefixes.add(words.get(0).substring(0, 4));
+                indexFile(ip, i, path("dir" + (i % 100) + "/file" + i), words);
+            }
+            waitApplied(ip);
+            long found = 0, start = 0, prefix = 0;
+            for(int r = 0; r < 2; ++r) {
+                start = System.nanoTime();
+                for(int i = 0; i < queries; ++i) {
+                    String p = prefixes.get(i % prefixes.size());
+                    found += ip.getWords(p, p + Character.MAX_VALUE, 100).size() + ip.searchPrefix(p).size();
+                }
+                prefix = System.nanoTime() - start;
+            }
+            start = System.nanoTime();
+            for(int i = 0; i < scans; ++i) { //filtering of whole vocabulary by client
+                String p = prefixes.get(i);
+                for(String w : ip.getWords())
+                    if(w.startsWith(p))
+                        ++found;
+            }
+            long scan = System.nanoTime() - start;
+            Assert.assertTrue(found > 0);
+            System.out.println("storage " + storageType + ": " + ip.getStats().numWords + " words, "
+                    + String.format("%.0f", queries * 1e9 / prefix) + " prefix searches/sec, client filtering "
+                    + String.format("%.1f", scans * 1e9 / scan) + "/sec");
+        }
+    }
+
+    @Ignore("Benchmark")
+    @Test
+    public void substringSearchThroughput() {
+        final int files = 20000, wordsPerFile = 100;
+        for(boolean trigrams : new boolean[] {false, true}) {
+            IIndexProcessor ip = new IndexProcessor(new NullFilesProcessor(), StorageTypes.MAP, false, trigrams);
+            int queries = trigrams ? 2000 : 20; //without index every query scans all words
+            Random rnd = new Random(42);
+            List<String> substrings = new ArrayList<>();
+            long start = System.nanoTime();
+            for(int i = 0; i < files; ++i) {
+                List<String> words = new ArrayList<>();
+                for(int j = 0; j < wordsPerFile; ++j) { //mostly unique words
+                    char[] w = new char[8];
+                    for(int k = 0; k < w.length; ++k)
+                        w[k] = (char)('a' + rnd.nextInt(26));
+                    words.add(new String(w));
+                }
+                substrings.add(words.get(0).substring(2, 7));
+                indexFile(ip, i, path("dir" + (i % 100) + "/file" + i), words);
+            }
+            long indexing = System.nanoTime() - start;
+            long found = 0, search = 0, regex = 0;
+            for(int r = 0; r < 2; ++r) {
+                start = System.nanoTime();
+                for(int i = 0; i < queries; ++i)
+                    found += ip.searchSubstring(substrings.get(i)).size();
+                search = System.nanoTime() - start;
+                start = System.nanoTime();
+                for(int i = 0; i < queries; ++i) {
+                    String s = substrings.get(i);
+                    found += ip.searchRegex(Pattern.compile(s.substring(0, 3) + "[a-z]?" + s.substring(3))).size();
+                }
+                regex = System.nanoTime() - start;
+            }
+            Assert.assertTrue(found > 0);
+            System.out.println("trigrams " + trigrams + ": " + ip.getStats().numWords + " words, indexing "
+                    + String.format("%.0f", files * 1e9 / indexing) + " files/sec, "
+                    + String.format("%.1f", queries * 1e9 / search) + " substring searches/sec, "
+                    + String.format("%.1f", queries * 1e9 / regex) + " regex searches/sec");
+        }
+    }
+
+    private static double reindexesPerSecond(int storageType, boolean replace, List<List<String>> versions) {
+        IIndexProcessor ip = new IndexProcessor(new NullFilesProcessor(), storageType);
+        Random rnd = new Random(42);
+        for(int i = 0; i < 1000; ++i)
+            indexFile(ip, 0, path("dir/file" + i), randomWords(rnd, 1000, 100000));
+        Path hot = path("dir/hot");
+        final int reps = 2000;
+        long start = 0;
+        for(int r = 0; r < 2 * reps; ++r) {
+            if(r == reps)
+                start = System.nanoTime();
+            List<String> words = versions.get(r % versions.size());
+            if(replace)
+                reindexFile(ip, r, hot, words);
+            else
+                indexFile(ip, r, hot, words);
+        }
+        return reps * 1e9 / (System.nanoTime() - start);
+    }
+
+    @Ignore("Benchmark")
+    @Test
+    public void hotFileReindex() {
+        Random rnd = new Random(42);
+        List<String> base = new ArrayList<>(new HashSet<>(randomWords(rnd, 20000, 100000)));
+        List<List<String>> versions = new ArrayList<>();
+        for(int v = 0; v < 4; ++v) { //saves which change a couple of words
+            List<String> words = new ArrayList<>(base);
+            words.set(rnd.nextInt(words.size()), "edited" + v);
+            words.add("added" + v);
+            versions.add(words);
+        }
+        System.out.println("Hot file with " + base.size() + " distinct words, reindexes/sec:");
+        for(int storageType : new int[] {StorageTypes.MAP, StorageTypes.INTERNED, StorageTypes.COMPRESSED, StorageTypes.MAPPED
+                , StorageTypes.SEGMENTED}) {
+            double full = reindexesPerSecond(storageType, false, versions);
+            double diff = reindexesPerSecond(storageType, true, versions);
+            System.out.println("storage " + storageType + ": remove & add " + String.format("%.0f", full)
+                    + ", diff " + String.format("%.0f", diff));
+        }
+    }
+}
@@ -38,6 +38,11 @@ public class OverflowTest {
                     return false;
                 }
 
+                @Override
+                public boolean cancelProcessing(@NotNull Path f) {
+                    return false;
+                }
+
                 @Override
                 public void startService() throws FailureException {
 
@@ -0,0 +1,176 @@
+package com.github.kassak.indexer.tests;
+
+import com.github.kassak.indexer.utils.MpscRingBuffer;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RingBufferTest {
+    private static class Item implements Comparable<Item> {
+        private Item(int producer, int num, int group) {
+            this.producer = producer;
+            this.num = num;
+            this.group = group;
+            seqNum = seq.incrementAndGet();
+        }
+
+        @Override
+        public int compareTo(@NotNull Item o) { //same ordering as of old index manager tasks queue
+            if(group != o.group)
+                return group > o.group ? -1 : 1;
+            return seqNum < o.seqNum ? -1 : (seqNum == o.seqNum ? 0 : 1);
+        }
+
+        private final int producer, num, group;
+        private final long seqNum;
+        private static final AtomicLong seq = new AtomicLong();
+    }
+
+    private interface Producer {
+        void put(@NotNull Item item) throws InterruptedException;
+    }
+
+    private static Thread[] startProducers(int producers, final int items, final Producer p) {
+        Thread[] res = new Thread[producers];
+        for(int i = 0; i < producers; ++i) {
+            final int id = i;
+            res[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(int j = 0; j < items; ++j)
+                            p.put(new Item(id, j, j % 3));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            res[i].start();
+        }
+        return res;
+    }
+
+    private static void offer(@NotNull MpscRingBuffer<Item> rb, @NotNull Item item) {
+        while(!rb.offer(item))
+            Thread.yield();
+    }
+
+    @Test
+    public void singleThread() {
+        MpscRingBuffer<Integer> rb = new MpscRingBuffer<>(5);
+        Assert.assertEquals(8, rb.capacity());
+        Assert.assertTrue(rb.isEmpty());
+        Assert.assertNull(rb.poll());
+        for(int round = 0; round < 3; ++round) {
+            for(int i = 0; i < 8; ++i)
+                Assert.assertTrue(rb.offer(i));
+            Assert.assertFalse(rb.offer(8));
+            Assert.assertEquals(8, rb.size());
+            for(int i = 0; i < 8; ++i)
+                Assert.assertEquals(Integer.valueOf(i), rb.poll());
+            Assert.assertNull(rb.poll());
+            Assert.assertTrue(rb.isEmpty());
+        }
+        Assert.assertTrue(rb.offer(1));
+        Assert.assertTrue(rb.offer(2));
+        rb.clear();
+        Assert.assertTrue(rb.isEmpty());
+        Assert.assertEquals(0, rb.size());
+    }
+
+    @Test
+    public void manyProducers() throws InterruptedException {
+        final int producers = 8, items = 100000;
+        final MpscRingBuffer<Item> rb = new MpscRingBuffer<>(64);
+        Thread[] threads = startProducers(producers, items, new Producer() {
+            @Override
+            public void put(@NotNull Item item) {
+                offer(rb, item);
+            }
+        });
+        int[] next = new int[producers];
+        for(int received = 0; received < producers * items; ) {
+            Item item = rb.poll();
+            if(item == null) {
+                Thread.yield();
+                continue;
+            }
+            Assert.assertEquals(next[item.producer]++, item.num); //FIFO for each producer
+            ++received;
+        }
+        for(Thread t : threads)
+            t.join();
+        Assert.assertNull(rb.poll());
+        for(int n : next)
+            Assert.assertEquals(items, n);
+    }
+
+    private static double priorityQueueOpsPerSecond(int producers, int items) throws InterruptedException {
+        final PriorityBlockingQueue<Item> queue = new PriorityBlockingQueue<>();
+        final Semaphore semaphore = new Semaphore(100);
+        long start = System.nanoTime();
+        Thread[] threads = startProducers(producers, items, new Producer() {
+            @Override
+            public void put(@NotNull Item item) throws InterruptedException {
+                semaphore.acquire();
+                queue.put(item);
+            }
+        });
+        for(int i = 0; i < producers * items; ++i) {
+            queue.take();
+            semaphore.release();
+        }
+        double res = producers * items * 1e9 / (System.nanoTime() - start);
+        for(Thread t : threads)
+            t.join();
+        return res;
+    }
+
+    private static double ringBuffersOpsPerSecond(int producers, int items) throws InterruptedException {
+        final List<MpscRingBuffer<Item>> groups = new ArrayList<>();
+        for(int i = 0; i < 3; ++i)
+            groups.add(new MpscRingBuffer<Item>(100));
+        long start = System.nanoTime();
+        Thread[] threads = startProducers(producers, items, new Producer() {
+            @Override
+            public void put(@NotNull Item item) {
+                offer(groups.get(item.group), item);
+            }
+        });
+        for(int i = 0; i < producers * items; ) {
+            Item item = groups.get(2).poll();
+            if(item == null)
+                item = groups.get(1).poll();
+            if(item == null)
+                item = groups.get(0).poll();
+            if(item == null)
+                Thread.yield();
+            else
+                ++i;
+        }
+        double res = producers * items * 1e9 / (System.nanoTime() - start);
+        for(Thread t : threads)
+            t.join();
+        return res;
+    }
+
+    @Ignore("Benchmark")
+    @Test
+    public void queueThroughput() throws InterruptedException {
+        final int producers = 8, items = 500000;
+        priorityQueueOpsPerSecond(producers, items / 10); //warm up
+        ringBuffersOpsPerSecond(producers, items / 10);
+        double pq = priorityQueueOpsPerSecond(producers, items);
+        double rb = ringBuffersOpsPerSecond(producers, items);
+        System.out.println(producers + " producers, " + Runtime.getRuntime().availableProcessors() + " cpus");
+        System.out.println("priority queue + semaphore: " + String.format("%.0f", pq) + " ops/sec");
+        System.out.println("ring buffer per priority:   " + String.format("%.0f", rb) + " ops/sec");
+    }
+}
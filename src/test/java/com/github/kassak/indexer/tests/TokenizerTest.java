@@ -0,0 +1,266 @@
+package com.github.kassak.indexer.tests;
+
+import com.github.kassak.indexer.tokenizing.CharClassTokenizer;
+import com.github.kassak.indexer.tokenizing.ITokenizer;
+import com.github.kassak.indexer.tokenizing.MappedTokenizer;
+import com.github.kassak.indexer.tokenizing.TokenizerModes;
+import com.github.kassak.indexer.tokenizing.factories.AlphanumTokenizerFactory;
+import com.github.kassak.indexer.tokenizing.factories.ITokenizerFactory;
+import com.github.kassak.indexer.tokenizing.factories.WhitespaceTokenizerFactory;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class TokenizerTest {
+    //Scanner splits surrogate pairs crossing its buffer boundary, so they are checked separately
+    private static final String[] PIECES = {"a", "Z", "7", "_", " ", "\t", "\n", "\r\n", "\u000B", "\f", ".", "-",
+            "\u0436", "\u0416", "\u0663", "\u00A0", "\u2003", "\uFFFD", "e\u0301"};
+
+    private static String randomText(Random rnd, int pieces) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < pieces; ++i) {
+            if(rnd.nextInt(1000) == 0) { //words longer than buffers
+                for(int j = rnd.nextInt(30000); j > 0; --j)
+                    sb.append((char)('a' + j % 26));
+            } else {
+                sb.append(PIECES[rnd.nextInt(PIECES.length)]);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static List<String> tokens(ITokenizerFactory tf, Path file) throws Exception {
+        List<String> res = new ArrayList<>();
+        try(ITokenizer tok = tf.create(file)) {
+            Assert.assertNotNull(tok);
+            while(tok.hasNext())
+                res.add(tok.next());
+        }
+        return res;
+    }
+
+    private static void assertSameTokens(Path file) throws Exception {
+        Assert.assertEquals(tokens(new AlphanumTokenizerFactory(TokenizerModes.SCANNER), file)
+                , tokens(new AlphanumTokenizerFactory(TokenizerModes.CHAR_CLASS), file));
+        Assert.assertEquals(tokens(new WhitespaceTokenizerFactory(TokenizerModes.SCANNER), file)
+                , tokens(new WhitespaceTokenizerFactory(TokenizerModes.CHAR_CLASS), file));
+    }
+
+    @Test
+    public void charClassSameAsScanner() throws Exception {
+        Path file = Files.createTempFile("indexer", ".txt");
+        try {
+            Random rnd = new Random(42);
+            for(int i = 0; i < 200; ++i) {
+                Files.write(file, randomText(rnd, rnd.nextInt(3000)).getBytes());
+                assertSameTokens(file);
+            }
+            byte[] binary = new byte[100000];
+            rnd.nextBytes(binary);
+            Files.write(file, binary);
+            assertSameTokens(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void charClassWords() throws Exception {
+        Path file = Files.createTempFile("indexer", ".txt");
+        try {
+            Files.write(file, "  foo, bar42.x-y_z\t\n".getBytes());
+            List<String> expected = new ArrayList<>();
+            expected.add("foo");
+            expected.add("bar42");
+            expected.add("x");
+            expected.add("y");
+            expected.add("z");
+            Assert.assertEquals(expected, tokens(new AlphanumTokenizerFactory(), file));
+            expected.clear();
+            expected.add("foo,");
+            expected.add("bar42.x-y_z");
+            Assert.assertEquals(expected, tokens(new WhitespaceTokenizerFactory(), file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void charClassSurrogatePairs() throws Exception {
+        final String letter = "\uD835\uDC00", symbol = "\uD83D\uDE00";
+        Assume.assumeTrue(Charset.defaultCharset().newEncoder().canEncode(letter + symbol));
+        Path file = Files.createTempFile("indexer", ".txt");
+        try {
+            for(int pad = 8180; pad < 8200; ++pad) { //pair crosses buffer boundary
+                StringBuilder sb = new StringBuilder();
+                for(int i = 0; i < pad; ++i)
+                    sb.append(' ');
+                sb.append("a").append(letter).append("7").append(symbol).append("b");
+                Files.write(file, sb.toString().getBytes());
+                List<String> expected = new ArrayList<>();
+                expected.add("a" + letter + "7");
+                expected.add("b");
+                Assert.assertEquals(expected, tokens(new AlphanumTokenizerFactory(), file));
+                expected.clear();
+                expected.add("a" + letter + "7" + symbol + "b");
+                Assert.assertEquals(expected, tokens(new WhitespaceTokenizerFactory(), file));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static List<String> tokens(ITokenizer tok) throws Exception {
+        List<String> res = new ArrayList<>();
+        try {
+            while(tok.hasNext())
+                res.add(tok.next());
+        } finally {
+            tok.close();
+        }
+        return res;
+    }
+
+    @Test
+    public void mappedSameAsCharClass() throws Exception {
+        Path file = Files.createTempFile("indexer", ".txt");
+        try {
+            Random rnd = new Random(42);
+            for(int i = 0; i < 300; ++i) {
+                byte[] bytes;
+                if(i % 10 == 0) { //binary, mostly malformed UTF-8
+                    bytes = new byte[rnd.nextInt(20000)];
+                    rnd.nextBytes(bytes);
+                } else {
+                    int pieces = i % 100 == 1 ? 300000 : rnd.nextInt(3000); //large one is mapped by default
+                    String text = randomText(rnd, pieces) + (i % 3 == 0 ? "\uD835\uDC00\uD83D\uDE00" : "");
+                    bytes = text.getBytes(StandardCharsets.UTF_8);
+                }
+                Files.write(file, bytes);
+                for(int wordChars : new int[] {CharClassTokenizer.ALPHANUMERIC, CharClassTokenizer.NON_WHITESPACE}) {
+                    List<String> expected = tokens(new CharClassTokenizer(file, wordChars, StandardCharsets.UTF_8));
+                    Assert.assertEquals(expected, tokens(new MappedTokenizer(file, wordChars)));
+                    int window = i < 20 ? 4 + rnd.nextInt(100) : 4096 + rnd.nextInt(4096); //mappings are released by gc only
+                    Assert.assertEquals(expected, tokens(new MappedTokenizer(file, wordChars, window)));
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void bufferSameAsFile() throws Exception {
+        Path file = Files.createTempFile("indexer", ".txt");
+        try {
+            Random rnd = new Random(42);
+            for(int i = 0; i < 100; ++i) {
+                byte[] bytes;
+                if(i % 10 == 0) {
+                    bytes = new byte[rnd.nextInt(20000)];
+                    rnd.nextBytes(bytes);
+                } else {
+                    bytes = (randomText(rnd, rnd.nextInt(3000)) + "\uD835\uDC00").getBytes(StandardCharsets.UTF_8);
+                }
+                Files.write(file, bytes);
+                ByteBuffer contents = ByteBuffer.allocate(bytes.length + 20);
+                contents.position(10);
+                contents.put(bytes);
+                contents.flip();
+                contents.position(10);
+                for(int wordChars : new int[] {CharClassTokenizer.ALPHANUMERIC, CharClassTokenizer.NON_WHITESPACE}) {
+                    List<String> expected = tokens(new CharClassTokenizer(file, wordChars, StandardCharsets.UTF_8));
+                    Assert.assertEquals(expected, tokens(new MappedTokenizer(contents, wordChars)));
+                    Assert.assertEquals(expected, tokens(new CharClassTokenizer(contents, wordChars, StandardCharsets.UTF_8)));
+                    Assert.assertEquals(10, contents.position());
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void mappedChunksSameAsWhole() throws Exception {
+        Path file = Files.createTempFile("indexer", ".txt");
+        try {
+            Random rnd = new Random(42);
+            for(int i = 0; i < 50; ++i) {
+                String text = randomText(rnd, rnd.nextInt(20000)) + "\uD835\uDC00\uD83D\uDE00";
+                Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+                for(int wordChars : new int[] {CharClassTokenizer.ALPHANUMERIC, CharClassTokenizer.NON_WHITESPACE}) {
+                    List<String> expected = tokens(new MappedTokenizer(file, wordChars));
+                    long[] chunks = MappedTokenizer.split(file, wordChars, 1 + rnd.nextInt(5000));
+                    Assert.assertEquals(0, chunks[0]);
+                    Assert.assertEquals(Files.size(file), chunks[chunks.length - 1]);
+                    List<String> actual = new ArrayList<>();
+                    for(int c = 0; c + 1 < chunks.length; ++c) {
+                        Assert.assertTrue(chunks[c] < chunks[c + 1]);
+                        actual.addAll(tokens(new MappedTokenizer(file, wordChars, chunks[c], chunks[c + 1])));
+                    }
+                    Assert.assertEquals(expected, actual);
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static double megabytesPerSecond(ITokenizerFactory tf, Path file) throws Exception {
+        long size = Files.size(file);
+        long start = 0;
+        long chars = 0;
+        final int reps = 5;
+        for(int r = 0; r < 2 * reps; ++r) {
+            if(r == reps)
+                start = System.nanoTime();
+            try(ITokenizer tok = tf.create(file)) {
+                Assert.assertNotNull(tok);
+                while(tok.hasNext())
+                    chars += tok.next().length();
+            }
+        }
+        Assert.assertTrue(chars > 0);
+        return reps * size * 1e3 / (System.nanoTime() - start);
+    }
+
+    @Ignore("Benchmark")
+    @Test
+    public void tokenizersThroughput() throws Exception {
+        Path file = Files.createTempFile("indexer", ".txt");
+        try {
+            Random rnd = new Random(42);
+            StringBuilder sb = new StringBuilder();
+            while(sb.length() < 50000000) {
+                for(int j = 1 + rnd.nextInt(10); j > 0; --j)
+                    sb.append((char)('a' + rnd.nextInt(26)));
+                sb.append(rnd.nextInt(8) == 0 ? ".\n" : " ");
+            }
+            Files.write(file, sb.toString().getBytes());
+            System.out.println("alphanum scanner:      " + String.format("%.1f"
+                    , megabytesPerSecond(new AlphanumTokenizerFactory(TokenizerModes.SCANNER), file)) + " MB/s");
+            System.out.println("alphanum char class:   " + String.format("%.1f"
+                    , megabytesPerSecond(new AlphanumTokenizerFactory(TokenizerModes.CHAR_CLASS), file)) + " MB/s");
+            System.out.println("alphanum mapped:       " + String.format("%.1f"
+                    , megabytesPerSecond(new AlphanumTokenizerFactory(TokenizerModes.MAPPED), file)) + " MB/s");
+            System.out.println("whitespace scanner:    " + String.format("%.1f"
+                    , megabytesPerSecond(new WhitespaceTokenizerFactory(TokenizerModes.SCANNER), file)) + " MB/s");
+            System.out.println("whitespace char class: " + String.format("%.1f"
+                    , megabytesPerSecond(new WhitespaceTokenizerFactory(TokenizerModes.CHAR_CLASS), file)) + " MB/s");
+            System.out.println("whitespace mapped:     " + String.format("%.1f"
+                    , megabytesPerSecond(new WhitespaceTokenizerFactory(TokenizerModes.MAPPED), file)) + " MB/s");
+        } finally {
+            Files.delete(file);
+        }
+    }
+}